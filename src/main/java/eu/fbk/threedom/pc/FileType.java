@@ -24,9 +24,6 @@
  */
 package eu.fbk.threedom.pc;
 
-import lombok.Getter;
-import lombok.Setter;
-
 public enum FileType {
 
     PHOTOGRAMMETRIC(0),
@@ -34,9 +31,6 @@ public enum FileType {
 
     public int type;
 
-    @Getter @Setter
-    public String[] props;
-
     FileType(int type){
         this.type = type;
     }
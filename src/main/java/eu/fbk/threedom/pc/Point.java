@@ -28,6 +28,7 @@ import lombok.Getter;
 import lombok.Setter;
 
 import javax.vecmath.Vector3d;
+import java.util.Arrays;
 
 public class Point extends Vector3d {
 
@@ -40,6 +41,8 @@ public class Point extends Vector3d {
 
     @Getter @Setter private double score;
     @Getter @Setter private float threshold;
+    // marked by the outlier removal, unlinked from the voxel grid
+    @Getter @Setter private boolean removed;
 
     private double[] propertiesValues;
     private double[] propertiesNormValues;
@@ -49,22 +52,20 @@ public class Point extends Vector3d {
         this.r = 0; this.g = 0; this.b = 0;
     }
 
-    public Point(FileType type,  double x, double y, double z) {
-        this.type = type;
-        super.x = x; super.y = y; super.z = z;
-        this.r = 0; this.g = 0; this.b = 0;
-
-        propertiesValues = new double[type.getProps().length];
-        propertiesNormValues = new double[type.getProps().length];
+    /**
+     * @param nProps number of properties of the fileType, kept by the filter that parses the points
+     */
+    public Point(FileType type, int nProps, double x, double y, double z) {
+        this(type, nProps, x, y, z, 0, 0, 0);
     }
 
-    public Point(FileType type, double x, double y, double z, int r, int g, int b) {
+    public Point(FileType type, int nProps, double x, double y, double z, int r, int g, int b) {
         this.type = type;
         super.x = x; super.y = y; super.z = z;
         this.r = r; this.g = g; this.b = b;
 
-        propertiesValues = new double[type.getProps().length];
-        propertiesNormValues = new double[type.getProps().length];
+        propertiesValues = new double[nProps];
+        propertiesNormValues = new double[nProps];
     }
 
     public void move(double x, double y, double z){
@@ -140,6 +141,15 @@ public class Point extends Vector3d {
                 + (z + min.getZ()) + ")";
     }
 
+    /**
+     * grow the properties arrays to nProps, the new properties are 0
+     * @param nProps
+     */
+    public void extendProps(int nProps){
+        propertiesValues = Arrays.copyOf(propertiesValues, nProps);
+        propertiesNormValues = Arrays.copyOf(propertiesNormValues, nProps);
+    }
+
     public void setProp(int propertyIndex, Double value){ propertiesValues[propertyIndex] = value;}
     public void setNormProp(int propertyIndex, float value){propertiesNormValues[propertyIndex] = value;    }
     public double getProp(int propertyIndex){return propertiesValues[propertyIndex];}
@@ -166,7 +176,7 @@ public class Point extends Vector3d {
     }
 
     public static void main(String[] args){
-        Point p = new Point(FileType.PHOTOGRAMMETRIC, 1, 2, 3);
+        Point p = new Point(FileType.PHOTOGRAMMETRIC, 1, 1, 2, 3);
         p.setProp(0, 666.0);
 
         System.out.println(p.toString());
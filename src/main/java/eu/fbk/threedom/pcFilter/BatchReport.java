@@ -0,0 +1,295 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.LlNode;
+import eu.fbk.threedom.structs.SmoothedDensity;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Combinator;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+import lombok.Setter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * all the reports of the "write files" option computed in a single walk over the voxels:
+ * properties statistics, voxel density, photo/lidar intersection, multiclass voxels,
+ * filtered and scored filtered intersection sets, collected in a JSON report
+ */
+public class BatchReport {
+
+    private PcFilter pcf;
+    private boolean verbose;
+
+    @Getter private VoxelCounts counts;
+    @Getter private Set<Integer> intersectionSet;
+    @Getter private Set<Integer> filteredIntersectionSet;
+    @Getter private Set<Integer> scoredFilteredIntersectionSet;
+    @Getter private JSONObject report;
+    // densities of the filtered set, null for the voxel counts
+    @Setter private SmoothedDensity smoothedDensity;
+
+    // normalized property values [fileType][property] and [fileType][class][property]
+    private double[][][] values;
+    private int[][] n;
+    private float[][][][] classValues;
+    private int[][][] classN;
+
+    public BatchReport(PcFilter pcf, boolean verbose){
+        this.pcf = pcf;
+        this.verbose = verbose;
+    }
+
+    public JSONObject run(float voxelSide){
+        System.out.println("\n///////////////////////////////////////////////////////\n// BATCH REPORT");
+        long start = System.currentTimeMillis();
+
+        report = new JSONObject();
+        report.put("voxelSide", voxelSide);
+
+        String[][] props = pcf.getProperties();
+        int nFt = FileType.values().length, nCl = PointClassification.values().length;
+        values = new double[nFt][][];
+        n = new int[nFt][];
+        classValues = new float[nFt][nCl][][];
+        classN = new int[nFt][nCl][];
+        for(FileType ft : FileType.values()) {
+            int nProps = props[ft.ordinal()].length;
+            values[ft.ordinal()] = new double[nProps][1024];
+            n[ft.ordinal()] = new int[nProps];
+            for(PointClassification pc : PointClassification.values()) {
+                classValues[ft.ordinal()][pc.ordinal()] = new float[nProps][1024];
+                classN[ft.ordinal()][pc.ordinal()] = new int[nProps];
+            }
+        }
+
+        ///////////////////////////////////////////////////////
+        // single walk over the points
+        counts = new VoxelCounts();
+        if(voxelSide != 0) {
+            VoxelGrid vGrid = pcf.getVGrid();
+            for(int v : vGrid.getVoxelWithPoints()) {
+                Voxel vox = vGrid.getVoxel(v);
+                LlNode node = vox.getHead();
+                while(node != null) {
+                    Point p = (Point)node.value();
+                    counts.add(v, p);
+                    addValues(p);
+
+                    // exit condition
+                    if(!node.hasNext() || node == vox.getTail()) break;
+                    node = node.next();
+                }
+            }
+        }else
+            for(Point p : pcf.getPoints())
+                addValues(p);
+
+        Stats.printElapsedTime(start, "..points visited");
+
+        report.put("properties", propertiesReport(props));
+
+        if(voxelSide != 0) {
+            report.put("voxelDensity", densityReport());
+
+            intersectionSet = counts.getIntersection();
+            filteredIntersectionSet = counts.getFiltered(intersectionSet, counts.densityMeans(), smoothedDensity);
+            scoredFilteredIntersectionSet = counts.getScoredFiltered(filteredIntersectionSet);
+
+            report.put("intersection", voxelSetReport(intersectionSet));
+            report.put("multiClass", multiClassReport());
+            report.put("filteredIntersection", voxelSetReport(filteredIntersectionSet));
+            report.put("scoredFilteredIntersection", voxelSetReport(scoredFilteredIntersectionSet));
+
+            System.out.println("..photo/lidar points are contained in " + intersectionSet.size() + " voxels");
+            System.out.println("..filtered intersection voxel count -> " + filteredIntersectionSet.size() + " voxels");
+            System.out.println("..scored filtered intersection voxel count -> " + scoredFilteredIntersectionSet.size() + " voxels");
+        }
+
+        Stats.printElapsedTime(start, "processed");
+        return report;
+    }
+
+    private void addValues(Point p){
+        int ft = p.getType().ordinal(), pc = p.getClassification().ordinal();
+
+        for(int k = 0; k < n[ft].length; k++) {
+            if(n[ft][k] == values[ft][k].length)
+                values[ft][k] = Arrays.copyOf(values[ft][k], 2 * n[ft][k]);
+            values[ft][k][n[ft][k]++] = p.getNormProp(k);
+
+            if(classN[ft][pc][k] == classValues[ft][pc][k].length)
+                classValues[ft][pc][k] = Arrays.copyOf(classValues[ft][pc][k], 2 * classN[ft][pc][k]);
+            classValues[ft][pc][k][classN[ft][pc][k]++] = (float)p.getNormProp(k);
+        }
+    }
+
+    private JSONObject propertiesReport(String[][] props){
+        JSONObject json = new JSONObject();
+
+        for(FileType ft : FileType.values()) {
+            JSONObject ftJson = new JSONObject();
+
+            for(int k = 0; k < props[ft.ordinal()].length; k++) {
+                int count = n[ft.ordinal()][k];
+                if(count == 0) continue;
+
+                double[] v = Arrays.copyOf(values[ft.ordinal()][k], count);
+                double med = Stats.median(v, count);
+                double mad = Stats.mad(v, count);
+
+                JSONObject propJson = new JSONObject();
+                propJson.put("values", count);
+                putNumber(propJson, "med", med);
+                putNumber(propJson, "mad", mad);
+                putNumber(propJson, "sigmaM", mad * 1.4826);
+
+                JSONObject classesJson = new JSONObject();
+                for(PointClassification pc : PointClassification.values()) {
+                    int classCount = classN[ft.ordinal()][pc.ordinal()][k];
+                    if(classCount == 0) continue;
+
+                    float[] cv = Arrays.copyOf(classValues[ft.ordinal()][pc.ordinal()][k], classCount);
+                    float classMed = Stats.median(cv, classCount);
+                    float classMad = Stats.mad(cv, classCount);
+
+                    JSONObject classJson = new JSONObject();
+                    classJson.put("values", classCount);
+                    putNumber(classJson, "med", classMed);
+                    putNumber(classJson, "mad", classMad);
+                    putNumber(classJson, "sigmaM", classMad * 1.4826);
+                    classesJson.put(pc.name(), classJson);
+                }
+                propJson.put("classes", classesJson);
+
+                ftJson.put(props[ft.ordinal()][k], propJson);
+            }
+
+            json.put(ft.name(), ftJson);
+        }
+
+        return json;
+    }
+
+    private JSONObject densityReport(){
+        JSONObject json = new JSONObject();
+        json.put("voxelsWithPoints", counts.size());
+
+        for(FileType ft : FileType.values()) {
+            // density of the fileType, over the voxels containing it
+            int sum = 0, voxels = 0;
+            for(int v : counts.getCounts().keySet()) {
+                int c = counts.getCount(v, ft);
+                if(c > 0) { sum += c; voxels++; }
+            }
+            float mean = (voxels > 0) ? (float)sum / voxels : 0;
+            float std = 0;
+            for(int v : counts.getCounts().keySet()) {
+                int c = counts.getCount(v, ft);
+                if(c > 0) std += (float)Math.pow((c - mean), 2);
+            }
+            if(voxels > 0) std = (float)Math.sqrt(std / voxels);
+
+            JSONObject ftJson = new JSONObject();
+            ftJson.put("voxels", voxels);
+            ftJson.put("densityMean", mean);
+            ftJson.put("densityStd", std);
+
+            JSONObject classesJson = new JSONObject();
+            for(PointClassification pc : PointClassification.values()) {
+                int classVoxels = 0;
+                for(int[] c : counts.getCounts().values())
+                    if(c[Voxel.slot(ft, pc)] > 0) classVoxels++;
+
+                JSONObject classJson = new JSONObject();
+                classJson.put("voxels", classVoxels);
+                classJson.put("densityMean", counts.densityMean(ft, pc));
+                classJson.put("densityStd", counts.densityStd(ft, pc));
+                classesJson.put(pc.name(), classJson);
+            }
+            ftJson.put("classes", classesJson);
+
+            json.put(ft.name(), ftJson);
+        }
+
+        return json;
+    }
+
+    private JSONObject multiClassReport(){
+        String[] classes = Stream.of(PointClassification.values()).map(PointClassification::name).toArray(String[]::new);
+
+        // all two places combinations
+        List<String[]> combinations = Combinator.generate(classes, 2);
+        // add the 3 places case
+        combinations.add(classes);
+
+        JSONObject json = new JSONObject();
+        for(FileType ft : FileType.values()) {
+            JSONObject ftJson = new JSONObject();
+
+            for(String[] combination : combinations) {
+                int voxels = 0;
+                for(int v : counts.getCounts().keySet()) {
+                    boolean all = true;
+                    for(String cls : combination)
+                        if(counts.getCount(v, ft, PointClassification.valueOf(cls)) == 0) { all = false; break; }
+                    if(all) voxels++;
+                }
+                ftJson.put(Arrays.toString(combination), voxels);
+            }
+
+            json.put(ft.name(), ftJson);
+        }
+
+        return json;
+    }
+
+    private JSONObject voxelSetReport(Set<Integer> voxels){
+        JSONObject json = new JSONObject();
+        json.put("voxels", voxels.size());
+        if(verbose)
+            json.put("ids", new JSONArray(voxels));
+
+        return json;
+    }
+
+    // constant properties normalize to NaN, JSON has no NaN
+    private static void putNumber(JSONObject json, String key, double value){
+        json.put(key, Double.isFinite(value) ? (Object)value : JSONObject.NULL);
+    }
+
+    private static void putNumber(JSONObject json, String key, float value){
+        json.put(key, Float.isFinite(value) ? (Object)value : JSONObject.NULL);
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.utils.Stats;
+import eu.fbk.threedom.utils.ThreadPrintStream;
+import lombok.Getter;
+import org.apache.commons.io.FilenameUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * runs the jobs of a manifest in a single JVM, several at once on a shared thread pool.
+ * Jobs are admitted largest first while their memory estimate, from the input file sizes,
+ * fits the memory budget; a job larger than the budget runs alone.
+ * Each job does what the -b batch mode does: output clouds and JSON report next to its
+ * photo file, and a log of its console output.
+ *
+ * Manifest: one job per line, "//" comments
+ *   photo_file lidar_file voxelSide [config_file]
+ * relative paths are resolved from the manifest folder, the config defaults to config.json
+ * in the photo file folder
+ *
+ * Usage: java -cp hyRe.jar eu.fbk.threedom.pcFilter.BatchRunner manifest [-th threads] [-mem MB] [-w]
+ */
+public class BatchRunner {
+
+    // heap bytes for each input byte: points, properties, list nodes and voxel chains
+    public static final double MEMORY_PER_INPUT_BYTE = 6;
+
+    @Argument(index=0, required = true, metaVar = "manifest") File manifest;
+    @Option(name = "-th", aliases = { "--threads" }, metaVar = "threads") Integer threads;
+    @Option(name = "-mem", aliases = { "--memoryBudget" }, metaVar = "MB") Long memoryBudgetMb;
+    @Option(name = "-w", aliases = { "--overwrite" }, metaVar = "overWrite") Boolean overWrite;
+
+    public static class Job {
+        @Getter private File photoFile, lidarFile, configFile;
+        @Getter private float voxelSide;
+        @Getter private long memoryEstimate;
+
+        @Getter private String status = "pending";
+        @Getter private long time;
+        @Getter private JSONObject report;
+
+        public Job(File photoFile, File lidarFile, float voxelSide, File configFile){
+            this(photoFile, lidarFile, voxelSide, configFile,
+                    (long)((photoFile.length() + lidarFile.length()) * MEMORY_PER_INPUT_BYTE));
+        }
+
+        Job(File photoFile, File lidarFile, float voxelSide, File configFile, long memoryEstimate){
+            this.photoFile = photoFile;
+            this.lidarFile = lidarFile;
+            this.voxelSide = voxelSide;
+            this.configFile = configFile;
+            this.memoryEstimate = memoryEstimate;
+        }
+
+        public String getName(){
+            return FilenameUtils.getBaseName(photoFile.getPath()) + "_"
+                    + FilenameUtils.getBaseName(lidarFile.getPath()) + "_" + voxelSide;
+        }
+    }
+
+    @Getter private List<Job> jobs;
+
+    public static List<Job> readManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        File dir = manifest.getAbsoluteFile().getParentFile();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("//") || line.isEmpty()) continue;
+
+                String[] token = line.split("\\s+");
+                if(token.length < 3) {
+                    System.out.println("WARNING! manifest line skipped: " + line);
+                    continue;
+                }
+
+                File photo = resolve(dir, token[0]), lidar = resolve(dir, token[1]);
+                File config = (token.length > 3) ? resolve(dir, token[3])
+                        : new File(photo.getParentFile(), "config.json");
+
+                jobs.add(new Job(photo, lidar, Float.parseFloat(token[2]), config));
+            }
+        }
+
+        return jobs;
+    }
+
+    private static File resolve(File dir, String path){
+        File f = new File(path);
+        return f.isAbsolute() ? f : new File(dir, path);
+    }
+
+    public void run() throws Exception {
+        jobs = readManifest(manifest);
+
+        int nThreads = (threads != null && threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        long budget = (memoryBudgetMb != null) ? memoryBudgetMb << 20 : (long)(Runtime.getRuntime().maxMemory() * 0.8);
+
+        System.out.println("\n" + jobs.size() + " jobs, " + nThreads + " threads, memory budget " + (budget >> 20) + " MB");
+        long start = System.currentTimeMillis();
+
+        ThreadPrintStream out = ThreadPrintStream.install();
+        schedule(jobs, nThreads, budget, job -> runJob(job, out));
+
+        writeSummary();
+        Stats.printElapsedTime(start, "batch completed");
+    }
+
+    /**
+     * run the jobs on a pool of nThreads threads, largest first while their memory estimates
+     * fit the budget; a job larger than the budget only runs alone
+     * @param jobs
+     * @param nThreads
+     * @param budget bytes
+     * @param runner runs one job on a pool thread
+     */
+    void schedule(List<Job> jobs, int nThreads, long budget, Consumer<Job> runner) throws Exception {
+        // largest first
+        List<Job> pending = new ArrayList<>(jobs);
+        pending.sort(Comparator.comparingLong(Job::getMemoryEstimate).reversed());
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        CompletionService<Job> done = new ExecutorCompletionService<>(pool);
+        long inUse = 0;
+        int running = 0;
+
+        try {
+            while (!pending.isEmpty() || running > 0) {
+                // admit the largest jobs fitting the budget, an oversized job only runs alone
+                Iterator<Job> it = pending.iterator();
+                while (it.hasNext() && running < nThreads) {
+                    Job job = it.next();
+                    if (running > 0 && inUse + job.memoryEstimate > budget) continue;
+
+                    it.remove();
+                    inUse += job.memoryEstimate;
+                    running++;
+                    job.status = "running";
+                    System.out.println(".." + job.getName() + " started (" + (job.memoryEstimate >> 20) + " MB estimated)");
+
+                    done.submit(() -> { runner.accept(job); return job; });
+                }
+
+                Job job = done.take().get();
+                inUse -= job.memoryEstimate;
+                running--;
+                System.out.println(".." + job.getName() + " " + job.status + " in " + job.time + " ms");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void runJob(Job job, ThreadPrintStream out){
+        long start = System.currentTimeMillis();
+        String filePath = FilenameUtils.getFullPath(job.photoFile.getAbsolutePath());
+        String vs = job.voxelSide + "_";
+        String fn1 = FilenameUtils.getBaseName(job.photoFile.getPath());
+        String fn2 = FilenameUtils.getBaseName(job.lidarFile.getPath());
+
+        try (PrintStream log = new PrintStream(new FileOutputStream(new File(filePath, fn1 + "_" + fn2 + "_" + vs + "log.txt")), true)) {
+            // output of this pool thread only, cleared in finally before the thread takes the next job
+            out.redirect(log);
+
+            try {
+                process(job, filePath, fn1, fn2, vs);
+                job.status = "done";
+            } catch (Exception e) {
+                e.printStackTrace(log);
+                job.status = "failed: " + e;
+            } finally {
+                out.redirect(null);
+            }
+        } catch (IOException e) {
+            System.out.println("..WARNING! " + job.getName() + " log not created: " + e.getMessage());
+            job.status = "failed: " + e;
+        }
+
+        job.time = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * what the -b batch mode does: output clouds and JSON report, kept in job
+     */
+    private void process(Job job, String filePath, String fn1, String fn2, String vs) throws Exception {
+        JSONObject config = Main.loadConfig(job.configFile);
+        PcFilter pcf = new PcFilter(job.photoFile, job.lidarFile, job.voxelSide, config);
+
+        JSONObject report;
+        BatchReport batchReport = null;
+        if (job.voxelSide == 0)
+            report = new JSONObject().put("voxelSide", job.voxelSide);
+        else {
+            batchReport = new BatchReport(pcf, false);
+            report = batchReport.run(job.voxelSide);
+        }
+        report.put("photoFile", job.photoFile.getPath());
+        report.put("lidarFile", job.lidarFile.getPath());
+
+        JSONArray outputs = new JSONArray();
+        report.put("outputs", outputs);
+        File reportFile = new File(filePath, fn1 + "_" + fn2 + "_" + vs + "report.json");
+        try {
+            if (batchReport == null) {
+                File[] files = outputFiles(filePath, fn1, fn2, vs + "out");
+                pcf.writePoints(files, pcf.getPoints());
+                outputs.put(files[0].getPath()).put(files[1].getPath());
+            } else {
+                File[] files = outputFiles(filePath, fn1, fn2, vs + "filteredIntersection");
+                pcf.writeVoxels(files, batchReport.getFilteredIntersectionSet(), false);
+                outputs.put(files[0].getPath()).put(files[1].getPath());
+
+                files = outputFiles(filePath, fn1, fn2, vs + "out");
+                pcf.writeVoxels(files, batchReport.getScoredFilteredIntersectionSet(), true);
+                outputs.put(files[0].getPath()).put(files[1].getPath());
+            }
+        } catch (IOException e) {
+            // the report records the failure and the outputs written before it, the job fails
+            report.put("error", e.toString());
+            job.report = report;
+            writeReport(reportFile, report);
+            throw e;
+        }
+
+        writeReport(reportFile, report);
+        job.report = report;
+    }
+
+    private void writeReport(File reportFile, JSONObject report) throws IOException {
+        checkOverwrite(reportFile);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(reportFile, false))) {
+            writer.write(report.toString(2));
+            writer.newLine();
+        }
+    }
+
+    private File[] outputFiles(String filePath, String fn1, String fn2, String label) throws IOException {
+        File[] files = {
+                new File(filePath, fn1 + "_" + label + ".txt"),
+                new File(filePath, fn2 + "_" + label + ".txt")};
+
+        for(File f : files) checkOverwrite(f);
+        return files;
+    }
+
+    private void checkOverwrite(File f) throws IOException {
+        if(f.exists() && (overWrite == null || !overWrite))
+            throw new IOException("the output file already exists " + f.getPath());
+    }
+
+    private void writeSummary() throws IOException {
+        JSONArray summary = new JSONArray();
+        for(Job job : jobs) {
+            JSONObject j = new JSONObject()
+                    .put("photoFile", job.photoFile.getPath())
+                    .put("lidarFile", job.lidarFile.getPath())
+                    .put("voxelSide", job.voxelSide)
+                    .put("memoryEstimateMB", job.memoryEstimate >> 20)
+                    .put("status", job.status)
+                    .put("time", job.time);
+            if(job.report != null) j.put("outputs", job.report.getJSONArray("outputs"));
+            summary.put(j);
+        }
+
+        File summaryFile = new File(manifest.getAbsoluteFile().getParentFile(),
+                FilenameUtils.getBaseName(manifest.getPath()) + "_summary.json");
+        System.out.println("\nsummaryFile:\n.." + summaryFile);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(summaryFile, false))) {
+            writer.write(new JSONObject().put("jobs", summary).toString(2));
+            writer.newLine();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BatchRunner runner = new BatchRunner();
+        CmdLineParser parser = new CmdLineParser(runner);
+
+        try {
+            parser.parseArgument(args);
+        } catch( CmdLineException e ) {
+            System.err.print("Usage: BatchRunner");
+            parser.printSingleLineUsage(System.err);
+            System.err.println();
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+
+        runner.run();
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * bulk counterpart of Main.printLocation: many locations are mapped to voxels in batches
+ * on a pool, then visited sorted by voxel id so that each voxel is resolved once and the
+ * grid is walked in memory order. Results are stored in flat arrays in input order, no
+ * object is allocated per location.
+ */
+public class BulkLocator {
+
+    // locations of a batch
+    public static final int BATCH = 4096;
+
+    private VoxelGrid vGrid;
+    private double shiftX, shiftY, shiftZ;
+    private ForkJoinPool pool;
+
+    // voxel sets reported for each location, see setSets
+    private List<BitSet> sets;
+
+    /**
+     * result of a lookup, location i has voxel voxels[i] (-1 if outside the grid),
+     * counts[i * SLOTS + Voxel.slot(ft, pc)] points of each fileType/class and bit s of
+     * flags[i] set if its voxel is in the set s
+     */
+    public static class Lookup {
+        @Getter private int[] voxels;
+        @Getter private int[] counts;
+        @Getter private int[] flags;
+
+        private Lookup(int n){
+            voxels = new int[n];
+            counts = new int[n * VoxelCounts.SLOTS];
+            flags = new int[n];
+        }
+
+        public int size(){ return voxels.length; }
+
+        public int getCount(int i, FileType fileType, PointClassification pointType){
+            return counts[i * VoxelCounts.SLOTS + Voxel.slot(fileType, pointType)];
+        }
+
+        public boolean inSet(int i, int set){
+            return (flags[i] & 1 << set) != 0;
+        }
+    }
+
+    /**
+     * @param vGrid
+     * @param coordShift shift of the grid coordinates, locations are given in input coordinates
+     * @param threads
+     */
+    public BulkLocator(VoxelGrid vGrid, Point coordShift, int threads){
+        this.vGrid = vGrid;
+        this.shiftX = coordShift.x; this.shiftY = coordShift.y; this.shiftZ = coordShift.z;
+        this.pool = new ForkJoinPool(threads);
+        this.sets = new ArrayList<>();
+    }
+
+    /**
+     * voxel sets whose membership is reported in Lookup.flags, in order
+     * @param sets
+     */
+    public void setSets(List<Set<Integer>> sets){
+        this.sets = new ArrayList<>();
+        for(Set<Integer> set : sets) {
+            BitSet bits = new BitSet(vGrid.getSize());
+            for(int v : set) bits.set(v);
+            this.sets.add(bits);
+        }
+    }
+
+    public void shutdown(){
+        pool.shutdown();
+    }
+
+    private void run(int tasks, java.util.function.IntConsumer task){
+        try {
+            pool.submit(() -> IntStream.range(0, tasks).parallel().forEach(task)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * voxel ids of the locations
+     * @param xyz x, y, z of each location
+     * @param voxels output, one id per location
+     */
+    public void locate(double[] xyz, int[] voxels){
+        int n = xyz.length / 3;
+        run((n + BATCH - 1) / BATCH, b -> {
+            for(int i = b * BATCH, end = Math.min(n, i + BATCH); i < end; i++)
+                voxels[i] = vGrid.getVoxelId(xyz[3 * i] - shiftX, xyz[3 * i + 1] - shiftY, xyz[3 * i + 2] - shiftZ);
+        });
+    }
+
+    /**
+     * voxel, fileType/class counts and set membership of each location
+     * @param xyz x, y, z of each location
+     * @return
+     */
+    public Lookup lookup(double[] xyz){
+        int n = xyz.length / 3;
+        Lookup lookup = new Lookup(n);
+        locate(xyz, lookup.voxels);
+
+        // (voxel + 1, location) pairs sorted by voxel
+        long[] keys = new long[n];
+        run((n + BATCH - 1) / BATCH, b -> {
+            for(int i = b * BATCH, end = Math.min(n, i + BATCH); i < end; i++)
+                keys[i] = (long)(lookup.voxels[i] + 1) << 32 | i;
+        });
+        Arrays.parallelSort(keys);
+
+        // each batch resolves the voxels of its runs of equal keys once
+        run((n + BATCH - 1) / BATCH, b -> {
+            int[] counts = null;
+            int flags = 0, last = -2;
+            for(int k = b * BATCH, end = Math.min(n, k + BATCH); k < end; k++) {
+                int v = (int)(keys[k] >>> 32) - 1, i = (int)keys[k];
+
+                if(v != last) {
+                    last = v;
+                    Voxel vox = (v < 0) ? null : vGrid.getVoxel(v);
+                    counts = (vox == null) ? null : vox.getCounts();
+                    flags = 0;
+                    if(v >= 0)
+                        for(int s = 0; s < sets.size(); s++)
+                            if(sets.get(s).get(v)) flags |= 1 << s;
+                }
+
+                if(counts != null)
+                    System.arraycopy(counts, 0, lookup.counts, i * VoxelCounts.SLOTS, VoxelCounts.SLOTS);
+                lookup.flags[i] = flags;
+            }
+        });
+
+        return lookup;
+    }
+
+    /**
+     * read the locations of a file: x y z as the first three values of each line,
+     * separated by spaces, commas, semicolons or tabs; "//" lines are comments
+     * @param file
+     * @return x, y, z of each location
+     * @throws IOException
+     */
+    public static double[] readLocations(File file) throws IOException {
+        double[] xyz = new double[3 * 1024];
+        int n = 0;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("//")) continue;
+
+                String[] token = line.split("[ ,;\\t]+");
+                if(token.length < 3)
+                    throw new IOException("less than three coordinates in line: " + line);
+
+                if(n + 3 > xyz.length) xyz = Arrays.copyOf(xyz, xyz.length * 2);
+                for(int c = 0; c < 3; c++)
+                    xyz[n++] = Double.parseDouble(token[c]);
+            }
+        }
+
+        return Arrays.copyOf(xyz, n);
+    }
+
+    /**
+     * map the locations of file to voxels and write one line per location, in input order:
+     * x y z voxel, the fileType/class counts and the intersection, filtered and scored
+     * filtered flags of the voxel
+     * @param pcf filter with a voxel grid
+     * @param in locations file
+     * @param out output file
+     * @param threads
+     * @throws IOException
+     */
+    public static void locateFile(PcFilter pcf, File in, File out, int threads) throws IOException {
+        System.out.println("\nbulk location lookup " + in.getPath());
+        long start = System.currentTimeMillis();
+        double[] xyz = readLocations(in);
+        int n = xyz.length / 3;
+        Stats.printElapsedTime(start, "..read " + n + " locations");
+
+        start = System.currentTimeMillis();
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        Set<Integer> intersection = vc.getIntersection();
+        Set<Integer> filtered = vc.getFiltered(intersection);
+
+        BulkLocator locator = new BulkLocator(pcf.getVGrid(), pcf.getCoordShift(), threads);
+        locator.setSets(Arrays.asList(intersection, filtered, vc.getScoredFiltered(filtered)));
+        Lookup lookup = locator.lookup(xyz);
+        locator.shutdown();
+
+        int outside = 0;
+        for(int v : lookup.getVoxels()) if(v < 0) outside++;
+        Stats.printElapsedTime(start, "..located, " + outside + " outside of the bounding box");
+
+        start = System.currentTimeMillis();
+        StringBuilder header = new StringBuilder("// X Y Z Voxel");
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values())
+                header.append(" ").append(ft).append("_").append(pc);
+        header.append(" Intersection Filtered ScoredFiltered");
+
+        try (Writer writer = new BufferedWriter(new FileWriter(out), 1 << 16)) {
+            writer.write(header.toString());
+            writer.write('\n');
+
+            StringBuilder sb = new StringBuilder();
+            for(int i = 0; i < n; i++) {
+                sb.setLength(0);
+                sb.append(xyz[3 * i]).append(' ').append(xyz[3 * i + 1]).append(' ').append(xyz[3 * i + 2])
+                        .append(' ').append(lookup.voxels[i]);
+                for(int s = 0; s < VoxelCounts.SLOTS; s++)
+                    sb.append(' ').append(lookup.counts[i * VoxelCounts.SLOTS + s]);
+                for(int s = 0; s < 3; s++)
+                    sb.append(' ').append(lookup.inSet(i, s) ? 1 : 0);
+                sb.append('\n');
+                writer.append(sb);
+            }
+        }
+        Stats.printElapsedTime(start, "..written " + out.getPath());
+    }
+}
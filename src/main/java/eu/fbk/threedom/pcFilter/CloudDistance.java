@@ -0,0 +1,210 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.PointFilter;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.LinearAlgebra;
+import eu.fbk.threedom.utils.ScoreHistogram;
+import eu.fbk.threedom.utils.Stats;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * cloud to cloud distance of the photogrammetric points (registered, if a registration ran)
+ * from the lidar cloud, by expanding ring search on the voxel grid:
+ * - NEAREST: distance from the nearest lidar point
+ * - PLANE: distance from the plane fitted on the PLANE_NEIGHBOURS nearest lidar points
+ *   (nearest point distance with less than 3 of them)
+ * Points without lidar points within maxDistance have no distance. The distances are
+ * added as the photogrammetric property C2C, and summarized by class in histograms
+ * over [0, maxDistance].
+ */
+public class CloudDistance {
+
+    public enum Mode { NEAREST, PLANE }
+
+    public static final String PROPERTY = "C2C";
+    private static final int PLANE_NEIGHBOURS = 8;
+    private static final int BINS = 50;
+    // points of a parallel task
+    private static final int BATCH = 1024;
+
+    private Mode mode;
+    private double maxDistance;
+    private int threads;
+
+    private ScoreHistogram[] histograms;
+    private double[] sum, sum2;
+    private int[] unmatched;
+
+    /**
+     * @param mode
+     * @param maxDistance lidar points farther than this are not searched
+     * @param threads
+     */
+    public CloudDistance(Mode mode, double maxDistance, int threads){
+        this.mode = mode;
+        this.maxDistance = maxDistance;
+        this.threads = threads;
+    }
+
+    /**
+     * distances of the selected photogrammetric points, added as property C2C
+     * (NaN in the output for the points without distance)
+     * @param pcf
+     * @param selected points whose distance is computed, the others have none
+     */
+    public void run(PcFilter pcf, Predicate<Point> selected){
+        System.out.println("\nC2C " + mode + ": max distance " + maxDistance);
+        long start = System.currentTimeMillis();
+
+        VoxelGrid grid = pcf.getVGrid();
+        List<Point> photo = pcf.getPoints(FileType.PHOTOGRAMMETRIC, true);
+        PointFilter lidar = new PointFilter(FileType.LIDAR, null, false);
+        double startHalfSide = Math.min(pcf.getVoxelSide(), maxDistance);
+
+        double[] distances = new double[photo.size()];
+        Arrays.fill(distances, Double.NaN);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, (photo.size() + BATCH - 1) / BATCH).parallel().forEach(b -> {
+                int k = (mode == Mode.PLANE) ? PLANE_NEIGHBOURS : 1;
+                Point[] neighbours = new Point[k];
+                double[] dist2 = new double[k], xyz = new double[3 * k];
+                int[] ids = new int[k];
+                double[][] cov = new double[3][3], vectors = new double[3][3];
+                double[] values = new double[3];
+
+                for(int i = b * BATCH; i < Math.min(photo.size(), (b + 1) * BATCH); i++) {
+                    Point p = photo.get(i);
+                    if(!selected.test(p)) continue;
+
+                    int found = grid.nearest(p, k, lidar, startHalfSide, maxDistance, neighbours, dist2);
+                    if(found == 0) continue;
+
+                    distances[i] = Math.sqrt(dist2[0]);
+                    if(mode == Mode.NEAREST || found < 3) continue;
+
+                    // distance from the plane of the neighbours
+                    for(int j = 0; j < found; j++) {
+                        xyz[3 * j] = neighbours[j].x; xyz[3 * j + 1] = neighbours[j].y; xyz[3 * j + 2] = neighbours[j].z;
+                        ids[j] = j;
+                    }
+                    if(!Icp.covariance(xyz, ids, 0, found, cov)) continue;
+                    LinearAlgebra.jacobiEigen(cov, values, vectors);
+
+                    double cx = 0, cy = 0, cz = 0;
+                    for(int j = 0; j < found; j++) { cx += xyz[3 * j]; cy += xyz[3 * j + 1]; cz += xyz[3 * j + 2]; }
+                    cx /= found; cy /= found; cz /= found;
+                    distances[i] = Math.abs(vectors[0][0] * (p.x - cx) + vectors[1][0] * (p.y - cy) + vectors[2][0] * (p.z - cz));
+                }
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        Stats.printElapsedTime(start, "..distances of " + photo.size() + " points");
+
+        summarize(photo, selected, distances);
+        pcf.addProperties(FileType.PHOTOGRAMMETRIC, new String[]{PROPERTY}, photo, distances);
+
+        int index = pcf.getPropertyIndex(FileType.PHOTOGRAMMETRIC, PROPERTY);
+        for(int i = 0; i < photo.size(); i++)
+            if(Double.isNaN(distances[i])) photo.get(i).setProp(index, Double.NaN);
+    }
+
+    private void summarize(List<Point> photo, Predicate<Point> selected, double[] distances){
+        int nClasses = PointClassification.values().length;
+        histograms = new ScoreHistogram[nClasses];
+        sum = new double[nClasses];
+        sum2 = new double[nClasses];
+        unmatched = new int[nClasses];
+        for(int c = 0; c < nClasses; c++) histograms[c] = new ScoreHistogram(0, maxDistance, BINS);
+
+        for(int i = 0; i < photo.size(); i++) {
+            Point p = photo.get(i);
+            if(!selected.test(p)) continue;
+
+            int c = p.getClassification().ordinal();
+            if(Double.isNaN(distances[i])) { unmatched[c]++; continue; }
+
+            histograms[c].add(distances[i]);
+            sum[c] += distances[i];
+            sum2[c] += distances[i] * distances[i];
+        }
+
+        for(PointClassification pc : PointClassification.values()) {
+            int c = pc.ordinal();
+            long n = histograms[c].getTotal();
+            if(n == 0 && unmatched[c] == 0) continue;
+
+            System.out.println(".." + pc + ": " + n + " points, mean " + ((n > 0) ? sum[c] / n : 0)
+                    + ", rms " + ((n > 0) ? Math.sqrt(sum2[c] / n) : 0)
+                    + ", median " + histograms[c].quantile(0.5) + ", unmatched " + unmatched[c]);
+        }
+    }
+
+    /**
+     * @return per class statistics and histograms of the last run
+     */
+    public JSONObject report(){
+        JSONObject report = new JSONObject();
+        report.put("mode", mode.name());
+        report.put("maxDistance", maxDistance);
+        report.put("bins", BINS);
+
+        JSONObject classes = new JSONObject();
+        for(PointClassification pc : PointClassification.values()) {
+            int c = pc.ordinal();
+            long n = histograms[c].getTotal();
+
+            JSONObject cl = new JSONObject();
+            cl.put("points", n);
+            cl.put("unmatched", unmatched[c]);
+            cl.put("mean", (n > 0) ? sum[c] / n : 0);
+            cl.put("rms", (n > 0) ? Math.sqrt(sum2[c] / n) : 0);
+            cl.put("median", histograms[c].quantile(0.5));
+            cl.put("p95", histograms[c].quantile(0.95));
+            cl.put("histogram", new JSONArray(histograms[c].getBins()));
+            classes.put(pc.name(), cl);
+        }
+        report.put("classes", classes);
+
+        return report;
+    }
+}
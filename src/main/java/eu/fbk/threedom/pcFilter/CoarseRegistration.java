@@ -0,0 +1,236 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * coarse translation of the photogrammetric points on the lidar ones by correlation of
+ * voxel occupancy: both clouds are rasterized into occupancy bitmaps (one per class, or
+ * one for all the points) on the lattice of the voxel grid, each integer voxel shift of
+ * a search window is scored by the popcount of the AND of the shifted photogrammetric
+ * bitmap with the lidar one, and the best shift is refined on lattices of half side.
+ *
+ * Bitmaps are stored by x rows of 64 bit words, a shift along x is a bit shift of the
+ * words of a row and a shift along y, z an offset of the rows.
+ */
+public class CoarseRegistration {
+
+    // search window of the refinement levels, in voxels of the level
+    private static final int REFINE_WINDOW = 2;
+
+    private float voxelSide;
+    private int window, levels;
+    private boolean perClass;
+    private ForkJoinPool pool;
+
+    @Getter private Vector3d translation;
+    // occupied voxels shared by the clouds at the finest level, and photogrammetric ones
+    @Getter private long overlap, occupied;
+
+    /**
+     * occupancy of one cloud, bits[channel][(z * h + y) * words + x / 64]
+     */
+    private static class Occupancy {
+        int w, h, d, words;
+        long[][] bits;
+
+        Occupancy(int w, int h, int d, int channels){
+            this.w = w; this.h = h; this.d = d;
+            this.words = (w + 63) >>> 6;
+            this.bits = new long[channels][words * h * d];
+        }
+
+        void set(int channel, int x, int y, int z){
+            bits[channel][(z * h + y) * words + (x >>> 6)] |= 1L << x;
+        }
+
+        long count(){
+            long n = 0;
+            for(long[] c : bits)
+                for(long word : c) n += Long.bitCount(word);
+            return n;
+        }
+    }
+
+    /**
+     * @param voxelSide side of the first lattice
+     * @param window search window of the first lattice, in voxels along each axis
+     * @param levels lattices, each one of half the side of the previous
+     * @param perClass correlate the occupancy of each class instead of all the points
+     * @param threads
+     */
+    public CoarseRegistration(float voxelSide, int window, int levels, boolean perClass, int threads){
+        this.voxelSide = voxelSide;
+        this.window = window;
+        this.levels = Math.max(1, levels);
+        this.perClass = perClass;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * @param photo photogrammetric points (shifted coordinates)
+     * @param lidar lidar points (shifted coordinates)
+     * @return the translation of the photogrammetric points
+     */
+    public Vector3d run(List<Point> photo, List<Point> lidar){
+        System.out.println("\ncoarse registration: window " + window + " voxels, " + levels + " levels"
+                + (perClass ? ", per class" : ""));
+
+        translation = new Vector3d();
+        double side = voxelSide;
+        for(int level = 0; level < levels; level++, side /= 2) {
+            long start = System.currentTimeMillis();
+            int w = (level == 0) ? window : REFINE_WINDOW;
+
+            // lattice origin as the voxel grid one, large enough for both clouds
+            double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            extend(lidar, null, min, max);
+            extend(photo, translation, min, max);
+            double[] origin = new double[3];
+            int[] dims = new int[3];
+            for(int a = 0; a < 3; a++) {
+                origin[a] = Math.floor(min[a] / side) * side;
+                dims[a] = (int)Math.floor((max[a] - origin[a]) / side) + 1;
+            }
+
+            Occupancy p = rasterize(photo, translation, origin, dims, side);
+            Occupancy l = rasterize(lidar, null, origin, dims, side);
+
+            int n = 2 * w + 1;
+            long[] scores = new long[n * n * n];
+            try {
+                pool.submit(() -> IntStream.range(0, scores.length).parallel().forEach(s ->
+                        scores[s] = score(p, l, s % n - w, (s / n) % n - w, s / (n * n) - w))).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            // best score, the smallest shift on ties
+            int best = -1;
+            for(int s = 0; s < scores.length; s++)
+                if(best < 0 || scores[s] > scores[best] || scores[s] == scores[best] && norm(s, n, w) < norm(best, n, w))
+                    best = s;
+            int dx = best % n - w, dy = (best / n) % n - w, dz = best / (n * n) - w;
+
+            translation.x += dx * side; translation.y += dy * side; translation.z += dz * side;
+            overlap = scores[best];
+            occupied = p.count();
+
+            Stats.printElapsedTime(start, "..level " + level + " side " + side + ": shift (" + dx + ", " + dy + ", " + dz
+                    + "), " + overlap + " of " + occupied + " photogrammetric voxels overlap, " + scores.length + " shifts");
+        }
+
+        pool.shutdown();
+        System.out.println("..translation " + translation);
+        return translation;
+    }
+
+    private static int norm(int s, int n, int w){
+        int dx = s % n - w, dy = (s / n) % n - w, dz = s / (n * n) - w;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static void extend(List<Point> points, Vector3d t, double[] min, double[] max){
+        for(Point p : points) {
+            double[] c = {p.x, p.y, p.z};
+            if(t != null) { c[0] += t.x; c[1] += t.y; c[2] += t.z; }
+            for(int a = 0; a < 3; a++) {
+                if(c[a] < min[a]) min[a] = c[a];
+                if(c[a] > max[a]) max[a] = c[a];
+            }
+        }
+    }
+
+    private Occupancy rasterize(List<Point> points, Vector3d t, double[] origin, int[] dims, double side){
+        Occupancy o = new Occupancy(dims[0], dims[1], dims[2], perClass ? PointClassification.values().length : 1);
+        for(Point p : points) {
+            double x = p.x, y = p.y, z = p.z;
+            if(t != null) { x += t.x; y += t.y; z += t.z; }
+
+            int xv = (int)Math.floor((x - origin[0]) / side);
+            int yv = (int)Math.floor((y - origin[1]) / side);
+            int zv = (int)Math.floor((z - origin[2]) / side);
+            if(xv < 0 || yv < 0 || zv < 0 || xv >= dims[0] || yv >= dims[1] || zv >= dims[2]) continue;
+
+            o.set(perClass ? p.getClassification().ordinal() : 0, xv, yv, zv);
+        }
+        return o;
+    }
+
+    /**
+     * voxels occupied by both clouds once the photogrammetric one is shifted by dx, dy, dz
+     */
+    private static long score(Occupancy p, Occupancy l, int dx, int dy, int dz){
+        long count = 0;
+        for(int c = 0; c < p.bits.length; c++) {
+            long[] pb = p.bits[c], lb = l.bits[c];
+            for(int z = Math.max(0, dz); z < Math.min(l.d, p.d + dz); z++)
+                for(int y = Math.max(0, dy); y < Math.min(l.h, p.h + dy); y++) {
+                    int lRow = (z * l.h + y) * l.words, pRow = ((z - dz) * p.h + (y - dy)) * p.words;
+                    for(int k = 0; k < l.words; k++) {
+                        long lw = lb[lRow + k];
+                        if(lw == 0) continue;
+                        count += Long.bitCount(lw & shiftedWord(pb, pRow, p.words, k, dx));
+                    }
+                }
+        }
+        return count;
+    }
+
+    /**
+     * word k of a row shifted by dx bits: bit b holds bit 64 k + b - dx of the row
+     */
+    private static long shiftedWord(long[] bits, int row, int words, int k, int dx){
+        int s = 64 * k - dx;
+        int i = Math.floorDiv(s, 64), r = Math.floorMod(s, 64);
+        long lo = (i >= 0 && i < words) ? bits[row + i] : 0;
+        if(r == 0) return lo;
+
+        long hi = (i + 1 >= 0 && i + 1 < words) ? bits[row + i + 1] : 0;
+        return (lo >>> r) | (hi << (64 - r));
+    }
+
+    /**
+     * @return the translation as a transform
+     */
+    public Matrix4d getTransform(){
+        Matrix4d m = new Matrix4d();
+        m.setIdentity();
+        m.setTranslation(translation);
+        return m;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.utils.Stats;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * multi-process tiled filter: the coordinator buckets the inputs in tiles as TiledFilter does,
+ * then hands the tile jobs to Worker processes over sockets. Workers read the tiles from the
+ * shared storage and send back their statistics (density pass) and counts (filter pass), the
+ * filter pass output fragments are merged in tile order.
+ *
+ * Protocol: one JSON object per line
+ *   coordinator -> worker: init, density {tile}, statistics, filter {tile, attempt}, quit
+ *   worker -> coordinator: ready, density {tile, std, densitySum, densityVoxels, voxels}, filter {tile, attempt, counts}
+ * A job whose worker disconnects, or does not answer within READ_TIMEOUT_MS, is handed
+ * to the remaining workers and its connection is closed, so that the worker stops after the
+ * current job. Each filter job attempt writes its own fragments, only the fragments of the
+ * answered attempt of each tile are merged. Workers not connected within ACCEPT_TIMEOUT_MS are left out
+ */
+public class Coordinator {
+
+    public static final int ACCEPT_TIMEOUT_MS = 60000;
+    public static final int READ_TIMEOUT_MS = 600000;
+
+    private TiledFilter tiledFilter;
+    private ServerSocket serverSocket;
+    private List<Connection> connections;
+    private List<Process> processes;
+
+    // timer
+    private long start;
+
+    /**
+     * @param port listening port, 0 for any free port
+     */
+    public Coordinator(File file1Data, File file2Data, float voxelSide, int tileVoxels, File workDir, JSONObject config, int port) throws IOException {
+        tiledFilter = new TiledFilter(file1Data, file2Data, voxelSide, tileVoxels, workDir, config);
+        serverSocket = new ServerSocket(port);
+        serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MS);
+        connections = new ArrayList<>();
+        processes = new ArrayList<>();
+    }
+
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param filteredFiles photogrammetric and lidar output of the filtered intersection
+     * @param scoredFiles photogrammetric and lidar output of the scored filtered intersection
+     * @param workers number of workers taking part to the run
+     * @param localWorkers workers started here as separate JVMs, the others connect from other nodes
+     */
+    public void run(File[] filteredFiles, File[] scoredFiles, int workers, int localWorkers) throws Exception {
+        try {
+            tiledFilter.bucket();
+
+            startWorkers(workers, localWorkers);
+
+            ///////////////////////////////////////////////
+            // DENSITY PASS
+            ///////////////////////////////////////////////////////
+            System.out.println("\ndensity pass on " + connections.size() + " workers");
+            start = System.currentTimeMillis();
+
+            HashMap<String, Double> stats = tiledFilter.getPcf().getPropsStats();
+            int[] voxels = new int[1];
+            runPhase(tiledFilter.getDensityTiles(), tile -> new JSONObject().put("type", "density").put("tile", tile), r -> {
+                JSONObject std = r.getJSONObject("std");
+                for(String key : std.keySet())
+                    stats.put(key, stats.get(key) + std.getDouble(key));
+
+                JSONArray sum = r.getJSONArray("densitySum"), n = r.getJSONArray("densityVoxels");
+                for(int slot = 0; slot < sum.length(); slot++) {
+                    tiledFilter.getDensitySum()[slot] += sum.getLong(slot);
+                    tiledFilter.getDensityVoxels()[slot] += n.getInt(slot);
+                }
+                voxels[0] += r.getInt("voxels");
+            });
+
+            tiledFilter.finishDensity();
+            System.out.println("..voxels with at least one point " + voxels[0]);
+            Stats.printElapsedTime(start, "processed");
+
+            ///////////////////////////////////////////////
+            // FILTER PASS
+            ///////////////////////////////////////////////////////
+            System.out.println("\nfilter pass on " + connections.size() + " workers");
+            start = System.currentTimeMillis();
+
+            JSONObject statistics = new JSONObject()
+                    .put("type", "statistics")
+                    .put("propsStats", new JSONObject(stats))
+                    .put("densityMeans", toJson(tiledFilter.getDensityMeans()));
+            for(Connection c : connections)
+                if(c.alive)
+                    try {
+                        c.request(statistics);
+                    } catch (IOException e) {
+                        System.out.println("..worker " + c.socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+                        c.close();
+                    }
+
+            // a requeued tile gets a new attempt, a late worker of the previous one does not
+            // write on the fragments that are merged
+            AtomicInteger attempts = new AtomicInteger();
+            Map<Integer, Integer> answered = new HashMap<>();
+            runPhase(tiledFilter.getTiles(), tile -> new JSONObject().put("type", "filter").put("tile", tile)
+                    .put("attempt", attempts.getAndIncrement()), r -> {
+                JSONArray counts = r.getJSONArray("counts");
+                tiledFilter.addFilterCounts(new int[]{counts.getInt(0), counts.getInt(1), counts.getInt(2)});
+                answered.put(r.getInt("tile"), r.getInt("attempt"));
+            });
+
+            mergeFragments("filtered", filteredFiles, answered);
+            mergeFragments("scored", scoredFiles, answered);
+
+            tiledFilter.printFilterCounts();
+            Stats.printElapsedTime(start, "processed");
+        } finally {
+            stopWorkers();
+            serverSocket.close();
+            tiledFilter.deleteTiles();
+        }
+    }
+
+    private void startWorkers(int workers, int localWorkers) throws IOException {
+        System.out.println("\nwaiting for " + workers + " workers on port " + getPort()
+                + " (" + localWorkers + " local)");
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for(int i = 0; i < localWorkers; i++) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    Worker.class.getName(), "localhost", String.valueOf(getPort()));
+            pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            processes.add(pb.start());
+        }
+
+        PcFilter pcf = tiledFilter.getPcf();
+        JSONArray headers = new JSONArray();
+        for(FileType ft : FileType.values())
+            headers.put(pcf.getHeader(ft) == null ? "" : "// " + String.join(" ", pcf.getHeader(ft)));
+
+        JSONObject init = new JSONObject()
+                .put("type", "init")
+                .put("tileDir", tiledFilter.getTileDir().getAbsolutePath())
+                .put("voxelSide", (double)pcf.getVoxelSide())
+                .put("tileVoxels", tiledFilter.getTileVoxels())
+                .put("bboxMin", toJson(pcf.getBbox().getMin()))
+                .put("bboxMax", toJson(pcf.getBbox().getMax()))
+                .put("coordShift", toJson(pcf.getCoordShift()))
+                .put("headers", headers)
+                .put("config", pcf.getConfig())
+                .put("propsStats", new JSONObject(pcf.getPropsStats()));
+
+        for(int i = 0; i < workers; i++) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                System.out.println("..WARNING! " + (workers - i) + " workers not connected within " + ACCEPT_TIMEOUT_MS / 1000 + " s");
+                break;
+            }
+
+            Connection c = new Connection(socket);
+            try {
+                c.request(init);
+            } catch (IOException e) {
+                System.out.println("..worker " + socket.getRemoteSocketAddress() + " lost: " + e.getMessage());
+                c.close();
+                continue;
+            }
+            connections.add(c);
+            System.out.println("..worker " + c.socket.getRemoteSocketAddress() + " ready");
+        }
+
+        if(connections.isEmpty()) throw new IOException("no worker connected");
+    }
+
+    private void stopWorkers(){
+        for(Connection c : connections)
+            if(c.alive) {
+                c.send(new JSONObject().put("type", "quit"));
+                c.close();
+            }
+
+        for(Process p : processes)
+            try {
+                if(!p.waitFor(10, TimeUnit.SECONDS)) p.destroy();
+            } catch (InterruptedException e) {
+                p.destroy();
+            }
+    }
+
+    /**
+     * hand the jobs to the workers, each connection takes the next job when its
+     * previous one is done. Results are merged one at a time
+     */
+    private void runPhase(Collection<Integer> tiles, java.util.function.Function<Integer, JSONObject> job,
+                          Consumer<JSONObject> merge) throws Exception {
+        Queue<Integer> queue = new ConcurrentLinkedQueue<>(tiles);
+        AtomicInteger remaining = new AtomicInteger(tiles.size());
+        ExecutorService pool = Executors.newFixedThreadPool(connections.size());
+
+        try {
+            while (remaining.get() > 0) {
+                List<Future<?>> handlers = new ArrayList<>();
+                for (Connection c : connections) {
+                    if (!c.alive) continue;
+
+                    handlers.add(pool.submit(() -> {
+                        Integer tile;
+                        while ((tile = queue.poll()) != null) {
+                            JSONObject result;
+                            try {
+                                result = c.request(job.apply(tile));
+                            } catch (IOException e) {
+                                System.out.println("..worker " + c.socket.getRemoteSocketAddress() + " lost (" + e.getMessage()
+                                        + "), tile " + tile + " requeued");
+                                c.close();
+                                queue.add(tile);
+                                return;
+                            }
+
+                            synchronized (this) { merge.accept(result); }
+                            remaining.decrementAndGet();
+                        }
+                    }));
+                }
+
+                if (handlers.isEmpty()) throw new IOException("no worker left, " + remaining.get() + " tiles not processed");
+                for (Future<?> f : handlers) f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * output fragment files of a filter job attempt
+     * @param tileDir
+     * @param tile
+     * @param attempt
+     * @param kind filtered or scored
+     * @return photogrammetric and lidar fragments
+     */
+    public static File[] fragmentFiles(File tileDir, int tile, int attempt, String kind){
+        File[] files = new File[FileType.values().length];
+        for(FileType ft : FileType.values())
+            files[ft.ordinal()] = new File(tileDir, "fragment_" + tile + "_" + attempt + "_" + kind + "_" + ft.ordinal() + ".txt");
+
+        return files;
+    }
+
+    private void mergeFragments(String kind, File[] outFiles, Map<Integer, Integer> answered) throws IOException {
+        for(FileType ft : FileType.values())
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outFiles[ft.ordinal()], false))) {
+                os.write((tiledFilter.getPcf().getOutputHeader(ft) + System.lineSeparator()).getBytes("UTF-8"));
+
+                for(int tile : tiledFilter.getTiles()) {
+                    File fragment = fragmentFiles(tiledFilter.getTileDir(), tile, answered.get(tile), kind)[ft.ordinal()];
+                    Files.copy(fragment.toPath(), os);
+                }
+            }
+    }
+
+    private static JSONArray toJson(Point p){
+        return new JSONArray().put(p.x).put(p.y).put(p.z);
+    }
+
+    private static JSONArray toJson(float[][] values){
+        JSONArray rows = new JSONArray();
+        for(float[] row : values) {
+            JSONArray r = new JSONArray();
+            for(float v : row) r.put((double)v);
+            rows.put(r);
+        }
+
+        return rows;
+    }
+
+    private static class Connection {
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+        private volatile boolean alive;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            // a worker that stops answering is handled as a lost one
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")));
+            alive = true;
+        }
+
+        void send(JSONObject msg){
+            out.println(msg.toString());
+            out.flush();
+        }
+
+        JSONObject request(JSONObject msg) throws IOException {
+            send(msg);
+            String line = in.readLine();
+            if(line == null) throw new IOException("connection closed");
+
+            return new JSONObject(line);
+        }
+
+        void close(){
+            alive = false;
+            try { socket.close(); } catch (IOException e) { }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * result of an in-memory filter run (see PcFilterBuilder): voxel sets as sorted ids and
+ * bitmaps, and per point voxel ids, scores and selection, indexed as the input arrays.
+ * Coordinates inside the filter are shifted by getCoordShift.
+ */
+public class FilterResult {
+
+    @Getter private PcFilter filter;
+
+    // points of each fileType in input order
+    private List<List<Point>> input;
+
+    private int[] intersection, filtered, scoredFiltered;
+
+    // voxel id of each input point, -1 outside the grid or without grid
+    private int[][] voxelIds;
+
+    FilterResult(PcFilter filter, List<List<Point>> input){
+        this.filter = filter;
+        this.input = input;
+
+        VoxelGrid vGrid = filter.getVGrid();
+        if(vGrid != null) {
+            VoxelCounts vc = VoxelCounts.fromGrid(vGrid);
+            Set<Integer> intersectionSet = vc.getIntersection();
+            Set<Integer> filteredSet = vc.getFiltered(intersectionSet);
+
+            intersection = toSortedArray(intersectionSet);
+            filtered = toSortedArray(filteredSet);
+            scoredFiltered = toSortedArray(vc.getScoredFiltered(filteredSet));
+        } else
+            intersection = filtered = scoredFiltered = new int[0];
+
+        voxelIds = new int[input.size()][];
+        for(int f = 0; f < input.size(); f++) {
+            List<Point> points = input.get(f);
+            voxelIds[f] = new int[points.size()];
+            for(int i = 0; i < points.size(); i++)
+                voxelIds[f][i] = (vGrid != null) ? vGrid.getVoxelId(points.get(i)) : -1;
+        }
+    }
+
+    private static int[] toSortedArray(Set<Integer> set){
+        int[] array = set.stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * @return number of voxels of the grid, 0 without grid
+     */
+    public int getGridSize(){
+        return (filter.getVGrid() != null) ? filter.getVGrid().getSize() : 0;
+    }
+
+    public Point getCoordShift(){
+        return filter.getCoordShift();
+    }
+
+    public int[] getIntersectionVoxels(){ return intersection.clone(); }
+    public int[] getFilteredVoxels(){ return filtered.clone(); }
+    public int[] getScoredFilteredVoxels(){ return scoredFiltered.clone(); }
+
+    /**
+     * voxel set as a bitmap of getGridSize bits, voxel v is bit v % 64 of word v / 64
+     * @param voxels sorted voxel ids
+     * @return
+     */
+    public long[] toBitmap(int[] voxels){
+        long[] bitmap = new long[(getGridSize() + 63) / 64];
+        for(int v : voxels)
+            bitmap[v >> 6] |= 1L << v;
+        return bitmap;
+    }
+
+    /**
+     * @param fileType
+     * @return voxel id of each input point of fileType
+     */
+    public int[] getVoxelIds(FileType fileType){
+        return voxelIds[fileType.ordinal()].clone();
+    }
+
+    public double[] getScores(FileType fileType){
+        List<Point> points = input.get(fileType.ordinal());
+        double[] scores = new double[points.size()];
+        for(int i = 0; i < scores.length; i++)
+            scores[i] = points.get(i).getScore();
+        return scores;
+    }
+
+    /**
+     * @param fileType
+     * @return for each input point of fileType whether its score is within the class threshold
+     */
+    public boolean[] getScorePassed(FileType fileType){
+        List<Point> points = input.get(fileType.ordinal());
+        boolean[] passed = new boolean[points.size()];
+        for(int i = 0; i < passed.length; i++)
+            passed[i] = points.get(i).getScore() <= points.get(i).getThreshold();
+        return passed;
+    }
+
+    /**
+     * normalized property values, row-major as the input properties
+     * @param fileType
+     * @return
+     */
+    public double[] getNormalizedProperties(FileType fileType){
+        List<Point> points = input.get(fileType.ordinal());
+        int nProps = filter.getProperties()[fileType.ordinal()].length;
+        double[] props = new double[points.size() * nProps];
+        for(int i = 0; i < points.size(); i++)
+            for(int t = 0; t < nProps; t++)
+                props[i * nProps + t] = points.get(i).getNormProp(t);
+        return props;
+    }
+
+    /**
+     * input indices of the fileType points in the filtered voxels, the points written
+     * by the batch mode in the _out file (scoreCheck) or in the _filteredIntersection file
+     * @param fileType
+     * @param scoreCheck scored filtered voxels and points within the class threshold
+     * @return ascending indices
+     */
+    public int[] getSelectedPoints(FileType fileType, boolean scoreCheck){
+        BitSet voxels = new BitSet();
+        for(int v : scoreCheck ? scoredFiltered : filtered)
+            voxels.set(v);
+
+        int[] ids = voxelIds[fileType.ordinal()];
+        boolean[] passed = scoreCheck ? getScorePassed(fileType) : null;
+        int n = 0;
+        int[] selected = new int[ids.length];
+        for(int i = 0; i < ids.length; i++)
+            if(ids[i] >= 0 && voxels.get(ids[i]) && (!scoreCheck || passed[i]))
+                selected[n++] = i;
+
+        return Arrays.copyOf(selected, n);
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.KdTree;
+import eu.fbk.threedom.structs.PointFilter;
+import eu.fbk.threedom.utils.LinearAlgebra;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * iterative closest point registration of the photogrammetric points (source) on the
+ * lidar points (target). Each iteration moves the source with the current transform,
+ * finds the nearest target of every source point in parallel with a KdTree, drops the
+ * pairs farther than maxDistance and solves the rigid update:
+ * - POINT: point-to-point, closed form with Horn's unit quaternion (largest eigenvector
+ *   of the 4x4 matrix of the cross covariance)
+ * - PLANE: point-to-plane, linearized small rotation least squares on the target normals
+ *   (smallest eigenvector of the covariance of their NORMAL_NEIGHBOURS nearest targets)
+ *
+ * Coordinates and transform are in the shifted frame of the filter.
+ */
+public class Icp {
+
+    public enum Mode { POINT, PLANE }
+
+    private static final int NORMAL_NEIGHBOURS = 8;
+    // convergence: relative rms change, or absolute change at numerical noise level
+    private static final double MIN_RMS_CHANGE = 1e-6;
+    private static final double MIN_RMS = 1e-12;
+
+    private Mode mode;
+    private double maxDistance;
+    private int maxIterations;
+    private ForkJoinPool pool;
+
+    @Getter private Matrix4d transform;
+    @Getter private double rms;
+    @Getter private int correspondences;
+
+    /**
+     * @param mode
+     * @param maxDistance pairs farther than this are not correspondences
+     * @param maxIterations
+     * @param threads
+     */
+    public Icp(Mode mode, double maxDistance, int maxIterations, int threads){
+        this.mode = mode;
+        this.maxDistance = maxDistance;
+        this.maxIterations = maxIterations;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    private void run(int n, IntConsumer task){
+        try {
+            pool.submit(() -> IntStream.range(0, n).parallel().forEach(task)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static double[] coordinates(List<Point> points){
+        double[] xyz = new double[3 * points.size()];
+        for(int i = 0; i < points.size(); i++) {
+            Point p = points.get(i);
+            xyz[3 * i] = p.x; xyz[3 * i + 1] = p.y; xyz[3 * i + 2] = p.z;
+        }
+        return xyz;
+    }
+
+    /**
+     * @param source photogrammetric points
+     * @param target lidar points
+     * @param initial initial transform of the source, null for the identity
+     * @return the transform of the source
+     */
+    public Matrix4d run(List<Point> source, List<Point> target, Matrix4d initial){
+        System.out.println("\nICP " + mode + ": " + source.size() + " source, " + target.size()
+                + " target points, max distance " + maxDistance + ", " + pool.getParallelism() + " threads");
+        long start = System.currentTimeMillis();
+
+        transform = new Matrix4d();
+        if(initial != null) transform.set(initial); else transform.setIdentity();
+        rms = Double.NaN;
+        correspondences = 0;
+
+        if(source.isEmpty() || target.size() < 3) {
+            System.out.println("..not enough points");
+            pool.shutdown();
+            return transform;
+        }
+
+        double[] src = coordinates(source), tgt = coordinates(target);
+        // no filter on the targets: every one matches all the query bits
+        PointFilter all = PointFilter.ALL;
+        int[] bits = new int[target.size()];
+        Arrays.fill(bits, KdTree.queryMask(all));
+        KdTree tree = new KdTree(tgt, bits, pool.getParallelism());
+
+        double[] normals = (mode == Mode.PLANE) ? normals(tree, tgt) : null;
+        Stats.printElapsedTime(start, "..target index" + (normals != null ? " and normals" : ""));
+
+        int n = source.size();
+        double[] moved = new double[3 * n];
+        int[] nearest = new int[n];
+        double[] dist2 = new double[n];
+        double maxDist2 = maxDistance * maxDistance;
+
+        for(int it = 1; it <= maxIterations; it++) {
+            start = System.currentTimeMillis();
+
+            Matrix4d t = transform;
+            run((n + 1023) / 1024, b -> {
+                for(int i = b * 1024, end = Math.min(n, i + 1024); i < end; i++) {
+                    double x = src[3 * i], y = src[3 * i + 1], z = src[3 * i + 2];
+                    moved[3 * i] = t.m00 * x + t.m01 * y + t.m02 * z + t.m03;
+                    moved[3 * i + 1] = t.m10 * x + t.m11 * y + t.m12 * z + t.m13;
+                    moved[3 * i + 2] = t.m20 * x + t.m21 * y + t.m22 * z + t.m23;
+                }
+            });
+            tree.knn(moved, 1, all, nearest, dist2);
+
+            double previous = rms;
+            Matrix4d delta = (mode == Mode.POINT) ?
+                    pointToPoint(moved, tgt, nearest, dist2, maxDist2) :
+                    pointToPlane(moved, tgt, normals, nearest, dist2, maxDist2);
+
+            Stats.printElapsedTime(start, "..iteration " + it + ": " + correspondences + " correspondences, rms " + rms);
+            if(delta == null) {
+                System.out.println("..not enough correspondences");
+                break;
+            }
+
+            delta.mul(transform);
+            transform = delta;
+
+            if(!Double.isNaN(previous) && Math.abs(previous - rms) <= MIN_RMS_CHANGE * rms + MIN_RMS)
+                break;
+        }
+
+        tree.shutdown();
+        pool.shutdown();
+        return transform;
+    }
+
+    /**
+     * unit normal of each target, NaN where its neighbours don't define a plane
+     */
+    private double[] normals(KdTree tree, double[] tgt){
+        int n = tgt.length / 3;
+        int[] neighbours = new int[n * NORMAL_NEIGHBOURS];
+        double[] d2 = new double[n * NORMAL_NEIGHBOURS];
+        tree.knn(tgt, NORMAL_NEIGHBOURS, PointFilter.ALL, neighbours, d2);
+
+        double[] normals = new double[3 * n];
+        run((n + 1023) / 1024, b -> {
+            double[][] cov = new double[3][3], vectors = new double[3][3];
+            double[] values = new double[3];
+            for(int i = b * 1024, end = Math.min(n, i + 1024); i < end; i++) {
+                if(!covariance(tgt, neighbours, i * NORMAL_NEIGHBOURS, NORMAL_NEIGHBOURS, cov)) {
+                    normals[3 * i] = normals[3 * i + 1] = normals[3 * i + 2] = Double.NaN;
+                    continue;
+                }
+                LinearAlgebra.jacobiEigen(cov, values, vectors);
+                for(int a = 0; a < 3; a++) normals[3 * i + a] = vectors[a][0];
+            }
+        });
+        return normals;
+    }
+
+    /**
+     * covariance of the points of xyz listed in ids[from, from + k), -1 entries skipped
+     * @return false with less than 3 points
+     */
+    static boolean covariance(double[] xyz, int[] ids, int from, int k, double[][] cov){
+        double cx = 0, cy = 0, cz = 0;
+        int m = 0;
+        for(int j = from; j < from + k; j++) {
+            if(ids[j] < 0) continue;
+            cx += xyz[3 * ids[j]]; cy += xyz[3 * ids[j] + 1]; cz += xyz[3 * ids[j] + 2];
+            m++;
+        }
+        if(m < 3) return false;
+        cx /= m; cy /= m; cz /= m;
+
+        for(double[] row : cov) Arrays.fill(row, 0);
+        for(int j = from; j < from + k; j++) {
+            if(ids[j] < 0) continue;
+            double dx = xyz[3 * ids[j]] - cx, dy = xyz[3 * ids[j] + 1] - cy, dz = xyz[3 * ids[j] + 2] - cz;
+            cov[0][0] += dx * dx; cov[0][1] += dx * dy; cov[0][2] += dx * dz;
+            cov[1][1] += dy * dy; cov[1][2] += dy * dz; cov[2][2] += dz * dz;
+        }
+        cov[1][0] = cov[0][1]; cov[2][0] = cov[0][2]; cov[2][1] = cov[1][2];
+        for(double[] row : cov)
+            for(int a = 0; a < 3; a++) row[a] /= m;
+        return true;
+    }
+
+    /**
+     * Horn's closed form rigid transform of the correspondences
+     * @return the update or null without correspondences
+     */
+    private Matrix4d pointToPoint(double[] moved, double[] tgt, int[] nearest, double[] dist2, double maxDist2){
+        double[] ps = new double[3], qs = new double[3];
+        int m = 0;
+        double sum2 = 0;
+        for(int i = 0; i < nearest.length; i++) {
+            if(nearest[i] < 0 || dist2[i] > maxDist2) continue;
+            for(int a = 0; a < 3; a++) {
+                ps[a] += moved[3 * i + a];
+                qs[a] += tgt[3 * nearest[i] + a];
+            }
+            sum2 += dist2[i];
+            m++;
+        }
+        correspondences = m;
+        rms = (m > 0) ? Math.sqrt(sum2 / m) : Double.NaN;
+        if(m < 3) return null;
+
+        for(int a = 0; a < 3; a++) { ps[a] /= m; qs[a] /= m; }
+
+        // cross covariance s[a][b] = sum (p_a - pc_a)(q_b - qc_b)
+        double[][] s = new double[3][3];
+        for(int i = 0; i < nearest.length; i++) {
+            if(nearest[i] < 0 || dist2[i] > maxDist2) continue;
+            for(int a = 0; a < 3; a++)
+                for(int b = 0; b < 3; b++)
+                    s[a][b] += (moved[3 * i + a] - ps[a]) * (tgt[3 * nearest[i] + b] - qs[b]);
+        }
+
+        double[][] nm = {
+                {s[0][0] + s[1][1] + s[2][2], s[1][2] - s[2][1], s[2][0] - s[0][2], s[0][1] - s[1][0]},
+                {s[1][2] - s[2][1], s[0][0] - s[1][1] - s[2][2], s[0][1] + s[1][0], s[2][0] + s[0][2]},
+                {s[2][0] - s[0][2], s[0][1] + s[1][0], -s[0][0] + s[1][1] - s[2][2], s[1][2] + s[2][1]},
+                {s[0][1] - s[1][0], s[2][0] + s[0][2], s[1][2] + s[2][1], -s[0][0] - s[1][1] + s[2][2]}};
+        double[] values = new double[4];
+        double[][] vectors = new double[4][4];
+        LinearAlgebra.jacobiEigen(nm, values, vectors);
+
+        // largest eigenvalue: unit quaternion w, x, y, z
+        double w = vectors[0][3], x = vectors[1][3], y = vectors[2][3], z = vectors[3][3];
+        Matrix3d r = new Matrix3d(
+                w * w + x * x - y * y - z * z, 2 * (x * y - w * z), 2 * (x * z + w * y),
+                2 * (x * y + w * z), w * w - x * x + y * y - z * z, 2 * (y * z - w * x),
+                2 * (x * z - w * y), 2 * (y * z + w * x), w * w - x * x - y * y + z * z);
+
+        Vector3d t = new Vector3d(ps[0], ps[1], ps[2]);
+        r.transform(t);
+        t.set(qs[0] - t.x, qs[1] - t.y, qs[2] - t.z);
+
+        return new Matrix4d(r, t, 1);
+    }
+
+    /**
+     * linearized point-to-plane update, rotation angles a, b, c about x, y, z and translation
+     * @return the update or null without enough correspondences
+     */
+    private Matrix4d pointToPlane(double[] moved, double[] tgt, double[] normals, int[] nearest, double[] dist2, double maxDist2){
+        double[][] ata = new double[6][6];
+        double[] atb = new double[6], row = new double[6];
+        int m = 0;
+        double sum2 = 0;
+
+        for(int i = 0; i < nearest.length; i++) {
+            int j = nearest[i];
+            if(j < 0 || dist2[i] > maxDist2 || Double.isNaN(normals[3 * j])) continue;
+
+            double px = moved[3 * i], py = moved[3 * i + 1], pz = moved[3 * i + 2];
+            double nx = normals[3 * j], ny = normals[3 * j + 1], nz = normals[3 * j + 2];
+            // residual of the plane through the target
+            double d = (tgt[3 * j] - px) * nx + (tgt[3 * j + 1] - py) * ny + (tgt[3 * j + 2] - pz) * nz;
+
+            // (p x n, n)
+            row[0] = py * nz - pz * ny; row[1] = pz * nx - px * nz; row[2] = px * ny - py * nx;
+            row[3] = nx; row[4] = ny; row[5] = nz;
+            for(int a = 0; a < 6; a++) {
+                for(int b = 0; b < 6; b++) ata[a][b] += row[a] * row[b];
+                atb[a] += row[a] * d;
+            }
+            sum2 += d * d;
+            m++;
+        }
+        correspondences = m;
+        rms = (m > 0) ? Math.sqrt(sum2 / m) : Double.NaN;
+        if(m < 6) return null;
+
+        double[] x = LinearAlgebra.solve(ata, atb);
+        if(x == null) return null;
+
+        // rotation about x, then y, then z
+        Matrix3d r = new Matrix3d(), ry = new Matrix3d(), rx = new Matrix3d();
+        r.rotZ(x[2]); ry.rotY(x[1]); rx.rotX(x[0]);
+        r.mul(ry); r.mul(rx);
+
+        return new Matrix4d(r, new Vector3d(x[3], x[4], x[5]), 1);
+    }
+
+    /**
+     * transform of the input coordinates: p' = R (p - shift) + t + shift
+     * @param transform transform in the shifted frame
+     * @param coordShift
+     * @return
+     */
+    public static Matrix4d unshifted(Matrix4d transform, Point coordShift){
+        Matrix4d shift = new Matrix4d(), unshift = new Matrix4d();
+        shift.setIdentity(); unshift.setIdentity();
+        shift.setTranslation(new Vector3d(coordShift.x, coordShift.y, coordShift.z));
+        unshift.setTranslation(new Vector3d(-coordShift.x, -coordShift.y, -coordShift.z));
+
+        Matrix4d result = new Matrix4d(shift);
+        result.mul(transform);
+        result.mul(unshift);
+        return result;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.NeighbourhoodPass;
+import eu.fbk.threedom.utils.Stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * local attributes of the lidar points from their neighbours within a radius, found in the
+ * voxel neighbourhood after ingest, in place of an external preprocessing pass:
+ * - dZVariance: variance of the neighbours z
+ * - LDensity: neighbours per unit of volume of the sphere
+ * - LHeight: height above the lowest neighbour
+ * They are added as lidar properties usable in the config formulas; a property already
+ * read from the lidar file (e.g. dZVariance) is kept and not computed.
+ */
+public class LocalAttributes {
+
+    private static final String[] NAMES = {"dZVariance", "LDensity", "LHeight"};
+
+    private double radius;
+    private int threads;
+
+    public LocalAttributes(double radius, int threads){
+        this.radius = radius;
+        this.threads = threads;
+    }
+
+    public void run(PcFilter pcf){
+        System.out.println("\nLIDAR local attributes: radius " + radius);
+        long start = System.currentTimeMillis();
+
+        // attributes not read from the file
+        List<Integer> computed = new ArrayList<>();
+        for(int a = 0; a < NAMES.length; a++)
+            if(pcf.getPropertyIndex(FileType.LIDAR, NAMES[a]) < 0) computed.add(a);
+            else System.out.println(".." + NAMES[a] + " read from the file");
+        if(computed.isEmpty()) return;
+
+        NeighbourhoodPass pass = new NeighbourhoodPass(pcf.getVGrid(), FileType.LIDAR);
+        double[] all = estimate(pass);
+        Stats.printElapsedTime(start, "..estimated on " + pass.getPoints().size() + " points");
+
+        String[] names = new String[computed.size()];
+        double[] values = new double[pass.getPoints().size() * names.length];
+        for(int j = 0; j < names.length; j++) {
+            names[j] = NAMES[computed.get(j)];
+            for(int i = 0; i < pass.getPoints().size(); i++)
+                values[i * names.length + j] = all[i * NAMES.length + computed.get(j)];
+        }
+
+        pcf.addProperties(FileType.LIDAR, names, pass.getPoints(), values);
+    }
+
+    /**
+     * @return dZVariance, density and height of each point of the pass
+     */
+    double[] estimate(NeighbourhoodPass pass){
+        double[] values = new double[NAMES.length * pass.getPoints().size()];
+        Arrays.fill(values, Double.NaN);
+        double r2 = radius * radius;
+        double volume = 4.0 / 3.0 * Math.PI * radius * radius * radius;
+
+        pass.run(radius, threads, (first, points, candidates, n) -> {
+            for(int i = 0; i < points.size(); i++) {
+                Point p = points.get(i);
+
+                // the point itself is a neighbour
+                int m = 0;
+                double sum = 0, sum2 = 0, minZ = Double.MAX_VALUE;
+                for(int c = 0; c < n; c++) {
+                    double dx = candidates[3 * c] - p.x, dy = candidates[3 * c + 1] - p.y, dz = candidates[3 * c + 2] - p.z;
+                    if(dx * dx + dy * dy + dz * dz > r2) continue;
+
+                    // z relative to the point, against cancellation
+                    m++;
+                    sum += dz;
+                    sum2 += dz * dz;
+                    minZ = Math.min(minZ, candidates[3 * c + 2]);
+                }
+                if(m == 0) continue;
+
+                double mean = sum / m;
+                int k = NAMES.length * (first + i);
+                values[k] = Math.max(0, sum2 / m - mean * mean);
+                values[k + 1] = m / volume;
+                values[k + 2] = p.z - minZ;
+            }
+        });
+
+        return values;
+    }
+}
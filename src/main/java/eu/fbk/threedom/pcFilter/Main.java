@@ -27,17 +27,22 @@ package eu.fbk.threedom.pcFilter;
 import eu.fbk.threedom.pc.FileType;
 import eu.fbk.threedom.pc.Point;
 import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.SmoothedDensity;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelFeatures;
 import eu.fbk.threedom.utils.Combinator;
 import eu.fbk.threedom.utils.Stats;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.apache.commons.io.FilenameUtils;
 import org.kohsuke.args4j.*;
+import javax.vecmath.Matrix4d;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 public class Main {
@@ -48,26 +53,73 @@ public class Main {
     @Option(name = "-o", aliases = { "--output" }, metaVar = "output") String outFile;
     @Option(name = "-w", aliases = { "--overwrite" }, metaVar = "overWrite") Boolean overWrite;
     @Option(name = "-v", aliases = { "--verbose" }, metaVar = "verbose") Boolean verbose;
-
-    public static boolean DEBUG;
+    @Option(name = "-p", aliases = { "--pyramid" }, metaVar = "levels") Integer pyramidLevels;
+    @Option(name = "-s", aliases = { "--sweep" }, metaVar = "voxelSides") String sweepSides;
+    @Option(name = "-sw", aliases = { "--sweepWrite" }, metaVar = "sweepWrite") Boolean sweepWrite;
+    @Option(name = "-ts", aliases = { "--thresholdSweep" }, metaVar = "candidates") Integer thresholdCandidates;
+    @Option(name = "-aq", aliases = { "--autoQuantile" }, metaVar = "quantile") Float autoQuantile;
+    @Option(name = "-b", aliases = { "--batch" }, metaVar = "batch") Boolean batch;
+    @Option(name = "-st", aliases = { "--streaming" }, metaVar = "streaming") Boolean streaming;
+    @Option(name = "-oc", aliases = { "--outOfCore" }, metaVar = "tileVoxels") Integer tileVoxels;
+    @Option(name = "-pt", aliases = { "--parallelTiles" }, metaVar = "tileVoxels") Integer parallelTileVoxels;
+    @Option(name = "-th", aliases = { "--threads" }, metaVar = "threads") Integer threads;
+    @Option(name = "-co", aliases = { "--coordinator" }, metaVar = "workers") Integer workers;
+    @Option(name = "-lw", aliases = { "--localWorkers" }, metaVar = "localWorkers") Integer localWorkers;
+    @Option(name = "-port", aliases = { "--port" }, metaVar = "port") Integer port;
+    @Option(name = "-ix", aliases = { "--index" }, metaVar = "indexFile") File indexFile;
+    @Option(name = "-srv", aliases = { "--server" }, metaVar = "port") Integer serverPort;
+    @Option(name = "-loc", aliases = { "--locate" }, metaVar = "locationFile") File locationFile;
+    @Option(name = "-icp", aliases = { "--icp" }, metaVar = "mode") String icpMode;
+    @Option(name = "-ca", aliases = { "--coarseAlign" }, metaVar = "windowVoxels") Integer coarseWindow;
+    @Option(name = "-cac", aliases = { "--coarsePerClass" }, metaVar = "coarsePerClass") Boolean coarsePerClass;
+    @Option(name = "-vf", aliases = { "--voxelFeatures" }, metaVar = "voxelFeatures") Boolean voxelFeatures;
+    @Option(name = "-nr", aliases = { "--normals" }, metaVar = "neighbours") Integer normalNeighbours;
+    @Option(name = "-nrr", aliases = { "--normalRadius" }, metaVar = "radius") Float normalRadius;
+    @Option(name = "-la", aliases = { "--localAttributes" }, metaVar = "radius") Float localRadius;
+    @Option(name = "-sd", aliases = { "--smoothedDensity" }, metaVar = "smoothedDensity") Boolean smoothedDensity;
+    @Option(name = "-sor", aliases = { "--outlierRemoval" }, metaVar = "neighbours") Integer sorNeighbours;
+    @Option(name = "-sors", aliases = { "--outlierStd" }, metaVar = "stdRatio") Float sorStdRatio;
+    @Option(name = "-ds", aliases = { "--downsample" }, metaVar = "mode") String downsampleMode;
+    @Option(name = "-c2c", aliases = { "--c2c" }, metaVar = "mode") String c2cMode;
+    @Option(name = "-c2cd", aliases = { "--c2cDistance" }, metaVar = "maxDistance") Float c2cDistance;
+    @Option(name = "-c2cf", aliases = { "--c2cFiltered" }, metaVar = "c2cFiltered") Boolean c2cFiltered;
+
+    private boolean DEBUG;
     private static final int RANDOM_POINTS_NUMBER = 1000;
+    // tile side of the coordinator when -oc is not given
+    private static final int DEFAULT_TILE_VOXELS = 64;
+    // ICP iterations and correspondence distance (in voxels)
+    private static final int ICP_ITERATIONS = 30;
+    private static final float ICP_DISTANCE_VOXELS = 2;
+    // lattices of the coarse alignment, each one of half the side of the previous
+    private static final int COARSE_LEVELS = 3;
+    // neighbours of the normal planes when -nr is not given
+    private static final int DEFAULT_NORMAL_NEIGHBOURS = 10;
+    // standard deviations beyond the mean distance of the outlier removal when -sors is not given
+    private static final float DEFAULT_SOR_STD_RATIO = 1;
+    // largest C2C distance when -c2cd is not given, in voxels
+    private static final float C2C_DISTANCE_VOXELS = 4;
     private static final float RANDOM_POINTS_CUBE_SIZE = 100;
     private static final String RANDOM_FILE1_HEADER = "// X Y Z R G B Class NumberOfReturns PIntensity";
     private static final String RANDOM_FILE2_HEADER = "// X Y Z Class LIntensity dZVariance ScanAngleRank EchoRatio";
 
-    private static String filePath, fileName, fn1, fn2;
+    private String filePath, fileName, fn1, fn2;
 
     // timer
-    private static long start;
+    private long start;
     private File outFile1, outFile2;
-    public static JSONObject config;
+    private JSONObject config;
 
-    private static PcFilter pcf;
+    private PcFilter pcf;
+    // composite transform of the coarse alignment and the ICP in input coordinates, null for none
+    private Matrix4d registration;
+    // persisted session answering the print info queries, null when pcf is used
+    private VoxelIndex index;
     private HashMap<String, Float> voxelDensityStats;
 
-    private static Set<Integer> intersectionSet;
-    private static Set<Integer> filteredIntersectionSet;
-    private static Set<Integer> scoredFilteredIntersectionSet;
+    private Set<Integer> intersectionSet;
+    private Set<Integer> filteredIntersectionSet;
+    private Set<Integer> scoredFilteredIntersectionSet;
 
     private Scanner scanner;
     private int menuLevel;
@@ -85,7 +137,7 @@ public class Main {
         return notice;
     }
 
-    private void parseArgs(String[] args) {
+    void parseArgs(String[] args) {
         CmdLineParser parser = new CmdLineParser(this);
 
         verbose = false;
@@ -121,9 +173,39 @@ public class Main {
         ///////////////////////////////////////////////////////
         // create the structure
         ///////////////////////////////////////////////////////
+        index = null;
         //start = System.currentTimeMillis();
-        pcf = new PcFilter(inFile1, inFile2, voxelSide);
+        pcf = new PcFilter(inFile1, inFile2, voxelSide, config, streaming != null && streaming, DEBUG);
         //Stats.printElapsedTime(start, "..voxel grid created");
+
+        if(voxelSide != 0 && downsampleMode != null)
+            pcf.setDownsampler(createDownsampler());
+
+        // floating noise out before the voxel filters
+        if(voxelSide != 0 && sorNeighbours != null)
+            new OutlierRemoval(sorNeighbours, (sorStdRatio != null) ? sorStdRatio : DEFAULT_SOR_STD_RATIO,
+                    getThreads()).run(pcf);
+
+        // coarse-to-fine pyramid used to prune empty regions
+        if(voxelSide != 0 && pyramidLevels != null && pyramidLevels > 0)
+            pcf.getVGrid().buildPyramid(pyramidLevels);
+
+        // computed properties, scores are updated
+        if(voxelSide != 0 && (normalNeighbours != null || normalRadius != null))
+            new NormalEstimator((normalNeighbours != null) ? normalNeighbours : DEFAULT_NORMAL_NEIGHBOURS,
+                    (normalRadius != null) ? normalRadius : 0, getThreads()).run(pcf);
+        if(voxelSide != 0 && localRadius != null)
+            new LocalAttributes(localRadius, getThreads()).run(pcf);
+    }
+
+    /**
+     * @return true if the points of the files are changed (outlier removal, computed properties,
+     * registration) or are read back in memory (voxel features)
+     */
+    private boolean derivedPoints(){
+        return sorNeighbours != null || normalNeighbours != null || normalRadius != null || localRadius != null
+                || c2cMode != null || icpMode != null || coarseWindow != null
+                || (voxelFeatures != null && voxelFeatures);
     }
 
     private void printStatistics(boolean verbose){
@@ -211,7 +293,7 @@ public class Main {
                     values = new float[propValues.size()];
                     int n = 0;
                     for (Object p : propValues)
-                        values[n++] = (float) p;
+                        values[n++] = ((Double) p).floatValue();
 
                     float med = Stats.median(values, values.length);
                     float mad = Stats.mad(values, values.length);
@@ -337,15 +419,20 @@ public class Main {
         System.out.println("\n///////////////////////////////////////////////////////\n// PHOTO/LIDAR INTERSECTION IN EACH VOXEL");
 
         start = System.currentTimeMillis();
-        // initialize with all the voxels
-        intersectionSet = pcf.getVGrid().getVoxels( new FileType[] {FileType.PHOTOGRAMMETRIC,FileType.LIDAR} );
-        // cycle on photogrammetry/lidar file and find the intersection
-        for (FileType ft : FileType.values()) {
-            if(verbose)
-                System.out.println(".." + ft + " set " + pcf.getVGrid().getVoxels(ft));
-            else
-                System.out.println(".." + ft + " " + pcf.getVGrid().getVoxels(ft).size() + " voxels");
-            intersectionSet.retainAll(pcf.getVGrid().getVoxels(ft));
+        if(pcf.getVGrid().getPyramidLevels() > 0){
+            // coarse-to-fine, cells without photo or lidar points skip all their children
+            intersectionSet = pcf.getVGrid().getIntersectionVoxels();
+        }else {
+            // initialize with all the voxels
+            intersectionSet = pcf.getVGrid().getVoxels(new FileType[]{FileType.PHOTOGRAMMETRIC, FileType.LIDAR});
+            // cycle on photogrammetry/lidar file and find the intersection
+            for (FileType ft : FileType.values()) {
+                if (verbose)
+                    System.out.println(".." + ft + " set " + pcf.getVGrid().getVoxels(ft));
+                else
+                    System.out.println(".." + ft + " " + pcf.getVGrid().getVoxels(ft).size() + " voxels");
+                intersectionSet.retainAll(pcf.getVGrid().getVoxels(ft));
+            }
         }
 
 
@@ -401,7 +488,23 @@ public class Main {
         filteredIntersectionSet = new TreeSet<>();
         start = System.currentTimeMillis();
 
-        for (int v : intersectionSet) {
+        // with the pyramid only voxels sharing at least one class between photo and lidar
+        // are visited, the others can't pass the density check
+        Set<Integer> candidates = (pcf.getVGrid().getPyramidLevels() > 0) ?
+                pcf.getVGrid().getClassIntersectionVoxels() : intersectionSet;
+
+        // smoothed densities and means are read once, not from the string keyed map of each voxel
+        SmoothedDensity density = null;
+        float[][] means = new float[FileType.values().length][PointClassification.values().length];
+        if(smoothedDensity != null && smoothedDensity) {
+            System.out.println("..densities smoothed over the 3x3x3 voxel neighbourhood");
+            density = pcf.getVGrid().getSmoothedDensity(getThreads());
+            for (FileType ft : FileType.values())
+                for (PointClassification pclass : PointClassification.values())
+                    means[ft.ordinal()][pclass.ordinal()] = voxelDensityStats.getOrDefault(ft + "_" + pclass + "_density_mean", 0f);
+        }
+
+        for (int v : candidates) {
             if(verbose)
                 System.out.println("..v" + v);
             boolean passed = true;
@@ -413,11 +516,16 @@ public class Main {
                         System.out.println("......" + ft);
 
                     float ftClVDensity = 0, ftClVDensityMean = 0;
-                    if (voxelDensityStats.containsKey(ft + "_" + pclass + "_v" + v + "_density"))
-                        ftClVDensity = voxelDensityStats.get(ft + "_" + pclass + "_v" + v + "_density");
-
-                    if (voxelDensityStats.containsKey(ft + "_" + pclass + "_density_mean"))
-                        ftClVDensityMean = voxelDensityStats.get(ft + "_" + pclass + "_density_mean");
+                    if (density != null) {
+                        ftClVDensity = density.get(v, ft, pclass);
+                        ftClVDensityMean = means[ft.ordinal()][pclass.ordinal()];
+                    } else {
+                        if (voxelDensityStats.containsKey(ft + "_" + pclass + "_v" + v + "_density"))
+                            ftClVDensity = voxelDensityStats.get(ft + "_" + pclass + "_v" + v + "_density");
+
+                        if (voxelDensityStats.containsKey(ft + "_" + pclass + "_density_mean"))
+                            ftClVDensityMean = voxelDensityStats.get(ft + "_" + pclass + "_density_mean");
+                    }
 
                     //System.out.println("........ftClVDensity " + ftClVDensity);
                     //System.out.println("........ftClVDensityMean " + ftClVDensityMean);
@@ -507,7 +615,10 @@ public class Main {
         Stats.printElapsedTime(start, "processed");
     }
 
-    private void run() throws Exception {
+    /**
+     * output folder and names, config file
+     */
+    void init() throws Exception {
         ///////////////////////////////////////////////////////
         // create an output file
         ///////////////////////////////////////////////////////
@@ -533,18 +644,138 @@ public class Main {
             generateRandomData(RANDOM_POINTS_NUMBER, 0);
             generateRandomData(RANDOM_POINTS_NUMBER, 1);
         }
+    }
 
+    /**
+     * points of the files, or session reopened from the index, with the registration,
+     * the distances and the features applied; the index is written on the final points
+     */
+    void openSession() throws Exception {
         ///////////////////////////////////////////////////////
-        // create the structure
+        // create the structure, or reopen the session persisted in the index
+        ///////////////////////////////////////////////////////
+        boolean interactive = thresholdCandidates == null && autoQuantile == null
+                && parallelTileVoxels == null && (batch == null || !batch) && serverPort == null
+                && locationFile == null;
+        // the index signature does not cover the outlier removal, the computed properties and the registration
+        boolean useIndex = indexFile != null && interactive && voxelSide != 0 && !derivedPoints();
+
+        if(useIndex)
+            index = VoxelIndex.open(indexFile, inFile1, inFile2, voxelSide, config);
+
+        if(index == null)
+            createPcFilter(voxelSide);
+
+        ///////////////////////////////////////////////////////
+        // THRESHOLD SWEEP / AUTO-CALIBRATION
+        ///////////////////////////////////////////////////////
+        if(voxelSide != 0 && (thresholdCandidates != null || autoQuantile != null))
+            runThresholdSweep();
+
+        ///////////////////////////////////////////////////////
+        // COARSE ALIGNMENT: translation of the photogrammetric points by
+        // correlation of voxel occupancy, the voxel grid is rebuilt on the moved points
+        ///////////////////////////////////////////////////////
+        if(coarseWindow != null && voxelSide != 0)
+            runCoarseAlignment();
+
+        ///////////////////////////////////////////////////////
+        // ICP: register the photogrammetric points on the lidar ones,
+        // the voxel grid is rebuilt on the moved points
+        ///////////////////////////////////////////////////////
+        if(icpMode != null && voxelSide != 0)
+            runIcp();
+
+        ///////////////////////////////////////////////////////
+        // C2C: distance of the photogrammetric points from the lidar cloud,
+        // after the registration, as output column and per class histograms
+        ///////////////////////////////////////////////////////
+        if(c2cMode != null && voxelSide != 0)
+            runCloudDistance();
+
+        ///////////////////////////////////////////////////////
+        // VOXEL FEATURES: centroid, covariance and eigen features of each voxel and fileType
+        ///////////////////////////////////////////////////////
+        if(voxelFeatures != null && voxelFeatures && voxelSide != 0)
+            writeVoxelFeatures();
+
+        ///////////////////////////////////////////////////////
+        // INDEX: persist the session once the points are final
         ///////////////////////////////////////////////////////
-        createPcFilter(voxelSide);
+        if(useIndex && index == null)
+            VoxelIndex.write(pcf, indexFile, inFile1, inFile2);
+    }
+
+    private void run() throws Exception {
+        init();
+
+        ///////////////////////////////////////////////////////
+        // VOXELSIDE SWEEP
+        ///////////////////////////////////////////////////////
+        if(sweepSides != null) {
+            runSweep();
+            return;
+        }
+
+        ///////////////////////////////////////////////////////
+        // COORDINATOR: tiles on shared storage processed by worker JVMs
+        ///////////////////////////////////////////////////////
+        if(workers != null) {
+            runCoordinator();
+            return;
+        }
+
+        ///////////////////////////////////////////////////////
+        // OUT-OF-CORE: tiles on disk, output files and exit
+        ///////////////////////////////////////////////////////
+        if(tileVoxels != null) {
+            runOutOfCore();
+            return;
+        }
+
+        openSession();
+
+        ///////////////////////////////////////////////////////
+        // BULK LOCATION LOOKUP: voxel of each location of a file and exit
+        ///////////////////////////////////////////////////////
+        if(locationFile != null && voxelSide != 0) {
+            runLocate();
+            return;
+        }
+
+        ///////////////////////////////////////////////////////
+        // QUERY SERVER: the loaded cloud answers HTTP/JSON queries until the process is stopped
+        ///////////////////////////////////////////////////////
+        if(serverPort != null && voxelSide != 0) {
+            new QueryServer(pcf, serverPort, getThreads()).start();
+            return;
+        }
+
+        ///////////////////////////////////////////////////////
+        // PARALLEL TILES: filter on a work-stealing pool, output files and exit
+        ///////////////////////////////////////////////////////
+        if(parallelTileVoxels != null && voxelSide != 0) {
+            runParallelTiles();
+            return;
+        }
+
+        ///////////////////////////////////////////////////////
+        // BATCH: all reports, output files and exit
+        ///////////////////////////////////////////////////////
+        if(batch != null && batch) {
+            runBatch();
+            return;
+        }
 
         ///////////////////////////////////////////////////////
         // SHOW DATA
         ///////////////////////////////////////////////////////
         ///////////////////////////////////////////////////////////////////////
         // PRINT PROPERTIES STATISTICS
-        printStatistics(Main.DEBUG);
+        if(index != null)
+            printIndexStatistics();
+        else
+            printStatistics(DEBUG);
 
         /////////////////////////////////////////////
         // INTERACTIVE CONSOLE
@@ -580,12 +811,335 @@ public class Main {
         } while (true);
     }
 
+    private void runSweep() throws IOException {
+        String[] tokens = sweepSides.split(",");
+        float[] sides = new float[tokens.length];
+        for(int i = 0; i < tokens.length; i++)
+            sides[i] = Float.parseFloat(tokens[i].trim());
+
+        ///////////////////////////////////////////////////////
+        // parse and score only once, no voxel grid
+        createPcFilter(0);
+
+        VoxelSweep sweep = new VoxelSweep(pcf, sides);
+        sweep.run();
+
+        ////////////////////////////////////////////////////////////////////////////////
+        // VOXELSIDE SWEEP RESULTS
+        System.out.println("\n///////////////////////////////////////////////////////\n// VOXELSIDE SWEEP");
+        start = System.currentTimeMillis();
+
+        for(int i = 0; i < sweep.getVoxelSides().length; i++) {
+            float side = sweep.getVoxelSides()[i];
+            VoxelCounts vc = sweep.getCounts()[i];
+
+            Set<Integer> intersection = vc.getIntersection();
+            Set<Integer> filtered = vc.getFiltered(intersection);
+            Set<Integer> scoredFiltered = vc.getScoredFiltered(filtered);
+
+            System.out.println("..voxelSide " + side);
+            System.out.println("....voxels with at least one point " + vc.size());
+            System.out.println("....intersection voxel count -> " + intersection.size() + " voxels");
+            System.out.println("....filtered voxel count -> " + filtered.size() + " voxels");
+            System.out.println("....scored filtered voxel count -> " + scoredFiltered.size() + " voxels");
+
+            if(sweepWrite != null && sweepWrite) {
+                String vs = side + "_";
+                writeOutput(sweep.getPoints(i, filtered, false), vs + "filteredIntersection");
+                writeOutput(sweep.getPoints(i, scoredFiltered, true), vs + "out");
+            }
+        }
+
+        Stats.printElapsedTime(start, "processed");
+    }
+
+    private void runThresholdSweep(){
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        Set<Integer> filtered = vc.getFiltered(vc.getIntersection());
+        ThresholdSweep ts = new ThresholdSweep(pcf, vc, filtered);
+
+        ////////////////////////////////////////////////////////////////////////////////
+        // AUTO THRESHOLDS
+        if(autoQuantile != null) {
+            System.out.println("\n///////////////////////////////////////////////////////\n// AUTO THRESHOLDS (quantile " + autoQuantile + ")");
+            float[][] t = ts.getAutoThresholds(autoQuantile);
+
+            for(FileType ft : FileType.values())
+                for(PointClassification pc : PointClassification.values())
+                    System.out.println(".." + ft + " " + pc + " threshold " + ts.getThresholds()[ft.ordinal()][pc.ordinal()]
+                            + " -> " + t[ft.ordinal()][pc.ordinal()]);
+
+            ts.apply(t);
+            System.out.println("..scored filtered voxel count -> " + ts.getScoredFiltered(t).size() + " voxels");
+        }
+
+        ////////////////////////////////////////////////////////////////////////////////
+        // THRESHOLD SWEEP
+        if(thresholdCandidates != null) {
+            System.out.println("\n///////////////////////////////////////////////////////\n// THRESHOLD SWEEP");
+            start = System.currentTimeMillis();
+
+            for(FileType ft : FileType.values())
+                for(PointClassification pc : PointClassification.values()) {
+                    if(pcf.getScoreHistograms()[ft.ordinal()][pc.ordinal()].getTotal() == 0) continue;
+                    System.out.println(".." + ft + " " + pc + " (threshold " + ts.getThresholds()[ft.ordinal()][pc.ordinal()] + ")");
+
+                    // change only this class threshold
+                    float[][] t = new float[ts.getThresholds().length][];
+                    for(int i = 0; i < t.length; i++) t[i] = ts.getThresholds()[i].clone();
+
+                    for(float c : ts.getCandidates(ft, pc, thresholdCandidates)) {
+                        t[ft.ordinal()][pc.ordinal()] = c;
+                        System.out.println("....threshold " + c
+                                + " -> pass fraction " + String.format("%.4f", ts.getPassFraction(ft, pc, c))
+                                + ", scored filtered " + ts.getScoredFiltered(t).size() + " voxels");
+                    }
+                }
+
+            Stats.printElapsedTime(start, "processed");
+        }
+    }
+
+    private void runBatch() throws IOException {
+        BatchReport batchReport = new BatchReport(pcf, DEBUG);
+        if(voxelSide != 0 && smoothedDensity != null && smoothedDensity)
+            batchReport.setSmoothedDensity(pcf.getVGrid().getSmoothedDensity(getThreads()));
+        JSONObject report = batchReport.run(voxelSide);
+        report.put("photoFile", inFile1.getPath());
+        report.put("lidarFile", inFile2.getPath());
+
+        /////////////////////////////////////////////
+        // WRITE DATA
+        ////////////////////////////////////////////
+        String vs = this.voxelSide + "_";
+        JSONArray outputs = new JSONArray();
+        report.put("outputs", outputs);
+        try {
+            if(this.voxelSide == 0)
+                writeOutput(pcf.getPoints(), vs+"out");
+            else {
+                intersectionSet = batchReport.getIntersectionSet();
+                filteredIntersectionSet = batchReport.getFilteredIntersectionSet();
+                scoredFilteredIntersectionSet = batchReport.getScoredFilteredIntersectionSet();
+
+                writeOutput(filteredIntersectionSet, false, vs+"filteredIntersection");
+                outputs.put(outFile1.getPath()).put(outFile2.getPath());
+                writeOutput(scoredFilteredIntersectionSet, true, vs+"out");
+            }
+            outputs.put(outFile1.getPath()).put(outFile2.getPath());
+        } catch (IOException e) {
+            // the report records the failure and the outputs written before it, the run fails
+            report.put("error", e.toString());
+            writeReport(report, vs+"report");
+            throw e;
+        }
+
+        writeReport(report, vs+"report");
+    }
+
+    public void writeReport(JSONObject report, String label) throws IOException {
+        File reportFile = new File(filePath + File.separator + fn1 + "_" + fn2 + "_" + label + ".json");
+        System.out.println("\nreportFile:\n.." + reportFile);
+
+        if(reportFile.exists() && (overWrite == null || !overWrite)) {
+            System.out.println("\nWARNING! the report file already exists");
+            System.exit(1);
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(reportFile, false))) {
+            writer.write(report.toString(2));
+            writer.newLine();
+        }
+    }
+
+    private int getThreads(){
+        return (threads != null && threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private void runCloudDistance() throws IOException {
+        CloudDistance.Mode mode = null;
+        for(CloudDistance.Mode m : CloudDistance.Mode.values())
+            if(m.name().equalsIgnoreCase(c2cMode)) mode = m;
+        if(mode == null) {
+            System.out.println("\nWARNING! unknown C2C mode " + c2cMode + ", use nearest or plane");
+            System.exit(1);
+        }
+
+        // all the photogrammetric points, or the ones written to the out file
+        Predicate<Point> selected = p -> true;
+        if(c2cFiltered != null && c2cFiltered) {
+            VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+            Set<Point> subset = Collections.newSetFromMap(new IdentityHashMap<>());
+            for(int v : vc.getScoredFiltered(vc.getFiltered(vc.getIntersection())))
+                subset.addAll(pcf.getPoints(FileType.PHOTOGRAMMETRIC, v, true));
+            selected = subset::contains;
+        }
+
+        CloudDistance c2c = new CloudDistance(mode, (c2cDistance != null) ? c2cDistance : C2C_DISTANCE_VOXELS * voxelSide,
+                getThreads());
+        c2c.run(pcf, selected);
+
+        JSONObject report = c2c.report();
+        report.put("photoFile", inFile1.getPath());
+        report.put("lidarFile", inFile2.getPath());
+        report.put("filtered", c2cFiltered != null && c2cFiltered);
+        writeReport(report, voxelSide + "_c2c");
+    }
+
+    private VoxelDownsampler createDownsampler(){
+        for(VoxelDownsampler.Mode m : VoxelDownsampler.Mode.values())
+            if(m.name().equalsIgnoreCase(downsampleMode))
+                return new VoxelDownsampler(m, getThreads());
+
+        System.out.println("\nWARNING! unknown downsampling mode " + downsampleMode + ", use centroid or nearest");
+        System.exit(1);
+        return null;
+    }
+
+    private void runCoarseAlignment(){
+        CoarseRegistration cr = new CoarseRegistration(voxelSide, coarseWindow, COARSE_LEVELS,
+                coarsePerClass != null && coarsePerClass, getThreads());
+        cr.run(pcf.getPoints(FileType.PHOTOGRAMMETRIC, true), pcf.getPoints(FileType.LIDAR, true));
+
+        applyRegistration(cr.getTransform());
+    }
+
+    private void runIcp(){
+        Icp.Mode mode = null;
+        for(Icp.Mode m : Icp.Mode.values())
+            if(m.name().equalsIgnoreCase(icpMode)) mode = m;
+        if(mode == null) {
+            System.out.println("\nWARNING! unknown ICP mode " + icpMode + ", use point or plane");
+            System.exit(1);
+        }
+
+        // correspondences from the points of the scored filtered intersection voxels,
+        // of the coarsely aligned grid if a coarse alignment ran
+        List<Point> source = new ArrayList<>(), target = new ArrayList<>();
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        Set<Integer> scoredFiltered = new TreeSet<>(vc.getScoredFiltered(vc.getFiltered(vc.getIntersection())));
+        for(int v : scoredFiltered) {
+            source.addAll(pcf.getPoints(FileType.PHOTOGRAMMETRIC, v, true));
+            target.addAll(pcf.getPoints(FileType.LIDAR, v, true));
+        }
+
+        Icp icp = new Icp(mode, ICP_DISTANCE_VOXELS * voxelSide, ICP_ITERATIONS, getThreads());
+        Matrix4d transform = icp.run(source, target, null);
+        // no correspondences, the points are not moved
+        if(Double.isNaN(icp.getRms())) return;
+        System.out.println("..rms " + icp.getRms());
+
+        applyRegistration(transform);
+    }
+
+    /**
+     * move the photogrammetric points by a registration transform of the shifted frame and
+     * rebuild the voxel grid on them, the following steps and the outputs see the moved points
+     * @param transform
+     */
+    private void applyRegistration(Matrix4d transform){
+        Matrix4d input = Icp.unshifted(transform, pcf.getCoordShift());
+        if(registration == null) registration = input;
+        else registration.mul(input, registration);
+
+        pcf.transformPhotogrammetric(transform);
+        System.out.println("..photogrammetric transform (input coordinates)\n" + registration);
+
+        if(pyramidLevels != null && pyramidLevels > 0)
+            pcf.getVGrid().buildPyramid(pyramidLevels);
+    }
+
+    private void writeVoxelFeatures() throws IOException {
+        File out = new File(filePath + File.separator + fn1 + "_" + fn2 + "_" + voxelSide + "_features.txt");
+        System.out.println("\nfeaturesFile:\n.." + out);
+
+        if(out.exists() && (overWrite == null || !overWrite)) {
+            System.out.println("\nWARNING! the features file already exists");
+            System.exit(1);
+        }
+
+        VoxelFeatures features = pcf.getVGrid().getFeatures(getThreads());
+        long start = System.currentTimeMillis();
+        features.write(new BufferedWriter(new FileWriter(out, false)), pcf.getCoordShift());
+        Stats.printElapsedTime(start, "..written");
+    }
+
+    private void runLocate() throws IOException {
+        File out = new File(FilenameUtils.getFullPath(locationFile.getAbsolutePath())
+                + FilenameUtils.getBaseName(locationFile.getPath()) + "_" + voxelSide + "_voxels.txt");
+
+        if(out.exists() && (overWrite == null || !overWrite)) {
+            System.out.println("\nWARNING! the output file " + out + " already exists");
+            System.exit(1);
+        }
+
+        BulkLocator.locateFile(pcf, locationFile, out, getThreads());
+    }
+
+    private void runParallelTiles() throws IOException {
+        ParallelFilter parallelFilter = new ParallelFilter(pcf.getVGrid(), Math.max(1, parallelTileVoxels), getThreads());
+        parallelFilter.run();
+
+        intersectionSet = parallelFilter.getIntersection();
+        filteredIntersectionSet = parallelFilter.getFiltered();
+        scoredFilteredIntersectionSet = parallelFilter.getScoredFiltered();
+
+        String vs = this.voxelSide + "_";
+        writeOutput(filteredIntersectionSet, false, vs+"filteredIntersection");
+        writeOutput(scoredFilteredIntersectionSet, true, vs+"out");
+    }
+
+    private void runCoordinator() throws Exception {
+        int tiles = (tileVoxels != null) ? tileVoxels : DEFAULT_TILE_VOXELS;
+        if(voxelSide == 0 || tiles < 1 || workers < 1) {
+            System.out.println("Error: the coordinator needs a voxelSide, a tile side of at least one voxel and one worker");
+            quit();
+        }
+
+        String vs = this.voxelSide + "_";
+        File[] filteredFiles = createOutputFiles(vs+"filteredIntersection");
+        File[] scoredFiles = createOutputFiles(vs+"out");
+
+        Coordinator coordinator = new Coordinator(inFile1, inFile2, voxelSide, tiles, new File(filePath), config,
+                (port != null) ? port : 0);
+        coordinator.run(filteredFiles, scoredFiles, workers, (localWorkers != null) ? Math.min(localWorkers, workers) : workers);
+    }
+
+    private void runOutOfCore() throws IOException {
+        if(voxelSide == 0 || tileVoxels < 1) {
+            System.out.println("Error: the out-of-core mode needs a voxelSide and a tile side of at least one voxel");
+            quit();
+        }
+
+        String vs = this.voxelSide + "_";
+        File[] filteredFiles = createOutputFiles(vs+"filteredIntersection");
+        File[] scoredFiles = createOutputFiles(vs+"out");
+
+        TiledFilter tiledFilter = new TiledFilter(inFile1, inFile2, voxelSide, tileVoxels, new File(filePath), config);
+        tiledFilter.run(filteredFiles, scoredFiles);
+    }
+
     public void quit(){System.out.println("\n..Bye bye!"); System.exit(1);}
 
+    /**
+     * runtime statistics stored in the index, the med/mad of the normalized values
+     * are computed from the points (see printStatistics) when the filter is built
+     */
+    private void printIndexStatistics(){
+        System.out.println("\n///////////////////////////////////////////////////////\n// PROPERTIES STATISTICS (index)");
+        for(FileType ft : FileType.values())
+            System.out.println(".." + ft + " " + Arrays.toString(index.getProperties()[ft.ordinal()]));
+
+        index.getPropsStats().forEach((key, value) -> System.out.println(".." + key + " " + value));
+    }
+
     public void printLocation(Point location){
         int voxel;
 
-        voxel = pcf.getVoxelId(location.subPoint(pcf.getCoordShift()));
+        if(index != null)
+            voxel = index.getVoxelId(location.subPoint(index.getCoordShift()));
+        else
+            voxel = pcf.getVoxelId(location.subPoint(pcf.getCoordShift()));
 
         if(voxel == -1)
             System.out.println("..the location " + location.toString() + " is outside of the bounding box");
@@ -595,25 +1149,26 @@ public class Main {
 
     public void printPointsInVoxel(int voxel, boolean verbose){
         List<Point> points;
+        Point coordShift = (index != null) ? index.getCoordShift() : pcf.getCoordShift();
 
         for (FileType ft : FileType.values()) {
             System.out.println("\n.." + ft);
 
             if(verbose) {
                 for (PointClassification pclass : PointClassification.values()) {
-                    points = pcf.getPoints(ft, voxel, pclass);
+                    points = (index != null) ? index.getPoints(ft, voxel, pclass) : pcf.getPoints(ft, voxel, pclass);
                     //check if points is null
                     if (points == null || points.size() == 0) continue;
 
                     System.out.println("...." + pclass.name());
 
                     for (Point p : points)
-                        System.out.println("......" + p.toString(pcf.getCoordShift()));
+                        System.out.println("......" + p.toString(coordShift));
                 }
             }else {
 //                System.out.println("...." + points.size() + " points");
                 for (PointClassification pclass : PointClassification.values()) {
-                    points = pcf.getPoints(ft, voxel, pclass);
+                    points = (index != null) ? index.getPoints(ft, voxel, pclass) : pcf.getPoints(ft, voxel, pclass);
                     //check if points is null
                     if (points == null || points.size() == 0) continue;
 
@@ -626,6 +1181,26 @@ public class Main {
     public void printPointsInClass(PointClassification pclass, boolean verbose){
         List<Point> points;
 
+        if(index != null) {
+            for (FileType ft : FileType.values()) {
+                System.out.println("\n.." + ft);
+
+                if (verbose) {
+                    for (int v : index.getVoxels(ft, pclass)) {
+                        System.out.println("..voxel " + v);
+                        for (Point p : index.getPoints(ft, v, pclass))
+                            System.out.println("...." + p.toString(index.getCoordShift()));
+                    }
+                } else {
+                    int count = index.getCount(ft, pclass);
+                    if (count == 0) continue;
+
+                    System.out.println("...." + count + " points");
+                }
+            }
+            return;
+        }
+
         for (FileType ft : FileType.values()) {
             System.out.println("\n.." + ft);
 
@@ -763,7 +1338,8 @@ public class Main {
                                         voxel = scanner.nextInt();
 
                                         // check if voxel exsist
-                                        if (voxel < 0 || voxel >= pcf.getVGrid().getSize()) {
+                                        int gridSize = (index != null) ? index.getSize() : pcf.getVGrid().getSize();
+                                        if (voxel < 0 || voxel >= gridSize) {
                                             System.out.println("the voxel doens't exsist!");
                                             error = true; continue;
                                         }
@@ -834,6 +1410,10 @@ public class Main {
                                 /////////////////////////////////
                                 // COMPUTE STATISTICS & SAVE FILES
                                 case 2:
+                                    // a session opened from the index has no points in memory
+                                    if(pcf == null)
+                                        createPcFilter(this.voxelSide);
+
                                     if(this.voxelSide != 0){
                                         do {
                                             System.out.println("print verbose (y/n): ");
@@ -869,12 +1449,16 @@ public class Main {
                                     // WRITE DATA
                                     ////////////////////////////////////////////
                                     String vs = this.voxelSide + "_";
-                                    if(this.voxelSide == 0)
-                                        writeOutput(pcf.getPoints(), vs+"out");
-                                    else {
-                                        // write in output files
-                                        writeOutput(filteredIntersectionSet, false, vs+"filteredIntersection");
-                                        writeOutput(scoredFilteredIntersectionSet, true, vs+"out");
+                                    try {
+                                        if(this.voxelSide == 0)
+                                            writeOutput(pcf.getPoints(), vs+"out");
+                                        else {
+                                            // write in output files
+                                            writeOutput(filteredIntersectionSet, false, vs+"filteredIntersection");
+                                            writeOutput(scoredFilteredIntersectionSet, true, vs+"out");
+                                        }
+                                    } catch (IOException e) {
+                                        System.out.println("\nWARNING! output files not written: " + e.getMessage());
                                     }
 
                                     break;
@@ -977,7 +1561,12 @@ public class Main {
         }
     }
 
-    public void writeOutput(List<Point> points, String label){
+    /**
+     * set outFile1/outFile2 for label and create them, exit if they exist and overwrite is not set
+     * @param label
+     * @return
+     */
+    private File[] createOutputFiles(String label){
         Path out1 = null, out2 = null;
 
         try {
@@ -1000,162 +1589,41 @@ public class Main {
             if(overWrite) System.out.println("..overWrite output file");
         }
 
-        // write the output files
-        BufferedWriter writer1 = null, writer2 = null;
-        try {
-            writer1 = new BufferedWriter(new FileWriter(outFile1, false));
-            writer2 = new BufferedWriter(new FileWriter(outFile2, false));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        BufferedWriter bw;
+        return new File[]{outFile1, outFile2};
+    }
 
+    public void writeOutput(List<Point> points, String label) throws IOException {
+        File[] files = createOutputFiles(label);
 
-        System.out.println("\nWrite files");
         start = System.currentTimeMillis();
-        for(FileType ft : FileType.values()) {
-            //System.out.println(".." + ft);
-
-            String headerStr = Arrays.toString(pcf.getHeader(ft)).replaceAll(",", "");
-            //headerStr = headerStr.substring(1, headerStr.length()-1); // remove square brackets []
-            headerStr = headerStr.replace("[", "// ");
-            headerStr = headerStr.replace("]", "");
-
-            headerStr += " score";
-
-            System.out.println(".." + ft + " header: " + headerStr);
-
-            bw = (ft == FileType.PHOTOGRAMMETRIC) ? writer1 : writer2;
-            try {
-                bw.write(headerStr + "");
-                bw.newLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        if (!points.isEmpty())
-            for (Point p : points) {
-//                        System.out.println("......point " + p.toString(pcf.getCoordShift()));
-//                        System.out.println("........score " + p.getScore());
-//                        System.out.println("........threshold " + p.getThreshold());
-
-                try {
-                    bw = (p.getType() == FileType.PHOTOGRAMMETRIC) ? writer1 : writer2;
-                    // SELECT true if you want normalized values
-                    bw.write(p.toStringOutput(false, pcf.getCoordShift()));
-                    bw.newLine();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-
+        pcf.writePoints(files, points);
         Stats.printElapsedTime(start, (label + " files written"));
-
-        try {
-            writer1.close();
-            writer2.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
-    public void writeOutput(Set<Integer> voxels, boolean scoreCheck, String label){
-        Path out1 = null, out2 = null;
+    public void writeOutput(Set<Integer> voxels, boolean scoreCheck, String label) throws IOException {
+        File[] files = createOutputFiles(label);
 
-        try {
-            if (outFile == null) {
-                outFile1 = new File(filePath + File.separator + fn1 + "_" + label + ".txt");
-                outFile2 = new File(filePath + File.separator + fn2 + "_" + label + ".txt");
-            }
-            //outFile = new File(filePath + File.separator + fn1 + "_" + fn2 + ".txt");
-            System.out.println("\noutFile:\n.." + outFile1 + "\n.." + outFile2);
-
-            out1 = Paths.get(outFile1.toURI()); Files.createFile(out1);
-            out2 = Paths.get(outFile2.toURI()); Files.createFile(out2);
-
-        } catch (IOException foee) {
-            if (overWrite == null || !overWrite) {
-                System.out.println("\nWARNING! the output file already exists");
-                System.exit(1);
-            }
-
-            if(overWrite) System.out.println("..overWrite output file");
-        }
-
-        // write the output files
-        BufferedWriter writer1 = null, writer2 = null;
-        try {
-            writer1 = new BufferedWriter(new FileWriter(outFile1, false));
-            writer2 = new BufferedWriter(new FileWriter(outFile2, false));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        BufferedWriter bw;
-
-
-        System.out.println("\nWrite files");
         start = System.currentTimeMillis();
-        for(FileType ft : FileType.values()) {
-            //System.out.println(".." + ft);
-
-            String headerStr = Arrays.toString(pcf.getHeader(ft)).replaceAll(",", "");
-            //headerStr = headerStr.substring(1, headerStr.length()-1); // remove square brackets []
-            headerStr = headerStr.replace("[", "// ");
-            headerStr = headerStr.replace("]", "");
-
-            headerStr += " score";
-
-            System.out.println(".." + ft + " header: " + headerStr);
-
-            bw = (ft == FileType.PHOTOGRAMMETRIC) ? writer1 : writer2;
-            try {
-                bw.write(headerStr + "");
-                bw.newLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            List<Point> points = null;
-
-            for(Integer v : voxels) {
-
-                points = pcf.getPoints(ft, v, scoreCheck);
-
-                if (!points.isEmpty())
-                    for (Point p : points) {
-//                        System.out.println("......point " + p.toString(pcf.getCoordShift()));
-//                        System.out.println("........score " + p.getScore());
-//                        System.out.println("........threshold " + p.getThreshold());
-
-                        try {
-                            // SELECT true if you want normalized values
-                            bw.write(p.toStringOutput(false, pcf.getCoordShift()));
-                            bw.newLine();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-            }
-        }
-
+        pcf.writeVoxels(files, voxels, scoreCheck);
         Stats.printElapsedTime(start, (label + " files written"));
-
-        try {
-            writer1.close();
-            writer2.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
     public void readThresholdJson(File file){
+        config = loadConfig(file);
+    }
+
+    /**
+     * read and print a config file
+     * @param file
+     * @return
+     */
+    public static JSONObject loadConfig(File file){
         System.out.println("\nreading " + file.getPath());
         StringBuilder sb = new StringBuilder();
         String str = null;
         try {
             BufferedReader reader = new BufferedReader(new FileReader(file));
-            start = System.currentTimeMillis();
+            long start = System.currentTimeMillis();
             while ((str = reader.readLine()) != null)
                 sb.append(str);
 
@@ -1167,7 +1635,7 @@ public class Main {
         }
 
         // read the input JSON file
-        config = new JSONObject(str);
+        JSONObject config = new JSONObject(str);
         JSONArray fileTypes = config.getJSONArray("fileTypes");
 
         for(Object ft : fileTypes) {
@@ -1191,6 +1659,8 @@ public class Main {
                         + "......formula: " + formula);
             }
         }
+
+        return config;
     }
 
     private void generateRandomData(int numberOfPoints, int type){
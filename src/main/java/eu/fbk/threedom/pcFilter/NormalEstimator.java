@@ -0,0 +1,114 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.NeighbourhoodPass;
+import eu.fbk.threedom.utils.LinearAlgebra;
+import eu.fbk.threedom.utils.Stats;
+
+import java.util.Arrays;
+
+/**
+ * per point normals: plane fitted on the k nearest neighbours (or the neighbours within a
+ * radius) found in the voxel neighbourhood of each point, normal as the eigenvector of the
+ * smallest eigenvalue of their covariance, oriented upward for airborne data.
+ *
+ * The components are added as properties PNx PNy PNz (photogrammetric) and LNx LNy LNz
+ * (lidar), so that the config formulas can use them; points with less than 3 neighbours
+ * have no normal.
+ */
+public class NormalEstimator {
+
+    private static final String[][] NAMES = {{"PNx", "PNy", "PNz"}, {"LNx", "LNy", "LNz"}};
+
+    private int neighbours;
+    private double radius;
+    private int threads;
+
+    /**
+     * @param neighbours k nearest neighbours of the plane, the point included
+     * @param radius neighbours within this distance instead of the k nearest, if > 0
+     * @param threads
+     */
+    public NormalEstimator(int neighbours, double radius, int threads){
+        this.neighbours = neighbours;
+        this.radius = radius;
+        this.threads = threads;
+    }
+
+    public void run(PcFilter pcf){
+        for(FileType ft : FileType.values()) {
+            System.out.println("\n" + ft + " normals: " + ((radius > 0) ? "radius " + radius : neighbours + " neighbours"));
+            long start = System.currentTimeMillis();
+
+            NeighbourhoodPass pass = new NeighbourhoodPass(pcf.getVGrid(), ft);
+            double[] normals = estimate(pass, (radius > 0) ? radius : pcf.getVoxelSide());
+            Stats.printElapsedTime(start, "..estimated on " + pass.getPoints().size() + " points");
+
+            pcf.addProperties(ft, NAMES[ft.ordinal()], pass.getPoints(), normals);
+        }
+    }
+
+    /**
+     * @return nx ny nz of each point of the pass, NaN without a normal
+     */
+    double[] estimate(NeighbourhoodPass pass, double margin){
+        double[] normals = new double[3 * pass.getPoints().size()];
+        Arrays.fill(normals, Double.NaN);
+
+        pass.run(margin, threads, (first, points, candidates, n) -> {
+            int k = (radius > 0) ? n : Math.min(neighbours, n);
+            int[] ids = new int[k];
+            double[] dist2 = new double[k];
+            double[][] cov = new double[3][3], vectors = new double[3][3];
+            double[] values = new double[3];
+            double r2 = radius * radius;
+
+            for(int i = 0; i < points.size(); i++) {
+                Point p = points.get(i);
+                int found;
+                if(radius > 0) {
+                    found = 0;
+                    for(int c = 0; c < n; c++) {
+                        double dx = candidates[3 * c] - p.x, dy = candidates[3 * c + 1] - p.y, dz = candidates[3 * c + 2] - p.z;
+                        if(dx * dx + dy * dy + dz * dz <= r2) ids[found++] = c;
+                    }
+                } else
+                    found = NeighbourhoodPass.nearest(candidates, n, p.x, p.y, p.z, k, ids, dist2);
+
+                if(!Icp.covariance(candidates, ids, 0, found, cov)) continue;
+
+                LinearAlgebra.jacobiEigen(cov, values, vectors);
+                double sign = (vectors[2][0] < 0) ? -1 : 1;
+                for(int a = 0; a < 3; a++)
+                    normals[3 * (first + i) + a] = sign * vectors[a][0];
+            }
+        });
+
+        return normals;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.NeighbourhoodPass;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * statistical outlier removal, before the voxel filters: the mean distance of each point
+ * from its k nearest neighbours (searched in its voxel neighbourhood) is computed in
+ * parallel into a buffer indexed like the points of the pass (neighbours beyond the voxel
+ * neighbourhood are found by expanding ring search), and the points farther than
+ * mean + stdRatio * std of the distances of their fileType are marked as removed and
+ * unlinked from the voxel grid. Points without neighbours within MAX_SEARCH_VOXELS voxels
+ * are removed too. Nothing is copied.
+ */
+public class OutlierRemoval {
+
+    // largest half side of the expanding ring search, in voxels
+    private static final int MAX_SEARCH_VOXELS = 8;
+
+    private int neighbours;
+    private double stdRatio;
+    private int threads;
+
+    // removed points of each fileType
+    @Getter private int[] removed;
+
+    /**
+     * @param neighbours k nearest neighbours of the mean distance
+     * @param stdRatio multiple of the standard deviation beyond the mean distance
+     * @param threads
+     */
+    public OutlierRemoval(int neighbours, double stdRatio, int threads){
+        this.neighbours = neighbours;
+        this.stdRatio = stdRatio;
+        this.threads = threads;
+        this.removed = new int[FileType.values().length];
+    }
+
+    public void run(PcFilter pcf){
+        for(FileType ft : FileType.values()) {
+            System.out.println("\n" + ft + " statistical outlier removal: " + neighbours + " neighbours, "
+                    + stdRatio + " std");
+            long start = System.currentTimeMillis();
+
+            NeighbourhoodPass pass = new NeighbourhoodPass(pcf.getVGrid(), ft);
+            List<Point> points = pass.getPoints();
+            double[] distances = meanDistances(pass, pcf.getVoxelSide());
+
+            // distribution of the mean distances of the points with neighbours
+            double sum = 0, sum2 = 0;
+            int n = 0;
+            for(double d : distances)
+                if(!Double.isNaN(d)) { sum += d; n++; }
+            double mean = (n > 0) ? sum / n : 0;
+            for(double d : distances)
+                if(!Double.isNaN(d)) sum2 += (d - mean) * (d - mean);
+            double std = (n > 0) ? Math.sqrt(sum2 / n) : 0;
+            double limit = mean + stdRatio * std;
+
+            for(int i = 0; i < points.size(); i++)
+                if(Double.isNaN(distances[i]) || distances[i] > limit) {
+                    points.get(i).setRemoved(true);
+                    removed[ft.ordinal()]++;
+                }
+
+            System.out.println("..mean distance " + mean + ", std " + std + ", limit " + limit);
+            Stats.printElapsedTime(start, "..marked " + removed[ft.ordinal()] + " of " + points.size() + " points");
+        }
+
+        int unlinked = pcf.removeMarkedPoints();
+        System.out.println("..removed points " + unlinked);
+    }
+
+    /**
+     * @return mean distance of each point of the pass from its nearest neighbours, NaN without neighbours
+     */
+    double[] meanDistances(NeighbourhoodPass pass, double margin){
+        double[] distances = new double[pass.getPoints().size()];
+        Arrays.fill(distances, Double.NaN);
+
+        pass.run(margin, threads, (first, points, candidates, n) -> {
+            // the nearest candidate is the point itself
+            int k = neighbours + 1;
+            int[] ids = new int[k];
+            double[] dist2 = new double[k];
+            Point[] far = new Point[k];
+
+            for(int i = 0; i < points.size(); i++) {
+                Point p = points.get(i);
+                int found = NeighbourhoodPass.nearest(candidates, n, p.x, p.y, p.z, k, ids, dist2);
+
+                // closer points may lie beyond the margin
+                if(found < k || dist2[k - 1] > margin * margin)
+                    found = pass.getGrid().nearest(p, k, pass.getFilter(), 2 * margin,
+                            MAX_SEARCH_VOXELS * margin, far, dist2);
+                if(found < 2) continue;
+
+                double sum = 0;
+                for(int j = 1; j < found; j++) sum += Math.sqrt(dist2[j]);
+                distances[first + i] = sum / (found - 1);
+            }
+        });
+
+        return distances;
+    }
+}
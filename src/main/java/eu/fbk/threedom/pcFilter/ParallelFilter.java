@@ -0,0 +1,249 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.LlNode;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+/**
+ * voxel density, intersection, filter and score check evaluated on voxel-aligned tiles
+ * (columns of tileVoxels x tileVoxels voxels) by a work-stealing pool.
+ * Tiles holding more than maxTilePoints points are halved until they fit, so dense urban
+ * blocks do not serialize the run. Per tile counts and sets are merged with integer sums
+ * and sorted sets, so the results are the same for any number of threads
+ */
+public class ParallelFilter {
+
+    public static final int DEFAULT_MAX_TILE_POINTS = 1 << 18;
+
+    private VoxelGrid vGrid;
+    private int tileVoxels, maxTilePoints;
+    private ForkJoinPool pool;
+
+    // summed area table of the points in each voxel column
+    private long[] columnPoints;
+
+    // counts of the leaf tiles
+    private Queue<VoxelCounts> leaves;
+
+    @Getter private float[][] densityMeans;
+    @Getter private Set<Integer> intersection, filtered, scoredFiltered;
+    @Getter private int voxelsWithPoints;
+
+    // timer
+    private long start;
+
+    public ParallelFilter(VoxelGrid vGrid, int tileVoxels, int threads){
+        this(vGrid, tileVoxels, threads, DEFAULT_MAX_TILE_POINTS);
+    }
+
+    public ParallelFilter(VoxelGrid vGrid, int tileVoxels, int threads, int maxTilePoints){
+        this.vGrid = vGrid;
+        this.tileVoxels = tileVoxels;
+        this.maxTilePoints = maxTilePoints;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public void run(){
+        System.out.println("\nparallel tiles: " + tileVoxels + "x" + tileVoxels + " voxels, "
+                + pool.getParallelism() + " threads");
+        start = System.currentTimeMillis();
+
+        buildColumnPoints();
+
+        //////////////////////////////
+        // voxel counts of each leaf tile
+        leaves = new ConcurrentLinkedQueue<>();
+        List<CountTask> tiles = new ArrayList<>();
+        for(int y = 0; y < vGrid.getHeight(); y += tileVoxels)
+            for(int x = 0; x < vGrid.getWidth(); x += tileVoxels)
+                tiles.add(new CountTask(x, y,
+                        Math.min(x + tileVoxels, vGrid.getWidth()), Math.min(y + tileVoxels, vGrid.getHeight())));
+
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tiles)));
+        System.out.println("..tiles " + tiles.size() + ", leaf tiles after splitting " + leaves.size());
+
+        //////////////////////////////
+        // global density means, sums do not depend on the merge order
+        long[] sum = new long[VoxelCounts.SLOTS];
+        int[] n = new int[VoxelCounts.SLOTS];
+        voxelsWithPoints = 0;
+        for(VoxelCounts vc : leaves) {
+            for(int[] c : vc.getCounts().values())
+                for(int slot = 0; slot < VoxelCounts.SLOTS; slot++)
+                    if(c[slot] > 0) { sum[slot] += c[slot]; n[slot]++; }
+            voxelsWithPoints += vc.size();
+        }
+
+        densityMeans = new float[FileType.values().length][PointClassification.values().length];
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values()) {
+                int slot = Voxel.slot(ft, pc);
+                densityMeans[ft.ordinal()][pc.ordinal()] = (n[slot] > 0) ? (float)sum[slot] / n[slot] : 0;
+            }
+
+        //////////////////////////////
+        // per tile sets, merged into sorted sets
+        List<TileSets> results = pool.submit(() ->
+                leaves.parallelStream().map(this::filterTile).collect(Collectors.toList())
+        ).join();
+
+        intersection = new TreeSet<>();
+        filtered = new TreeSet<>();
+        scoredFiltered = new TreeSet<>();
+        for(TileSets r : results) {
+            intersection.addAll(r.intersection);
+            filtered.addAll(r.filtered);
+            scoredFiltered.addAll(r.scoredFiltered);
+        }
+
+        System.out.println("..voxels with at least one point " + voxelsWithPoints);
+        System.out.println("..intersection voxel count -> " + intersection.size() + " voxels");
+        System.out.println("..filtered intersection voxel count -> " + filtered.size() + " voxels");
+        System.out.println("..scored filtered intersection voxel count -> " + scoredFiltered.size() + " voxels");
+        Stats.printElapsedTime(start, "processed");
+
+        pool.shutdown();
+    }
+
+    private TileSets filterTile(VoxelCounts vc){
+        Set<Integer> i = vc.getIntersection();
+        Set<Integer> f = vc.getFiltered(i, densityMeans);
+        Set<Integer> s = vc.getScoredFiltered(f, densityMeans);
+
+        return new TileSets(i, f, s);
+    }
+
+    // voxel sets of a leaf tile
+    private static class TileSets {
+        final Set<Integer> intersection, filtered, scoredFiltered;
+
+        TileSets(Set<Integer> intersection, Set<Integer> filtered, Set<Integer> scoredFiltered){
+            this.intersection = intersection;
+            this.filtered = filtered;
+            this.scoredFiltered = scoredFiltered;
+        }
+    }
+
+    private void buildColumnPoints(){
+        int w = vGrid.getWidth(), h = vGrid.getHeight();
+        long[] col = new long[w * h];
+
+        for(int id : vGrid.getVoxelWithPoints()) {
+            Voxel vox = vGrid.getVoxel(id);
+            if(vox == null) continue;
+            col[id % (w * h)] += vox.getCount(FileType.PHOTOGRAMMETRIC) + vox.getCount(FileType.LIDAR);
+        }
+
+        // (w + 1) x (h + 1) table, row and column 0 are zeros
+        columnPoints = new long[(w + 1) * (h + 1)];
+        for(int y = 0; y < h; y++)
+            for(int x = 0; x < w; x++)
+                columnPoints[(x + 1) + (y + 1) * (w + 1)] = col[x + y * w]
+                        + columnPoints[x + (y + 1) * (w + 1)]
+                        + columnPoints[(x + 1) + y * (w + 1)]
+                        - columnPoints[x + y * (w + 1)];
+    }
+
+    private long regionPoints(int x0, int y0, int x1, int y1){
+        int w1 = vGrid.getWidth() + 1;
+        return columnPoints[x1 + y1 * w1] - columnPoints[x0 + y1 * w1]
+                - columnPoints[x1 + y0 * w1] + columnPoints[x0 + y0 * w1];
+    }
+
+    /**
+     * counts of the voxels in [x0, x1) x [y0, y1) x [0, depth), halved while too large
+     */
+    private class CountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int x0, y0, x1, y1;
+
+        CountTask(int x0, int y0, int x1, int y1){
+            this.x0 = x0; this.y0 = y0; this.x1 = x1; this.y1 = y1;
+        }
+
+        protected void compute(){
+            long points = regionPoints(x0, y0, x1, y1);
+            if(points == 0) return;
+
+            if(points > maxTilePoints && (x1 - x0 > 1 || y1 - y0 > 1)) {
+                // split the longest side
+                if(x1 - x0 >= y1 - y0) {
+                    int xm = (x0 + x1) / 2;
+                    invokeAll(new CountTask(x0, y0, xm, y1), new CountTask(xm, y0, x1, y1));
+                } else {
+                    int ym = (y0 + y1) / 2;
+                    invokeAll(new CountTask(x0, y0, x1, ym), new CountTask(x0, ym, x1, y1));
+                }
+                return;
+            }
+
+            VoxelCounts vc = new VoxelCounts();
+            for(int z = 0; z < vGrid.getDepth(); z++)
+                for(int y = y0; y < y1; y++)
+                    for(int x = x0; x < x1; x++) {
+                        int id = vGrid.getVoxelId(x, y, z);
+                        if(id == -1) continue;
+
+                        Voxel vox = vGrid.getVoxel(id);
+                        if(vox == null) continue;
+
+                        int[] c = new int[2 * VoxelCounts.SLOTS];
+                        System.arraycopy(vox.getCounts(), 0, c, 0, VoxelCounts.SLOTS);
+
+                        // points passing the score threshold
+                        LlNode n = vox.getHead();
+                        while(n != null) {
+                            Point p = (Point)n.value();
+                            if(p.getScore() <= p.getThreshold())
+                                c[VoxelCounts.SLOTS + Voxel.slot(p.getType(), p.getClassification())]++;
+
+                            // exit condition
+                            if(!n.hasNext() || n == vox.getTail()) break;
+                            n = n.next();
+                        }
+
+                        vc.add(id, c);
+                    }
+
+            leaves.add(vc);
+        }
+    }
+}
@@ -38,34 +38,51 @@ import lombok.Setter;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import javax.vecmath.Matrix4d;
+import java.io.*;
 import java.util.*;
 
 public class PcFilter {
 
-    private float voxelSide;
-    @Setter @Getter private static VoxelGrid vGrid;
+    @Getter private float voxelSide;
+    @Setter @Getter private VoxelGrid vGrid;
 
-    private BBox bbox;
+    @Getter private BBox bbox;
     @Getter private LinkedList points;
 
     @Setter @Getter private String[][] header, properties;
     @Setter @Getter private HashMap<String, Double> propsStats;
+    // [fileType][class] histograms of the point scores
+    @Getter private ScoreHistogram[][] scoreHistograms;
+    private static final int SCORE_HISTOGRAM_BINS = 256;
 
-    private static Point point;
-    @Setter @Getter private static Point newBboxMin;
-    @Setter @Getter private static Point coordShift;
+    private Point point;
+    @Setter @Getter private Point newBboxMin;
+    @Setter @Getter private Point coordShift;
 
-    @Setter @Getter private static Point min;
+    @Setter @Getter private Point min;
+
+    // classTypes formulas and thresholds
+    @Setter @Getter private JSONObject config;
+    @Setter @Getter private boolean verbose;
+    // one representative point per voxel and fileType in the voxel outputs, null for all the points
+    @Setter @Getter private VoxelDownsampler downsampler;
 
     // timer
-    private static long start;
+    private long start;
 
 
-    public PcFilter(File file1Data, File file2Data, float voxelSide) {
+    /**
+     * empty filter, all the state of a run lives in the instance so that several
+     * filters can work at the same time in one JVM
+     * @param voxelSide
+     * @param config classTypes formulas and thresholds
+     * @param verbose print the normalized values of each point
+     */
+    PcFilter(float voxelSide, JSONObject config, boolean verbose) {
         this.voxelSide = voxelSide;
+        this.config = config;
+        this.verbose = verbose;
 
         bbox = new BBox();
         points = new LinkedList();
@@ -74,39 +91,65 @@ public class PcFilter {
         this.properties = new String[2][];
         this.propsStats = new HashMap<>();
 
-        //this.dataHm = new HashMap<>();
-
         point = new Point(0, 0, 0);
         newBboxMin = new Point(0, 0, 0);
-        File[] data = {file1Data, file2Data};
+    }
+
+    /**
+     * filter holding only the bounding box, the shift vector and the properties statistics:
+     * the points are fed by the caller through parseHeader and parsePoint (see TiledFilter)
+     * @param data photogrammetric and lidar files
+     * @param voxelSide
+     * @param config
+     */
+    public PcFilter(File[] data, float voxelSide, JSONObject config) {
+        this(voxelSide, config, false);
 
         //min = (voxelSide != 0) ? findMin(data) : new Point(0, 0, 0);
         min = findMin(data);
 
-
-        //System.out.println("&&&&&&&&&&&& BboxMin " + bbox.getMin());
-        //System.out.println("&&&&&&&&&&&& BboxMax " + bbox.getMax());
-
         //////////////////////////////////////////////////////////
         // translate the boundingbox to the new position
-        if(voxelSide != 0) {
-            // find the components of the shift vector
-            double vectorShiftX = (int) (min.x / voxelSide) * voxelSide;
-            double vectorShiftY = (int) (min.y / voxelSide) * voxelSide;
-            double vectorShiftZ = (int) (min.z / voxelSide) * voxelSide;
-            coordShift = new Point(vectorShiftX, vectorShiftY, vectorShiftZ);
-
-            //System.out.println("&&&&&&&&&&&& newBboxMin " + bbox.getMin());
-            //System.out.println("&&&&&&&&&&&& newBboxMax " + bbox.getMax());
-        }else{
-            coordShift = min;
-        }
+        coordShift = computeCoordShift(min, voxelSide);
 
         // apply the shift vector to the bbox
         bbox.setMin(bbox.getMin().subPoint(coordShift));
         bbox.setMax(bbox.getMax().subPoint(coordShift));
         //////////////////////////////////////////////////////////
+    }
+
+    /**
+     * filter of a tile worker: bounding box and shift vector come from the coordinator
+     * @param bbox shifted bounding box
+     * @param coordShift
+     * @param voxelSide
+     * @param config
+     */
+    public PcFilter(BBox bbox, Point coordShift, float voxelSide, JSONObject config) {
+        this(voxelSide, config, false);
+
+        this.bbox = bbox;
+        this.coordShift = coordShift;
+    }
+
+    public PcFilter(File file1Data, File file2Data, float voxelSide, JSONObject config) {
+        this(file1Data, file2Data, voxelSide, config, false, false);
+    }
 
+    /**
+     * @param config classTypes formulas and thresholds
+     * @param streaming parse, score and bin the points with the staged StreamingPipeline
+     * @param verbose print the normalized values of each point
+     */
+    public PcFilter(File file1Data, File file2Data, float voxelSide, JSONObject config, boolean streaming, boolean verbose) {
+        this(new File[]{file1Data, file2Data}, voxelSide, config);
+        this.verbose = verbose;
+        File[] data = {file1Data, file2Data};
+
+        if(streaming) {
+            runStreaming(data);
+            return;
+        }
 
         //////////////////////////////
         // parse PHOTOGRAMMETRIC file
@@ -126,6 +169,9 @@ public class PcFilter {
             System.out.println(".." + entry.getKey() + " " + entry.getValue());
         });
 
+        // score histograms, before the voxel grid relinks the list
+        buildScoreHistograms();
+
         // instantiate the voxel grid
         if(voxelSide != 0){
             start = System.currentTimeMillis();
@@ -136,6 +182,47 @@ public class PcFilter {
         }
     }
 
+    private void runStreaming(File[] data) {
+        StreamingPipeline pipeline = new StreamingPipeline(this);
+
+        if(voxelSide != 0) {
+            vGrid = new VoxelGrid(bbox, this.voxelSide);
+            vGrid.initVoxels(points);
+        }
+
+        try {
+            pipeline.run(data, points, (voxelSide != 0) ? vGrid : null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        System.out.println("\nruntime statistics");
+        propsStats.entrySet().forEach(entry->{
+            System.out.println(".." + entry.getKey() + " " + entry.getValue());
+        });
+
+        buildScoreHistograms(pipeline.getStoredPoints());
+    }
+
+    /**
+     * shift vector moving the bounding box min next to the origin while
+     * keeping the voxel lattice aligned to multiples of voxelSide
+     * @param min bounding box min
+     * @param voxelSide
+     * @return
+     */
+    public static Point computeCoordShift(Point min, float voxelSide){
+        if(voxelSide != 0) {
+            // find the components of the shift vector
+            double vectorShiftX = (int) (min.x / voxelSide) * voxelSide;
+            double vectorShiftY = (int) (min.y / voxelSide) * voxelSide;
+            double vectorShiftZ = (int) (min.z / voxelSide) * voxelSide;
+            return new Point(vectorShiftX, vectorShiftY, vectorShiftZ);
+        }
+
+        return min;
+    }
+
     public Point findMin(File[] data){
         System.out.println("\nfinding boundingBox..");
 
@@ -182,6 +269,20 @@ public class PcFilter {
         return header[type.ordinal()];
     }
 
+    /**
+     * header line of the output files: input header followed by the score column
+     * @param type
+     * @return
+     */
+    public String getOutputHeader(FileType type){
+        String headerStr = Arrays.toString(getHeader(type)).replaceAll(",", "");
+        //headerStr = headerStr.substring(1, headerStr.length()-1); // remove square brackets []
+        headerStr = headerStr.replace("[", "// ");
+        headerStr = headerStr.replace("]", "");
+
+        return headerStr + " score";
+    }
+
     public int getPropertyIndex(FileType fileType, String prop){
         String[] props = this.properties[fileType.ordinal()];
 
@@ -207,120 +308,249 @@ public class PcFilter {
             ///////////////////////////////////////////////
             // parse header if present (first row)
             ///////////////////////////////////////////////////////
-            if (line.startsWith("// "))
-                line = line.replace("// ", "");
-            else if (line.startsWith("//"))
-                line = line.replace("//", "");
-            else line = "";
-
-            String[] token = line.split(" ");
-            // arrays of properties names
-            String[] props;
-            int shift = 0;
-            if (fileType == FileType.PHOTOGRAMMETRIC) { // photogrammetric file
-                props = Arrays.copyOfRange(token, 7, token.length); // cut "x y z r g b class"
-                shift = 7;
-            }else{
-                props = Arrays.copyOfRange(token, 4, token.length); // cut "x y z class"
-                shift = 4;
+            String[] props = parseHeader(line, fileType);
+
+            ///////////////////////////////////////////////
+            // parse all data
+            ///////////////////////////////////////////////////////
+            //int count = 0;
+            while (sc.hasNextLine()) {
+                line = sc.nextLine();
+                if (line.startsWith("//") || line.isEmpty()) continue;
+
+                points.addAtBeginning(parsePoint(line, fileType, props));
             }
 
-            fileType.setProps(props);
+            Stats.printElapsedTime(start, "file read");
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
 
-            this.header[fileType.ordinal()] = token;
-            this.properties[fileType.ordinal()] = props;
+    /**
+     * read the properties names from the header line and initialize their statistics
+     * @param line first line of the file
+     * @param fileType
+     * @return the properties names
+     */
+    public String[] parseHeader(String line, FileType fileType){
+        if (line.startsWith("// "))
+            line = line.replace("// ", "");
+        else if (line.startsWith("//"))
+            line = line.replace("//", "");
+        else line = "";
+
+        String[] token = line.split(" ");
+        // arrays of properties names
+        String[] props;
+        if (fileType == FileType.PHOTOGRAMMETRIC) { // photogrammetric file
+            props = Arrays.copyOfRange(token, 7, token.length); // cut "x y z r g b class"
+        }else{
+            props = Arrays.copyOfRange(token, 4, token.length); // cut "x y z class"
+        }
 
-            //if(Main.DEBUG) {
-                System.out.println("..header " + Arrays.toString(header[fileType.ordinal()]));
-                System.out.println("..properties " + Arrays.toString(properties[fileType.ordinal()]));
-            //}
+        this.header[fileType.ordinal()] = token;
+        this.properties[fileType.ordinal()] = props;
 
-            for (String prop : props) {
-                if(propsStats.containsKey(prop + "_N")){
-                    System.out.println("Error: two columns inside input files share the same name");
-                    System.exit(0);
-                }
+        //if(Main.DEBUG) {
+            System.out.println("..header " + Arrays.toString(header[fileType.ordinal()]));
+            System.out.println("..properties " + Arrays.toString(properties[fileType.ordinal()]));
+        //}
 
-                // initialize statistic hashmap
-                propsStats.put(prop + "_N", 0d);
-                propsStats.put(prop + "_sum", 0d);
-                propsStats.put(prop + "_mean", 0d);
-                propsStats.put(prop + "_std", 0d);
+        for (String prop : props) {
+            if(propsStats.containsKey(prop + "_N")){
+                System.out.println("Error: two columns inside input files share the same name");
+                System.exit(0);
             }
 
+            // initialize statistic hashmap
+            propsStats.put(prop + "_N", 0d);
+            propsStats.put(prop + "_sum", 0d);
+            propsStats.put(prop + "_mean", 0d);
+            propsStats.put(prop + "_std", 0d);
+        }
 
-            ///////////////////////////////////////////////
-            // parse all data
-            ///////////////////////////////////////////////////////
-            //int count = 0;
-            while (sc.hasNextLine()) {
-                line = sc.nextLine();
-                if (line.startsWith("//") || line.isEmpty()) continue;
+        return props;
+    }
+
+    /**
+     * parse a data line into a shifted point and update the properties sum and mean
+     * @param line
+     * @param fileType
+     * @param props properties names returned by parseHeader
+     * @return
+     */
+    public Point parsePoint(String line, FileType fileType, String[] props){
+        return parsePoint(line, fileType, props, true);
+    }
+
+    /**
+     * @param accumulate false to parse a point already counted in the statistics
+     */
+    public Point parsePoint(String line, FileType fileType, String[] props, boolean accumulate){
+        String[] token = line.split(" ");
+        int shift = (fileType == FileType.PHOTOGRAMMETRIC) ? 7 : 4;
+
+        Point p = null;
+
+        // X Y Z R G B Class
+        if (fileType == FileType.PHOTOGRAMMETRIC) {
+            p = new Point(
+                    fileType, props.length, Double.parseDouble(token[0]),
+                    Double.parseDouble(token[1]) ,
+                    Double.parseDouble(token[2]),
+                    Integer.parseInt(token[3]),
+                    Integer.parseInt(token[4]),
+                    Integer.parseInt(token[5]));
+            //System.out.println("min " + min);
+            //System.out.println("newBboxMin " + newBboxMin);
+
+            p.move(p.subPoint(coordShift));
+
+            p.setClassification(PointClassification.parse(Integer.parseInt(token[6].substring(0, 1))));
+
+        // X Y Z Class
+        } else if (fileType == FileType.LIDAR) {
+            p = new Point(
+                    fileType, props.length,
+                    Double.parseDouble(token[0]),
+                    Double.parseDouble(token[1]) ,
+                    Double.parseDouble(token[2]) );
+
+            p.move(p.subPoint(coordShift));
+
+            p.setClassification(PointClassification.parse(Integer.parseInt(token[3].substring(0, 1))));
+        }
+
+        /////////////////////////
+        // for each property
+        for (int t = 0; t < props.length; t++) {
+            // add the new value
+            // skip if value is "nan"
+            if(token[shift + t].equals("nan"))
+                continue;
+
+            setProperty(p, t, props[t], Double.parseDouble(token[shift + t]), accumulate);
+        }
 
-                token = line.split(" ");
+        return p;
+    }
 
-                Point p = null;
+    /**
+     * set a property value of p and update its sum and mean
+     * @param p
+     * @param t property index
+     * @param prop property name
+     * @param val
+     * @param accumulate false to skip the statistics update
+     */
+    private void setProperty(Point p, int t, String prop, double val, boolean accumulate){
+        // TODO: range conversion (now manually set here)
+        if(prop.equalsIgnoreCase("ScanAngleRank")) {
+            val = Math.abs(val);
+        }
 
-                // X Y Z R G B Class
-                if (fileType == FileType.PHOTOGRAMMETRIC) {
-                    p = new Point(
-                            fileType, Double.parseDouble(token[0]),
-                            Double.parseDouble(token[1]) ,
-                            Double.parseDouble(token[2]),
-                            Integer.parseInt(token[3]),
-                            Integer.parseInt(token[4]),
-                            Integer.parseInt(token[5]));
-                    //System.out.println("min " + min);
-                    //System.out.println("newBboxMin " + newBboxMin);
+        // add the value inside the point properties array
+        p.setProp(t, val);
+        if(!accumulate) return;
 
-                    p.move(p.subPoint(coordShift));
+        // update sum and arithmetic mean
+        propsStats.put(prop + "_N", propsStats.get(prop + "_N") + 1);
+        propsStats.put(prop + "_sum", propsStats.get(prop + "_sum") + val);
+        propsStats.put(prop + "_mean", propsStats.get(prop + "_sum") / propsStats.get(prop + "_N"));
+    }
 
-                    p.setClassification(PointClassification.parse(Integer.parseInt(token[6].substring(0, 1))));
+    /**
+     * in-memory counterpart of the file based constructor, see PcFilterBuilder
+     * @param propNames properties names of each fileType
+     * @param sources points of each fileType
+     * @return the points of each fileType in input order
+     */
+    List<List<Point>> ingest(String[][] propNames, PcFilterBuilder.PointSource[] sources){
+        List<List<Point>> input = new ArrayList<>();
+
+        input.add(ingest(FileType.PHOTOGRAMMETRIC, propNames[FileType.PHOTOGRAMMETRIC.ordinal()],
+                sources[FileType.PHOTOGRAMMETRIC.ordinal()]));
+        // head -> n -> .. -> n -> null
+        updateStatistics(FileType.PHOTOGRAMMETRIC, null);
+        LlNode endNode = points.head();
 
-                // X Y Z Class
-                } else if (fileType == FileType.LIDAR) {
-                    p = new Point(
-                            fileType,
-                            Double.parseDouble(token[0]),
-                            Double.parseDouble(token[1]) ,
-                            Double.parseDouble(token[2]) );
+        input.add(ingest(FileType.LIDAR, propNames[FileType.LIDAR.ordinal()],
+                sources[FileType.LIDAR.ordinal()]));
+        // head -> n -> .. -> n -> endNode -> n .. -> n -> null
+        updateStatistics(FileType.LIDAR, endNode);
 
-                    p.move(p.subPoint(coordShift));
+        finishIngestion();
 
-                    p.setClassification(PointClassification.parse(Integer.parseInt(token[3].substring(0, 1))));
-                }
+        return input;
+    }
 
-                /////////////////////////
-                // for each property
-                for (int t = 0; t < props.length; t++) {
-                    // add the new value
-                    // skip if value is "nan"
-                    if(token[shift + t].equals("nan"))
-                        continue;
-
-                    String prop = props[t];
-                    double val = Double.parseDouble(token[shift + t]);
-
-                    // TODO: range conversion (now manually set here)
-                    if(prop.equalsIgnoreCase("ScanAngleRank")) {
-                        val = Math.abs(val);
-                    }
-
-                    // add the value inside the point properties array
-                    p.setProp(t, val);
-
-                    // update sum and arithmetic mean
-                    propsStats.put(prop + "_N", propsStats.get(prop + "_N") + 1);
-                    propsStats.put(prop + "_sum", propsStats.get(prop + "_sum") + val);
-                    propsStats.put(prop + "_mean", propsStats.get(prop + "_sum") / propsStats.get(prop + "_N"));
-                }
+    /**
+     * add in-memory points of fileType, as parseData does for a file, see PcFilterBuilder.
+     * Coordinates are shifted by finishIngestion once both fileTypes are in
+     * @param fileType
+     * @param propNames properties names
+     * @param source
+     * @return the points in input order
+     */
+    private List<Point> ingest(FileType fileType, String[] propNames, PcFilterBuilder.PointSource source){
+        System.out.println("\ningest " + fileType + " points");
+        start = System.currentTimeMillis();
+
+        String columns = (fileType == FileType.PHOTOGRAMMETRIC) ? "// X Y Z R G B Class" : "// X Y Z Class";
+        String[] props = parseHeader(columns + (propNames.length > 0 ? " " + String.join(" ", propNames) : ""), fileType);
+
+        List<Point> input = new ArrayList<>();
+        source.read((xyz, rgb, classes, values, n) -> {
+            for(int i = 0; i < n; i++) {
+                Point p = (rgb != null) ?
+                        new Point(fileType, props.length, xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2],
+                                rgb[3 * i], rgb[3 * i + 1], rgb[3 * i + 2]) :
+                        new Point(fileType, props.length, xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]);
+                p.setClassification(PointClassification.parse(classes[i]));
+
+                // the bounding box of findMin, from float coordinates
+                point.move((float)p.x, (float)p.y, (float)p.z);
+                bbox.extendTo(point);
+
+                for (int t = 0; t < props.length; t++)
+                    // NaN values are missing values
+                    if(!Double.isNaN(values[i * props.length + t]))
+                        setProperty(p, t, props[t], values[i * props.length + t], true);
 
                 points.addAtBeginning(p);
+                input.add(p);
             }
+        });
 
-            Stats.printElapsedTime(start, "file read");
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        Stats.printElapsedTime(start, input.size() + " points");
+        return input;
+    }
+
+    /**
+     * shift the ingested points and build score histograms and voxel grid
+     */
+    private void finishIngestion(){
+        min = bbox.getMin();
+        coordShift = computeCoordShift(min, voxelSide);
+
+        bbox.setMin(bbox.getMin().subPoint(coordShift));
+        bbox.setMax(bbox.getMax().subPoint(coordShift));
+
+        for(Point p : getPoints())
+            p.move(p.subPoint(coordShift));
+
+        System.out.println("\nruntime statistics");
+        propsStats.entrySet().forEach(entry->{
+            System.out.println(".." + entry.getKey() + " " + entry.getValue());
+        });
+
+        buildScoreHistograms();
+
+        if(voxelSide != 0){
+            start = System.currentTimeMillis();
+            vGrid = new VoxelGrid(points, bbox, this.voxelSide);
+            Stats.printElapsedTime(start, "..voxel grid created");
         }
     }
 
@@ -334,25 +564,7 @@ public class PcFilter {
         ///////////////////////////////////////////////////////
         // cycle on all points
         while(n != null) {
-            Point p = (Point)n.value();
-
-            // for each property
-//            for(String prop : props) {
-            for(int i=0; i<props.length; i++) {
-                String prop = props[i];
-//                if(p.getProp(prop) == -Float.MAX_VALUE)
-
-                // check "nan" values
-                if(p.getProp(i) == -Float.MAX_VALUE)
-                    continue;
-
-                double val = p.getProp(i);
-                double mean = propsStats.get(prop+"_mean");
-                double std =  Math.pow((val - mean), 2);
-                propsStats.put(prop+"_std", propsStats.get(prop+"_std") + std);
-
-                continue;
-            }
+            accumulateStd((Point)n.value(), props);
 
             // exit condition
             if(!n.hasNext() || n.next() == exitNode) break;
@@ -360,8 +572,7 @@ public class PcFilter {
         }
 
         // evaluate the standard deviation for each property
-        for(String prop : props)
-            propsStats.put(prop+"_std", Math.sqrt(propsStats.get(prop+"_std") / propsStats.get(prop+"_N")));
+        finishStd(props);
 
 
         ///////////////////////////////////////////////
@@ -369,49 +580,351 @@ public class PcFilter {
         ///////////////////////////////////////////////////////
 
         // load the config file
-        JSONObject config  = eu.fbk.threedom.pcFilter.Main.config;
-        JSONArray fileTypes = config.getJSONArray("fileTypes");
-        JSONObject fileTypeObj = (JSONObject) fileTypes.get(fileType.ordinal());
-        JSONArray classTypes = fileTypeObj.getJSONArray("classTypes");
+        JSONArray classTypes = classTypes(fileType);
 
         // cycle on points
         n = points.head();
         while(n != null) {
-            Point p = (Point) n.value();
-            // for each property
-            for(int i=0; i<props.length; i++) {
-                String prop = props[i];
+            normalizeAndScore((Point) n.value(), props, classTypes);
+
+            // exit condition
+            if(!n.hasNext() || n.next() == exitNode) break;
+            n = n.next();
+        }
+    }
+
+    /**
+     * add the squared distance from the mean of each property of p
+     * @param p
+     * @param props
+     */
+    public void accumulateStd(Point p, String[] props){
+        // for each property
+//            for(String prop : props) {
+        for(int i=0; i<props.length; i++) {
+            String prop = props[i];
+//                if(p.getProp(prop) == -Float.MAX_VALUE)
+
+            // check "nan" values
+            if(p.getProp(i) == -Float.MAX_VALUE)
+                continue;
+
+            double val = p.getProp(i);
+            double mean = propsStats.get(prop+"_mean");
+            double std =  Math.pow((val - mean), 2);
+            propsStats.put(prop+"_std", propsStats.get(prop+"_std") + std);
+        }
+    }
+
+    public void finishStd(String[] props){
+        for(String prop : props)
+            propsStats.put(prop+"_std", Math.sqrt(propsStats.get(prop+"_std") / propsStats.get(prop+"_N")));
+    }
+
+    /**
+     * config class types of fileType
+     * @param fileType
+     * @return
+     */
+    public JSONArray classTypes(FileType fileType){
+        JSONArray fileTypes = config.getJSONArray("fileTypes");
+        JSONObject fileTypeObj = (JSONObject) fileTypes.get(fileType.ordinal());
+
+        return fileTypeObj.getJSONArray("classTypes");
+    }
+
+    /**
+     * normalize the properties of p and evaluate its score and threshold.
+     * Only reads the statistics, safe to call from several threads
+     * @param p
+     * @param props
+     * @param classTypes
+     */
+    public void normalizeAndScore(Point p, String[] props, JSONArray classTypes){
+        // for each property
+        for(int i=0; i<props.length; i++) {
+            String prop = props[i];
+
+            double val = p.getProp(i);
+
+            // normalize values between 0 and 1
+            double x = (2 * (val - propsStats.get(prop+"_mean"))) / propsStats.get(prop+"_std");
+            float norm_val = 1 / (1 + (float)Math.exp(-x));
+            p.setNormProp(i, norm_val);
+            //System.out.println("prop: " + prop + " -> " + val + "(norm. " + norm_val + ")");
+
+            // = 1 / (1 + exp (-2 / st.dev * (val - media) ))
+
+            if(verbose) {
+                System.out.println("...." + prop + ": " + val + " -> " + norm_val);
+                //System.out.println("......mean " + propsStats.get(prop+"_mean"));
+                //System.out.println("......std " + propsStats.get(prop+"_std"));
+            }
+        }
+
+        JSONObject classTypeObj = (JSONObject) classTypes.get(p.getClassification().ordinal());
+        String formula = classTypeObj.getString("formula");
+        float threshold = classTypeObj.getFloat("threshold");
 
-                double val = p.getProp(i);
+        p.setScore(evaluateScore(p, formula));
+        p.setThreshold(threshold);
+    }
+
+    public void buildScoreHistograms(){
+        buildScoreHistograms(getPoints());
+    }
 
-                // normalize values between 0 and 1
-                double x = (2 * (val - propsStats.get(prop+"_mean"))) / propsStats.get(prop+"_std");
-                float norm_val = 1 / (1 + (float)Math.exp(-x));
-                p.setNormProp(i, norm_val);
-                //System.out.println("prop: " + prop + " -> " + val + "(norm. " + norm_val + ")");
+    /**
+     * drop the points marked as removed from the voxel grid and update the score histograms
+     * @return number of points dropped
+     */
+    public int removeMarkedPoints(){
+        int removed = vGrid.unlinkRemoved();
 
-                // = 1 / (1 + exp (-2 / st.dev * (val - media) ))
+        List<Point> all = new ArrayList<>();
+        for(FileType ft : FileType.values())
+            all.addAll(vGrid.getPoints(ft));
+        buildScoreHistograms(all);
 
-                if(Main.DEBUG) {
-                    System.out.println("...." + prop + ": " + val + " -> " + norm_val);
-                    //System.out.println("......mean " + propsStats.get(prop+"_mean"));
-                    //System.out.println("......std " + propsStats.get(prop+"_std"));
+        return removed;
+    }
+
+    /**
+     * move the photogrammetric points by a rigid transform of the shifted frame (see Icp) and
+     * rebuild the voxel grid on the moved points, so that the voxel intersection, filters and
+     * scores follow the registration. The bounding box and the shift vector are recomputed,
+     * the pyramid and the cached features and densities are dropped with the old grid
+     * @param transform
+     */
+    public void transformPhotogrammetric(Matrix4d transform){
+        start = System.currentTimeMillis();
+        List<Point> all = getPoints();
+
+        // input coordinates bounding box of the moved points
+        Point inputMin = null, inputMax = null;
+        for(Point p : all) {
+            if(p.getType() == FileType.PHOTOGRAMMETRIC)
+                p.move(transform.m00 * p.x + transform.m01 * p.y + transform.m02 * p.z + transform.m03,
+                        transform.m10 * p.x + transform.m11 * p.y + transform.m12 * p.z + transform.m13,
+                        transform.m20 * p.x + transform.m21 * p.y + transform.m22 * p.z + transform.m23);
+
+            double x = p.x + coordShift.x, y = p.y + coordShift.y, z = p.z + coordShift.z;
+            if(inputMin == null) { inputMin = new Point(x, y, z); inputMax = new Point(x, y, z); continue; }
+            inputMin.move(Math.min(inputMin.x, x), Math.min(inputMin.y, y), Math.min(inputMin.z, z));
+            inputMax.move(Math.max(inputMax.x, x), Math.max(inputMax.y, y), Math.max(inputMax.z, z));
+        }
+        if(inputMin == null) return;
+
+        // translate the boundingbox to the new position
+        Point newShift = computeCoordShift(inputMin, voxelSide);
+        Point delta = coordShift.subPoint(newShift);
+
+        points = new LinkedList();
+        for(Point p : all) {
+            p.move(p.x + delta.x, p.y + delta.y, p.z + delta.z);
+            points.addAtEnd(p);
+        }
+
+        min = inputMin;
+        coordShift = newShift;
+        bbox = new BBox(inputMin.subPoint(newShift), inputMax.subPoint(newShift));
+        Stats.printElapsedTime(start, "..photogrammetric points moved, bounding box min is " + inputMin);
+
+        start = System.currentTimeMillis();
+        vGrid = new VoxelGrid(points, bbox, this.voxelSide);
+        Stats.printElapsedTime(start, "..voxel grid created");
+    }
+
+    /**
+     * append computed columns to the properties of fileType, as if they were read from the file:
+     * they are written to the output files and the config formulas can use them. Statistics,
+     * normalized values and scores of the fileType points and the score histograms are updated
+     * @param fileType
+     * @param names new properties names, unique among the properties of both fileTypes
+     * @param pts all the points of fileType
+     * @param values values[i * names.length + j] is property j of pts.get(i), NaN for none
+     */
+    public void addProperties(FileType fileType, String[] names, List<Point> pts, double[] values){
+        for(String prop : names)
+            if(propsStats.containsKey(prop + "_N"))
+                throw new IllegalArgumentException("property " + prop + " already exists");
+
+        System.out.println("\nadd " + fileType + " properties " + Arrays.toString(names));
+        start = System.currentTimeMillis();
+
+        int base = properties[fileType.ordinal()].length;
+        String[] props = Arrays.copyOf(properties[fileType.ordinal()], base + names.length);
+        String[] head = Arrays.copyOf(header[fileType.ordinal()], header[fileType.ordinal()].length + names.length);
+        for(int j = 0; j < names.length; j++) {
+            props[base + j] = names[j];
+            head[head.length - names.length + j] = names[j];
+
+            propsStats.put(names[j] + "_N", 0d);
+            propsStats.put(names[j] + "_sum", 0d);
+            propsStats.put(names[j] + "_mean", 0d);
+            propsStats.put(names[j] + "_std", 0d);
+        }
+        properties[fileType.ordinal()] = props;
+        header[fileType.ordinal()] = head;
+
+        // sum and mean
+        for(int i = 0; i < pts.size(); i++) {
+            Point p = pts.get(i);
+            p.extendProps(props.length);
+            for(int j = 0; j < names.length; j++)
+                if(!Double.isNaN(values[i * names.length + j]))
+                    setProperty(p, base + j, names[j], values[i * names.length + j], true);
+        }
+
+        // standard deviation
+        for(int i = 0; i < pts.size(); i++)
+            for(int j = 0; j < names.length; j++) {
+                double val = values[i * names.length + j];
+                if(Double.isNaN(val)) continue;
+
+                double mean = propsStats.get(names[j] + "_mean");
+                propsStats.put(names[j] + "_std", propsStats.get(names[j] + "_std") + Math.pow(val - mean, 2));
+            }
+        finishStd(names);
+
+        for(String prop : names)
+            System.out.println(".." + prop + " mean " + propsStats.get(prop + "_mean") + " std " + propsStats.get(prop + "_std"));
+
+        // rescore
+        JSONArray classTypes = classTypes(fileType);
+        for(Point p : pts)
+            normalizeAndScore(p, props, classTypes);
+        Stats.printElapsedTime(start, "..rescored " + pts.size() + " points");
+
+        List<Point> all = new ArrayList<>();
+        for(FileType ft : FileType.values())
+            all.addAll((vGrid != null) ? vGrid.getPoints(ft) : getPoints(ft, false));
+        buildScoreHistograms(all);
+    }
+
+    public void buildScoreHistograms(Iterable<Point> pts){
+        System.out.println("\nscore histograms");
+        start = System.currentTimeMillis();
+
+        int nClasses = PointClassification.values().length;
+        double[][] scores = new double[FileType.values().length * nClasses][];
+        int[] n = new int[scores.length];
+        for(int i = 0; i < scores.length; i++) scores[i] = new double[1024];
+
+        for(Point p : pts) {
+            int slot = Voxel.slot(p.getType(), p.getClassification());
+
+            if(n[slot] == scores[slot].length)
+                scores[slot] = Arrays.copyOf(scores[slot], 2 * n[slot]);
+            scores[slot][n[slot]++] = p.getScore();
+        }
+
+        scoreHistograms = new ScoreHistogram[FileType.values().length][nClasses];
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values()) {
+                int slot = Voxel.slot(ft, pc);
+                scoreHistograms[ft.ordinal()][pc.ordinal()] = ScoreHistogram.create(scores[slot], n[slot], SCORE_HISTOGRAM_BINS);
+                if(n[slot] > 0)
+                    System.out.println(".." + ft + " " + pc + " " + scoreHistograms[ft.ordinal()][pc.ordinal()]);
+            }
+
+        Stats.printElapsedTime(start, "processed");
+    }
+
+    /**
+     * write the points to the photogrammetric and lidar files, header included
+     * @param files photogrammetric and lidar output files
+     * @param points
+     * @throws IOException the first error met opening or writing the files
+     */
+    public void writePoints(File[] files, List<Point> points) throws IOException {
+        BlockWriter[] writers = openWriters(files);
+
+        try {
+            for (Point p : points)
+                // SELECT true if you want normalized values
+                writers[p.getType().ordinal()].writeLine(p.toStringOutput(false, coordShift));
+
+            closeWriters(writers);
+        } finally {
+            abortWriters(writers);
+        }
+    }
+
+    /**
+     * write the points of the voxels to the photogrammetric and lidar files, header included
+     * @param files photogrammetric and lidar output files
+     * @param voxels
+     * @param scoreCheck only the points passing their class threshold
+     * @throws IOException the first error met opening or writing the files
+     */
+    public void writeVoxels(File[] files, Set<Integer> voxels, boolean scoreCheck) throws IOException {
+        BlockWriter[] writers = openWriters(files);
+
+        try {
+            if(downsampler != null) {
+                for(FileType ft : FileType.values()) {
+                    int n = 0;
+                    for(Point p : downsampler.representatives(this, ft, voxels, scoreCheck))
+                        if(p != null) {
+                            writers[ft.ordinal()].writeLine(p.toStringOutput(false, coordShift));
+                            n++;
+                        }
+                    System.out.println(".." + ft + " " + downsampler.getMode() + " downsampling: " + n + " points");
                 }
+            } else {
+                for(FileType ft : FileType.values())
+                    for(Integer v : voxels)
+                        for (Point p : getPoints(ft, v, scoreCheck))
+                            // SELECT true if you want normalized values
+                            writers[ft.ordinal()].writeLine(p.toStringOutput(false, coordShift));
             }
 
-            JSONObject classTypeObj = (JSONObject) classTypes.get(p.getClassification().ordinal());
-            String formula = classTypeObj.getString("formula");
-            float threshold = classTypeObj.getFloat("threshold");
+            closeWriters(writers);
+        } finally {
+            abortWriters(writers);
+        }
+    }
 
-            p.setScore(evaluateScore(p, formula));
-            p.setThreshold(threshold);
+    // lines are formatted by the caller and written by the BlockWriter threads
+    private BlockWriter[] openWriters(File[] files) throws IOException {
+        BlockWriter[] writers = new BlockWriter[files.length];
+        try {
+            for(FileType ft : FileType.values())
+                writers[ft.ordinal()] = new BlockWriter(new BufferedWriter(new FileWriter(files[ft.ordinal()], false)));
+        } catch (IOException e) {
+            abortWriters(writers);
+            throw e;
+        }
 
-            // exit condition
-            if(!n.hasNext() || n.next() == exitNode) break;
-            n = n.next();
+        System.out.println("\nWrite files");
+        for(FileType ft : FileType.values()) {
+            String headerStr = getOutputHeader(ft);
+            System.out.println(".." + ft + " header: " + headerStr);
+            writers[ft.ordinal()].writeLine(headerStr);
         }
+
+        return writers;
     }
 
+    // all the writers are closed, the first error is thrown
+    private void closeWriters(BlockWriter[] writers) throws IOException {
+        IOException error = null;
+        for(BlockWriter bw : writers)
+            try {
+                bw.close();
+            } catch (IOException e) {
+                if(error == null) error = e;
+            }
+
+        if(error != null) throw error;
+    }
+
+    // writers not closed yet, after a failure
+    private void abortWriters(BlockWriter[] writers){
+        for(BlockWriter bw : writers)
+            if(bw != null) bw.abort();
+    }
 
     public double evaluateScore(Point p, String formula){
         StringBuilder sb = new StringBuilder();
@@ -475,12 +988,26 @@ public class PcFilter {
     }
 
 
+    /**
+     * all the points, in list order without a voxel grid. The grid relinks the list nodes
+     * into the voxel chains, then the points are collected voxel by voxel.
+     * Points removed by the outlier removal are skipped
+     * @return
+     */
     public List<Point> getPoints(){
         List<Point> list = new ArrayList<>();
 
+        if(vGrid != null) {
+            for(FileType ft : FileType.values())
+                list.addAll(vGrid.getPoints(ft));
+            return list;
+        }
+
         LlNode n = points.head();
         while(n != null) {
-            list.add((Point)n.value());
+            Point p = (Point)n.value();
+            if(!p.isRemoved())
+                list.add(p);
 
             // exit condition
             if(!n.hasNext() ) break;
@@ -492,7 +1019,8 @@ public class PcFilter {
 
 
     public List<Point> getPoints(FileType fileType, boolean voxelGrid){
-        if(voxelGrid)
+        // once the grid exists the list nodes are relinked into the voxel chains
+        if(voxelGrid || vGrid != null)
             return vGrid.getPoints(fileType);
 
         // else
@@ -501,7 +1029,7 @@ public class PcFilter {
         LlNode n = points.head();
         while(n != null) {
             Point p = (Point)n.value();
-            if(p.getType() == fileType)
+            if(p.getType() == fileType && !p.isRemoved())
                 list.add(p);
 
             // exit condition
@@ -0,0 +1,200 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * embeddable entry point of the filter: the photogrammetric and lidar points are passed
+ * as arrays, or pushed in blocks by a PointSource, instead of being read from files.
+ *
+ * <pre>
+ * FilterResult result = new PcFilterBuilder()
+ *         .voxelSide(2)
+ *         .config(new File("config.json"))
+ *         .photo(xyz, rgb, classes, new String[]{"Roughness"}, props)
+ *         .lidar(xyz2, classes2, new String[]{"Intensity"}, props2)
+ *         .build();
+ * </pre>
+ *
+ * Coordinates are xyz triples, properties are row-major (one row of propNames.length
+ * values per point) and NaN marks a missing value, as "nan" does in the files.
+ */
+public class PcFilterBuilder {
+
+    /**
+     * block sink the points are pushed into
+     */
+    public interface BlockSink {
+        /**
+         * @param xyz 3 * n coordinates
+         * @param rgb 3 * n colors, null for lidar points
+         * @param classes n point classes (0, 1, 2)
+         * @param props n * nProps property values, NaN if missing
+         * @param n number of points in the block
+         */
+        void accept(double[] xyz, int[] rgb, int[] classes, double[] props, int n);
+    }
+
+    /**
+     * source of the points of one fileType, it may push any number of blocks
+     */
+    public interface PointSource {
+        void read(BlockSink sink);
+    }
+
+    private float voxelSide;
+    private JSONObject config;
+    private boolean verbose;
+
+    private String[][] propNames = new String[FileType.values().length][];
+    private PointSource[] sources = new PointSource[FileType.values().length];
+
+    public PcFilterBuilder voxelSide(float voxelSide){
+        if(voxelSide < 0 || Float.isNaN(voxelSide))
+            throw new IllegalArgumentException("invalid voxelSide " + voxelSide);
+        this.voxelSide = voxelSide;
+        return this;
+    }
+
+    public PcFilterBuilder config(JSONObject config){
+        this.config = config;
+        return this;
+    }
+
+    public PcFilterBuilder config(File config){
+        if(!config.exists())
+            throw new IllegalArgumentException("config file " + config + " does not exist");
+        this.config = Main.loadConfig(config);
+        return this;
+    }
+
+    /**
+     * print the normalized values of each point
+     */
+    public PcFilterBuilder verbose(boolean verbose){
+        this.verbose = verbose;
+        return this;
+    }
+
+    public PcFilterBuilder photo(double[] xyz, int[] rgb, int[] classes, String[] propNames, double[] props){
+        int n = check(xyz, classes, propNames, props);
+        if(rgb == null || rgb.length != 3 * n)
+            throw new IllegalArgumentException("rgb must hold 3 values for each of the " + n + " points");
+
+        return points(FileType.PHOTOGRAMMETRIC, propNames, sink -> sink.accept(xyz, rgb, classes, props, n));
+    }
+
+    public PcFilterBuilder lidar(double[] xyz, int[] classes, String[] propNames, double[] props){
+        int n = check(xyz, classes, propNames, props);
+
+        return points(FileType.LIDAR, propNames, sink -> sink.accept(xyz, null, classes, props, n));
+    }
+
+    /**
+     * points of fileType pushed in blocks by source when build is called
+     * @param fileType
+     * @param propNames properties names, the columns after Class in the file header
+     * @param source
+     * @return
+     */
+    public PcFilterBuilder points(FileType fileType, String[] propNames, PointSource source){
+        if(propNames == null || source == null)
+            throw new IllegalArgumentException("missing " + fileType + " properties names or points");
+
+        this.propNames[fileType.ordinal()] = propNames;
+        this.sources[fileType.ordinal()] = source;
+        return this;
+    }
+
+    /**
+     * @return number of points
+     */
+    private static int check(double[] xyz, int[] classes, String[] propNames, double[] props){
+        if(xyz == null || xyz.length % 3 != 0)
+            throw new IllegalArgumentException("xyz must hold 3 coordinates for each point");
+        int n = xyz.length / 3;
+
+        if(classes == null || classes.length != n)
+            throw new IllegalArgumentException("classes must hold one value for each of the " + n + " points");
+        if(propNames == null || props == null || props.length != n * propNames.length)
+            throw new IllegalArgumentException("props must hold " + (propNames == null ? 0 : propNames.length)
+                    + " values for each of the " + n + " points");
+
+        return n;
+    }
+
+    /**
+     * ingest the points, score them and build the voxel grid
+     * @return
+     */
+    public FilterResult build(){
+        if(config == null)
+            throw new IllegalArgumentException("missing config");
+        for(FileType ft : FileType.values())
+            if(sources[ft.ordinal()] == null)
+                throw new IllegalArgumentException("missing " + ft + " points");
+
+        PcFilter pcf = new PcFilter(voxelSide, config, verbose);
+        PointSource[] checked = new PointSource[sources.length];
+        for(FileType ft : FileType.values())
+            checked[ft.ordinal()] = checked(ft, propNames[ft.ordinal()].length, sources[ft.ordinal()]);
+
+        List<List<Point>> input = pcf.ingest(propNames, checked);
+
+        return new FilterResult(pcf, input);
+    }
+
+    /**
+     * source validating each block pushed by source
+     * @param fileType photogrammetric blocks must have the colors
+     * @param nProps number of properties names of fileType
+     * @param source
+     */
+    private static PointSource checked(FileType fileType, int nProps, PointSource source){
+        return sink -> source.read((xyz, rgb, classes, props, n) -> {
+            if(n < 0 || xyz == null || xyz.length < 3 * n || classes == null || classes.length < n)
+                throw new IllegalArgumentException("invalid block of " + n + " points");
+            if(props == null || props.length < n * nProps)
+                throw new IllegalArgumentException("props of a block of " + n + " " + fileType + " points must hold "
+                        + nProps + " values for each point");
+            if(fileType == FileType.PHOTOGRAMMETRIC && (rgb == null || rgb.length < 3 * n))
+                throw new IllegalArgumentException("rgb of a block of " + n + " " + fileType + " points must hold "
+                        + "3 values for each point");
+
+            for(int i = 0; i < n; i++)
+                if(PointClassification.parse(classes[i]) == null)
+                    throw new IllegalArgumentException("invalid class " + classes[i] + " of point " + i);
+
+            sink.accept(xyz, rgb, classes, props, n);
+        });
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Stats;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP/JSON server answering the interactive menu queries on a filter loaded once,
+ * bound to the loopback interface.
+ * The filter and the voxel sets are read only once the server starts, so the requests
+ * are served concurrently by a fixed thread pool.
+ *
+ * Endpoints (GET):
+ * <pre>
+ * /info                            voxelSide, grid, shift, properties and number of points
+ * /location?x=&amp;y=&amp;z=              voxel of a location (input coordinates), -1 if outside
+ * /voxel?id=[&amp;points=true]          fileType/class counts of a voxel, and its points
+ * /class?class=[&amp;voxels=true]       points and voxels of a class, and the voxel ids
+ * /filter[?set=intersection|filtered|scoredFiltered]  size of the voxel sets, and the ids of one
+ * </pre>
+ */
+public class QueryServer {
+
+    private PcFilter pcf;
+    private VoxelGrid vGrid;
+    private HttpServer server;
+    private ExecutorService pool;
+
+    // voxel sets of the filter, sorted
+    private Map<String, Set<Integer>> sets;
+
+    /**
+     * @param pcf filter with a voxel grid
+     * @param port listening port, 0 for any free port
+     * @param threads request handler threads
+     * @throws IOException
+     */
+    public QueryServer(PcFilter pcf, int port, int threads) throws IOException {
+        this.pcf = pcf;
+        this.vGrid = pcf.getVGrid();
+
+        System.out.println("\nquery server");
+        long start = System.currentTimeMillis();
+
+        VoxelCounts vc = VoxelCounts.fromGrid(vGrid);
+        Set<Integer> intersection = new TreeSet<>(vc.getIntersection());
+        Set<Integer> filtered = new TreeSet<>(vc.getFiltered(intersection));
+        Set<Integer> scoredFiltered = new TreeSet<>(vc.getScoredFiltered(filtered));
+
+        sets = new LinkedHashMap<>();
+        sets.put("intersection", intersection);
+        sets.put("filtered", filtered);
+        sets.put("scoredFiltered", scoredFiltered);
+        Stats.printElapsedTime(start, "..voxel sets " + intersection.size() + "/" + filtered.size() + "/" + scoredFiltered.size());
+
+        // no authentication: local clients only
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/info", exchange -> handle(exchange, this::info));
+        server.createContext("/location", exchange -> handle(exchange, this::location));
+        server.createContext("/voxel", exchange -> handle(exchange, this::voxel));
+        server.createContext("/class", exchange -> handle(exchange, this::pointClass));
+        server.createContext("/filter", exchange -> handle(exchange, this::filter));
+
+        pool = Executors.newFixedThreadPool(threads);
+        server.setExecutor(pool);
+    }
+
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    public void start(){
+        server.start();
+        System.out.println("..serving on http://localhost:" + getPort() + "/ (info, location, voxel, class, filter)");
+    }
+
+    public void stop(){
+        server.stop(0);
+        pool.shutdown();
+    }
+
+    private interface Query {
+        JSONObject answer(Map<String, String> params);
+    }
+
+    private void handle(HttpExchange exchange, Query query) throws IOException {
+        int status = 200;
+        JSONObject response;
+
+        try {
+            if(!exchange.getRequestMethod().equals("GET")) {
+                status = 405;
+                response = new JSONObject().put("error", "only GET requests are supported");
+            } else
+                response = query.answer(parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            response = new JSONObject().put("error", e.getMessage());
+        } catch (RuntimeException e) {
+            status = 500;
+            response = new JSONObject().put("error", e.toString());
+        }
+
+        byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query){
+        Map<String, String> params = new HashMap<>();
+        if(query == null || query.isEmpty()) return params;
+
+        for(String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = (eq < 0) ? pair : pair.substring(0, eq);
+            String value = (eq < 0) ? "" : pair.substring(eq + 1);
+            try {
+                params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return params;
+    }
+
+    private static String param(Map<String, String> params, String name){
+        String value = params.get(name);
+        if(value == null || value.isEmpty())
+            throw new IllegalArgumentException("missing parameter " + name);
+        return value;
+    }
+
+    private static double doubleParam(Map<String, String> params, String name){
+        try {
+            return Double.parseDouble(param(params, name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("parameter " + name + " is not a number");
+        }
+    }
+
+    private static int intParam(Map<String, String> params, String name){
+        try {
+            return Integer.parseInt(param(params, name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("parameter " + name + " is not an integer");
+        }
+    }
+
+    private static JSONArray toJson(Point p, Point coordShift){
+        return new JSONArray().put(p.x + coordShift.x).put(p.y + coordShift.y).put(p.z + coordShift.z);
+    }
+
+    private JSONObject info(Map<String, String> params){
+        Point shift = pcf.getCoordShift();
+        JSONObject properties = new JSONObject();
+        for(FileType ft : FileType.values())
+            properties.put(ft.name(), new JSONArray(pcf.getProperties()[ft.ordinal()]));
+
+        return new JSONObject()
+                .put("voxelSide", pcf.getVoxelSide())
+                .put("grid", new JSONArray().put(vGrid.getWidth()).put(vGrid.getHeight()).put(vGrid.getDepth()))
+                .put("voxels", vGrid.getSize())
+                .put("voxelsWithPoints", vGrid.getVoxelWithPoints().size())
+                .put("coordShift", new JSONArray().put(shift.x).put(shift.y).put(shift.z))
+                .put("properties", properties);
+    }
+
+    private JSONObject location(Map<String, String> params){
+        double x = doubleParam(params, "x"), y = doubleParam(params, "y"), z = doubleParam(params, "z");
+        Point shift = pcf.getCoordShift();
+
+        return new JSONObject()
+                .put("location", new JSONArray().put(x).put(y).put(z))
+                .put("voxel", vGrid.getVoxelId(x - shift.x, y - shift.y, z - shift.z));
+    }
+
+    private JSONObject voxel(Map<String, String> params){
+        int id = intParam(params, "id");
+        if(id < 0 || id >= vGrid.getSize())
+            throw new IllegalArgumentException("the voxel " + id + " doesn't exist");
+        boolean withPoints = Boolean.parseBoolean(params.get("points"));
+
+        JSONObject response = new JSONObject().put("voxel", id);
+        Voxel vox = vGrid.getVoxel(id);
+        for(FileType ft : FileType.values()) {
+            JSONObject fileType = new JSONObject();
+            for(PointClassification pc : PointClassification.values()) {
+                int count = (vox == null) ? 0 : vox.getCounts()[Voxel.slot(ft, pc)];
+                JSONObject cls = new JSONObject().put("count", count);
+
+                if(withPoints && count > 0) {
+                    JSONArray points = new JSONArray();
+                    for(Point p : vGrid.getPoints(ft, id, pc))
+                        points.put(toJson(p, pcf.getCoordShift()));
+                    cls.put("points", points);
+                }
+                fileType.put(pc.name(), cls);
+            }
+            response.put(ft.name(), fileType);
+        }
+
+        for(Map.Entry<String, Set<Integer>> set : sets.entrySet())
+            response.put(set.getKey(), set.getValue().contains(id));
+
+        return response;
+    }
+
+    private JSONObject pointClass(Map<String, String> params){
+        PointClassification pc = PointClassification.parse(intParam(params, "class"));
+        if(pc == null)
+            throw new IllegalArgumentException("the class " + params.get("class") + " doesn't exist");
+        boolean withVoxels = Boolean.parseBoolean(params.get("voxels"));
+
+        JSONObject response = new JSONObject().put("class", pc.name());
+        for(FileType ft : FileType.values()) {
+            Set<Integer> voxels = new TreeSet<>(vGrid.getVoxels(ft, pc));
+            int slot = Voxel.slot(ft, pc), count = 0;
+            for(int v : voxels)
+                count += vGrid.getVoxel(v).getCounts()[slot];
+
+            JSONObject fileType = new JSONObject().put("points", count).put("voxels", voxels.size());
+            if(withVoxels)
+                fileType.put("voxelIds", new JSONArray(voxels));
+            response.put(ft.name(), fileType);
+        }
+
+        return response;
+    }
+
+    private JSONObject filter(Map<String, String> params){
+        JSONObject response = new JSONObject();
+        for(Map.Entry<String, Set<Integer>> set : sets.entrySet())
+            response.put(set.getKey(), set.getValue().size());
+
+        String name = params.get("set");
+        if(name != null) {
+            if(!sets.containsKey(name))
+                throw new IllegalArgumentException("unknown set " + name + ", use one of " + sets.keySet());
+            response.put("voxelIds", new JSONArray(sets.get(name)));
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.LinkedList;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Stats;
+import org.json.JSONArray;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * staged ingestion for PcFilter:
+ * reader (one thread per file) -> parser/accumulator -> block store -> scorers -> voxel binner.
+ * Stages are connected by bounded queues of BLOCK_SIZE points, so reading overlaps parsing
+ * and scoring overlaps binning. Standard deviation and normalization need the global means,
+ * so they consume the blocks buffered in the store once both files are parsed.
+ * The resulting list, statistics and voxel grid are the same of the in-memory path
+ */
+public class StreamingPipeline {
+
+    public static final int BLOCK_SIZE = 65536;
+    private static final int QUEUE_BLOCKS = 4;
+    private static final String[] END = new String[0];
+
+    private PcFilter pcf;
+    private int threads;
+
+    // buffered block store: blocks of each fileType, in file order
+    private List<List<Point[]>> store;
+
+    public StreamingPipeline(PcFilter pcf){
+        this.pcf = pcf;
+        this.threads = Runtime.getRuntime().availableProcessors();
+
+        store = new ArrayList<>();
+        for(FileType ft : FileType.values())
+            store.add(new ArrayList<>());
+    }
+
+    /**
+     * @param data photogrammetric and lidar files
+     * @param points list receiving the points, in the same order of the in-memory path
+     * @param vGrid grid initialized with initVoxels, null if no grid is needed
+     */
+    public void run(File[] data, LinkedList points, VoxelGrid vGrid) throws Exception {
+        List<LineReader> readers = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BlockingQueue<Future<Point[]>> scored = new ArrayBlockingQueue<>(2 * threads);
+
+        Thread submitter = new Thread(() -> {
+            try {
+                // lidar first, from the last point: the in-memory list is built with addAtBeginning
+                for(int f = FileType.values().length - 1; f >= 0; f--) {
+                    FileType ft = FileType.values()[f];
+                    String[] props = pcf.getProperties()[ft.ordinal()];
+                    if(props == null) continue;
+                    JSONArray classTypes = pcf.classTypes(ft);
+
+                    List<Point[]> blocks = store.get(ft.ordinal());
+                    for(int b = blocks.size() - 1; b >= 0; b--) {
+                        Point[] block = blocks.get(b);
+                        scored.put(pool.submit(() -> {
+                            for(Point p : block)
+                                pcf.normalizeAndScore(p, props, classTypes);
+                            return block;
+                        }));
+                    }
+                }
+                scored.put(CompletableFuture.completedFuture(null));
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // the pipeline failed and is shutting down
+            }
+        }, "StreamingScoreSubmitter");
+        submitter.setDaemon(true);
+
+        // a failing stage must not leave the other stages blocked on the bounded queues
+        try {
+            //////////////////////////////
+            // readers start together, lidar reading overlaps photo parsing
+            List<BlockingQueue<String[]>> queues = new ArrayList<>();
+            for(File f : data) {
+                BlockingQueue<String[]> q = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+                LineReader r = new LineReader(f, q);
+                queues.add(q);
+                readers.add(r);
+                r.start();
+            }
+
+            //////////////////////////////
+            // parse and accumulate sum and mean, in file order
+            for(FileType ft : FileType.values()) {
+                System.out.println("\nparse " + ft + " file (streaming)");
+                long start = System.currentTimeMillis();
+
+                parse(ft, queues.get(ft.ordinal()));
+                readers.get(ft.ordinal()).join();
+                if(readers.get(ft.ordinal()).error != null) throw readers.get(ft.ordinal()).error;
+
+                Stats.printElapsedTime(start, "file read");
+            }
+
+            //////////////////////////////
+            // standard deviation from the block store, same order of the in-memory list
+            for(FileType ft : FileType.values()) {
+                String[] props = pcf.getProperties()[ft.ordinal()];
+                if(props == null) continue;
+
+                List<Point[]> blocks = store.get(ft.ordinal());
+                for(int b = blocks.size() - 1; b >= 0; b--) {
+                    Point[] block = blocks.get(b);
+                    for(int i = block.length - 1; i >= 0; i--)
+                        pcf.accumulateStd(block[i], props);
+                }
+                pcf.finishStd(props);
+            }
+
+            //////////////////////////////
+            // score in parallel, bin in list order
+            System.out.println("\nscore and bin points (streaming, " + threads + " scorers)");
+            long start = System.currentTimeMillis();
+
+            submitter.start();
+
+            Point[] block;
+            while((block = scored.take().get()) != null)
+                for(int i = block.length - 1; i >= 0; i--) {
+                    points.addAtEnd(block[i]);
+                    if(vGrid != null) vGrid.addNode(points.tail());
+                }
+
+            submitter.join();
+
+            if(vGrid != null)
+                System.out.println("..voxels with at least one point " + vGrid.getVoxelWithPoints().size());
+            Stats.printElapsedTime(start, "processed");
+        } finally {
+            for(LineReader r : readers) r.interrupt();
+            submitter.interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * all the points of the block store
+     * @return
+     */
+    public Iterable<Point> getStoredPoints(){
+        return () -> store.stream().flatMap(List::stream).flatMap(Arrays::stream).iterator();
+    }
+
+    private void parse(FileType ft, BlockingQueue<String[]> queue) throws InterruptedException {
+        List<Point[]> blocks = store.get(ft.ordinal());
+        Point[] block = new Point[BLOCK_SIZE];
+        int n = 0;
+        String[] props = null;
+        boolean header = true, skip = false;
+
+        String[] lines;
+        while((lines = queue.take()) != END) {
+            if(skip) continue;
+
+            for(String line : lines) {
+                if(header) {
+                    header = false;
+                    // empty header, the file is ignored as in parseData
+                    if(line.isEmpty()) { skip = true; break; }
+                    props = pcf.parseHeader(line, ft);
+                    continue;
+                }
+
+                if (line.startsWith("//") || line.isEmpty()) continue;
+
+                block[n++] = pcf.parsePoint(line, ft, props);
+                if(n == BLOCK_SIZE) {
+                    blocks.add(block);
+                    block = new Point[BLOCK_SIZE];
+                    n = 0;
+                }
+            }
+        }
+
+        if(n > 0) blocks.add(Arrays.copyOf(block, n));
+    }
+
+    /**
+     * reader stage: lines of a file in blocks of BLOCK_SIZE
+     */
+    private static class LineReader extends Thread {
+        private File file;
+        private BlockingQueue<String[]> queue;
+        private IOException error;
+
+        LineReader(File file, BlockingQueue<String[]> queue){
+            super("LineReader-" + file.getName());
+            setDaemon(true);
+            this.file = file;
+            this.queue = queue;
+        }
+
+        public void run(){
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+                String[] block = new String[BLOCK_SIZE];
+                int n = 0;
+                String line;
+                while((line = reader.readLine()) != null) {
+                    block[n++] = line;
+                    if(n == BLOCK_SIZE) {
+                        queue.put(block);
+                        block = new String[BLOCK_SIZE];
+                        n = 0;
+                    }
+                }
+                if(n > 0) queue.put(Arrays.copyOf(block, n));
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try { queue.put(END); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }
+    }
+}
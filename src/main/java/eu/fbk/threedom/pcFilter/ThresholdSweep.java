@@ -0,0 +1,218 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.LlNode;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.ScoreHistogram;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * evaluate candidate class thresholds without touching the points again:
+ * pass fractions come from the score histograms, the scored filtered voxels
+ * from the sorted scores of each filtered voxel
+ */
+public class ThresholdSweep {
+
+    private PcFilter pcf;
+    private float[][] means;
+    private Set<Integer> filtered;
+
+    // filtered voxel -> sorted scores for each Voxel.slot()
+    private HashMap<Integer, double[][]> voxelScores;
+    // thresholds in use [fileType][class]
+    @Getter private float[][] thresholds;
+
+    /**
+     * @param pcf
+     * @param counts counts of the pcf voxel grid
+     * @param filtered filtered intersection set
+     */
+    public ThresholdSweep(PcFilter pcf, VoxelCounts counts, Set<Integer> filtered){
+        this.pcf = pcf;
+        this.means = counts.densityMeans();
+        this.filtered = filtered;
+        this.thresholds = configThresholds(pcf.getConfig());
+
+        System.out.println("\nsorting scores of " + filtered.size() + " filtered voxels");
+        long start = System.currentTimeMillis();
+
+        voxelScores = new HashMap<>();
+        VoxelGrid vGrid = pcf.getVGrid();
+        for(int v : filtered) {
+            double[][] scores = new double[VoxelCounts.SLOTS][];
+            for(FileType ft : FileType.values())
+                for(PointClassification pc : PointClassification.values())
+                    scores[Voxel.slot(ft, pc)] = new double[counts.getCount(v, ft, pc)];
+
+            int[] n = new int[VoxelCounts.SLOTS];
+            Voxel vox = vGrid.getVoxel(v);
+            LlNode node = vox.getHead();
+            while(node != null) {
+                Point p = (Point)node.value();
+                int slot = Voxel.slot(p.getType(), p.getClassification());
+                scores[slot][n[slot]++] = p.getScore();
+
+                // exit condition
+                if(!node.hasNext() || node == vox.getTail()) break;
+                node = node.next();
+            }
+
+            for(double[] s : scores) Arrays.sort(s);
+            voxelScores.put(v, scores);
+        }
+
+        Stats.printElapsedTime(start, "processed");
+    }
+
+    /**
+     * thresholds read from the config file
+     * @param config
+     * @return [fileType][class]
+     */
+    public static float[][] configThresholds(JSONObject config){
+        float[][] t = new float[FileType.values().length][PointClassification.values().length];
+        JSONArray fileTypes = config.getJSONArray("fileTypes");
+
+        for(FileType ft : FileType.values()) {
+            JSONArray classTypes = ((JSONObject) fileTypes.get(ft.ordinal())).getJSONArray("classTypes");
+            for(PointClassification pc : PointClassification.values())
+                t[ft.ordinal()][pc.ordinal()] = ((JSONObject) classTypes.get(pc.ordinal())).getFloat("threshold");
+        }
+
+        return t;
+    }
+
+    /**
+     * number of points of the voxel with score <= threshold
+     */
+    public int getScoredCount(int voxel, FileType fileType, PointClassification pointType, float threshold){
+        double[] s = voxelScores.get(voxel)[Voxel.slot(fileType, pointType)];
+
+        // upper bound
+        int lo = 0, hi = s.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(s[mid] <= threshold) lo = mid + 1; else hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * printScoredFilteredVoxels result for the given thresholds
+     * @param t [fileType][class]
+     * @return
+     */
+    public Set<Integer> getScoredFiltered(float[][] t){
+        Set<Integer> result = new TreeSet<>();
+
+        for(int v : filtered)
+            for(PointClassification pc : PointClassification.values()) {
+                boolean passed = true;
+                for(FileType ft : FileType.values())
+                    if(getScoredCount(v, ft, pc, t[ft.ordinal()][pc.ordinal()]) < means[ft.ordinal()][pc.ordinal()]) {
+                        passed = false; break;
+                    }
+
+                if(passed) { result.add(v); break; }
+            }
+
+        return result;
+    }
+
+    public double getPassFraction(FileType fileType, PointClassification pointType, float threshold){
+        return pcf.getScoreHistograms()[fileType.ordinal()][pointType.ordinal()].fraction(threshold);
+    }
+
+    /**
+     * candidate thresholds evenly spaced over the score range of fileType/class
+     */
+    public float[] getCandidates(FileType fileType, PointClassification pointType, int n){
+        ScoreHistogram h = pcf.getScoreHistograms()[fileType.ordinal()][pointType.ordinal()];
+        float[] c = new float[n];
+
+        for(int i = 0; i < n; i++)
+            c[i] = (float)(h.getMin() + (n > 1 ? i * (h.getMax() - h.getMin()) / (n - 1) : 0));
+
+        return c;
+    }
+
+    /**
+     * thresholds letting the fraction q of the points of each fileType/class pass
+     * @param q target quantile between 0 and 1
+     * @return [fileType][class]
+     */
+    public float[][] getAutoThresholds(double q){
+        float[][] t = new float[FileType.values().length][PointClassification.values().length];
+
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values()) {
+                ScoreHistogram h = pcf.getScoreHistograms()[ft.ordinal()][pc.ordinal()];
+                t[ft.ordinal()][pc.ordinal()] = (h.getTotal() == 0) ? thresholds[ft.ordinal()][pc.ordinal()] : (float)h.quantile(q);
+            }
+
+        return t;
+    }
+
+    /**
+     * use the thresholds for all points and in the config
+     * @param t [fileType][class]
+     */
+    public void apply(float[][] t){
+        JSONArray fileTypes = pcf.getConfig().getJSONArray("fileTypes");
+        for(FileType ft : FileType.values()) {
+            JSONArray classTypes = ((JSONObject) fileTypes.get(ft.ordinal())).getJSONArray("classTypes");
+            for(PointClassification pc : PointClassification.values())
+                ((JSONObject) classTypes.get(pc.ordinal())).put("threshold", t[ft.ordinal()][pc.ordinal()]);
+        }
+
+        VoxelGrid vGrid = pcf.getVGrid();
+        for(int v : vGrid.getVoxelWithPoints()) {
+            Voxel vox = vGrid.getVoxel(v);
+            LlNode node = vox.getHead();
+            while(node != null) {
+                Point p = (Point)node.value();
+                p.setThreshold(t[p.getType().ordinal()][p.getClassification().ordinal()]);
+
+                // exit condition
+                if(!node.hasNext() || node == vox.getTail()) break;
+                node = node.next();
+            }
+        }
+
+        thresholds = t;
+    }
+}
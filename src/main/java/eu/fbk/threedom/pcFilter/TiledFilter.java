@@ -0,0 +1,428 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.BlockWriter;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+import lombok.Setter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * out-of-core filter: the memory depends on the tile size and not on the dataset size.
+ *
+ * 1. bounding box pass (PcFilter)
+ * 2. bucket pass: the raw lines are appended to one file per tile, tiles are columns of
+ *    tileVoxels x tileVoxels voxels so no voxel straddles two tiles; properties sum and mean
+ * 3. density pass: each tile is parsed to accumulate the standard deviation and the voxel
+ *    density sums, giving the global statistics and density means of the in-memory path
+ * 4. filter pass: each tile is parsed, normalized, scored, voxelized and filtered with the
+ *    global means, and its selected points are appended to the output files
+ */
+public class TiledFilter {
+
+    // bucket writers kept open at the same time
+    private static final int MAX_OPEN_BUCKETS = 64;
+    // bucket of the points outside the voxel grid, they only count in the statistics
+    private static final int OUTSIDE = -1;
+
+    @Getter private PcFilter pcf;
+    private File[] data;
+    @Getter private int tileVoxels;
+    @Getter private File tileDir;
+
+    // lattice of the voxel grid, no points
+    private VoxelGrid lattice;
+    private int tilesX;
+
+    @Getter private Set<Integer> tiles;
+    private LinkedHashMap<String, BufferedWriter> openBuckets;
+
+    // global density: points and non empty voxels for each fileType/class slot
+    @Getter private long[] densitySum;
+    @Getter private int[] densityVoxels;
+    @Setter @Getter private float[][] densityMeans;
+
+    @Getter private int voxelsWithPoints, intersectionCount, filteredCount, scoredFilteredCount;
+
+    // timer
+    private long start;
+
+    /**
+     * @param file1Data photogrammetric file
+     * @param file2Data lidar file
+     * @param voxelSide
+     * @param tileVoxels tile side in voxels
+     * @param workDir directory receiving the temporary tile files
+     * @param config
+     */
+    public TiledFilter(File file1Data, File file2Data, float voxelSide, int tileVoxels, File workDir, JSONObject config) throws IOException {
+        this.data = new File[]{file1Data, file2Data};
+        this.tileVoxels = tileVoxels;
+
+        pcf = new PcFilter(data, voxelSide, config);
+        lattice = new VoxelGrid(pcf.getBbox(), voxelSide);
+        tilesX = (lattice.getWidth() + tileVoxels - 1) / tileVoxels;
+
+        tileDir = Files.createTempDirectory(workDir.toPath(), "tiles_").toFile();
+        tiles = new TreeSet<>();
+        openBuckets = new LinkedHashMap<>(16, 0.75f, true);
+
+        densitySum = new long[VoxelCounts.SLOTS];
+        densityVoxels = new int[VoxelCounts.SLOTS];
+    }
+
+    /**
+     * view of a tile worker on the tiles bucketed by a coordinator
+     * @param pcf filter holding the bounding box, the shift vector and the statistics
+     * @param tileVoxels tile side in voxels
+     * @param tileDir directory of the tile files
+     */
+    public TiledFilter(PcFilter pcf, int tileVoxels, File tileDir){
+        this.pcf = pcf;
+        this.tileVoxels = tileVoxels;
+        this.tileDir = tileDir;
+
+        lattice = new VoxelGrid(pcf.getBbox(), pcf.getVoxelSide());
+        tilesX = (lattice.getWidth() + tileVoxels - 1) / tileVoxels;
+        tiles = new TreeSet<>();
+
+        densitySum = new long[VoxelCounts.SLOTS];
+        densityVoxels = new int[VoxelCounts.SLOTS];
+    }
+
+    /**
+     * @param filteredFiles photogrammetric and lidar output of the filtered intersection
+     * @param scoredFiles photogrammetric and lidar output of the scored filtered intersection
+     */
+    public void run(File[] filteredFiles, File[] scoredFiles) throws IOException {
+        try {
+            bucket();
+            density();
+            filter(filteredFiles, scoredFiles);
+        } finally {
+            deleteTiles();
+        }
+    }
+
+    public void deleteTiles(){
+        for(File f : tileDir.listFiles()) f.delete();
+        tileDir.delete();
+    }
+
+    private int tileOf(int voxelId){
+        if(voxelId == -1) return OUTSIDE;
+
+        int xv = voxelId % lattice.getWidth();
+        int yv = (voxelId / lattice.getWidth()) % lattice.getHeight();
+
+        return (yv / tileVoxels) * tilesX + (xv / tileVoxels);
+    }
+
+    private File bucketFile(int tile, FileType fileType){
+        return new File(tileDir, "tile_" + tile + "_" + fileType.ordinal() + ".txt");
+    }
+
+    ///////////////////////////////////////////////
+    // BUCKET PASS
+    ///////////////////////////////////////////////////////
+    public void bucket() throws IOException {
+        System.out.println("\nbucket points into " + tileVoxels + "x" + tileVoxels + " voxels tiles");
+        start = System.currentTimeMillis();
+
+        for(FileType ft : FileType.values()) {
+            System.out.println("\nparse " + ft + " file");
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(data[ft.ordinal()]), "UTF-8"))) {
+                String line = reader.readLine(); // header
+                if(line == null || line.isEmpty()) continue;
+
+                String[] props = pcf.parseHeader(line, ft);
+
+                while((line = reader.readLine()) != null) {
+                    if (line.startsWith("//") || line.isEmpty()) continue;
+
+                    // sum and mean are updated here
+                    Point p = pcf.parsePoint(line, ft, props);
+                    int tile = tileOf(lattice.getVoxelId(p));
+
+                    BufferedWriter bw = bucketWriter(tile, ft);
+                    bw.write(line);
+                    bw.newLine();
+                }
+            }
+        }
+
+        for(BufferedWriter bw : openBuckets.values()) bw.close();
+        openBuckets.clear();
+
+        System.out.println("..tiles with at least one point " + tiles.size());
+        Stats.printElapsedTime(start, "points bucketed");
+    }
+
+    private BufferedWriter bucketWriter(int tile, FileType fileType) throws IOException {
+        String key = tile + "_" + fileType.ordinal();
+        BufferedWriter bw = openBuckets.get(key);
+        if(bw != null) return bw;
+
+        // close the least recently used bucket
+        if(openBuckets.size() == MAX_OPEN_BUCKETS) {
+            Iterator<BufferedWriter> it = openBuckets.values().iterator();
+            it.next().close();
+            it.remove();
+        }
+
+        if(tile != OUTSIDE) tiles.add(tile);
+        bw = new BufferedWriter(new FileWriter(bucketFile(tile, fileType), true));
+        openBuckets.put(key, bw);
+
+        return bw;
+    }
+
+    private interface TilePointConsumer {
+        void accept(Point p, int voxelId);
+    }
+
+    /**
+     * parse the bucket of a tile, the statistics are not updated
+     */
+    private void readBucket(int tile, FileType fileType, TilePointConsumer consumer) throws IOException {
+        File f = bucketFile(tile, fileType);
+        if(!f.exists()) return;
+
+        String[] props = pcf.getProperties()[fileType.ordinal()];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                Point p = pcf.parsePoint(line, fileType, props, false);
+                consumer.accept(p, lattice.getVoxelId(p));
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // DENSITY PASS
+    ///////////////////////////////////////////////////////
+    private void density() throws IOException {
+        System.out.println("\nevaluate standard deviation and voxel density");
+        start = System.currentTimeMillis();
+
+        for(int tile : getDensityTiles())
+            voxelsWithPoints += densityTile(tile, densitySum, densityVoxels);
+
+        finishDensity();
+
+        System.out.println("..voxels with at least one point " + voxelsWithPoints);
+        Stats.printElapsedTime(start, "processed");
+    }
+
+    /**
+     * tiles of the density pass: the bucketed tiles followed by the points outside the grid
+     * @return
+     */
+    public List<Integer> getDensityTiles(){
+        List<Integer> all = new ArrayList<>(tiles);
+        all.add(OUTSIDE);
+
+        return all;
+    }
+
+    /**
+     * add the squared distances from the means of a tile to the pcf statistics and
+     * its voxel densities to the sums
+     * @param tile
+     * @param densitySum points of each fileType/class slot
+     * @param densityVoxels non empty voxels of each fileType/class slot
+     * @return voxels with at least one point
+     */
+    public int densityTile(int tile, long[] densitySum, int[] densityVoxels) throws IOException {
+        VoxelCounts vc = new VoxelCounts();
+
+        for(FileType ft : FileType.values()) {
+            String[] props = pcf.getProperties()[ft.ordinal()];
+            if(props == null) continue;
+
+            readBucket(tile, ft, (p, id) -> {
+                pcf.accumulateStd(p, props);
+                if(id != -1) vc.add(id, ft, p.getClassification(), false, 1);
+            });
+        }
+
+        for(int[] c : vc.getCounts().values())
+            for(int slot = 0; slot < VoxelCounts.SLOTS; slot++)
+                if(c[slot] > 0) { densitySum[slot] += c[slot]; densityVoxels[slot]++; }
+
+        return vc.size();
+    }
+
+    /**
+     * standard deviation and density means from the accumulated sums
+     */
+    public void finishDensity(){
+        for(FileType ft : FileType.values())
+            if(pcf.getProperties()[ft.ordinal()] != null)
+                pcf.finishStd(pcf.getProperties()[ft.ordinal()]);
+
+        System.out.println("\nruntime statistics");
+        pcf.getPropsStats().entrySet().forEach(entry->{
+            System.out.println(".." + entry.getKey() + " " + entry.getValue());
+        });
+
+        densityMeans = new float[FileType.values().length][PointClassification.values().length];
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values()) {
+                int slot = Voxel.slot(ft, pc);
+                densityMeans[ft.ordinal()][pc.ordinal()] = (densityVoxels[slot] > 0) ? (float)densitySum[slot] / densityVoxels[slot] : 0;
+            }
+    }
+
+    ///////////////////////////////////////////////
+    // FILTER PASS
+    ///////////////////////////////////////////////////////
+    private void filter(File[] filteredFiles, File[] scoredFiles) throws IOException {
+        System.out.println("\nfilter tiles");
+        start = System.currentTimeMillis();
+
+        BlockWriter[] filteredOut = openOutput(filteredFiles), scoredOut = openOutput(scoredFiles);
+        try {
+            for(FileType ft : FileType.values()) {
+                filteredOut[ft.ordinal()].writeLine(pcf.getOutputHeader(ft));
+                scoredOut[ft.ordinal()].writeLine(pcf.getOutputHeader(ft));
+            }
+
+            for(int tile : tiles)
+                addFilterCounts(filterTile(tile, filteredOut, scoredOut));
+
+            closeOutput(filteredOut);
+            closeOutput(scoredOut);
+        } finally {
+            abortOutput(filteredOut);
+            abortOutput(scoredOut);
+        }
+
+        printFilterCounts();
+        Stats.printElapsedTime(start, "processed");
+    }
+
+    public static BlockWriter[] openOutput(File[] files) throws IOException {
+        BlockWriter[] out = new BlockWriter[files.length];
+        try {
+            for(int i = 0; i < files.length; i++)
+                out[i] = new BlockWriter(new BufferedWriter(new FileWriter(files[i], false)));
+        } catch (IOException e) {
+            abortOutput(out);
+            throw e;
+        }
+
+        return out;
+    }
+
+    public static void closeOutput(BlockWriter[] out) throws IOException {
+        for(BlockWriter bw : out) bw.close();
+    }
+
+    /**
+     * release the writers not closed yet, after a failure
+     * @param out
+     */
+    public static void abortOutput(BlockWriter[] out){
+        for(BlockWriter bw : out)
+            if(bw != null) bw.abort();
+    }
+
+    public void addFilterCounts(int[] counts){
+        intersectionCount += counts[0];
+        filteredCount += counts[1];
+        scoredFilteredCount += counts[2];
+    }
+
+    public void printFilterCounts(){
+        System.out.println("..intersection voxel count -> " + intersectionCount + " voxels");
+        System.out.println("..filtered intersection voxel count -> " + filteredCount + " voxels");
+        System.out.println("..scored filtered intersection voxel count -> " + scoredFilteredCount + " voxels");
+    }
+
+    /**
+     * normalize, score, voxelize and filter a tile with the global statistics and density means,
+     * then write its selected points
+     * @param tile
+     * @param filteredOut photogrammetric and lidar writers of the filtered intersection
+     * @param scoredOut photogrammetric and lidar writers of the scored filtered intersection
+     * @return intersection, filtered and scored filtered voxel counts of the tile
+     */
+    public int[] filterTile(int tile, BlockWriter[] filteredOut, BlockWriter[] scoredOut) throws IOException {
+        VoxelCounts vc = new VoxelCounts();
+        List<Map<Integer, List<Point>>> voxelPoints = new ArrayList<>();
+
+        for(FileType ft : FileType.values()) {
+            Map<Integer, List<Point>> byVoxel = new HashMap<>();
+            voxelPoints.add(byVoxel);
+
+            String[] props = pcf.getProperties()[ft.ordinal()];
+            if(props == null) continue;
+            JSONArray classTypes = pcf.classTypes(ft);
+
+            readBucket(tile, ft, (p, id) -> {
+                pcf.normalizeAndScore(p, props, classTypes);
+                vc.add(id, p);
+                byVoxel.computeIfAbsent(id, k -> new ArrayList<>()).add(p);
+            });
+
+            // voxel chains follow the list order, the reverse of the file order
+            for(List<Point> l : byVoxel.values()) Collections.reverse(l);
+        }
+
+        Set<Integer> intersection = vc.getIntersection();
+        Set<Integer> filtered = vc.getFiltered(intersection, densityMeans);
+        Set<Integer> scoredFiltered = vc.getScoredFiltered(filtered, densityMeans);
+
+        for(FileType ft : FileType.values()) {
+            Map<Integer, List<Point>> byVoxel = voxelPoints.get(ft.ordinal());
+
+            for(int v : filtered)
+                for(Point p : byVoxel.getOrDefault(v, Collections.emptyList()))
+                    // SELECT true if you want normalized values
+                    filteredOut[ft.ordinal()].writeLine(p.toStringOutput(false, pcf.getCoordShift()));
+
+            for(int v : scoredFiltered)
+                for(Point p : byVoxel.getOrDefault(v, Collections.emptyList()))
+                    if(p.getScore() <= p.getThreshold())
+                        scoredOut[ft.ordinal()].writeLine(p.toStringOutput(false, pcf.getCoordShift()));
+        }
+
+        return new int[]{intersection.size(), filtered.size(), scoredFiltered.size()};
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * one representative point for each voxel and fileType, computed in parallel from the voxel
+ * chains:
+ * - CENTROID: a new point at the centroid, with the mean color, properties and score and the
+ *   most frequent class (its threshold too)
+ * - NEAREST: the point nearest to the centroid, with its own properties and score
+ */
+public class VoxelDownsampler {
+
+    public enum Mode { CENTROID, NEAREST }
+
+    private Mode mode;
+    private int threads;
+
+    public VoxelDownsampler(Mode mode, int threads){
+        this.mode = mode;
+        this.threads = threads;
+    }
+
+    public Mode getMode(){ return mode; }
+
+    /**
+     * @param pcf
+     * @param fileType
+     * @param voxels
+     * @param scoreCheck only the points passing their class threshold
+     * @return representative of each voxel in iteration order, null for voxels without points
+     */
+    public Point[] representatives(PcFilter pcf, FileType fileType, Set<Integer> voxels, boolean scoreCheck){
+        int[] ids = voxels.stream().mapToInt(Integer::intValue).toArray();
+        Point[] result = new Point[ids.length];
+        int nProps = pcf.getProperties()[fileType.ordinal()].length;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, ids.length).parallel().forEach(i ->
+                    result[i] = representative(pcf.getPoints(fileType, ids[i], scoreCheck), fileType, nProps))).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        return result;
+    }
+
+    private Point representative(List<Point> points, FileType fileType, int nProps){
+        if(points == null || points.isEmpty()) return null;
+
+        double x = 0, y = 0, z = 0;
+        for(Point p : points) { x += p.x; y += p.y; z += p.z; }
+        int n = points.size();
+        x /= n; y /= n; z /= n;
+
+        if(mode == Mode.NEAREST) {
+            Point nearest = null;
+            double best = Double.MAX_VALUE;
+            for(Point p : points) {
+                double dx = p.x - x, dy = p.y - y, dz = p.z - z;
+                double d2 = dx * dx + dy * dy + dz * dz;
+                if(d2 < best) { best = d2; nearest = p; }
+            }
+            return nearest;
+        }
+
+        // CENTROID
+        long r = 0, g = 0, b = 0;
+        double score = 0;
+        double[] props = new double[nProps], normProps = new double[nProps];
+        int[] classes = new int[PointClassification.values().length];
+        for(Point p : points) {
+            r += p.getR(); g += p.getG(); b += p.getB();
+            score += p.getScore();
+            classes[p.getClassification().ordinal()]++;
+            for(int t = 0; t < nProps; t++) {
+                props[t] += p.getProp(t);
+                normProps[t] += p.getNormProp(t);
+            }
+        }
+
+        int cl = 0;
+        for(int c = 1; c < classes.length; c++)
+            if(classes[c] > classes[cl]) cl = c;
+
+        Point c = new Point(fileType, nProps, x, y, z, (int)(r / n), (int)(g / n), (int)(b / n));
+        c.setClassification(PointClassification.values()[cl]);
+        c.setScore(score / n);
+        for(Point p : points)
+            if(p.getClassification().ordinal() == cl) { c.setThreshold(p.getThreshold()); break; }
+        for(int t = 0; t < nProps; t++) {
+            c.setProp(t, props[t] / n);
+            c.setNormProp(t, (float)(normProps[t] / n));
+        }
+
+        return c;
+    }
+}
@@ -0,0 +1,381 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.BBox;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.LlNode;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * persistent, memory mapped image of an interactive session: point columns, a CSR voxel
+ * index (the points are stored voxel by voxel, in voxel chain order, so voxel k owns the
+ * column rows offsets[k]..offsets[k+1]), per voxel counts and masks, properties statistics,
+ * bounding box and coordinate shift.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int magic, int version, int headerLength, header (see write), padding to 8 bytes
+ * double x[n], y[n], z[n], score[n]
+ * double props[n * maxProps], normProps[n * maxProps]
+ * float threshold[n]
+ * int rgb[3 * n], info[n] (fileType << 8 | class)
+ * int voxelIds[nVoxels] (ascending), offsets[nVoxels + 1], counts[nVoxels * SLOTS], masks[nVoxels]
+ * </pre>
+ * An index is valid for the same input files (length and last modified time),
+ * voxelSide and config it has been written with. Columns are mapped in chunks of 1GB,
+ * so that a column can be larger than the 2GB of a single mapping.
+ */
+public class VoxelIndex {
+
+    private static final int MAGIC = 0x48795265; // "HyRe"
+    // 2: grid dimensions covering the voxel of the bbox max, voxel ids of version 1 differ
+    private static final int VERSION = 2;
+
+    // bytes of a mapped chunk, a multiple of the size of the column values
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK = 1L << CHUNK_BITS;
+
+    @Getter private float voxelSide;
+    @Getter private int size;
+    @Getter private BBox bbox;
+    @Getter private Point coordShift;
+    @Getter private String[][] properties;
+    @Getter private Map<String, Double> propsStats;
+    @Getter private int numPoints;
+
+    private VoxelGrid lattice;
+    private int maxProps, nVoxels;
+
+    // mapped columns
+    private Column x, y, z, score, props, normProps, threshold, rgb, info, voxelIds, offsets, counts, masks;
+
+    /**
+     * column mapped in chunks, chunk offset >> CHUNK_BITS holds the value at byte offset
+     */
+    private static class Column {
+        private final MappedByteBuffer[] chunks;
+
+        Column(FileChannel channel, long offset, long length) throws IOException {
+            chunks = new MappedByteBuffer[(int)((length + CHUNK - 1) >> CHUNK_BITS)];
+            for(int c = 0; c < chunks.length; c++) {
+                long start = (long)c << CHUNK_BITS;
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(CHUNK, length - start));
+            }
+        }
+
+        double getDouble(long i){
+            long b = i << 3;
+            return chunks[(int)(b >> CHUNK_BITS)].getDouble((int)(b & (CHUNK - 1)));
+        }
+
+        float getFloat(long i){
+            long b = i << 2;
+            return chunks[(int)(b >> CHUNK_BITS)].getFloat((int)(b & (CHUNK - 1)));
+        }
+
+        int getInt(long i){
+            long b = i << 2;
+            return chunks[(int)(b >> CHUNK_BITS)].getInt((int)(b & (CHUNK - 1)));
+        }
+    }
+
+    /**
+     * header fields identifying the inputs of an index
+     */
+    private static String signature(File photo, File lidar, float voxelSide, JSONObject config){
+        return photo.getAbsolutePath() + "|" + photo.length() + "|" + photo.lastModified() + "|"
+                + lidar.getAbsolutePath() + "|" + lidar.length() + "|" + lidar.lastModified() + "|"
+                + voxelSide + "|" + config.toString().hashCode();
+    }
+
+    /**
+     * write the session state of pcf
+     * @param pcf filter with a voxel grid
+     * @param file index file
+     * @param photo photogrammetric input file
+     * @param lidar lidar input file
+     * @throws IOException
+     */
+    public static void write(PcFilter pcf, File file, File photo, File lidar) throws IOException {
+        System.out.println("\nwriting index " + file.getPath());
+        long start = System.currentTimeMillis();
+
+        VoxelGrid vGrid = pcf.getVGrid();
+        String[][] properties = pcf.getProperties();
+        int maxProps = 0;
+        for(String[] p : properties) maxProps = Math.max(maxProps, p.length);
+
+        // voxels with points in ascending order, their points in chain order
+        int[] ids = vGrid.getVoxelWithPoints().stream().mapToInt(Integer::intValue).sorted().toArray();
+        List<Point> points = new ArrayList<>();
+        int[] offsets = new int[ids.length + 1];
+        for(int k = 0; k < ids.length; k++) {
+            Voxel vox = vGrid.getVoxel(ids[k]);
+            LlNode n = vox.getHead();
+            while(n != null) {
+                points.add((Point)n.value());
+
+                if(!n.hasNext() || n == vox.getTail()) break;
+                n = n.next();
+            }
+            offsets[k + 1] = points.size();
+        }
+        int n = points.size();
+
+        // header
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeUTF(signature(photo, lidar, pcf.getVoxelSide(), pcf.getConfig()));
+        header.writeFloat(pcf.getVoxelSide());
+        for(Point p : new Point[]{pcf.getBbox().getMin(), pcf.getBbox().getMax(), pcf.getCoordShift()}) {
+            header.writeDouble(p.x); header.writeDouble(p.y); header.writeDouble(p.z);
+        }
+        header.writeInt(n);
+        header.writeInt(ids.length);
+        header.writeInt(maxProps);
+        for(String[] p : properties) {
+            header.writeInt(p.length);
+            for(String prop : p) header.writeUTF(prop);
+        }
+        Map<String, Double> stats = new TreeMap<>(pcf.getPropsStats());
+        header.writeInt(stats.size());
+        for(Map.Entry<String, Double> e : stats.entrySet()) {
+            header.writeUTF(e.getKey());
+            header.writeDouble(e.getValue());
+        }
+        header.flush();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            for(int pad = (int)(-(12L + bytes.size()) & 7); pad > 0; pad--) out.writeByte(0);
+
+            for(Point p : points) out.writeDouble(p.x);
+            for(Point p : points) out.writeDouble(p.y);
+            for(Point p : points) out.writeDouble(p.z);
+            for(Point p : points) out.writeDouble(p.getScore());
+            for(boolean norm : new boolean[]{false, true})
+                for(Point p : points) {
+                    int nProps = properties[p.getType().ordinal()].length;
+                    for(int t = 0; t < maxProps; t++)
+                        out.writeDouble(t >= nProps ? 0 : norm ? p.getNormProp(t) : p.getProp(t));
+                }
+            for(Point p : points) out.writeFloat(p.getThreshold());
+            for(Point p : points) {
+                out.writeInt(p.getR()); out.writeInt(p.getG()); out.writeInt(p.getB());
+            }
+            for(Point p : points) out.writeInt(p.getType().ordinal() << 8 | p.getClassification().ordinal());
+
+            for(int id : ids) out.writeInt(id);
+            for(int o : offsets) out.writeInt(o);
+            for(int id : ids)
+                for(int c : vGrid.getVoxel(id).getCounts()) out.writeInt(c);
+            for(int id : ids) out.writeInt(vGrid.getVoxel(id).getMask());
+        }
+
+        Stats.printElapsedTime(start, "..index written: " + n + " points, " + ids.length + " voxels");
+    }
+
+    /**
+     * open file if it has been written for these inputs
+     * @return the index or null if file is missing or stale
+     * @throws IOException
+     */
+    public static VoxelIndex open(File file, File photo, File lidar, float voxelSide, JSONObject config) throws IOException {
+        if(!file.exists()) return null;
+
+        System.out.println("\nopening index " + file.getPath());
+        long start = System.currentTimeMillis();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 12));
+            if(head.limit() < 12 || head.getInt() != MAGIC || head.getInt() != VERSION) {
+                System.out.println("..not an index file of this version");
+                return null;
+            }
+            int headerLength = head.getInt();
+
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(
+                    bufferBytes(channel.map(FileChannel.MapMode.READ_ONLY, 12, headerLength))));
+            if(!header.readUTF().equals(signature(photo, lidar, voxelSide, config))) {
+                System.out.println("..index written for other inputs, voxelSide or config");
+                return null;
+            }
+
+            VoxelIndex index = new VoxelIndex();
+            index.voxelSide = header.readFloat();
+            Point[] p = new Point[3];
+            for(int i = 0; i < 3; i++)
+                p[i] = new Point(header.readDouble(), header.readDouble(), header.readDouble());
+            index.bbox = new BBox(p[0], p[1]);
+            index.coordShift = p[2];
+            index.numPoints = header.readInt();
+            index.nVoxels = header.readInt();
+            index.maxProps = header.readInt();
+            index.properties = new String[FileType.values().length][];
+            for(int f = 0; f < index.properties.length; f++) {
+                index.properties[f] = new String[header.readInt()];
+                for(int t = 0; t < index.properties[f].length; t++) index.properties[f][t] = header.readUTF();
+            }
+            index.propsStats = new TreeMap<>();
+            for(int s = header.readInt(); s > 0; s--)
+                index.propsStats.put(header.readUTF(), header.readDouble());
+
+            index.lattice = new VoxelGrid(index.bbox, index.voxelSide);
+            index.size = index.lattice.getSize();
+
+            // columns, each one in its own chunked mapping
+            long offset = (12L + headerLength + 7) & ~7L;
+            int n = index.numPoints, nv = index.nVoxels;
+            long nProps = (long)n * index.maxProps;
+            long[] lengths = {8L * n, 8L * n, 8L * n, 8L * n, 8 * nProps, 8 * nProps, 4L * n, 12L * n, 4L * n,
+                    4L * nv, 4L * (nv + 1), 4L * nv * VoxelCounts.SLOTS, 4L * nv};
+            long end = offset;
+            for(long length : lengths) end += length;
+            if(end != channel.size())
+                throw new IOException("truncated index " + file.getPath());
+
+            Column[] c = new Column[lengths.length];
+            for(int i = 0; i < lengths.length; i++) {
+                c[i] = new Column(channel, offset, lengths[i]);
+                offset += lengths[i];
+            }
+
+            index.x = c[0]; index.y = c[1]; index.z = c[2]; index.score = c[3];
+            index.props = c[4]; index.normProps = c[5]; index.threshold = c[6];
+            index.rgb = c[7]; index.info = c[8];
+            index.voxelIds = c[9]; index.offsets = c[10]; index.counts = c[11]; index.masks = c[12];
+
+            Stats.printElapsedTime(start, "..index opened: " + n + " points, " + nv + " voxels");
+            return index;
+        }
+    }
+
+    private static byte[] bufferBytes(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param location shifted coordinates
+     * @return voxel id or -1 if outside the grid
+     */
+    public int getVoxelId(Point location){
+        return lattice.getVoxelId(location);
+    }
+
+    /**
+     * @return position of voxel in the CSR index or -1 if the voxel has no points
+     */
+    private int find(int voxel){
+        int lo = 0, hi = nVoxels - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1, id = voxelIds.getInt(mid);
+            if(id < voxel) lo = mid + 1;
+            else if(id > voxel) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    public int getCount(int voxel, FileType fileType, PointClassification pointType){
+        int k = find(voxel);
+        return (k < 0) ? 0 : counts.getInt((long)k * VoxelCounts.SLOTS + Voxel.slot(fileType, pointType));
+    }
+
+    /**
+     * @return number of fileType points of class pointType
+     */
+    public int getCount(FileType fileType, PointClassification pointType){
+        int s = Voxel.slot(fileType, pointType), count = 0;
+        for(int k = 0; k < nVoxels; k++)
+            count += counts.getInt((long)k * VoxelCounts.SLOTS + s);
+        return count;
+    }
+
+    /**
+     * @return ascending ids of the voxels with fileType points of class pointType
+     */
+    public Set<Integer> getVoxels(FileType fileType, PointClassification pointType){
+        int bit = 1 << Voxel.slot(fileType, pointType);
+        Set<Integer> set = new TreeSet<>();
+        for(int k = 0; k < nVoxels; k++)
+            if((masks.getInt(k) & bit) != 0)
+                set.add(voxelIds.getInt(k));
+        return set;
+    }
+
+    /**
+     * points of voxel in chain order, as VoxelGrid.getPoints(fileType, voxelId, pointType)
+     * @return the points or null if the voxel is empty
+     */
+    public List<Point> getPoints(FileType fileType, int voxel, PointClassification pointType){
+        int k = find(voxel);
+        if(k < 0) return null;
+
+        List<Point> list = new ArrayList<>();
+        int code = fileType.ordinal() << 8 | pointType.ordinal();
+        for(int i = offsets.getInt(k); i < offsets.getInt(k + 1); i++)
+            if(info.getInt(i) == code)
+                list.add(getPoint(i));
+        return list;
+    }
+
+    /**
+     * materialize the point at column row i
+     */
+    public Point getPoint(int i){
+        FileType ft = FileType.values()[info.getInt(i) >> 8];
+        int nProps = properties[ft.ordinal()].length;
+
+        Point p = new Point(ft, nProps, x.getDouble(i), y.getDouble(i), z.getDouble(i), rgb.getInt(3L * i), rgb.getInt(3L * i + 1), rgb.getInt(3L * i + 2));
+        p.setClassification(PointClassification.values()[info.getInt(i) & 0xff]);
+        p.setScore(score.getDouble(i));
+        p.setThreshold(threshold.getFloat(i));
+        for(int t = 0; t < nProps; t++) {
+            p.setProp(t, props.getDouble((long)i * maxProps + t));
+            p.setNormProp(t, (float)normProps.getDouble((long)i * maxProps + t));
+        }
+        return p;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.BBox;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import eu.fbk.threedom.structs.VoxelGrid;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * evaluate many voxelSide values on a cloud parsed and scored only once.
+ * Voxel sides that are integer multiples of a smaller one are derived from it
+ * by merging the finer voxels, the others are binned from the points in parallel
+ */
+public class VoxelSweep {
+
+    private static final int COORD_BITS = 21;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+    private List<Point> points;
+    private Point min, max;
+
+    @Getter private float[] voxelSides;
+    @Getter private VoxelGrid[] grids;
+    @Getter private Point[] coordShifts;
+    @Getter private VoxelCounts[] counts;
+
+    // per voxelSide, voxel coordinates key -> counts, see VoxelCounts
+    private List<HashMap<Long, int[]>> cells;
+    // index of the voxelSide a grid has been derived from, -1 if binned from points
+    @Getter private int[] derivedFrom;
+
+    /**
+     * @param pcf a filter created with voxelSide 0 (points shifted by the bounding box min)
+     * @param voxelSides
+     */
+    public VoxelSweep(PcFilter pcf, float[] voxelSides){
+        this.points = pcf.getPoints();
+        this.min = pcf.getCoordShift();
+        this.max = pcf.getBbox().getMax().addPoint(min);
+
+        this.voxelSides = voxelSides.clone();
+        Arrays.sort(this.voxelSides);
+
+        int n = this.voxelSides.length;
+        grids = new VoxelGrid[n];
+        coordShifts = new Point[n];
+        counts = new VoxelCounts[n];
+        // filled by index, the binning runs in parallel
+        cells = new ArrayList<>(Collections.nCopies(n, null));
+        derivedFrom = new int[n];
+
+        for(int i = 0; i < n; i++) {
+            coordShifts[i] = PcFilter.computeCoordShift(min, this.voxelSides[i]);
+            grids[i] = new VoxelGrid(new BBox(min.subPoint(coordShifts[i]), max.subPoint(coordShifts[i])),
+                    this.voxelSides[i]);
+
+            // derive from the largest smaller voxelSide that divides it
+            derivedFrom[i] = -1;
+            for(int j = i - 1; j >= 0; j--) {
+                double ratio = this.voxelSides[i] / this.voxelSides[j];
+                if(Math.abs(ratio - Math.round(ratio)) < 1e-6) { derivedFrom[i] = j; break; }
+            }
+        }
+    }
+
+    public void run(){
+        System.out.println("\nvoxelSide sweep " + Arrays.toString(voxelSides));
+        long start = System.currentTimeMillis();
+
+        // grids binned from points, in parallel
+        List<Integer> binned = new ArrayList<>();
+        for(int i = 0; i < voxelSides.length; i++)
+            if(derivedFrom[i] == -1) binned.add(i);
+        binned.parallelStream().forEach(this::bin);
+
+        // grids derived from the finer ones, in increasing order so that chains resolve
+        for(int i = 0; i < voxelSides.length; i++)
+            if(derivedFrom[i] != -1) derive(i, derivedFrom[i]);
+
+        // voxel coordinates -> voxel ids
+        for(int i = 0; i < voxelSides.length; i++) {
+            counts[i] = new VoxelCounts();
+            for(Map.Entry<Long, int[]> e : cells.get(i).entrySet()) {
+                long key = e.getKey();
+                int id = grids[i].getVoxelId((int)(key & COORD_MASK),
+                        (int)((key >> COORD_BITS) & COORD_MASK), (int)(key >> (2 * COORD_BITS)));
+                if(id != -1) counts[i].add(id, e.getValue());
+            }
+        }
+
+        Stats.printElapsedTime(start, "..voxel grids created");
+    }
+
+    private static long key(int xv, int yv, int zv){
+        return (xv & COORD_MASK) | ((yv & COORD_MASK) << COORD_BITS) | ((long)zv << (2 * COORD_BITS));
+    }
+
+    private void bin(int i){
+        VoxelGrid grid = grids[i];
+        Point offset = min.subPoint(coordShifts[i]);
+        HashMap<Long, int[]> map = new HashMap<>();
+
+        for(Point p : points) {
+            int xv = grid.getVoxelCoord(p.x + offset.x, 0);
+            int yv = grid.getVoxelCoord(p.y + offset.y, 1);
+            int zv = grid.getVoxelCoord(p.z + offset.z, 2);
+
+            int[] c = map.get(key(xv, yv, zv));
+            if(c == null) {
+                c = new int[2 * VoxelCounts.SLOTS];
+                map.put(key(xv, yv, zv), c);
+            }
+
+            int slot = Voxel.slot(p.getType(), p.getClassification());
+            c[slot]++;
+            if(p.getScore() <= p.getThreshold()) c[VoxelCounts.SLOTS + slot]++;
+        }
+
+        cells.set(i, map);
+        System.out.println("..voxelSide " + voxelSides[i] + " binned from points, "
+                + map.size() + " voxels with at least one point");
+    }
+
+    private void derive(int i, int j){
+        int ratio = Math.round(voxelSides[i] / voxelSides[j]);
+        // both shifts are multiples of the finer voxelSide
+        int ox = (int)Math.round((coordShifts[j].x - coordShifts[i].x) / voxelSides[j]);
+        int oy = (int)Math.round((coordShifts[j].y - coordShifts[i].y) / voxelSides[j]);
+        int oz = (int)Math.round((coordShifts[j].z - coordShifts[i].z) / voxelSides[j]);
+
+        HashMap<Long, int[]> map = new HashMap<>();
+        for(Map.Entry<Long, int[]> e : cells.get(j).entrySet()) {
+            long key = e.getKey();
+            int xv = ((int)(key & COORD_MASK) + ox) / ratio;
+            int yv = ((int)((key >> COORD_BITS) & COORD_MASK) + oy) / ratio;
+            int zv = ((int)(key >> (2 * COORD_BITS)) + oz) / ratio;
+
+            int[] c = map.get(key(xv, yv, zv));
+            if(c == null) {
+                c = new int[2 * VoxelCounts.SLOTS];
+                map.put(key(xv, yv, zv), c);
+            }
+
+            int[] fine = e.getValue();
+            for(int s = 0; s < c.length; s++)
+                c[s] += fine[s];
+        }
+
+        cells.set(i, map);
+        System.out.println("..voxelSide " + voxelSides[i] + " derived from voxelSide " + voxelSides[j] + ", "
+                + map.size() + " voxels with at least one point");
+    }
+
+    /**
+     * id of the voxel containing p in the grid of voxelSides[i]
+     * @param i
+     * @param p a point of the sweep cloud
+     * @return
+     */
+    public int getVoxelId(int i, Point p){
+        Point offset = min.subPoint(coordShifts[i]);
+        return grids[i].getVoxelId(p.x + offset.x, p.y + offset.y, p.z + offset.z);
+    }
+
+    /**
+     * points of the selected voxels, grouped by voxel in increasing id order
+     * @param i
+     * @param voxels
+     * @param scoreCheck keep only points with score <= threshold
+     * @return
+     */
+    public List<Point> getPoints(int i, Set<Integer> voxels, boolean scoreCheck){
+        Point offset = min.subPoint(coordShifts[i]);
+        TreeMap<Integer, List<Point>> selected = new TreeMap<>();
+
+        for(Point p : points) {
+            if(scoreCheck && p.getScore() > p.getThreshold()) continue;
+
+            int id = grids[i].getVoxelId(p.x + offset.x, p.y + offset.y, p.z + offset.z);
+            if(!voxels.contains(id)) continue;
+
+            selected.computeIfAbsent(id, k -> new ArrayList<>()).add(p);
+        }
+
+        List<Point> list = new ArrayList<>();
+        for(List<Point> l : selected.values())
+            list.addAll(l);
+
+        return list;
+    }
+}
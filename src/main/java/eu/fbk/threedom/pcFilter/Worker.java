@@ -0,0 +1,168 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.BBox;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.utils.BlockWriter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * tile worker of the Coordinator: connects to the coordinator, receives the shared state
+ * (bounding box, shift vector, headers, config, statistics) and processes the tile jobs
+ * reading the tile files from the shared storage.
+ *
+ * Usage: java -cp hyRe.jar eu.fbk.threedom.pcFilter.Worker coordinator_host port
+ */
+public class Worker {
+
+    private Socket socket;
+    private BufferedReader in;
+    private PrintWriter out;
+
+    private PcFilter pcf;
+    private TiledFilter tiledFilter;
+
+    public Worker(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")));
+    }
+
+    public void run() throws IOException {
+        String line;
+        while((line = in.readLine()) != null) {
+            JSONObject msg = new JSONObject(line);
+
+            switch (msg.getString("type")) {
+                case "init": init(msg); reply(new JSONObject().put("type", "ready")); break;
+                case "statistics": statistics(msg); reply(new JSONObject().put("type", "ready")); break;
+                case "density": reply(density(msg.getInt("tile"))); break;
+                case "filter": reply(filter(msg.getInt("tile"), msg.getInt("attempt"))); break;
+                case "quit": socket.close(); return;
+            }
+        }
+    }
+
+    private void reply(JSONObject msg){
+        out.println(msg.toString());
+        out.flush();
+    }
+
+    private void init(JSONObject msg){
+        BBox bbox = new BBox(toPoint(msg.getJSONArray("bboxMin")), toPoint(msg.getJSONArray("bboxMax")));
+        pcf = new PcFilter(bbox, toPoint(msg.getJSONArray("coordShift")), (float)msg.getDouble("voxelSide"),
+                msg.getJSONObject("config"));
+
+        JSONArray headers = msg.getJSONArray("headers");
+        for(FileType ft : FileType.values())
+            if(!headers.getString(ft.ordinal()).isEmpty())
+                pcf.parseHeader(headers.getString(ft.ordinal()), ft);
+
+        statistics(msg);
+        tiledFilter = new TiledFilter(pcf, msg.getInt("tileVoxels"), new File(msg.getString("tileDir")));
+    }
+
+    private void statistics(JSONObject msg){
+        JSONObject stats = msg.getJSONObject("propsStats");
+        for(String key : stats.keySet())
+            pcf.getPropsStats().put(key, stats.getDouble(key));
+
+        if(msg.has("densityMeans")) {
+            JSONArray rows = msg.getJSONArray("densityMeans");
+            float[][] means = new float[rows.length()][];
+            for(int i = 0; i < rows.length(); i++) {
+                JSONArray row = rows.getJSONArray(i);
+                means[i] = new float[row.length()];
+                for(int j = 0; j < row.length(); j++)
+                    means[i][j] = (float)row.getDouble(j);
+            }
+            tiledFilter.setDensityMeans(means);
+        }
+    }
+
+    private JSONObject density(int tile) throws IOException {
+        // squared distances of this tile only
+        for(String key : pcf.getPropsStats().keySet())
+            if(key.endsWith("_std")) pcf.getPropsStats().put(key, 0d);
+
+        long[] densitySum = new long[tiledFilter.getDensitySum().length];
+        int[] densityVoxels = new int[tiledFilter.getDensityVoxels().length];
+        int voxels = tiledFilter.densityTile(tile, densitySum, densityVoxels);
+
+        JSONObject std = new JSONObject();
+        for(String key : pcf.getPropsStats().keySet())
+            if(key.endsWith("_std")) std.put(key, pcf.getPropsStats().get(key));
+
+        return new JSONObject()
+                .put("type", "density")
+                .put("tile", tile)
+                .put("std", std)
+                .put("densitySum", new JSONArray(densitySum))
+                .put("densityVoxels", new JSONArray(densityVoxels))
+                .put("voxels", voxels);
+    }
+
+    private JSONObject filter(int tile, int attempt) throws IOException {
+        File tileDir = tiledFilter.getTileDir();
+        BlockWriter[] filteredOut = TiledFilter.openOutput(Coordinator.fragmentFiles(tileDir, tile, attempt, "filtered"));
+        BlockWriter[] scoredOut = null;
+        int[] counts;
+        try {
+            scoredOut = TiledFilter.openOutput(Coordinator.fragmentFiles(tileDir, tile, attempt, "scored"));
+            counts = tiledFilter.filterTile(tile, filteredOut, scoredOut);
+
+            TiledFilter.closeOutput(filteredOut);
+            TiledFilter.closeOutput(scoredOut);
+        } finally {
+            TiledFilter.abortOutput(filteredOut);
+            if(scoredOut != null) TiledFilter.abortOutput(scoredOut);
+        }
+
+        return new JSONObject()
+                .put("type", "filter")
+                .put("tile", tile)
+                .put("attempt", attempt)
+                .put("counts", new JSONArray(counts));
+    }
+
+    private static Point toPoint(JSONArray a){
+        return new Point(a.getDouble(0), a.getDouble(1), a.getDouble(2));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: Worker coordinator_host port");
+            System.exit(1);
+        }
+
+        new Worker(args[0], Integer.parseInt(args[1])).run();
+    }
+}
@@ -108,7 +108,6 @@ public class PcNorm {
 
             // arrays of properties names
             this.properties = Arrays.copyOfRange(token, REQUIRED_PARAMS_COUNT, token.length); // cut "x y z r g b class"
-            fileType.setProps(properties);
             this.header = token;
 
             //if(Main.DEBUG) {
@@ -139,7 +138,8 @@ public class PcNorm {
 
                 // X Y Z R G B Class
                 p = new Point(
-                        FileType.PHOTOGRAMMETRIC, Float.parseFloat(token[0]) - this.min.getX(), // x
+                        FileType.PHOTOGRAMMETRIC, properties.length,
+                        Float.parseFloat(token[0]) - this.min.getX(), // x
                         Float.parseFloat(token[1]) - this.min.getY(), // y
                         Float.parseFloat(token[2]) - this.min.getZ(), // z
                         Integer.parseInt(token[3]),
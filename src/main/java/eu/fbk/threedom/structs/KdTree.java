@@ -0,0 +1,416 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+/**
+ * static implicit KD-tree over xyz coordinate columns. The points are reordered so that
+ * the node of the range [lo, hi) is the median position (lo + hi) / 2, split along the
+ * largest extent of the range: no node objects, children are the two half ranges.
+ * Each point has a bit mask (fileType/class slot, and the same slot shifted by SLOTS if its
+ * score is within the threshold), each node the OR of the masks of its subtree, so that
+ * filtered queries skip the subtrees without matching points.
+ *
+ * Queries use per thread scratch buffers and can run concurrently.
+ */
+public class KdTree {
+
+    // subtrees larger than this are built in parallel
+    private static final int PARALLEL_BUILD = 1 << 14;
+    // queries of a parallel batch task
+    private static final int BATCH = 1024;
+
+    @Getter private final int size;
+    // coordinates in tree order
+    private final double[] coords;
+    // input index of each tree position
+    private final int[] ids;
+    private final int[] bits;
+    private final int[] nodeMask;
+    private final byte[] splitDim;
+
+    private final ForkJoinPool pool;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * bounded max heap of the k nearest candidates
+     */
+    private static class Scratch {
+        double[] dist2 = new double[16];
+        int[] pos = new int[16];
+        int size, k;
+
+        void reset(int k){
+            if(dist2.length < k) {
+                dist2 = new double[k];
+                pos = new int[k];
+            }
+            this.k = k;
+            size = 0;
+        }
+
+        double worst(){
+            return (size < k) ? Double.POSITIVE_INFINITY : dist2[0];
+        }
+
+        void offer(int p, double d2){
+            if(size < k) {
+                int i = size++;
+                // sift up
+                while(i > 0 && dist2[(i - 1) >> 1] < d2) {
+                    dist2[i] = dist2[(i - 1) >> 1]; pos[i] = pos[(i - 1) >> 1];
+                    i = (i - 1) >> 1;
+                }
+                dist2[i] = d2; pos[i] = p;
+            } else if(d2 < dist2[0]) {
+                // replace the root and sift down
+                int i = 0;
+                while(true) {
+                    int c = 2 * i + 1;
+                    if(c >= size) break;
+                    if(c + 1 < size && dist2[c + 1] > dist2[c]) c++;
+                    if(dist2[c] <= d2) break;
+                    dist2[i] = dist2[c]; pos[i] = pos[c];
+                    i = c;
+                }
+                dist2[i] = d2; pos[i] = p;
+            }
+        }
+    }
+
+    /**
+     * visitor of the points found by a radius query
+     */
+    public interface IndexVisitor {
+        void visit(int index, double dist2);
+    }
+
+    /**
+     * mask of a point, see the class comment
+     */
+    public static int pointBits(FileType fileType, PointClassification pointType, boolean scorePassed){
+        int slot = Voxel.slot(fileType, pointType);
+        return 1 << slot | (scorePassed ? 1 << (slot + VoxelCounts.SLOTS) : 0);
+    }
+
+    /**
+     * mask matched by the points accepted by filter
+     */
+    public static int queryMask(PointFilter filter){
+        return filter.isScoreCheck() ? filter.getSlotMask() << VoxelCounts.SLOTS : filter.getSlotMask();
+    }
+
+    /**
+     * @param xyz x, y, z of each point, not modified
+     * @param bits mask of each point, see pointBits
+     * @param threads build and batch query threads
+     */
+    public KdTree(double[] xyz, int[] bits, int threads){
+        this.size = xyz.length / 3;
+        if(bits.length != size)
+            throw new IllegalArgumentException("one mask for each of the " + size + " points expected");
+
+        this.coords = xyz.clone();
+        this.bits = bits.clone();
+        this.ids = new int[size];
+        for(int i = 0; i < size; i++) ids[i] = i;
+        this.nodeMask = new int[size];
+        this.splitDim = new byte[size];
+
+        this.pool = new ForkJoinPool(threads);
+        pool.invoke(new Build(0, size));
+    }
+
+    /**
+     * tree over points, indices refer to the list order
+     * @param points
+     * @param threads
+     * @return
+     */
+    public static KdTree build(List<Point> points, int threads){
+        double[] xyz = new double[3 * points.size()];
+        int[] bits = new int[points.size()];
+        for(int i = 0; i < points.size(); i++) {
+            Point p = points.get(i);
+            xyz[3 * i] = p.x; xyz[3 * i + 1] = p.y; xyz[3 * i + 2] = p.z;
+            bits[i] = pointBits(p.getType(), p.getClassification(), p.getScore() <= p.getThreshold());
+        }
+        return new KdTree(xyz, bits, threads);
+    }
+
+    public void shutdown(){
+        pool.shutdown();
+    }
+
+    private class Build extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi;
+
+        Build(int lo, int hi){ this.lo = lo; this.hi = hi; }
+
+        @Override
+        protected void compute(){
+            if(hi - lo <= 0) return;
+
+            int m = split(lo, hi);
+            if(hi - lo > PARALLEL_BUILD)
+                invokeAll(new Build(lo, m), new Build(m + 1, hi));
+            else {
+                new Build(lo, m).compute();
+                new Build(m + 1, hi).compute();
+            }
+
+            nodeMask[m] = bits[m] | mask(lo, m) | mask(m + 1, hi);
+        }
+    }
+
+    private int mask(int lo, int hi){
+        return (hi > lo) ? nodeMask[(lo + hi) >>> 1] : 0;
+    }
+
+    /**
+     * choose the split dimension of [lo, hi) and move its median to the middle
+     * @return the median position
+     */
+    private int split(int lo, int hi){
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for(int i = lo; i < hi; i++)
+            for(int d = 0; d < 3; d++) {
+                double c = coords[3 * i + d];
+                if(c < min[d]) min[d] = c;
+                if(c > max[d]) max[d] = c;
+            }
+
+        int dim = 0;
+        for(int d = 1; d < 3; d++)
+            if(max[d] - min[d] > max[dim] - min[dim]) dim = d;
+
+        int m = (lo + hi) >>> 1;
+        select(lo, hi - 1, m, dim);
+        splitDim[m] = (byte)dim;
+        return m;
+    }
+
+    /**
+     * quickselect: position k of [left, right] gets the k-th coordinate dim,
+     * smaller or equal ones before it, greater or equal ones after it
+     */
+    private void select(int left, int right, int k, int dim){
+        while(right > left) {
+            // median of three pivot
+            int mid = (left + right) >>> 1;
+            if(c(mid, dim) < c(left, dim)) swap(mid, left);
+            if(c(right, dim) < c(left, dim)) swap(right, left);
+            if(c(right, dim) < c(mid, dim)) swap(right, mid);
+            double pivot = c(mid, dim);
+
+            int i = left, j = right;
+            while(i <= j) {
+                while(c(i, dim) < pivot) i++;
+                while(c(j, dim) > pivot) j--;
+                if(i <= j) swap(i++, j--);
+            }
+
+            if(k <= j) right = j;
+            else if(k >= i) left = i;
+            else return;
+        }
+    }
+
+    private double c(int i, int dim){
+        return coords[3 * i + dim];
+    }
+
+    private void swap(int i, int j){
+        for(int d = 0; d < 3; d++) {
+            double t = coords[3 * i + d];
+            coords[3 * i + d] = coords[3 * j + d];
+            coords[3 * j + d] = t;
+        }
+        int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+        t = bits[i]; bits[i] = bits[j]; bits[j] = t;
+    }
+
+    /**
+     * k nearest points accepted by filter
+     * @param x
+     * @param y
+     * @param z
+     * @param k
+     * @param filter
+     * @param indices output, input indices of the points sorted by distance
+     * @param dist2 output, squared distances
+     * @param offset first output position
+     * @return number of points found (less than k if the filter accepts fewer points)
+     */
+    public int knn(double x, double y, double z, int k, PointFilter filter, int[] indices, double[] dist2, int offset){
+        Scratch s = SCRATCH.get();
+        s.reset(k);
+        knn(0, size, x, y, z, queryMask(filter), s);
+
+        // heap sort of the candidates, farthest extracted first
+        int found = s.size;
+        for(int n = found; n > 0; n--) {
+            indices[offset + n - 1] = ids[s.pos[0]];
+            dist2[offset + n - 1] = s.dist2[0];
+
+            int lastPos = s.pos[n - 1];
+            double last = s.dist2[n - 1];
+            s.size = n - 1;
+            int i = 0;
+            while(true) {
+                int c = 2 * i + 1;
+                if(c >= s.size) break;
+                if(c + 1 < s.size && s.dist2[c + 1] > s.dist2[c]) c++;
+                if(s.dist2[c] <= last) break;
+                s.dist2[i] = s.dist2[c]; s.pos[i] = s.pos[c];
+                i = c;
+            }
+            if(s.size > 0) { s.dist2[i] = last; s.pos[i] = lastPos; }
+        }
+
+        return found;
+    }
+
+    private void knn(int lo, int hi, double x, double y, double z, int qmask, Scratch s){
+        if(hi <= lo) return;
+        int m = (lo + hi) >>> 1;
+        if((nodeMask[m] & qmask) == 0) return;
+
+        if((bits[m] & qmask) != 0) {
+            double dx = coords[3 * m] - x, dy = coords[3 * m + 1] - y, dz = coords[3 * m + 2] - z;
+            s.offer(m, dx * dx + dy * dy + dz * dz);
+        }
+
+        int dim = splitDim[m];
+        double diff = ((dim == 0) ? x : (dim == 1) ? y : z) - coords[3 * m + dim];
+        if(diff < 0) {
+            knn(lo, m, x, y, z, qmask, s);
+            if(diff * diff < s.worst()) knn(m + 1, hi, x, y, z, qmask, s);
+        } else {
+            knn(m + 1, hi, x, y, z, qmask, s);
+            if(diff * diff < s.worst()) knn(lo, m, x, y, z, qmask, s);
+        }
+    }
+
+    /**
+     * nearest point accepted by filter
+     * @return input index of the point or -1 if the filter accepts no point
+     */
+    public int nearest(double x, double y, double z, PointFilter filter){
+        Scratch s = SCRATCH.get();
+        s.reset(1);
+        knn(0, size, x, y, z, queryMask(filter), s);
+        return (s.size == 0) ? -1 : ids[s.pos[0]];
+    }
+
+    /**
+     * visit the points within distance r accepted by filter
+     * @return number of points found
+     */
+    public int radius(double x, double y, double z, double r, PointFilter filter, IndexVisitor visitor){
+        return radius(0, size, x, y, z, r * r, queryMask(filter), visitor);
+    }
+
+    private int radius(int lo, int hi, double x, double y, double z, double r2, int qmask, IndexVisitor visitor){
+        if(hi <= lo) return 0;
+        int m = (lo + hi) >>> 1;
+        if((nodeMask[m] & qmask) == 0) return 0;
+
+        int found = 0;
+        if((bits[m] & qmask) != 0) {
+            double dx = coords[3 * m] - x, dy = coords[3 * m + 1] - y, dz = coords[3 * m + 2] - z;
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if(d2 <= r2) {
+                found++;
+                if(visitor != null) visitor.visit(ids[m], d2);
+            }
+        }
+
+        int dim = splitDim[m];
+        double diff = ((dim == 0) ? x : (dim == 1) ? y : z) - coords[3 * m + dim];
+        if(diff <= 0 || diff * diff <= r2) found += radius(lo, m, x, y, z, r2, qmask, visitor);
+        if(diff >= 0 || diff * diff <= r2) found += radius(m + 1, hi, x, y, z, r2, qmask, visitor);
+
+        return found;
+    }
+
+    /**
+     * k nearest neighbours of many queries, in parallel batches
+     * @param queries x, y, z of each query
+     * @param k
+     * @param filter
+     * @param indices output, k input indices for each query, -1 where fewer points are found
+     * @param dist2 output, k squared distances for each query, infinity where fewer points are found
+     */
+    public void knn(double[] queries, int k, PointFilter filter, int[] indices, double[] dist2){
+        int n = queries.length / 3;
+        run((n + BATCH - 1) / BATCH, b -> {
+            for(int q = b * BATCH, end = Math.min(n, q + BATCH); q < end; q++) {
+                int found = knn(queries[3 * q], queries[3 * q + 1], queries[3 * q + 2], k, filter, indices, dist2, q * k);
+                for(int i = found; i < k; i++) {
+                    indices[q * k + i] = -1;
+                    dist2[q * k + i] = Double.POSITIVE_INFINITY;
+                }
+            }
+        });
+    }
+
+    /**
+     * number of points within distance r of many queries, in parallel batches
+     * @param queries x, y, z of each query
+     * @param r
+     * @param filter
+     * @param counts output, one count for each query
+     */
+    public void radius(double[] queries, double r, PointFilter filter, int[] counts){
+        int n = queries.length / 3;
+        run((n + BATCH - 1) / BATCH, b -> {
+            for(int q = b * BATCH, end = Math.min(n, q + BATCH); q < end; q++)
+                counts[q] = radius(queries[3 * q], queries[3 * q + 1], queries[3 * q + 2], r, filter, null);
+        });
+    }
+
+    private void run(int tasks, java.util.function.IntConsumer task){
+        try {
+            pool.submit(() -> IntStream.range(0, tasks).parallel().forEach(task)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
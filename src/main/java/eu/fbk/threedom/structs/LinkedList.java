@@ -34,10 +34,13 @@ package eu.fbk.threedom.structs;
 public class LinkedList implements LinkedListInterface {
 
     private LlNode head;
+    // last node added with addAtEnd, null if the list has been built only with addAtBeginning
+    private LlNode tail;
 
     public LinkedList(){ }
 
     public LlNode head(){return head;}
+    public LlNode tail(){return tail;}
 
     @Override
     public void addAtBeginning(Object o) {
@@ -56,6 +59,9 @@ public class LinkedList implements LinkedListInterface {
         // if ll is empty set newNode as head
         if(head == null)
             head = newNode;
+        else if(tail != null)
+            // appending after the last appended node, no traversal
+            tail.setNext(newNode);
         else {
             // traverse till ending node
             LlNode n = head;
@@ -64,6 +70,8 @@ public class LinkedList implements LinkedListInterface {
             // set new node as its next
             n.setNext(newNode);
         }
+
+        tail = newNode;
     }
 
     @Override
@@ -73,6 +81,7 @@ public class LinkedList implements LinkedListInterface {
         while(n != null){ // traverse starting from head
             LlNode next = n.next();
             if(n.value().equals(o)){  // if we need to remove n
+                if(n == tail) tail = prev;
                 if(n == head) { // if we are removing head
                     head = next;
                     n = null;
@@ -87,7 +96,7 @@ public class LinkedList implements LinkedListInterface {
     }
 
     @Override
-    public void clear() { head = null; }
+    public void clear() { head = null; tail = null; }
 
     @Override
     public String toString(){
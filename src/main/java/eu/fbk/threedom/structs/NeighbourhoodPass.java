@@ -0,0 +1,157 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * parallel pass over the occupied voxels of a fileType for per point neighbourhood
+ * attributes. The task of a voxel gets its points and, once, the coordinates of the
+ * candidate neighbours of the fileType inside their bounding box enlarged by a margin
+ * (with the voxel side as margin, the 27 voxel neighbourhood), so that the neighbour
+ * searches of the points of a voxel share one gather and stay cache local.
+ *
+ * Points are numbered voxel by voxel in ascending voxel order (see getPoints), the task
+ * of a voxel writes the results of its points from index first on.
+ */
+public class NeighbourhoodPass {
+
+    /**
+     * work on the points of one voxel
+     */
+    public interface VoxelTask {
+        /**
+         * @param first index of the first point of the voxel
+         * @param points points of the voxel
+         * @param candidates xyz of the candidate neighbours, the points of the voxel included
+         * @param nCandidates
+         */
+        void run(int first, List<Point> points, double[] candidates, int nCandidates);
+    }
+
+    @Getter private final VoxelGrid grid;
+    private final FileType fileType;
+    // points of the fileType
+    @Getter private final PointFilter filter;
+
+    // ascending occupied voxels and index of their first point
+    private final int[] voxels, firsts;
+    @Getter private final List<Point> points;
+
+    public NeighbourhoodPass(VoxelGrid grid, FileType fileType){
+        this.grid = grid;
+        this.fileType = fileType;
+        this.filter = new PointFilter(fileType, null, false);
+
+        voxels = grid.getVoxels(fileType).stream().mapToInt(Integer::intValue).sorted().toArray();
+        firsts = new int[voxels.length];
+        points = new ArrayList<>();
+        for(int s = 0; s < voxels.length; s++) {
+            firsts[s] = points.size();
+            points.addAll(grid.getPoints(fileType, voxels[s]));
+        }
+    }
+
+    /**
+     * run task on every voxel, in parallel
+     * @param margin enlargement of the points bounding box of each voxel
+     * @param threads
+     * @param task
+     */
+    public void run(double margin, int threads, VoxelTask task){
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, voxels.length).parallel().forEach(s -> {
+                int first = firsts[s];
+                int last = (s + 1 < voxels.length) ? firsts[s + 1] : points.size();
+                List<Point> own = points.subList(first, last);
+
+                Point min = new Point(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
+                Point max = new Point(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+                for(Point p : own) {
+                    min.move(Math.min(min.x, p.x), Math.min(min.y, p.y), Math.min(min.z, p.z));
+                    max.move(Math.max(max.x, p.x), Math.max(max.y, p.y), Math.max(max.z, p.z));
+                }
+                min.move(min.x - margin, min.y - margin, min.z - margin);
+                max.move(max.x + margin, max.y + margin, max.z + margin);
+
+                double[][] candidates = {new double[3 * 4 * own.size()]};
+                int[] n = {0};
+                grid.queryBox(min, max, filter, (v, p) -> {
+                    if(3 * n[0] == candidates[0].length)
+                        candidates[0] = Arrays.copyOf(candidates[0], 2 * candidates[0].length);
+                    candidates[0][3 * n[0]] = p.x;
+                    candidates[0][3 * n[0] + 1] = p.y;
+                    candidates[0][3 * n[0] + 2] = p.z;
+                    n[0]++;
+                });
+
+                task.run(first, own, candidates[0], n[0]);
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * k nearest candidates of (x, y, z), by insertion in a sorted buffer
+     * @param candidates
+     * @param n number of candidates
+     * @param k
+     * @param indices output, candidate index of the neighbours by increasing distance
+     * @param dist2 output, their squared distances
+     * @return number of neighbours found, at most k
+     */
+    public static int nearest(double[] candidates, int n, double x, double y, double z,
+                              int k, int[] indices, double[] dist2){
+        int found = 0;
+        for(int c = 0; c < n; c++) {
+            double dx = candidates[3 * c] - x, dy = candidates[3 * c + 1] - y, dz = candidates[3 * c + 2] - z;
+            double d2 = dx * dx + dy * dy + dz * dz;
+            if(found == k && d2 >= dist2[k - 1]) continue;
+
+            int i = (found < k) ? found++ : k - 1;
+            while(i > 0 && dist2[i - 1] > d2) {
+                dist2[i] = dist2[i - 1];
+                indices[i] = indices[i - 1];
+                i--;
+            }
+            dist2[i] = d2;
+            indices[i] = c;
+        }
+        return found;
+    }
+}
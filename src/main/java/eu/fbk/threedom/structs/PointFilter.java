@@ -0,0 +1,75 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+
+/**
+ * fileType, class and score filter of the range queries. The fileType/class part is a
+ * mask of Voxel.slot bits, so that it can be tested against the voxel masks before
+ * visiting their points. Immutable, it can be shared by concurrent queries
+ */
+public class PointFilter {
+
+    public static final PointFilter ALL = new PointFilter(null, null, false);
+
+    private final int slotMask;
+    private final boolean scoreCheck;
+
+    /**
+     * @param fileType null for any fileType
+     * @param pointType null for any class
+     * @param scoreCheck only points with score within their class threshold
+     */
+    public PointFilter(FileType fileType, PointClassification pointType, boolean scoreCheck){
+        int m = 0;
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values())
+                if((fileType == null || ft == fileType) && (pointType == null || pc == pointType))
+                    m |= 1 << Voxel.slot(ft, pc);
+
+        this.slotMask = m;
+        this.scoreCheck = scoreCheck;
+    }
+
+    public int getSlotMask(){ return slotMask; }
+
+    public boolean isScoreCheck(){ return scoreCheck; }
+
+    /**
+     * @param voxelMask mask of a voxel
+     * @return false if the voxel has no point of the filter fileTypes/classes
+     */
+    public boolean acceptsVoxel(int voxelMask){
+        return (voxelMask & slotMask) != 0;
+    }
+
+    public boolean accepts(Point p){
+        return (slotMask & 1 << Voxel.slot(p.getType(), p.getClassification())) != 0
+                && (!scoreCheck || p.getScore() <= p.getThreshold());
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.utils.Stats;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * voxel density smoothed over the 3x3x3 neighbourhood: for each fileType/class slot, the
+ * mean number of points over the voxels of the neighbourhood holding points of the slot.
+ * Empty voxels do not dilute the mean, so voxels on tile or building edges are compared
+ * with the global density mean like the inner ones.
+ *
+ * Dense grids use a separable box filter (x, y then z passes over the count and occupancy
+ * arrays of each slot), sparse grids a stencil over the occupied voxels only. Results of
+ * the occupied voxels are kept, indexed by their position in the ascending list of ids.
+ */
+public class SmoothedDensity {
+
+    private static final int SLOTS = VoxelCounts.SLOTS;
+    // the box filter is used with at least one occupied voxel out of SPARSE_RATIO
+    private static final int SPARSE_RATIO = 8;
+    // and no more voxels than this
+    private static final int DENSE_MAX_VOXELS = 1 << 24;
+
+    private final int[] voxelIds;
+    // density[slot * SLOTS + s]
+    private final float[] density;
+
+    private SmoothedDensity(int[] voxelIds){
+        this.voxelIds = voxelIds;
+        this.density = new float[voxelIds.length * SLOTS];
+    }
+
+    public static SmoothedDensity compute(VoxelGrid grid, int threads){
+        int occupied = grid.getVoxelWithPoints().size();
+        boolean dense = (long)occupied * SPARSE_RATIO >= grid.getSize() && grid.getSize() <= DENSE_MAX_VOXELS;
+
+        return compute(grid, threads, dense);
+    }
+
+    /**
+     * @param dense box filter instead of stencil
+     */
+    public static SmoothedDensity compute(VoxelGrid grid, int threads, boolean dense){
+        System.out.println("\nsmoothed voxel density (" + (dense ? "box filter" : "sparse stencil") + ")");
+        long start = System.currentTimeMillis();
+
+        int[] ids = grid.getVoxelWithPoints().stream().mapToInt(Integer::intValue).sorted().toArray();
+        SmoothedDensity sd = new SmoothedDensity(ids);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if(dense) sd.boxFilter(grid, pool);
+            else pool.submit(() -> IntStream.range(0, ids.length).parallel().forEach(i -> sd.stencil(grid, i))).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        Stats.printElapsedTime(start, "..smoothed density of " + ids.length + " voxels");
+        return sd;
+    }
+
+    private void stencil(VoxelGrid grid, int i){
+        int w = grid.getWidth(), h = grid.getHeight(), d = grid.getDepth();
+        int id = voxelIds[i];
+        int x = id % w, y = (id / w) % h, z = id / (w * h);
+
+        int[] sum = new int[SLOTS], occupied = new int[SLOTS];
+        for(int zz = Math.max(0, z - 1); zz <= Math.min(d - 1, z + 1); zz++)
+            for(int yy = Math.max(0, y - 1); yy <= Math.min(h - 1, y + 1); yy++)
+                for(int xx = Math.max(0, x - 1); xx <= Math.min(w - 1, x + 1); xx++) {
+                    Voxel vox = grid.getVoxel(grid.id(xx, yy, zz));
+                    if(vox == null) continue;
+
+                    int[] c = vox.getCounts();
+                    for(int s = 0; s < SLOTS; s++)
+                        if(c[s] > 0) { sum[s] += c[s]; occupied[s]++; }
+                }
+
+        for(int s = 0; s < SLOTS; s++)
+            density[i * SLOTS + s] = (occupied[s] > 0) ? (float)sum[s] / occupied[s] : 0;
+    }
+
+    private void boxFilter(VoxelGrid grid, ForkJoinPool pool) throws InterruptedException, ExecutionException {
+        int w = grid.getWidth(), h = grid.getHeight(), d = grid.getDepth();
+        int size = w * h * d;
+
+        // per slot counts and occupancy, slot by slot to bound the memory
+        for(int s = 0; s < SLOTS; s++) {
+            float[] sum = new float[size], occupied = new float[size];
+            for(int id : voxelIds) {
+                int c = grid.getVoxel(id).getCounts()[s];
+                if(c > 0) { sum[id] = c; occupied[id] = 1; }
+            }
+
+            for(float[] a : new float[][]{sum, occupied}) {
+                float[] tmp = new float[size];
+                // x rows, y columns, z columns: three 3-tap passes
+                pool.submit(() -> IntStream.range(0, h * d).parallel().forEach(r -> pass(a, tmp, r * w, 1, w))).get();
+                pool.submit(() -> IntStream.range(0, w * d).parallel().forEach(r ->
+                        pass(tmp, a, (r / w) * w * h + r % w, w, h))).get();
+                pool.submit(() -> IntStream.range(0, w * h).parallel().forEach(r -> pass(a, tmp, r, w * h, d))).get();
+                System.arraycopy(tmp, 0, a, 0, size);
+            }
+
+            for(int i = 0; i < voxelIds.length; i++) {
+                int id = voxelIds[i];
+                density[i * SLOTS + s] = (occupied[id] > 0) ? sum[id] / occupied[id] : 0;
+            }
+        }
+    }
+
+    /**
+     * 3-tap box sum along a line of n cells starting at first with the given stride
+     */
+    private static void pass(float[] in, float[] out, int first, int stride, int n){
+        for(int i = 0, k = first; i < n; i++, k += stride) {
+            float v = in[k];
+            if(i > 0) v += in[k - stride];
+            if(i < n - 1) v += in[k + stride];
+            out[k] = v;
+        }
+    }
+
+    /**
+     * @return smoothed density of the fileType/class slot of a voxel, 0 for empty voxels
+     */
+    public float get(int voxelId, FileType fileType, PointClassification pointType){
+        int i = Arrays.binarySearch(voxelIds, voxelId);
+        return (i < 0) ? 0 : density[i * SLOTS + Voxel.slot(fileType, pointType)];
+    }
+}
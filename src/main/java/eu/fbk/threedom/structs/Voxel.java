@@ -23,6 +23,8 @@
  * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
  */
 package eu.fbk.threedom.structs;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.PointClassification;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -32,11 +34,60 @@ public class Voxel {
     @Getter @Setter private LlNode tail;
     @Getter @Setter private int id;
 
+    // number of points for each fileType/class pair, see slot()
+    @Getter private int[] counts;
+    // bit slot() is set if the voxel contains at least one point of that fileType/class
+    @Getter private int mask;
+
     // TODO: hashmap with sums: sum of all points property value ex. intensitySum
 
     public Voxel(int id){
         this.id = id;
         head = null;
         tail = null;
+
+        counts = new int[FileType.values().length * PointClassification.values().length];
+        mask = 0;
+    }
+
+    /**
+     * index of the fileType/class pair inside counts and mask
+     * @param fileType
+     * @param pointType
+     * @return
+     */
+    public static int slot(FileType fileType, PointClassification pointType){
+        return fileType.ordinal() * PointClassification.values().length + pointType.ordinal();
+    }
+
+    /**
+     * mask with all the class bits of the given fileType set
+     * @param fileType
+     * @return
+     */
+    public static int fileTypeMask(FileType fileType){
+        int m = 0;
+        for(PointClassification pc : PointClassification.values())
+            m |= 1 << slot(fileType, pc);
+
+        return m;
+    }
+
+    public void increment(FileType fileType, PointClassification pointType){
+        int s = slot(fileType, pointType);
+        counts[s]++;
+        mask |= 1 << s;
+    }
+
+    public int getCount(FileType fileType, PointClassification pointType){
+        return counts[slot(fileType, pointType)];
+    }
+
+    public int getCount(FileType fileType){
+        int c = 0;
+        for(PointClassification pc : PointClassification.values())
+            c += counts[slot(fileType, pc)];
+
+        return c;
     }
 }
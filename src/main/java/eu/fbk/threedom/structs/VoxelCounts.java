@@ -0,0 +1,252 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * per voxel point counts for each fileType/class pair, with and without the score check.
+ * It is all that the density filters need, so the intersection, filtered and scored filtered
+ * voxel sets can be evaluated without walking the points again
+ */
+public class VoxelCounts {
+
+    public static final int SLOTS = FileType.values().length * PointClassification.values().length;
+
+    // voxel id -> counts[Voxel.slot()] followed by scored counts[SLOTS + Voxel.slot()]
+    @Getter private HashMap<Integer, int[]> counts;
+
+    public VoxelCounts(){
+        counts = new HashMap<>();
+    }
+
+    /**
+     * counts of an existing voxel grid
+     * @param vGrid
+     * @return
+     */
+    public static VoxelCounts fromGrid(VoxelGrid vGrid){
+        VoxelCounts vc = new VoxelCounts();
+
+        for(int id : vGrid.getVoxelWithPoints()) {
+            Voxel vox = vGrid.getVoxel(id);
+
+            LlNode n = vox.getHead();
+            while(n != null) {
+                vc.add(id, (Point)n.value());
+
+                // exit condition
+                if(!n.hasNext() || n == vox.getTail()) break;
+                n = n.next();
+            }
+        }
+
+        return vc;
+    }
+
+    public void add(int voxelId, Point p){
+        add(voxelId, p.getType(), p.getClassification(), p.getScore() <= p.getThreshold(), 1);
+    }
+
+    public void add(int voxelId, FileType fileType, PointClassification pointType, boolean scorePassed, int n){
+        int[] c = counts.get(voxelId);
+        if(c == null) {
+            c = new int[2 * SLOTS];
+            counts.put(voxelId, c);
+        }
+
+        int slot = Voxel.slot(fileType, pointType);
+        c[slot] += n;
+        if(scorePassed) c[SLOTS + slot] += n;
+    }
+
+    /**
+     * add all the counts of a voxel at once
+     * @param voxelId
+     * @param voxelCounts 2 * SLOTS values, counts followed by scored counts
+     */
+    public void add(int voxelId, int[] voxelCounts){
+        int[] c = counts.get(voxelId);
+        if(c == null) {
+            counts.put(voxelId, voxelCounts.clone());
+            return;
+        }
+
+        for(int i = 0; i < c.length; i++)
+            c[i] += voxelCounts[i];
+    }
+
+    public void merge(VoxelCounts other){
+        for(Map.Entry<Integer, int[]> e : other.counts.entrySet())
+            add(e.getKey(), e.getValue());
+    }
+
+    public int size(){ return counts.size(); }
+
+    public int getCount(int voxelId, FileType fileType, PointClassification pointType){
+        int[] c = counts.get(voxelId);
+        return (c == null) ? 0 : c[Voxel.slot(fileType, pointType)];
+    }
+
+    public int getScoredCount(int voxelId, FileType fileType, PointClassification pointType){
+        int[] c = counts.get(voxelId);
+        return (c == null) ? 0 : c[SLOTS + Voxel.slot(fileType, pointType)];
+    }
+
+    public int getCount(int voxelId, FileType fileType){
+        int sum = 0;
+        for(PointClassification pc : PointClassification.values())
+            sum += getCount(voxelId, fileType, pc);
+
+        return sum;
+    }
+
+    /**
+     * mean number of points of fileType/class over the voxels containing at least one of them
+     * @param fileType
+     * @param pointType
+     * @return
+     */
+    public float densityMean(FileType fileType, PointClassification pointType){
+        int slot = Voxel.slot(fileType, pointType);
+        int sum = 0, n = 0;
+
+        for(int[] c : counts.values())
+            if(c[slot] > 0) { sum += c[slot]; n++; }
+
+        return (n > 0) ? (float)sum / n : 0;
+    }
+
+    public float densityStd(FileType fileType, PointClassification pointType){
+        int slot = Voxel.slot(fileType, pointType);
+        float mean = densityMean(fileType, pointType);
+        float std = 0;
+        int n = 0;
+
+        for(int[] c : counts.values())
+            if(c[slot] > 0) { std += Math.pow((c[slot] - mean), 2); n++; }
+
+        return (n > 0) ? (float)Math.sqrt(std / n) : 0;
+    }
+
+    /**
+     * matrix [fileType][class] of density means
+     * @return
+     */
+    public float[][] densityMeans(){
+        float[][] means = new float[FileType.values().length][PointClassification.values().length];
+        for(FileType ft : FileType.values())
+            for(PointClassification pc : PointClassification.values())
+                means[ft.ordinal()][pc.ordinal()] = densityMean(ft, pc);
+
+        return means;
+    }
+
+    /**
+     * voxels containing both photogrammetric and lidar points
+     * @return
+     */
+    public Set<Integer> getIntersection(){
+        Set<Integer> result = new TreeSet<>();
+
+        for(int v : counts.keySet())
+            if(getCount(v, FileType.PHOTOGRAMMETRIC) > 0 && getCount(v, FileType.LIDAR) > 0)
+                result.add(v);
+
+        return result;
+    }
+
+    /**
+     * intersection voxels where at least one class for both filetypes -> voxel density >= voxel density mean
+     * @param intersection
+     * @return
+     */
+    public Set<Integer> getFiltered(Set<Integer> intersection){
+        return getFiltered(intersection, densityMeans());
+    }
+
+    public Set<Integer> getFiltered(Set<Integer> intersection, float[][] means){
+        return getFiltered(intersection, means, null);
+    }
+
+    /**
+     * @param density densities compared with the means instead of the voxel counts, null for the counts
+     */
+    public Set<Integer> getFiltered(Set<Integer> intersection, float[][] means, SmoothedDensity density){
+        Set<Integer> result = new TreeSet<>();
+
+        for(int v : intersection) {
+            int[] c = counts.get(v);
+            if(c == null) continue;
+
+            for(PointClassification pc : PointClassification.values()) {
+                boolean passed = true;
+                for(FileType ft : FileType.values()) {
+                    float mean = means[ft.ordinal()][pc.ordinal()];
+                    float value = (density != null) ? density.get(v, ft, pc) : c[Voxel.slot(ft, pc)];
+                    if(mean == 0 || value < mean) { passed = false; break; }
+                }
+
+                if(passed) { result.add(v); break; }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * filtered voxels where at least one class for both filetypes -> points passing
+     * the score threshold >= voxel density mean
+     * @param filtered
+     * @return
+     */
+    public Set<Integer> getScoredFiltered(Set<Integer> filtered){
+        return getScoredFiltered(filtered, densityMeans());
+    }
+
+    public Set<Integer> getScoredFiltered(Set<Integer> filtered, float[][] means){
+        Set<Integer> result = new TreeSet<>();
+
+        for(int v : filtered) {
+            int[] c = counts.get(v);
+            if(c == null) continue;
+
+            for(PointClassification pc : PointClassification.values()) {
+                boolean passed = true;
+                for(FileType ft : FileType.values())
+                    if(c[SLOTS + Voxel.slot(ft, pc)] < means[ft.ordinal()][pc.ordinal()]) { passed = false; break; }
+
+                if(passed) { result.add(v); break; }
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.utils.BlockWriter;
+import eu.fbk.threedom.utils.LinearAlgebra;
+import eu.fbk.threedom.utils.Stats;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * geometric features of the points of each occupied voxel and fileType, computed with one
+ * walk of each voxel chain: count, centroid, covariance, eigenvalues (l1 >= l2 >= l3),
+ * normal (eigenvector of l3, oriented up) and the eigen features
+ * linearity (l1 - l2) / l1, planarity (l2 - l3) / l1, scattering l3 / l1, and the height
+ * range zmax - zmin.
+ *
+ * Features live in primitive arrays indexed by slot * FILE_TYPES + fileType, slot being
+ * the position of the voxel in the ascending list of the occupied voxels. Voxels with
+ * less than 3 points of a fileType have NaN eigenvalues, normal and eigen features.
+ * Coordinates are in the shifted frame of the grid.
+ */
+public class VoxelFeatures {
+
+    private static final int FILE_TYPES = FileType.values().length;
+
+    // ascending ids of the occupied voxels
+    @Getter private final int[] voxelIds;
+
+    private final int[] count;
+    // x y z
+    private final double[] centroid;
+    // xx xy xz yy yz zz
+    private final float[] covariance;
+    private final float[] eigenvalues;
+    private final float[] normal;
+    private final float[] linearity, planarity, scattering;
+    private final float[] heightRange;
+
+    private VoxelFeatures(int[] voxelIds){
+        this.voxelIds = voxelIds;
+        int n = voxelIds.length * FILE_TYPES;
+
+        count = new int[n];
+        centroid = new double[3 * n];
+        covariance = new float[6 * n];
+        eigenvalues = new float[3 * n];
+        normal = new float[3 * n];
+        linearity = new float[n];
+        planarity = new float[n];
+        scattering = new float[n];
+        heightRange = new float[n];
+    }
+
+    /**
+     * features of all the occupied voxels of the grid, computed in parallel
+     * @param grid
+     * @param threads
+     * @return
+     */
+    public static VoxelFeatures compute(VoxelGrid grid, int threads){
+        System.out.println("\nvoxel features");
+        long start = System.currentTimeMillis();
+
+        int[] ids = grid.getVoxelWithPoints().stream().mapToInt(Integer::intValue).sorted().toArray();
+        VoxelFeatures f = new VoxelFeatures(ids);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, ids.length).parallel().forEach(s -> f.computeVoxel(grid, s))).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        Stats.printElapsedTime(start, "..features of " + ids.length + " voxels");
+        return f;
+    }
+
+    private void computeVoxel(VoxelGrid grid, int slot){
+        Voxel vox = grid.getVoxel(voxelIds[slot]);
+
+        // sums relative to the first point of each fileType, against cancellation
+        double[] ref = new double[3 * FILE_TYPES];
+        double[] sum = new double[3 * FILE_TYPES];
+        double[] sum2 = new double[6 * FILE_TYPES];
+        int[] n = new int[FILE_TYPES];
+        double[] zMin = new double[FILE_TYPES], zMax = new double[FILE_TYPES];
+
+        LlNode node = vox.getHead();
+        while(node != null) {
+            Point p = (Point)node.value();
+            int t = p.getType().ordinal();
+            if(n[t] == 0) {
+                ref[3 * t] = p.x; ref[3 * t + 1] = p.y; ref[3 * t + 2] = p.z;
+                zMin[t] = zMax[t] = p.z;
+            }
+            zMin[t] = Math.min(zMin[t], p.z); zMax[t] = Math.max(zMax[t], p.z);
+
+            double dx = p.x - ref[3 * t], dy = p.y - ref[3 * t + 1], dz = p.z - ref[3 * t + 2];
+            n[t]++;
+            sum[3 * t] += dx; sum[3 * t + 1] += dy; sum[3 * t + 2] += dz;
+            sum2[6 * t] += dx * dx; sum2[6 * t + 1] += dx * dy; sum2[6 * t + 2] += dx * dz;
+            sum2[6 * t + 3] += dy * dy; sum2[6 * t + 4] += dy * dz; sum2[6 * t + 5] += dz * dz;
+
+            // exit condition
+            if(!node.hasNext() || node == vox.getTail()) break;
+            node = node.next();
+        }
+
+        double[][] cov = new double[3][3], vectors = new double[3][3];
+        double[] values = new double[3];
+        for(int t = 0; t < FILE_TYPES; t++) {
+            int k = slot * FILE_TYPES + t;
+            count[k] = n[t];
+            if(n[t] == 0) {
+                Arrays.fill(centroid, 3 * k, 3 * k + 3, Double.NaN);
+                Arrays.fill(covariance, 6 * k, 6 * k + 6, Float.NaN);
+                heightRange[k] = Float.NaN;
+            } else {
+                heightRange[k] = (float)(zMax[t] - zMin[t]);
+                double[] mean = {sum[3 * t] / n[t], sum[3 * t + 1] / n[t], sum[3 * t + 2] / n[t]};
+                for(int a = 0; a < 3; a++) centroid[3 * k + a] = ref[3 * t + a] + mean[a];
+
+                int c = 0;
+                for(int a = 0; a < 3; a++)
+                    for(int b = a; b < 3; b++, c++) {
+                        cov[a][b] = cov[b][a] = sum2[6 * t + c] / n[t] - mean[a] * mean[b];
+                        covariance[6 * k + c] = (float)cov[a][b];
+                    }
+            }
+
+            if(n[t] < 3) {
+                Arrays.fill(eigenvalues, 3 * k, 3 * k + 3, Float.NaN);
+                Arrays.fill(normal, 3 * k, 3 * k + 3, Float.NaN);
+                linearity[k] = planarity[k] = scattering[k] = Float.NaN;
+                continue;
+            }
+
+            // ascending eigenvalues, stored descending
+            LinearAlgebra.jacobiEigen(cov, values, vectors);
+            double l1 = Math.max(values[2], 0), l2 = Math.max(values[1], 0), l3 = Math.max(values[0], 0);
+            eigenvalues[3 * k] = (float)l1; eigenvalues[3 * k + 1] = (float)l2; eigenvalues[3 * k + 2] = (float)l3;
+
+            double sign = (vectors[2][0] < 0) ? -1 : 1;
+            for(int a = 0; a < 3; a++) normal[3 * k + a] = (float)(sign * vectors[a][0]);
+
+            if(l1 > 0) {
+                linearity[k] = (float)((l1 - l2) / l1);
+                planarity[k] = (float)((l2 - l3) / l1);
+                scattering[k] = (float)(l3 / l1);
+            } else
+                linearity[k] = planarity[k] = scattering[k] = Float.NaN;
+        }
+    }
+
+    /**
+     * @param voxelId
+     * @return slot of the voxel, -1 if not occupied
+     */
+    public int slot(int voxelId){
+        int s = Arrays.binarySearch(voxelIds, voxelId);
+        return (s < 0) ? -1 : s;
+    }
+
+    private int index(int voxelId, FileType fileType){
+        int s = slot(voxelId);
+        return (s < 0) ? -1 : s * FILE_TYPES + fileType.ordinal();
+    }
+
+    public int getCount(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? 0 : count[k];
+    }
+
+    /**
+     * @return x y z, null if the voxel is not occupied
+     */
+    public double[] getCentroid(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? null : Arrays.copyOfRange(centroid, 3 * k, 3 * k + 3);
+    }
+
+    /**
+     * @return xx xy xz yy yz zz, null if the voxel is not occupied
+     */
+    public float[] getCovariance(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? null : Arrays.copyOfRange(covariance, 6 * k, 6 * k + 6);
+    }
+
+    /**
+     * @return l1 >= l2 >= l3, null if the voxel is not occupied
+     */
+    public float[] getEigenvalues(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? null : Arrays.copyOfRange(eigenvalues, 3 * k, 3 * k + 3);
+    }
+
+    /**
+     * @return unit normal with non negative z, null if the voxel is not occupied
+     */
+    public float[] getNormal(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? null : Arrays.copyOfRange(normal, 3 * k, 3 * k + 3);
+    }
+
+    public float getLinearity(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? Float.NaN : linearity[k];
+    }
+
+    public float getPlanarity(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? Float.NaN : planarity[k];
+    }
+
+    public float getScattering(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? Float.NaN : scattering[k];
+    }
+
+    /**
+     * @return zmax - zmin, NaN if the voxel holds no points of the fileType
+     */
+    public float getHeightRange(int voxelId, FileType fileType){
+        int k = index(voxelId, fileType);
+        return (k < 0) ? Float.NaN : heightRange[k];
+    }
+
+    /**
+     * write one line for each occupied voxel and fileType with points, centroids in input coordinates
+     * @param out closed when done
+     * @param coordShift
+     * @throws IOException
+     */
+    public void write(Writer out, Point coordShift) throws IOException {
+        BlockWriter writer = new BlockWriter(out);
+        writer.writeLine("// Voxel FileType Count X Y Z Cxx Cxy Cxz Cyy Cyz Czz L1 L2 L3 Nx Ny Nz Linearity Planarity Scattering HeightRange");
+
+        try {
+            double[] shift = {coordShift.getX(), coordShift.getY(), coordShift.getZ()};
+            for(int s = 0; s < voxelIds.length; s++)
+                for(FileType ft : FileType.values()) {
+                    int k = s * FILE_TYPES + ft.ordinal();
+                    if(count[k] == 0) continue;
+
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(voxelIds[s]).append(' ').append(ft).append(' ').append(count[k]);
+                    for(int a = 0; a < 3; a++) sb.append(' ').append(centroid[3 * k + a] + shift[a]);
+                    for(int a = 0; a < 6; a++) sb.append(' ').append(covariance[6 * k + a]);
+                    for(int a = 0; a < 3; a++) sb.append(' ').append(eigenvalues[3 * k + a]);
+                    for(int a = 0; a < 3; a++) sb.append(' ').append(normal[3 * k + a]);
+                    sb.append(' ').append(linearity[k]).append(' ').append(planarity[k]).append(' ').append(scattering[k])
+                            .append(' ').append(heightRange[k]);
+                    writer.writeLine(sb.toString());
+                }
+
+            writer.close();
+        } finally {
+            writer.abort();
+        }
+    }
+}
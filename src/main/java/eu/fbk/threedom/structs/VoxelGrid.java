@@ -28,17 +28,18 @@ import eu.fbk.threedom.pc.BBox;
 import eu.fbk.threedom.pc.FileType;
 import eu.fbk.threedom.pc.Point;
 import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.utils.Stats;
 import lombok.Getter;
 import lombok.Setter;
 
-import javax.vecmath.Vector3d;
 import java.util.*;
+import java.util.function.IntPredicate;
 
 public class VoxelGrid {
 
     private BBox bbox;
     private double voxelSide;
-    private int width, height, depth;
+    @Getter private int width, height, depth;
     private LinkedList points;
     @Getter @Setter private int size;
     @Getter @Setter private double shift;
@@ -49,18 +50,57 @@ public class VoxelGrid {
 
     @Setter @Getter private HashMap<String, Float> propsStats;
 
+    // coarse levels of the voxel pyramid, level 0 is the grid itself
+    // pyramidDims[l] = {width, height, depth}, pyramidMasks[l][cell] = OR of children masks,
+    // pyramidCounts[l][cell * slots + slot] = sum of children counts
+    private List<int[]> pyramidDims;
+    private List<int[]> pyramidMasks;
+    private List<int[]> pyramidCounts;
+    @Getter private int pyramidLevels;
+
+    // per voxel geometric features, computed on first request
+    private VoxelFeatures features;
+    // 3x3x3 smoothed voxel density, computed on first request
+    private SmoothedDensity smoothedDensity;
+
 
     public VoxelGrid(LinkedList points, BBox bbox, double voxelSide){
+        this(bbox, voxelSide);
+        initVoxels(points);
+
+        generateVoxels();
+    }
+
+    /**
+     * lattice only grid: dimensions and voxel ids, no voxels are generated
+     * @param bbox
+     * @param voxelSide
+     */
+    public VoxelGrid(BBox bbox, double voxelSide){
         this.bbox = bbox;
         this.voxelSide = voxelSide;
-        this.points = points;
-        Vector3d bbSize = bbox.size();
 
-        width = (int) (bbSize.x / voxelSide + 1);
-        height = (int) (bbSize.y / voxelSide + 1);
-        depth = (int) (bbSize.z / voxelSide + 1);
+        // the lattice starts at a multiple of voxelSide below the bbox min, so that it
+        // can take one voxel more than the bbox size: cover the voxel of the bbox max
+        width = getVoxelCoord(bbox.getMax().x, 0) + 1;
+        height = getVoxelCoord(bbox.getMax().y, 1) + 1;
+        depth = getVoxelCoord(bbox.getMax().z, 2) + 1;
 
         this.size = width * height * depth;
+        pyramidLevels = 0;
+    }
+
+    /**
+     * allocate the voxel structure, nodes are then added with generateVoxels() or addNode()
+     * @param points
+     */
+    public void initVoxels(LinkedList points){
+        this.points = points;
+
+        System.out.println("\ngenerate voxel structure\n..voxelSide: " + voxelSide);
+        System.out.println("..voxelGrid dimension " + width + " x " + height + " x " + depth);
+        System.out.println("..voxels to generate " + size);
+
         voxels = new Voxel[this.size];
 
         voxelsList = new ArrayList();
@@ -68,51 +108,44 @@ public class VoxelGrid {
             voxelsList.add(new HashSet<Integer>());
 
         voxelWithPoints = new HashSet<>();
+        pyramidLevels = 0;
+        features = null;
+        smoothedDensity = null;
+    }
 
-        generateVoxels();
+    /**
+     * geometric features of the occupied voxels, computed in parallel on the first call
+     * once all the points are added
+     * @param threads
+     * @return
+     */
+    public synchronized VoxelFeatures getFeatures(int threads){
+        if(features == null)
+            features = VoxelFeatures.compute(this, threads);
+
+        return features;
     }
 
-    public void generateVoxels(){
-        System.out.println("\ngenerate voxel structure\n..voxelSide: " + voxelSide);
-        System.out.println("..voxelGrid dimension " + width + " x " + height + " x " + depth);
-        System.out.println("..voxels to generate " + size);
+    /**
+     * density of the voxels smoothed over their 3x3x3 neighbourhood, computed in parallel
+     * on the first call once all the points are added
+     * @param threads
+     * @return
+     */
+    public synchronized SmoothedDensity getSmoothedDensity(int threads){
+        if(smoothedDensity == null)
+            smoothedDensity = SmoothedDensity.compute(this, threads);
+
+        return smoothedDensity;
+    }
 
+    public void generateVoxels(){
         ///////////////////////////////////////////////////////
         // iterate on the linked list and update/create voxels
         ///////////////////////////////////////////////////////
         LlNode n = points.head();
         while(n != null) {
-            Point p = (Point)n.value();
-            int id = getVoxelId(p.x, p.y, p.z);
-
-            if(id != -1) {
-                if(!voxelWithPoints.contains(id)) voxelWithPoints.add(id);
-
-                FileType fileType = p.getType();
-
-                switch (p.getClassification()) {
-                    case C0:
-                        if (fileType.type == 0) voxelsList.get(0).add(id); else voxelsList.get(3).add(id);
-                        break;
-                    case C1:
-                        if (fileType.type == 0) voxelsList.get(1).add(id); else voxelsList.get(4).add(id);
-                        break;
-                    case C2:
-                        if (fileType.type == 0) voxelsList.get(2).add(id); else voxelsList.get(5).add(id);
-                        break;
-                }
-
-                if (id >= 0 && id < this.size) {
-                    if (getVoxel(id) == null) {
-                        Voxel vox = new Voxel(id);
-                        vox.setHead(n);
-                        vox.setTail(n);
-                        setVoxel(id, vox);
-                    } else getVoxel(id).getTail().setNext(n);
-
-                    getVoxel(id).setTail(n);
-                }
-            }
+            addNode(n);
 
             if(!n.hasNext()) break;
             n = n.next();
@@ -129,12 +162,458 @@ public class VoxelGrid {
 //        System.out.println("..voxels with at least one point " + totalSet.size());
     }
 
+    /**
+     * add the point of node n to its voxel, linking it after the voxel tail.
+     * Nodes must be added in list order
+     * @param n
+     */
+    public void addNode(LlNode n){
+        Point p = (Point)n.value();
+        int id = getVoxelId(p.x, p.y, p.z);
+
+        if(id != -1) {
+            if(!voxelWithPoints.contains(id)) voxelWithPoints.add(id);
+
+            FileType fileType = p.getType();
+
+            switch (p.getClassification()) {
+                case C0:
+                    if (fileType.type == 0) voxelsList.get(0).add(id); else voxelsList.get(3).add(id);
+                    break;
+                case C1:
+                    if (fileType.type == 0) voxelsList.get(1).add(id); else voxelsList.get(4).add(id);
+                    break;
+                case C2:
+                    if (fileType.type == 0) voxelsList.get(2).add(id); else voxelsList.get(5).add(id);
+                    break;
+            }
+
+            if (id >= 0 && id < this.size) {
+                if (getVoxel(id) == null) {
+                    Voxel vox = new Voxel(id);
+                    vox.setHead(n);
+                    vox.setTail(n);
+                    setVoxel(id, vox);
+                } else getVoxel(id).getTail().setNext(n);
+
+                getVoxel(id).setTail(n);
+                getVoxel(id).increment(fileType, p.getClassification());
+            }
+        }
+    }
+
+    /**
+     * unlink the points marked as removed from the voxel chains and update the voxel counts,
+     * masks and sets: the nodes are relinked, nothing is copied. The pyramid is rebuilt and
+     * the cached features and densities are dropped. The point list is not walked once
+     * the nodes are in the voxel chains, its walks skip the removed points instead
+     * @return number of points unlinked
+     */
+    public int unlinkRemoved(){
+        int removed = 0;
+
+        for(int id : new ArrayList<>(voxelWithPoints)) {
+            Voxel vox = voxels[id];
+            Voxel kept = new Voxel(id);
+            LlNode last = null;
+
+            LlNode n = vox.getHead();
+            while(n != null) {
+                // exit condition, read before relinking
+                LlNode next = (!n.hasNext() || n == vox.getTail()) ? null : n.next();
+
+                Point p = (Point)n.value();
+                if(p.isRemoved())
+                    removed++;
+                else {
+                    if(last == null) kept.setHead(n);
+                    else last.setNext(n);
+                    last = n;
+                    kept.increment(p.getType(), p.getClassification());
+                }
+
+                n = next;
+            }
+
+            if(last == null) {
+                voxels[id] = null;
+                voxelWithPoints.remove(id);
+            } else {
+                kept.setTail(last);
+                voxels[id] = kept;
+            }
+        }
+
+        for(Set<Integer> set : voxelsList) set.clear();
+        for(int id : voxelWithPoints)
+            for(FileType ft : FileType.values())
+                for(PointClassification pc : PointClassification.values())
+                    if(voxels[id].getCount(ft, pc) > 0) voxelsList.get(Voxel.slot(ft, pc)).add(id);
+
+        if(pyramidLevels > 0) buildPyramid(pyramidLevels);
+        features = null;
+        smoothedDensity = null;
+
+        return removed;
+    }
+
     public int id(int x, int y, int z) {
         return x + (y * width) + (z * width*height);
     }
 
     /**
-     * return the id of the voxel containing the coordinate x, y, z
+     * build a power-of-two pyramid of coarser levels on top of the grid.
+     * Each coarse cell covers 2x2x2 cells of the level below and stores
+     * the OR of their fileType/class masks and the sum of their counts
+     * @param levels number of coarse levels to build (stops earlier if the grid collapses to one cell)
+     */
+    public void buildPyramid(int levels){
+        System.out.println("\ngenerate voxel pyramid\n..levels requested: " + levels);
+        long start = System.currentTimeMillis();
+
+        int slots = FileType.values().length * PointClassification.values().length;
+
+        pyramidDims = new ArrayList<>();
+        pyramidMasks = new ArrayList<>();
+        pyramidCounts = new ArrayList<>();
+        pyramidDims.add(new int[]{width, height, depth});
+        pyramidMasks.add(null); // level 0 masks live inside the voxels
+        pyramidCounts.add(null);
+
+        int w = width, h = height, d = depth;
+        int l;
+        for(l = 1; l <= levels; l++){
+            if(w == 1 && h == 1 && d == 1) break;
+
+            int pw = (w + 1) / 2, ph = (h + 1) / 2, pd = (d + 1) / 2;
+            int[] masks = new int[pw * ph * pd];
+            int[] counts = new int[pw * ph * pd * slots];
+
+            if(l == 1){
+                for(int id : voxelWithPoints){
+                    Voxel vox = voxels[id];
+                    int x = id % width, y = (id / width) % height, z = id / (width * height);
+                    int parent = (x >> 1) + (y >> 1) * pw + (z >> 1) * pw * ph;
+
+                    masks[parent] |= vox.getMask();
+                    for(int s = 0; s < slots; s++)
+                        counts[parent * slots + s] += vox.getCounts()[s];
+                }
+            }else{
+                int[] childMasks = pyramidMasks.get(l - 1);
+                int[] childCounts = pyramidCounts.get(l - 1);
+                for(int c = 0; c < childMasks.length; c++){
+                    if(childMasks[c] == 0) continue;
+
+                    int x = c % w, y = (c / w) % h, z = c / (w * h);
+                    int parent = (x >> 1) + (y >> 1) * pw + (z >> 1) * pw * ph;
+
+                    masks[parent] |= childMasks[c];
+                    for(int s = 0; s < slots; s++)
+                        counts[parent * slots + s] += childCounts[c * slots + s];
+                }
+            }
+
+            pyramidDims.add(new int[]{pw, ph, pd});
+            pyramidMasks.add(masks);
+            pyramidCounts.add(counts);
+            w = pw; h = ph; d = pd;
+        }
+        pyramidLevels = l - 1;
+
+        System.out.println("..levels built: " + pyramidLevels + " (top " + w + " x " + h + " x " + d + ")");
+        Stats.printElapsedTime(start, "..voxel pyramid created");
+    }
+
+    /**
+     * mask of a pyramid cell, level 0 is the grid itself
+     * @param level
+     * @param cell
+     * @return
+     */
+    public int getPyramidMask(int level, int cell){
+        if(level == 0)
+            return (voxels[cell] == null) ? 0 : voxels[cell].getMask();
+
+        return pyramidMasks.get(level)[cell];
+    }
+
+    /**
+     * number of points of the given fileType/class inside a pyramid cell
+     * @param level
+     * @param cell
+     * @param fileType
+     * @param pointType
+     * @return
+     */
+    public int getPyramidCount(int level, int cell, FileType fileType, PointClassification pointType){
+        if(level == 0)
+            return (voxels[cell] == null) ? 0 : voxels[cell].getCount(fileType, pointType);
+
+        int slots = FileType.values().length * PointClassification.values().length;
+        return pyramidCounts.get(level)[cell * slots + Voxel.slot(fileType, pointType)];
+    }
+
+    /**
+     * collect the finest voxels whose mask satisfies the predicate. The predicate must be
+     * monotone (if it fails on a coarse cell it fails on all its children) so that
+     * coarse cells can prune their whole subtree. Without a pyramid the grid is scanned flat
+     * @param maskTest
+     * @return the voxel ids, sorted
+     */
+    public Set<Integer> getVoxels(IntPredicate maskTest){
+        Set<Integer> result = new TreeSet<>();
+
+        if(pyramidLevels == 0){
+            for(int id : voxelWithPoints)
+                if(maskTest.test(voxels[id].getMask())) result.add(id);
+
+            return result;
+        }
+
+        int[] top = pyramidDims.get(pyramidLevels);
+        for(int z = 0; z < top[2]; z++)
+            for(int y = 0; y < top[1]; y++)
+                for(int x = 0; x < top[0]; x++)
+                    descend(pyramidLevels, x, y, z, maskTest, result);
+
+        return result;
+    }
+
+    private void descend(int level, int x, int y, int z, IntPredicate maskTest, Set<Integer> result){
+        int[] dims = pyramidDims.get(level);
+        if(x >= dims[0] || y >= dims[1] || z >= dims[2]) return;
+
+        int cell = x + y * dims[0] + z * dims[0] * dims[1];
+        int mask = getPyramidMask(level, cell);
+        if(mask == 0 || !maskTest.test(mask)) return;
+
+        if(level == 0){
+            result.add(cell);
+            return;
+        }
+
+        for(int dz = 0; dz < 2; dz++)
+            for(int dy = 0; dy < 2; dy++)
+                for(int dx = 0; dx < 2; dx++)
+                    descend(level - 1, 2 * x + dx, 2 * y + dy, 2 * z + dz, maskTest, result);
+    }
+
+    /**
+     * visitor of the points found by a range query
+     */
+    public interface PointVisitor {
+        void visit(int voxelId, Point p);
+    }
+
+    /**
+     * visit the points inside the box [min, max] (grid coordinates) accepted by filter.
+     * Only the voxels overlapping the box and holding points of the filter
+     * fileTypes/classes are visited. Read only, queries may run concurrently
+     * @param min
+     * @param max
+     * @param filter
+     * @param visitor
+     */
+    public void queryBox(Point min, Point max, PointFilter filter, PointVisitor visitor){
+        query(new BBox(min, max), null, 0, filter, visitor);
+    }
+
+    /**
+     * @return number of points inside the box [min, max] accepted by filter
+     */
+    public int countBox(Point min, Point max, PointFilter filter){
+        return query(new BBox(min, max), null, 0, filter, null);
+    }
+
+    /**
+     * visit the points within distance r of center (grid coordinates) accepted by filter
+     * @param center
+     * @param r
+     * @param filter
+     * @param visitor
+     */
+    public void queryRadius(Point center, double r, PointFilter filter, PointVisitor visitor){
+        query(radiusBox(center, r), center, r * r, filter, visitor);
+    }
+
+    /**
+     * @return number of points within distance r of center accepted by filter
+     */
+    public int countRadius(Point center, double r, PointFilter filter){
+        return query(radiusBox(center, r), center, r * r, filter, null);
+    }
+
+    /**
+     * k nearest points of center accepted by filter, by expanding ring search: box queries of
+     * half side start, 2 start, 4 start... until the k-th nearest point lies within the half
+     * side, so that no closer point can be outside the box, or the half side exceeds max.
+     * Read only, searches may run concurrently
+     * @param center
+     * @param k
+     * @param filter
+     * @param start first half side
+     * @param max largest half side
+     * @param neighbours output, the neighbours by increasing distance
+     * @param dist2 output, their squared distances
+     * @return number of neighbours found, less than k when fewer points lie within max
+     */
+    public int nearest(Point center, int k, PointFilter filter, double start, double max,
+                       Point[] neighbours, double[] dist2){
+        int[] found = new int[1];
+        for(double r = start; ; r *= 2) {
+            found[0] = 0;
+            double half = Math.min(r, max);
+            query(radiusBox(center, half), null, 0, filter, (v, p) -> {
+                double d2 = squaredDistance(center, p);
+                if(found[0] == k && d2 >= dist2[k - 1]) return;
+
+                int i = (found[0] < k) ? found[0]++ : k - 1;
+                while(i > 0 && dist2[i - 1] > d2) {
+                    dist2[i] = dist2[i - 1];
+                    neighbours[i] = neighbours[i - 1];
+                    i--;
+                }
+                dist2[i] = d2;
+                neighbours[i] = p;
+            });
+
+            if(found[0] == k && dist2[k - 1] <= half * half) return k;
+            if(half >= max) {
+                // only the neighbours within max are certain
+                int n = 0;
+                while(n < found[0] && dist2[n] <= max * max) n++;
+                return n;
+            }
+        }
+    }
+
+    private static BBox radiusBox(Point center, double r){
+        return new BBox(new Point(center.x - r, center.y - r, center.z - r),
+                new Point(center.x + r, center.y + r, center.z + r));
+    }
+
+    /**
+     * lower corner of voxel coordinate 0 along an axis, see getVoxelCoord
+     */
+    private double voxelOrigin(int axis){
+        double min = (axis == 0) ? bbox.getMin().x : (axis == 1) ? bbox.getMin().y : bbox.getMin().z;
+        return (int)(min / voxelSide) * voxelSide;
+    }
+
+    /**
+     * points of the overlapping voxels tested against box (and the sphere if center != null).
+     * In count mode (visitor == null) voxels entirely inside the query add their counts
+     * without visiting their points, unless the filter checks the scores
+     * @return number of accepted points
+     */
+    private int query(BBox box, Point center, double r2, PointFilter filter, PointVisitor visitor){
+        int[] dims = {width, height, depth};
+        int[] lo = new int[3], hi = new int[3];
+        double[] bmin = {box.getMin().x, box.getMin().y, box.getMin().z};
+        double[] bmax = {box.getMax().x, box.getMax().y, box.getMax().z};
+        for(int a = 0; a < 3; a++) {
+            lo[a] = Math.max(0, getVoxelCoord(bmin[a], a));
+            hi[a] = Math.min(dims[a] - 1, getVoxelCoord(bmax[a], a));
+            if(bmax[a] < bmin[a] || lo[a] > hi[a]) return 0;
+        }
+
+        double[] origin = {voxelOrigin(0), voxelOrigin(1), voxelOrigin(2)};
+        double[] c = (center == null) ? null : new double[]{center.x, center.y, center.z};
+        // tolerance of the voxel bounds against the voxel coordinates truncation
+        double eps = voxelSide * 1e-6;
+        int count = 0;
+
+        for(int z = lo[2]; z <= hi[2]; z++)
+            for(int y = lo[1]; y <= hi[1]; y++)
+                for(int x = lo[0]; x <= hi[0]; x++) {
+                    int key = id(x, y, z);
+                    if(voxels[key] == null) continue;
+
+                    Voxel vox = voxels[key];
+                    if(!filter.acceptsVoxel(vox.getMask())) continue;
+
+                    // counts of voxels inside the query
+                    if(visitor == null && !filter.isScoreCheck()
+                            && inside(bmin, bmax, c, r2, origin, x, y, z, eps)) {
+                        int[] counts = vox.getCounts();
+                        for(int s = 0; s < counts.length; s++)
+                            if((filter.getSlotMask() & 1 << s) != 0) count += counts[s];
+                        continue;
+                    }
+
+                    LlNode n = vox.getHead();
+                    while(n != null) {
+                        Point p = (Point)n.value();
+                        if(box.contains(p) && (center == null || squaredDistance(p, center) <= r2)
+                                && filter.accepts(p)) {
+                            count++;
+                            if(visitor != null) visitor.visit(key, p);
+                        }
+
+                        if(!n.hasNext() || n == vox.getTail()) break;
+                        n = n.next();
+                    }
+                }
+
+        return count;
+    }
+
+    /**
+     * whether the voxel at voxel coordinates x, y, z lies entirely inside the box bmin, bmax
+     * (and the sphere of center c)
+     */
+    private boolean inside(double[] bmin, double[] bmax, double[] c, double r2, double[] origin,
+                           int x, int y, int z, double eps){
+        double far2 = 0;
+
+        for(int a = 0; a < 3; a++) {
+            int v = (a == 0) ? x : (a == 1) ? y : z;
+            double lower = origin[a] + v * voxelSide - eps, upper = lower + voxelSide + 2 * eps;
+            if(lower < bmin[a] || upper > bmax[a]) return false;
+
+            if(c != null) {
+                double d = Math.max(Math.abs(lower - c[a]), Math.abs(upper - c[a]));
+                far2 += d * d;
+            }
+        }
+
+        return c == null || far2 <= r2;
+    }
+
+    private static double squaredDistance(Point p, Point q){
+        double dx = p.x - q.x, dy = p.y - q.y, dz = p.z - q.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * voxels containing both photogrammetric and lidar points
+     * @return
+     */
+    public Set<Integer> getIntersectionVoxels(){
+        int photoMask = Voxel.fileTypeMask(FileType.PHOTOGRAMMETRIC);
+        int lidarMask = Voxel.fileTypeMask(FileType.LIDAR);
+
+        return getVoxels(m -> (m & photoMask) != 0 && (m & lidarMask) != 0);
+    }
+
+    /**
+     * voxels where at least one class is present in both photogrammetric and lidar points,
+     * the only ones that can pass the density filters
+     * @return
+     */
+    public Set<Integer> getClassIntersectionVoxels(){
+        return getVoxels(m -> {
+            for(PointClassification pc : PointClassification.values())
+                if((m & (1 << Voxel.slot(FileType.PHOTOGRAMMETRIC, pc))) != 0
+                        && (m & (1 << Voxel.slot(FileType.LIDAR, pc))) != 0)
+                    return true;
+            return false;
+        });
+    }
+
+    /**
+     * return the id of the voxel containing the coordinate x, y, z, -1 if outside the grid
      * voxel are count starting from id = 0
      * @param x
      * @param y
@@ -153,25 +632,45 @@ public class VoxelGrid {
 //        int zv = (int) (((z - bbox.getMin().z) / voxelSide)+0.5);
 
         // mike (correct?) version
-        // find the coordinates of where to move the min of the bounding box
-        double newBboxMinX = bbox.getMin().x - (int)(bbox.getMin().x / voxelSide) * voxelSide;
-        double newBboxMinY = bbox.getMin().y - (int)(bbox.getMin().y / voxelSide) * voxelSide;
-        double newBboxMinZ = bbox.getMin().z - (int)(bbox.getMin().z / voxelSide) * voxelSide;
-
-        int xv = (int) ( (x - bbox.getMin().x + newBboxMinX) / voxelSide);
-        int yv = (int) ( (y - bbox.getMin().y + newBboxMinY) / voxelSide);
-        int zv = (int) ( (z - bbox.getMin().z + newBboxMinZ) / voxelSide);
+        int xv = getVoxelCoord(x, 0);
+        int yv = getVoxelCoord(y, 1);
+        int zv = getVoxelCoord(z, 2);
 
 //        // final version: we move the bounding box at the beginning
 //        int xv = (int) ( x / voxelSide);
 //        int yv = (int) ( y / voxelSide);
 //        int zv = (int) ( z / voxelSide);
 
-        int key = id(xv, yv, zv);
-        //System.out.println("key: " + key);
-        if (key < 0 || key >= size) return -1;
+        return getVoxelId(xv, yv, zv);
+    }
+
+    /**
+     * voxel coordinate of c along one axis (0 x, 1 y, 2 z)
+     * @param c
+     * @param axis
+     * @return
+     */
+    public int getVoxelCoord(double c, int axis) {
+        double min = (axis == 0) ? bbox.getMin().x : (axis == 1) ? bbox.getMin().y : bbox.getMin().z;
+
+        // find the coordinates of where to move the min of the bounding box
+        double newBboxMin = min - (int)(min / voxelSide) * voxelSide;
+
+        return (int) Math.floor( (c - min + newBboxMin) / voxelSide);
+    }
+
+    /**
+     * id of the voxel at voxel coordinates x, y, z or -1 if outside the grid
+     * @param xv
+     * @param yv
+     * @param zv
+     * @return
+     */
+    public int getVoxelId(int xv, int yv, int zv) {
+        // each coordinate is checked, the id of an outside coordinate would alias an other voxel
+        if(xv < 0 || xv >= width || yv < 0 || yv >= height || zv < 0 || zv >= depth) return -1;
 
-        return key;
+        return id(xv, yv, zv);
     }
 
     public int getVoxelId(Point p){
@@ -0,0 +1,139 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * line writer where the caller only formats: lines are collected in blocks
+ * and a background thread writes the blocks, so formatting and disk I/O overlap
+ */
+public class BlockWriter {
+
+    public static final int BLOCK_LINES = 65536;
+    private static final int QUEUE_BLOCKS = 4;
+    private static final StringBuilder END = new StringBuilder();
+
+    private Writer out;
+    private BlockingQueue<StringBuilder> queue;
+    private Thread writerThread;
+    private volatile IOException error;
+    private boolean closed;
+
+    private StringBuilder block;
+    private int lines;
+
+    public BlockWriter(Writer out){
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+        this.block = new StringBuilder();
+        this.lines = 0;
+
+        writerThread = new Thread(() -> {
+            try {
+                StringBuilder b;
+                while((b = queue.take()) != END)
+                    out.write(b.toString());
+            } catch (IOException e) {
+                error = e;
+                // keep consuming so that the producer never blocks
+                try { while(queue.take() != END); } catch (InterruptedException ie) { }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "BlockWriter");
+        // a producer failing before close must not keep the JVM alive
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void writeLine(String line){
+        block.append(line).append(System.lineSeparator());
+
+        if(++lines == BLOCK_LINES) {
+            put(block);
+            block = new StringBuilder();
+            lines = 0;
+        }
+    }
+
+    private void put(StringBuilder b){
+        try {
+            queue.put(b);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * write the pending lines, wait for the writer thread and close the underlying writer
+     * @throws IOException the first error met by the writer thread
+     */
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+
+        if(lines > 0) put(block);
+        put(END);
+
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            if(error == null) error = e;
+        }
+        if(error != null) throw error;
+    }
+
+    /**
+     * stop the writer thread dropping the pending lines and close the underlying writer,
+     * used when the producer fails; does nothing after close
+     */
+    public void abort(){
+        if(closed) return;
+        closed = true;
+
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the output is incomplete anyway
+        }
+    }
+}
@@ -30,8 +30,6 @@ import java.util.List;
 
 public class Combinator {
 
-    private static List result;
-
 //    /* arr[]  ---> Input Array
 //    data[] ---> Temporary array to store current combination
 //    start & end ---> Staring and Ending indexes in arr[]
@@ -83,7 +81,7 @@ data[] ---> Temporary array to store current combination
 start & end ---> Staring and Ending indexes in arr[]
 index  ---> Current index in data[]
 r ---> Size of a combination to be printed */
-    private static void combinationUtil(String arr[], String data[], int start, int end, int index, int r) {
+    private static void combinationUtil(String arr[], String data[], int start, int end, int index, int r, List<String[]> result) {
         // Current combination is ready to be printed, print it
         if (index == r) {
             String[] temp = new String[r];
@@ -104,20 +102,21 @@ r ---> Size of a combination to be printed */
         // at remaining positions
         for (int i=start; i <= end && end-i+1 >= r-index; i++) {
             data[index] = arr[i];
-            combinationUtil(arr, data, i+1, end, index+1, r);
+            combinationUtil(arr, data, i+1, end, index+1, r, result);
         }
     }
 
     // The main function that prints all combinations of size r
     // in arr[] of size n. This function mainly uses combinationUtil()
     public static List<String[]> generate(String[] input, int combinationSize) {
-        result = new ArrayList<String[]>();
+        // local result, generate can run on several threads
+        List<String[]> result = new ArrayList<String[]>();
 
         // A temporary array to store all combination one by one
         String[] data = new String[combinationSize];
 
         // Print all combination using temprary array 'data[]'
-        combinationUtil(input, data, 0, input.length-1, 0, combinationSize);
+        combinationUtil(input, data, 0, input.length-1, 0, combinationSize, result);
 
         return result;
     }
@@ -0,0 +1,133 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.utils;
+
+/**
+ * small dense symmetric eigen problems (cyclic Jacobi rotations) and linear systems
+ * (Gaussian elimination with partial pivoting), sized for 3x3 covariances and the
+ * 4x4 / 6x6 systems of the registration
+ */
+public class LinearAlgebra {
+
+    private static final int MAX_SWEEPS = 50;
+
+    /**
+     * eigen decomposition of the symmetric matrix a
+     * @param a symmetric n x n matrix, not modified
+     * @param values output, n eigenvalues in ascending order
+     * @param vectors output, n x n matrix, column i is the unit eigenvector of values[i]
+     */
+    public static void jacobiEigen(double[][] a, double[] values, double[][] vectors){
+        int n = a.length;
+        double[][] m = new double[n][];
+        for(int i = 0; i < n; i++) {
+            m[i] = a[i].clone();
+            for(int j = 0; j < n; j++) vectors[i][j] = (i == j) ? 1 : 0;
+        }
+
+        for(int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            double off = 0;
+            for(int p = 0; p < n; p++)
+                for(int q = p + 1; q < n; q++) off += m[p][q] * m[p][q];
+            if(off < 1e-30) break;
+
+            for(int p = 0; p < n; p++)
+                for(int q = p + 1; q < n; q++) {
+                    if(m[p][q] == 0) continue;
+
+                    // rotation annihilating m[p][q]
+                    double theta = (m[q][q] - m[p][p]) / (2 * m[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if(theta == 0) t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+
+                    for(int k = 0; k < n; k++) {
+                        double mkp = m[k][p], mkq = m[k][q];
+                        m[k][p] = c * mkp - s * mkq;
+                        m[k][q] = s * mkp + c * mkq;
+                    }
+                    for(int k = 0; k < n; k++) {
+                        double mpk = m[p][k], mqk = m[q][k];
+                        m[p][k] = c * mpk - s * mqk;
+                        m[q][k] = s * mpk + c * mqk;
+                    }
+                    for(int k = 0; k < n; k++) {
+                        double vkp = vectors[k][p], vkq = vectors[k][q];
+                        vectors[k][p] = c * vkp - s * vkq;
+                        vectors[k][q] = s * vkp + c * vkq;
+                    }
+                }
+        }
+
+        // sort ascending, columns follow
+        for(int i = 0; i < n; i++) values[i] = m[i][i];
+        for(int i = 0; i < n - 1; i++) {
+            int min = i;
+            for(int j = i + 1; j < n; j++) if(values[j] < values[min]) min = j;
+            if(min == i) continue;
+
+            double t = values[i]; values[i] = values[min]; values[min] = t;
+            for(int k = 0; k < n; k++) {
+                t = vectors[k][i]; vectors[k][i] = vectors[k][min]; vectors[k][min] = t;
+            }
+        }
+    }
+
+    /**
+     * solve a x = b
+     * @param a n x n matrix, not modified
+     * @param b n values, not modified
+     * @return x or null if a is singular
+     */
+    public static double[] solve(double[][] a, double[] b){
+        int n = b.length;
+        double[][] m = new double[n][n + 1];
+        for(int i = 0; i < n; i++) {
+            System.arraycopy(a[i], 0, m[i], 0, n);
+            m[i][n] = b[i];
+        }
+
+        for(int col = 0; col < n; col++) {
+            int pivot = col;
+            for(int r = col + 1; r < n; r++)
+                if(Math.abs(m[r][col]) > Math.abs(m[pivot][col])) pivot = r;
+            if(Math.abs(m[pivot][col]) < 1e-12) return null;
+
+            double[] t = m[col]; m[col] = m[pivot]; m[pivot] = t;
+            for(int r = col + 1; r < n; r++) {
+                double f = m[r][col] / m[col][col];
+                for(int k = col; k <= n; k++) m[r][k] -= f * m[col][k];
+            }
+        }
+
+        double[] x = new double[n];
+        for(int r = n - 1; r >= 0; r--) {
+            double sum = m[r][n];
+            for(int k = r + 1; k < n; k++) sum -= m[r][k] * x[k];
+            x[r] = sum / m[r][r];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.utils;
+
+import lombok.Getter;
+
+/**
+ * fixed-bin histogram over [min, max], used to evaluate pass fractions
+ * and quantiles of the point scores without touching the points again
+ */
+public class ScoreHistogram {
+
+    @Getter private double min, max;
+    @Getter private long[] bins;
+    @Getter private long total;
+    private double binWidth;
+
+    public ScoreHistogram(double min, double max, int numberOfBins){
+        this.min = min;
+        this.max = max;
+        this.bins = new long[numberOfBins];
+        this.total = 0;
+        this.binWidth = (max > min) ? (max - min) / numberOfBins : 0;
+    }
+
+    public static ScoreHistogram create(double[] values, int n, int numberOfBins){
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        if(n == 0) { min = 0; max = 0; }
+
+        ScoreHistogram h = new ScoreHistogram(min, max, numberOfBins);
+        for (int i = 0; i < n; i++)
+            h.add(values[i]);
+
+        return h;
+    }
+
+    public void add(double value){
+        bins[bin(value)]++;
+        total++;
+    }
+
+    private int bin(double value){
+        if(binWidth == 0 || value <= min) return 0;
+        if(value >= max) return bins.length - 1;
+
+        return Math.min((int)((value - min) / binWidth), bins.length - 1);
+    }
+
+    /**
+     * fraction of values <= threshold, linear inside the bin containing the threshold
+     * @param threshold
+     * @return
+     */
+    public double fraction(double threshold){
+        if(total == 0) return 0;
+        if(threshold >= max) return 1;
+        if(threshold < min) return 0;
+        if(binWidth == 0) return 1;
+
+        int b = bin(threshold);
+        long below = 0;
+        for (int i = 0; i < b; i++)
+            below += bins[i];
+
+        double inBin = ((threshold - (min + b * binWidth)) / binWidth) * bins[b];
+
+        return (below + inBin) / total;
+    }
+
+    /**
+     * value below which the fraction q of the values falls
+     * @param q between 0 and 1
+     * @return
+     */
+    public double quantile(double q){
+        if(total == 0 || binWidth == 0) return max;
+
+        double target = q * total;
+        long cumulative = 0;
+        for (int i = 0; i < bins.length; i++) {
+            if(cumulative + bins[i] >= target && bins[i] > 0)
+                return min + (i + (target - cumulative) / bins[i]) * binWidth;
+            cumulative += bins[i];
+        }
+
+        return max;
+    }
+
+    public String toString(){
+        return "histogram [ " + min + ", " + max + " ] " + bins.length + " bins, " + total + " values";
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.utils;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * System.out replacement sending the output of each thread to its own stream.
+ * The stream is not inherited: pool threads outlive the job that started them,
+ * their output goes to the console
+ */
+public class ThreadPrintStream extends PrintStream {
+
+    private static ThreadPrintStream installed;
+
+    private Dispatcher dispatcher;
+
+    private ThreadPrintStream(Dispatcher dispatcher){
+        super(dispatcher, true);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * replace System.out, once
+     * @return
+     */
+    public static synchronized ThreadPrintStream install(){
+        if(installed == null) {
+            installed = new ThreadPrintStream(new Dispatcher(System.out));
+            System.setOut(installed);
+        }
+
+        return installed;
+    }
+
+    /**
+     * send the output of the current thread to out, until redirect(null)
+     * @param out null to go back to the console
+     */
+    public void redirect(PrintStream out){
+        flush();
+        if(out == null) dispatcher.target.remove();
+        else dispatcher.target.set(out);
+    }
+
+    // bytes of the PrintStream methods go to the stream of the writing thread
+    private static class Dispatcher extends OutputStream {
+        private PrintStream console;
+        private ThreadLocal<PrintStream> target = new ThreadLocal<>();
+
+        Dispatcher(PrintStream console){
+            this.console = console;
+        }
+
+        private PrintStream current(){
+            PrintStream ps = target.get();
+            return (ps != null) ? ps : console;
+        }
+
+        public void write(int b){ current().write(b); }
+
+        public void write(byte[] buf, int off, int len){ current().write(buf, off, len); }
+
+        public void flush(){ current().flush(); }
+    }
+}
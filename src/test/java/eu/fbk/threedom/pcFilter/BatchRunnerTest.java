@@ -0,0 +1,101 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * admission of the batch jobs on fake jobs that only take time: largest first,
+ * within the memory budget, a job larger than the budget alone
+ */
+public class BatchRunnerTest {
+
+    private static final long BUDGET = 100;
+
+    private final List<BatchRunner.Job> running = new ArrayList<>();
+    private final List<Long> started = new ArrayList<>();
+    private long inUse;
+
+    private static List<BatchRunner.Job> jobs(long... estimates){
+        List<BatchRunner.Job> jobs = new ArrayList<>();
+        for(int i = 0; i < estimates.length; i++)
+            jobs.add(new BatchRunner.Job(new File("P" + i + ".txt"), new File("L" + i + ".txt"), 1, null, estimates[i]));
+
+        return jobs;
+    }
+
+    private void run(BatchRunner.Job job){
+        long estimate = job.getMemoryEstimate();
+        synchronized (this) {
+            assertTrue("job of " + estimate + " started over the budget, " + inUse + " in use",
+                    running.isEmpty() || inUse + estimate <= BUDGET);
+            for(BatchRunner.Job other : running)
+                assertTrue("job of " + estimate + " started with a job larger than the budget",
+                        other.getMemoryEstimate() <= BUDGET);
+            running.add(job);
+            started.add(estimate);
+            inUse += estimate;
+        }
+
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            running.remove(job);
+            inUse -= estimate;
+        }
+    }
+
+    @Test
+    public void largestFirstWithinTheBudget() throws Exception {
+        new BatchRunner().schedule(jobs(30, 60, 150, 10, 40, 50), 3, BUDGET, this::run);
+
+        assertEquals(6, started.size());
+        // the oversized job alone, then the largest jobs fitting the budget, started together
+        assertEquals(150, (long)started.get(0));
+        assertEquals(new HashSet<>(Arrays.asList(60L, 40L)), new HashSet<>(started.subList(1, 3)));
+    }
+
+    @Test
+    public void oneThreadRunsLargestFirst() throws Exception {
+        new BatchRunner().schedule(jobs(30, 60, 10, 40, 50), 1, BUDGET, this::run);
+
+        List<Long> expected = new ArrayList<>();
+        for(long e : new long[]{60, 50, 40, 30, 10}) expected.add(e);
+        assertEquals(expected, started);
+    }
+}
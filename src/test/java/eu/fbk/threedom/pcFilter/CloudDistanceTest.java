@@ -0,0 +1,112 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import org.json.JSONObject;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * nearest point distances of the photogrammetric points from the lidar cloud, compared
+ * with a brute force scan; the isolated photogrammetric points are beyond maxDistance
+ */
+public class CloudDistanceTest {
+
+    private static final float VOXEL_SIDE = 1;
+    private static final double MAX_DISTANCE = 2, TOLERANCE = 1e-9;
+    private static final int OUTLIERS = 10;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static double nearest(Point p, List<Point> lidar){
+        double best = Double.MAX_VALUE;
+        for(Point q : lidar)
+            best = Math.min(best, (p.x - q.x) * (p.x - q.x) + (p.y - q.y) * (p.y - q.y) + (p.z - q.z) * (p.z - q.z));
+        return Math.sqrt(best);
+    }
+
+    private static PcFilter filter(String name, long seed) throws Exception {
+        return new TestClouds(folder.newFolder(name), 2000, 3000, OUTLIERS, seed).filter(VOXEL_SIDE);
+    }
+
+    @Test
+    public void nearestDistancesMatchBruteForce() throws Exception {
+        PcFilter pcf = filter("all", 8);
+        CloudDistance c2c = new CloudDistance(CloudDistance.Mode.NEAREST, MAX_DISTANCE, 2);
+        c2c.run(pcf, p -> true);
+
+        int index = pcf.getPropertyIndex(FileType.PHOTOGRAMMETRIC, CloudDistance.PROPERTY);
+        List<Point> lidar = pcf.getPoints(FileType.LIDAR, true);
+        int unmatched = 0;
+        for(Point p : pcf.getPoints(FileType.PHOTOGRAMMETRIC, true)) {
+            double expected = nearest(p, lidar), d = p.getProp(index);
+            if(expected > MAX_DISTANCE) {
+                assertTrue(Double.isNaN(d));
+                unmatched++;
+            } else
+                assertEquals(expected, d, TOLERANCE);
+        }
+        assertTrue(unmatched >= OUTLIERS);
+
+        // the report counts every photogrammetric point once
+        JSONObject classes = c2c.report().getJSONObject("classes");
+        int total = 0, reportUnmatched = 0;
+        for(String c : classes.keySet()) {
+            total += classes.getJSONObject(c).getInt("points") + classes.getJSONObject(c).getInt("unmatched");
+            reportUnmatched += classes.getJSONObject(c).getInt("unmatched");
+        }
+        assertEquals(pcf.getPoints(FileType.PHOTOGRAMMETRIC, true).size(), total);
+        assertEquals(unmatched, reportUnmatched);
+    }
+
+    @Test
+    public void unselectedPointsHaveNoDistance() throws Exception {
+        PcFilter pcf = filter("selected", 9);
+        Set<Point> selected = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Point> photo = pcf.getPoints(FileType.PHOTOGRAMMETRIC, true);
+        for(int i = 0; i < photo.size(); i += 2) selected.add(photo.get(i));
+
+        new CloudDistance(CloudDistance.Mode.NEAREST, MAX_DISTANCE, 2).run(pcf, selected::contains);
+
+        int index = pcf.getPropertyIndex(FileType.PHOTOGRAMMETRIC, CloudDistance.PROPERTY);
+        List<Point> lidar = pcf.getPoints(FileType.LIDAR, true);
+        for(Point p : photo) {
+            if(selected.contains(p)) {
+                double expected = nearest(p, lidar);
+                if(expected <= MAX_DISTANCE) assertEquals(expected, p.getProp(index), TOLERANCE);
+            } else
+                assertTrue(Double.isNaN(p.getProp(index)));
+        }
+    }
+}
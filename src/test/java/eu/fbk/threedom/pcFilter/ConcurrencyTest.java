@@ -0,0 +1,85 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * filters with different voxel sides running at the same time on a thread pool
+ * must give the voxel sets and output points of serial runs
+ */
+public class ConcurrencyTest {
+
+    // concurrent runs of each voxel side
+    private static final int REPEAT = 3;
+    private static final float[] SIDES = {1, 2, 3.5f};
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+
+    @BeforeClass
+    public static void writeClouds() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), 4000, 3000, 0, 1);
+    }
+
+    @Test
+    public void concurrentRunsMatchSerialRuns() throws Exception {
+        File photo = clouds.photo, lidar = clouds.lidar;
+        JSONObject config = clouds.loadConfig();
+
+        Map<Float, String> serial = new HashMap<>();
+        for(float side : SIDES)
+            serial.put(side, TestClouds.digest(new PcFilter(photo, lidar, side, config)));
+
+        // the same runs, REPEAT times each, all at once
+        ExecutorService pool = Executors.newFixedThreadPool(SIDES.length * REPEAT);
+        List<Float> runSides = new ArrayList<>();
+        List<Future<String>> runs = new ArrayList<>();
+        try {
+            for(int r = 0; r < REPEAT; r++)
+                for(float side : SIDES) {
+                    runSides.add(side);
+                    runs.add(pool.submit(() -> TestClouds.digest(new PcFilter(photo, lidar, side, config))));
+                }
+
+            for(int i = 0; i < runs.size(); i++)
+                assertEquals("voxelSide " + runSides.get(i), serial.get(runSides.get(i)), runs.get(i).get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
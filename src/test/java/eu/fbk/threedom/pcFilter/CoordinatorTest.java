@@ -0,0 +1,99 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import org.json.JSONObject;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the output merged by a coordinator from the fragments of two in-process workers is
+ * the output of the single process tiled filter
+ */
+public class CoordinatorTest {
+
+    private static final float SIDE = 1;
+    private static final int TILE_VOXELS = 4;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File[] outputFiles(File dir, String name){
+        File[] files = new File[FileType.values().length];
+        for(FileType ft : FileType.values())
+            files[ft.ordinal()] = new File(dir, name + "_" + ft.ordinal() + ".txt");
+
+        return files;
+    }
+
+    @Test
+    public void mergedOutputMatchesSingleProcess() throws Exception {
+        TestClouds clouds = new TestClouds(folder.getRoot(), 4000, 3000, 0, 13);
+        JSONObject config = clouds.loadConfig();
+
+        File[] filtered = outputFiles(folder.getRoot(), "filtered"), scored = outputFiles(folder.getRoot(), "scored");
+        new TiledFilter(clouds.photo, clouds.lidar, SIDE, TILE_VOXELS, folder.getRoot(), config).run(filtered, scored);
+
+        File[] mergedFiltered = outputFiles(folder.getRoot(), "mergedFiltered");
+        File[] mergedScored = outputFiles(folder.getRoot(), "mergedScored");
+        Coordinator coordinator = new Coordinator(clouds.photo, clouds.lidar, SIDE, TILE_VOXELS, folder.getRoot(), config, 0);
+
+        // the workers connect on the ephemeral port, the coordinator accepts them when it runs
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            Worker worker = new Worker("localhost", coordinator.getPort());
+            Thread t = new Thread(() -> {
+                try {
+                    worker.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+
+        coordinator.run(mergedFiltered, mergedScored, 2, 0);
+        for(Thread t : workers) t.join(10000);
+
+        for(FileType ft : FileType.values()) {
+            byte[] expected = Files.readAllBytes(scored[ft.ordinal()].toPath());
+            assertTrue(new String(expected, "UTF-8").split("\n").length > 1);
+            assertArrayEquals(expected, Files.readAllBytes(mergedScored[ft.ordinal()].toPath()));
+            assertArrayEquals(Files.readAllBytes(filtered[ft.ordinal()].toPath()),
+                    Files.readAllBytes(mergedFiltered[ft.ordinal()].toPath()));
+        }
+    }
+}
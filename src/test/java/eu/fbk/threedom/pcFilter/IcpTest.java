@@ -0,0 +1,161 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the ICP recovers a known rigid transform of the lidar points of the test clouds,
+ * and the transform of the shifted frame maps the input coordinates once unshifted
+ */
+public class IcpTest {
+
+    private static final double TOLERANCE = 1e-4;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static PcFilter pcf;
+    private static List<Point> target;
+
+    @BeforeClass
+    public static void writeClouds() throws Exception {
+        TestClouds clouds = new TestClouds(folder.getRoot(), 1000, 4000, 0, 5);
+        pcf = clouds.filter(0);
+        target = pcf.getPoints(FileType.LIDAR, false);
+    }
+
+    // small rotation about z and x and a translation of a few decimetres
+    private static Matrix4d displacement(){
+        Matrix3d r = new Matrix3d(), rx = new Matrix3d();
+        r.rotZ(0.01);
+        rx.rotX(0.004);
+        r.mul(rx);
+        return new Matrix4d(r, new Vector3d(0.3, -0.2, 0.1), 1);
+    }
+
+    private static List<Point> moved(List<Point> points, Matrix4d m){
+        List<Point> moved = new ArrayList<>();
+        for(Point p : points) {
+            Point3d t = new Point3d(p.x, p.y, p.z);
+            m.transform(t);
+            moved.add(new Point(t.x, t.y, t.z));
+        }
+        return moved;
+    }
+
+    private static void assertIdentity(Matrix4d m){
+        Matrix4d identity = new Matrix4d();
+        identity.setIdentity();
+        assertTrue("not the identity:\n" + m, m.epsilonEquals(identity, TOLERANCE));
+    }
+
+    @Test
+    public void pointToPointRecoversTheDisplacement(){
+        recover(Icp.Mode.POINT);
+    }
+
+    @Test
+    public void pointToPlaneRecoversTheDisplacement(){
+        recover(Icp.Mode.PLANE);
+    }
+
+    private void recover(Icp.Mode mode){
+        Matrix4d m = displacement();
+        Icp icp = new Icp(mode, 3, 50, 2);
+        Matrix4d result = icp.run(moved(target, m), target, null);
+
+        // the transform undoes the displacement
+        result.mul(m);
+        assertIdentity(result);
+        assertEquals(0, icp.getRms(), TOLERANCE);
+        assertEquals(target.size(), icp.getCorrespondences());
+    }
+
+    @Test
+    public void unshiftedTransformMapsInputCoordinates(){
+        Matrix4d m = displacement();
+        Point shift = pcf.getCoordShift();
+        Matrix4d input = Icp.unshifted(m, shift);
+
+        for(Point p : target.subList(0, 100)) {
+            Point3d shifted = new Point3d(p.x, p.y, p.z);
+            m.transform(shifted);
+
+            Point3d unshifted = new Point3d(p.x + shift.x, p.y + shift.y, p.z + shift.z);
+            input.transform(unshifted);
+
+            assertEquals(shifted.x + shift.x, unshifted.x, 1e-6);
+            assertEquals(shifted.y + shift.y, unshifted.y, 1e-6);
+            assertEquals(shifted.z + shift.z, unshifted.z, 1e-6);
+        }
+    }
+
+    private static void session(TestClouds clouds, File index, String... options) throws Exception {
+        List<String> args = new ArrayList<>(Arrays.asList(clouds.photo.getPath(), clouds.lidar.getPath(), "1",
+                "-ix", index.getPath()));
+        args.addAll(Arrays.asList(options));
+
+        Main main = new Main();
+        main.parseArgs(args.toArray(new String[0]));
+        main.init();
+        main.openSession();
+    }
+
+    @Test
+    public void icpIgnoresTheIndex() throws Exception {
+        TestClouds clouds = new TestClouds(folder.newFolder(), 1000, 4000, 0, 5);
+        File index = new File(clouds.photo.getParentFile(), "index.bin");
+
+        // first run with the ICP: the index of the unregistered points is not written
+        session(clouds, index, "-icp", "point");
+        assertFalse(index.exists());
+
+        // an index of the same inputs is left as it is, the ICP runs on the parsed points
+        session(clouds, index);
+        byte[] written = Files.readAllBytes(index.toPath());
+        session(clouds, index, "-icp", "point");
+        assertTrue(Arrays.equals(written, Files.readAllBytes(index.toPath())));
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.NeighbourhoodPass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * dZVariance, density and height of the lidar points match a brute force scan of their
+ * neighbours, the attributes read from the lidar file are kept
+ */
+public class LocalAttributesTest {
+
+    private static final double RADIUS = 1.2;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+
+    @BeforeClass
+    public static void createClouds() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), 2000, 3000, 0, 47);
+    }
+
+    // dZVariance, density and height of p from all the points
+    private static double[] bruteForce(Point p, List<Point> points){
+        int m = 0;
+        double sum = 0, sum2 = 0, minZ = Double.MAX_VALUE;
+        for(Point q : points) {
+            double dx = q.x - p.x, dy = q.y - p.y, dz = q.z - p.z;
+            if(dx * dx + dy * dy + dz * dz > RADIUS * RADIUS) continue;
+
+            m++;
+            sum += dz;
+            sum2 += dz * dz;
+            minZ = Math.min(minZ, q.z);
+        }
+
+        double mean = sum / m;
+        return new double[]{sum2 / m - mean * mean, m / (4.0 / 3.0 * Math.PI * Math.pow(RADIUS, 3)), p.z - minZ};
+    }
+
+    @Test
+    public void attributesMatchBruteForce(){
+        PcFilter pcf = clouds.filter(1f);
+        NeighbourhoodPass pass = new NeighbourhoodPass(pcf.getVGrid(), FileType.LIDAR);
+        double[] values = new LocalAttributes(RADIUS, 3).estimate(pass);
+
+        List<Point> points = pass.getPoints();
+        assertEquals(3000, points.size());
+        for(int i = 0; i < points.size(); i++) {
+            double[] expected = bruteForce(points.get(i), points);
+            for(int a = 0; a < 3; a++)
+                assertEquals(points.get(i) + " attribute " + a, expected[a], values[3 * i + a], 1e-9);
+            assertTrue(values[3 * i + 1] > 0);
+        }
+    }
+
+    @Test
+    public void fileAttributesAreKept(){
+        PcFilter pcf = clouds.filter(1f);
+        int dZVariance = pcf.getPropertyIndex(FileType.LIDAR, "dZVariance");
+        int nProps = pcf.getProperties()[FileType.LIDAR.ordinal()].length;
+
+        List<Point> points = pcf.getPoints(FileType.LIDAR, true);
+        double[] read = new double[points.size()];
+        for(int i = 0; i < read.length; i++) read[i] = points.get(i).getProp(dZVariance);
+
+        new LocalAttributes(RADIUS, 3).run(pcf);
+
+        // only density and height are added
+        assertEquals(nProps + 2, pcf.getProperties()[FileType.LIDAR.ordinal()].length);
+        assertEquals(dZVariance, pcf.getPropertyIndex(FileType.LIDAR, "dZVariance"));
+        int density = pcf.getPropertyIndex(FileType.LIDAR, "LDensity"), height = pcf.getPropertyIndex(FileType.LIDAR, "LHeight");
+
+        for(int i = 0; i < read.length; i++) {
+            Point p = points.get(i);
+            assertEquals(read[i], p.getProp(dZVariance), 0);
+
+            double[] expected = bruteForce(p, points);
+            assertEquals(expected[1], p.getProp(density), 1e-9);
+            assertEquals(expected[2], p.getProp(height), 1e-9);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the normals of the points of a tilted plane are the plane normal, oriented upward,
+ * points with less than 3 neighbours have none
+ */
+public class NormalEstimatorTest {
+
+    // z = A x + B y
+    private static final double A = 0.3, B = -0.2;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    // the test clouds with their points replaced by the plane
+    private static PcFilter planeFilter(File dir, long seed) throws Exception {
+        TestClouds clouds = new TestClouds(dir, 0, 0, 0, seed);
+        Random rnd = new Random(seed);
+
+        try (PrintWriter out = new PrintWriter(clouds.photo, "UTF-8")) {
+            out.println("// X Y Z R G B Class PIntensity");
+            for(int i = 0; i < 3000; i++) {
+                double x = TestClouds.SIZE_X * rnd.nextDouble(), y = TestClouds.SIZE_Y * rnd.nextDouble();
+                out.println((TestClouds.X0 + x) + " " + (TestClouds.Y0 + y) + " " + (TestClouds.Z0 + A * x + B * y)
+                        + " 100 100 100 2 " + rnd.nextDouble());
+            }
+            // isolated
+            out.println((TestClouds.X0 + 15) + " " + (TestClouds.Y0 + 10) + " " + (TestClouds.Z0 + 40) + " 100 100 100 2 0.5");
+        }
+
+        try (PrintWriter out = new PrintWriter(clouds.lidar, "UTF-8")) {
+            out.println("// X Y Z Class LIntensity dZVariance ScanAngleRank EchoRatio");
+            for(int i = 0; i < 2000; i++) {
+                double x = TestClouds.SIZE_X * rnd.nextDouble(), y = TestClouds.SIZE_Y * rnd.nextDouble();
+                out.println((TestClouds.X0 + x) + " " + (TestClouds.Y0 + y) + " " + (TestClouds.Z0 + A * x + B * y)
+                        + " 2 " + 255 * rnd.nextDouble() + " " + rnd.nextDouble() + " 0 " + 100 * rnd.nextDouble());
+            }
+        }
+
+        return clouds.filter(1f);
+    }
+
+    // the components of a point without a normal are not set
+    private static boolean hasNormal(Point p, int nx){
+        return p.getProp(nx) != 0 || p.getProp(nx + 1) != 0 || p.getProp(nx + 2) != 0;
+    }
+
+    /**
+     * @param radius neighbourhood of the estimator, 0 for the nearest neighbours
+     */
+    private static void checkNormals(PcFilter pcf, double radius){
+        double norm = Math.sqrt(A * A + B * B + 1);
+        double[] expected = {-A / norm, -B / norm, 1 / norm};
+
+        for(FileType ft : FileType.values()) {
+            String prefix = (ft == FileType.PHOTOGRAMMETRIC) ? "P" : "L";
+            int nx = Arrays.asList(pcf.getProperties()[ft.ordinal()]).indexOf(prefix + "Nx");
+            assertTrue(nx >= 0);
+
+            List<Point> points = pcf.getPoints(ft, true);
+            int withNormal = 0;
+            for(Point p : points) {
+                // brute force neighbours, the point included
+                int neighbours = 0;
+                for(Point q : points) {
+                    double dx = q.x - p.x, dy = q.y - p.y, dz = q.z - p.z;
+                    if(radius == 0 || dx * dx + dy * dy + dz * dz <= radius * radius) neighbours++;
+                }
+
+                double z = p.z + pcf.getCoordShift().z - TestClouds.Z0;
+                if(z > 20 || neighbours < 3) {
+                    assertFalse(ft + " " + p, hasNormal(p, nx));
+                    continue;
+                }
+
+                assertTrue(ft + " " + p, hasNormal(p, nx));
+                for(int a = 0; a < 3; a++)
+                    assertEquals(ft + " " + p, expected[a], p.getProp(nx + a), 1e-4);
+                withNormal++;
+            }
+            assertTrue(withNormal > points.size() - 50);
+        }
+    }
+
+    @Test
+    public void nearestNeighbourNormalsOfAPlane() throws Exception {
+        PcFilter pcf = planeFilter(folder.newFolder("knn"), 41);
+        new NormalEstimator(8, 0, 2).run(pcf);
+        checkNormals(pcf, 0);
+    }
+
+    @Test
+    public void radiusNormalsOfAPlane() throws Exception {
+        PcFilter pcf = planeFilter(folder.newFolder("radius"), 43);
+        new NormalEstimator(0, 0.8, 2).run(pcf);
+        checkNormals(pcf, 0.8);
+    }
+}
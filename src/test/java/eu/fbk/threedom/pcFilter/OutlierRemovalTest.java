@@ -0,0 +1,111 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.LlNode;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelGrid;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the isolated photogrammetric points of the test clouds are removed and no walk
+ * of the filter or of the voxel grid reaches them afterwards
+ */
+public class OutlierRemovalTest {
+
+    private static final float VOXEL_SIDE = 1;
+    private static final int PHOTO_POINTS = 4000, LIDAR_POINTS = 3000, OUTLIERS = 20;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+
+    @BeforeClass
+    public static void writeClouds() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), PHOTO_POINTS, LIDAR_POINTS, OUTLIERS, 3);
+    }
+
+    // more than 1 above the terrain, the outliers are 5 to 15 above it
+    private static boolean isolated(Point p, Point coordShift){
+        double x = p.x + coordShift.x - TestClouds.X0, y = p.y + coordShift.y - TestClouds.Y0;
+        return p.z + coordShift.z - TestClouds.Z0 > TestClouds.height(x, y) + 1;
+    }
+
+    @Test
+    public void removedPointsAreUnlinked(){
+        PcFilter pcf = clouds.filter(VOXEL_SIDE);
+        OutlierRemoval sor = new OutlierRemoval(8, 2, 2);
+        sor.run(pcf);
+
+        int removed = sor.getRemoved()[FileType.PHOTOGRAMMETRIC.ordinal()] + sor.getRemoved()[FileType.LIDAR.ordinal()];
+        assertTrue(sor.getRemoved()[FileType.PHOTOGRAMMETRIC.ordinal()] >= OUTLIERS);
+
+        // filter walks
+        assertEquals(PHOTO_POINTS + LIDAR_POINTS - removed, pcf.getPoints().size());
+        for(Point p : pcf.getPoints()) {
+            assertFalse(p.isRemoved());
+            assertFalse(isolated(p, pcf.getCoordShift()));
+        }
+        for(FileType ft : FileType.values())
+            for(Point p : pcf.getPoints(ft, false))
+                assertFalse(p.isRemoved());
+
+        // voxel chains and counts
+        VoxelGrid grid = pcf.getVGrid();
+        int linked = 0;
+        for(int v : grid.getVoxelWithPoints()) {
+            Voxel vox = grid.getVoxel(v);
+            int[] counts = new int[FileType.values().length];
+
+            LlNode n = vox.getHead();
+            while(n != null) {
+                Point p = (Point)n.value();
+                assertFalse(p.isRemoved());
+                counts[p.getType().ordinal()]++;
+
+                // exit condition
+                if(!n.hasNext() || n == vox.getTail()) break;
+                n = n.next();
+            }
+
+            for(FileType ft : FileType.values()) {
+                assertEquals(vox.getCount(ft), counts[ft.ordinal()]);
+                assertEquals(counts[ft.ordinal()], pcf.getPoints(ft, v, false).size());
+                linked += counts[ft.ordinal()];
+            }
+        }
+        assertEquals(PHOTO_POINTS + LIDAR_POINTS - removed, linked);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.structs.VoxelCounts;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * the voxel sets and the output points of the tile-parallel filter do not depend on the
+ * number of threads, the tile side or the splitting of crowded tiles, and match the
+ * counts of the whole grid
+ */
+public class ParallelFilterTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static PcFilter pcf;
+    private static Set<Integer> intersection, filtered, scoredFiltered;
+
+    @BeforeClass
+    public static void filter() throws Exception {
+        TestClouds clouds = new TestClouds(folder.getRoot(), 6000, 4000, 20, 17);
+        pcf = clouds.filter(1);
+
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        intersection = vc.getIntersection();
+        filtered = vc.getFiltered(intersection);
+        scoredFiltered = vc.getScoredFiltered(filtered);
+        assertFalse(scoredFiltered.isEmpty());
+    }
+
+    private static List<byte[]> output(Set<Integer> voxels, boolean scoreCheck, String name) throws Exception {
+        File[] files = new File[FileType.values().length];
+        for(FileType ft : FileType.values())
+            files[ft.ordinal()] = new File(folder.getRoot(), name + "_" + ft.ordinal() + ".txt");
+        pcf.writeVoxels(files, voxels, scoreCheck);
+
+        List<byte[]> bytes = new ArrayList<>();
+        for(File f : files) bytes.add(Files.readAllBytes(f.toPath()));
+
+        return bytes;
+    }
+
+    private static void assertSameBytes(List<byte[]> expected, List<byte[]> actual){
+        for(int i = 0; i < expected.size(); i++)
+            assertEquals(new String(expected.get(i)), new String(actual.get(i)));
+    }
+
+    @Test
+    public void resultsDoNotDependOnThreadsAndTiles() throws Exception {
+        List<byte[]> filteredOut = output(filtered, false, "filtered");
+        List<byte[]> scoredOut = output(scoredFiltered, true, "scored");
+
+        // threads, tile side, max tile points (small values split the tiles)
+        int[][] runs = {{1, 64, ParallelFilter.DEFAULT_MAX_TILE_POINTS}, {4, 64, ParallelFilter.DEFAULT_MAX_TILE_POINTS},
+                {1, 3, ParallelFilter.DEFAULT_MAX_TILE_POINTS}, {4, 3, ParallelFilter.DEFAULT_MAX_TILE_POINTS},
+                {4, 7, 50}, {3, 1, 10}};
+        for(int[] run : runs) {
+            String label = "threads " + run[0] + ", tile " + run[1] + ", max points " + run[2];
+            ParallelFilter pf = new ParallelFilter(pcf.getVGrid(), run[1], run[0], run[2]);
+            pf.run();
+
+            assertEquals(label, intersection, pf.getIntersection());
+            assertEquals(label, filtered, pf.getFiltered());
+            assertEquals(label, scoredFiltered, pf.getScoredFiltered());
+
+            assertSameBytes(filteredOut, output(pf.getFiltered(), false, "parallelFiltered"));
+            assertSameBytes(scoredOut, output(pf.getScoredFiltered(), true, "parallelScored"));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the files read into arrays and filtered through the builder must give the result
+ * of the file based filter
+ */
+public class PcFilterBuilderTest {
+
+    private static final float VOXEL_SIDE = 2;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+
+    @BeforeClass
+    public static void writeClouds() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), 4000, 3000, 0, 2);
+    }
+
+    // points of a cloud file as builder arrays
+    static class Cloud {
+        String[] propNames;
+        double[] xyz, props;
+        int[] rgb, classes;
+        int n;
+
+        Cloud(File f, FileType ft) throws IOException {
+            int shift = (ft == FileType.PHOTOGRAMMETRIC) ? 7 : 4;
+
+            List<String[]> rows = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if(line.isEmpty()) continue;
+                    if(line.startsWith("//")) {
+                        String[] token = line.substring(2).trim().split(" ");
+                        propNames = Arrays.copyOfRange(token, shift, token.length);
+                        continue;
+                    }
+                    rows.add(line.split(" "));
+                }
+            }
+
+            n = rows.size();
+            int nProps = propNames.length;
+            xyz = new double[3 * n];
+            props = new double[n * nProps];
+            rgb = new int[3 * n];
+            classes = new int[n];
+            for(int i = 0; i < n; i++) {
+                String[] token = rows.get(i);
+                for(int c = 0; c < 3; c++) {
+                    xyz[3 * i + c] = Double.parseDouble(token[c]);
+                    if(ft == FileType.PHOTOGRAMMETRIC) rgb[3 * i + c] = Integer.parseInt(token[3 + c]);
+                }
+                classes[i] = Integer.parseInt(token[shift - 1].substring(0, 1));
+                for(int t = 0; t < nProps; t++)
+                    props[i * nProps + t] = token[shift + t].equals("nan") ?
+                            Double.NaN : Double.parseDouble(token[shift + t]);
+            }
+        }
+    }
+
+    @Test
+    public void inMemoryFilterMatchesFileBased() throws Exception {
+        Cloud photo = new Cloud(clouds.photo, FileType.PHOTOGRAMMETRIC);
+        Cloud lidar = new Cloud(clouds.lidar, FileType.LIDAR);
+
+        FilterResult result = new PcFilterBuilder()
+                .voxelSide(VOXEL_SIDE)
+                .config(clouds.loadConfig())
+                .photo(photo.xyz, photo.rgb, photo.classes, photo.propNames, photo.props)
+                .lidar(lidar.xyz, lidar.classes, lidar.propNames, lidar.props)
+                .build();
+
+        assertEquals(TestClouds.digest(clouds.filter(VOXEL_SIDE)), TestClouds.digest(result.getFilter()));
+
+        for(FileType ft : FileType.values()) {
+            int n = (ft == FileType.PHOTOGRAMMETRIC) ? photo.n : lidar.n;
+            assertEquals(n, result.getVoxelIds(ft).length);
+            assertTrue(result.getSelectedPoints(ft, true).length > 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortPropsBlockIsRejected() throws Exception {
+        Cloud photo = new Cloud(clouds.photo, FileType.PHOTOGRAMMETRIC);
+        Cloud lidar = new Cloud(clouds.lidar, FileType.LIDAR);
+
+        // the values of the last property are missing
+        double[] props = Arrays.copyOf(photo.props, photo.props.length - photo.n);
+
+        new PcFilterBuilder()
+                .voxelSide(VOXEL_SIDE)
+                .config(clouds.loadConfig())
+                .points(FileType.PHOTOGRAMMETRIC, photo.propNames,
+                        sink -> sink.accept(photo.xyz, photo.rgb, photo.classes, props, photo.n))
+                .lidar(lidar.xyz, lidar.classes, lidar.propNames, lidar.props)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void photoBlockWithoutColorsIsRejected() throws Exception {
+        Cloud photo = new Cloud(clouds.photo, FileType.PHOTOGRAMMETRIC);
+        Cloud lidar = new Cloud(clouds.lidar, FileType.LIDAR);
+
+        new PcFilterBuilder()
+                .voxelSide(VOXEL_SIDE)
+                .config(clouds.loadConfig())
+                .points(FileType.PHOTOGRAMMETRIC, photo.propNames,
+                        sink -> sink.accept(photo.xyz, null, photo.classes, photo.props, photo.n))
+                .lidar(lidar.xyz, lidar.classes, lidar.propNames, lidar.props)
+                .build();
+    }
+}
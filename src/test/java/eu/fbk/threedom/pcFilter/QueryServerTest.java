@@ -0,0 +1,167 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.Voxel;
+import eu.fbk.threedom.structs.VoxelCounts;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * a query server on an ephemeral port answers /location and /voxel like the filter it serves
+ */
+public class QueryServerTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static PcFilter pcf;
+    private static QueryServer server;
+    private static Set<Integer> scoredFiltered;
+    // status of the last response
+    private static int status;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        TestClouds clouds = new TestClouds(folder.getRoot(), 3000, 2000, 5, 37);
+        pcf = clouds.filter(1f);
+
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        scoredFiltered = vc.getScoredFiltered(vc.getFiltered(vc.getIntersection()));
+
+        server = new QueryServer(pcf, 0, 2);
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer(){
+        server.stop();
+    }
+
+    private static JSONObject get(String path, String method) throws Exception {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        con.setRequestMethod(method);
+        status = con.getResponseCode();
+
+        try (InputStream in = (status < 400) ? con.getInputStream() : con.getErrorStream();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return new JSONObject(reader.lines().collect(Collectors.joining("\n")));
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    private static JSONObject get(String path) throws Exception {
+        return get(path, "GET");
+    }
+
+    @Test
+    public void serverListensOnAnEphemeralPort(){
+        assertNotEquals(0, server.getPort());
+    }
+
+    @Test
+    public void locationOfThePoints() throws Exception {
+        Point shift = pcf.getCoordShift();
+        for(Point p : pcf.getPoints(FileType.PHOTOGRAMMETRIC, true).subList(0, 50)) {
+            JSONObject r = get("/location?x=" + (p.x + shift.x) + "&y=" + (p.y + shift.y) + "&z=" + (p.z + shift.z));
+            assertEquals(200, status);
+            assertEquals(pcf.getVoxelId(p), r.getInt("voxel"));
+        }
+
+        // below the bounding box
+        JSONObject r = get("/location?x=" + shift.x + "&y=" + shift.y + "&z=" + (shift.z - 1000));
+        assertEquals(-1, r.getInt("voxel"));
+
+        get("/location?x=1&y=2");
+        assertEquals(400, status);
+    }
+
+    @Test
+    public void voxelCountsAndPoints() throws Exception {
+        List<Integer> voxels = new ArrayList<>(pcf.getVGrid().getVoxelWithPoints());
+        Point shift = pcf.getCoordShift();
+
+        for(int v : voxels.subList(0, Math.min(30, voxels.size()))) {
+            JSONObject r = get("/voxel?id=" + v + "&points=true");
+            assertEquals(200, status);
+            assertEquals(v, r.getInt("voxel"));
+            assertEquals(scoredFiltered.contains(v), r.getBoolean("scoredFiltered"));
+
+            Voxel vox = pcf.getVGrid().getVoxel(v);
+            for(FileType ft : FileType.values())
+                for(PointClassification pc : PointClassification.values()) {
+                    JSONObject cls = r.getJSONObject(ft.name()).getJSONObject(pc.name());
+                    int count = vox.getCounts()[Voxel.slot(ft, pc)];
+                    assertEquals(count, cls.getInt("count"));
+                    if(count == 0) continue;
+
+                    // the points are in input coordinates, and fall back into the voxel
+                    JSONArray points = cls.getJSONArray("points");
+                    assertEquals(count, points.length());
+                    for(int i = 0; i < points.length(); i++) {
+                        JSONArray xyz = points.getJSONArray(i);
+                        assertEquals(v, pcf.getVGrid().getVoxelId(xyz.getDouble(0) - shift.x,
+                                xyz.getDouble(1) - shift.y, xyz.getDouble(2) - shift.z));
+                    }
+                }
+        }
+    }
+
+    @Test
+    public void invalidVoxelRequests() throws Exception {
+        assertTrue(get("/voxel?id=" + pcf.getVGrid().getSize()).has("error"));
+        assertEquals(400, status);
+
+        get("/voxel?id=abc");
+        assertEquals(400, status);
+
+        get("/voxel?id=0", "POST");
+        assertEquals(405, status);
+    }
+}
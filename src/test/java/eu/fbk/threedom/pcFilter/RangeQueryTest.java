@@ -0,0 +1,142 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.PointFilter;
+import eu.fbk.threedom.structs.VoxelGrid;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * box and radius queries of the VoxelGrid with random fileType/class/score filters
+ * must find the points of a brute force scan, also when run concurrently
+ */
+public class RangeQueryTest {
+
+    private static final float VOXEL_SIDE = 1;
+    private static final int QUERIES = 500;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static PcFilter pcf;
+    // all the points of the grid, scanned by the brute force queries
+    private static List<Point> all;
+
+    private static Point[] centers;
+    private static double[] extents;
+    private static PointFilter[] filters;
+
+    @BeforeClass
+    public static void buildQueries() throws Exception {
+        TestClouds clouds = new TestClouds(folder.getRoot(), 4000, 3000, 0, 6);
+        pcf = clouds.filter(VOXEL_SIDE);
+        all = pcf.getPoints();
+
+        // random boxes and spheres inside the bounding box, half of them boxes
+        Random rnd = new Random(42);
+        Point bmin = pcf.getBbox().getMin(), bmax = pcf.getBbox().getMax();
+        centers = new Point[QUERIES];
+        extents = new double[QUERIES];
+        filters = new PointFilter[QUERIES];
+        for(int q = 0; q < QUERIES; q++) {
+            centers[q] = new Point(bmin.x + rnd.nextDouble() * (bmax.x - bmin.x),
+                    bmin.y + rnd.nextDouble() * (bmax.y - bmin.y),
+                    bmin.z + rnd.nextDouble() * (bmax.z - bmin.z));
+            extents[q] = VOXEL_SIDE * (0.25 + rnd.nextDouble() * 8);
+            filters[q] = randomFilter(rnd);
+        }
+    }
+
+    private static PointFilter randomFilter(Random rnd){
+        FileType ft = rnd.nextBoolean() ? null : FileType.values()[rnd.nextInt(FileType.values().length)];
+        PointClassification pc = rnd.nextBoolean() ? null : PointClassification.values()[rnd.nextInt(PointClassification.values().length)];
+        return new PointFilter(ft, pc, rnd.nextInt(4) == 0);
+    }
+
+    private static Set<Point> bruteForce(int q){
+        Point c = centers[q];
+        double e = extents[q];
+
+        Set<Point> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Point p : all) {
+            boolean in = (q % 2 == 0) ?
+                    Math.abs(p.x - c.x) <= e && Math.abs(p.y - c.y) <= e && Math.abs(p.z - c.z) <= e :
+                    (p.x - c.x) * (p.x - c.x) + (p.y - c.y) * (p.y - c.y) + (p.z - c.z) * (p.z - c.z) <= e * e;
+            if(in && filters[q].accepts(p)) found.add(p);
+        }
+        return found;
+    }
+
+    @Test
+    public void visitedPointsMatchBruteForce(){
+        VoxelGrid vGrid = pcf.getVGrid();
+
+        for(int q = 0; q < QUERIES; q++) {
+            Set<Point> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            query(vGrid, q, (v, p) -> visited.add(p));
+            assertEquals("query " + q, bruteForce(q), visited);
+        }
+    }
+
+    @Test
+    public void concurrentCountsMatchBruteForce(){
+        VoxelGrid vGrid = pcf.getVGrid();
+
+        int[] counts = new int[QUERIES];
+        IntStream.range(0, QUERIES).parallel().forEach(q -> counts[q] = count(vGrid, q));
+
+        for(int q = 0; q < QUERIES; q++)
+            assertEquals("query " + q, bruteForce(q).size(), counts[q]);
+    }
+
+    // even queries are boxes of half side extent, odd ones spheres of radius extent
+    private static void query(VoxelGrid vGrid, int q, VoxelGrid.PointVisitor visitor){
+        Point c = centers[q];
+        double e = extents[q];
+        if(q % 2 == 0)
+            vGrid.queryBox(new Point(c.x - e, c.y - e, c.z - e), new Point(c.x + e, c.y + e, c.z + e), filters[q], visitor);
+        else
+            vGrid.queryRadius(c, e, filters[q], visitor);
+    }
+
+    private static int count(VoxelGrid vGrid, int q){
+        Point c = centers[q];
+        double e = extents[q];
+        if(q % 2 == 0)
+            return vGrid.countBox(new Point(c.x - e, c.y - e, c.z - e), new Point(c.x + e, c.y + e, c.z + e), filters[q]);
+        return vGrid.countRadius(c, e, filters[q]);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.VoxelCounts;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * synthetic photogrammetric and lidar clouds for the tests: both sample the same sloped
+ * terrain with a block on it, in georeferenced coordinates, with noisy properties.
+ * The photogrammetric cloud also holds a few isolated points far above the terrain
+ */
+class TestClouds {
+
+    static final double X0 = 651000, Y0 = 5110000, Z0 = 200;
+    static final double SIZE_X = 30, SIZE_Y = 20;
+
+    final File photo, lidar, config;
+
+    /**
+     * @param folder where the clouds and the config are written
+     * @param photoPoints
+     * @param lidarPoints
+     * @param outliers isolated photogrammetric points, out of photoPoints
+     * @param seed
+     */
+    TestClouds(File folder, int photoPoints, int lidarPoints, int outliers, long seed) throws IOException {
+        photo = new File(folder, "P.txt");
+        lidar = new File(folder, "L.txt");
+        config = new File(folder, "config.json");
+
+        try (InputStream in = TestClouds.class.getResourceAsStream("/config.json")) {
+            Files.copy(in, config.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Random rnd = new Random(seed);
+        try (PrintWriter out = new PrintWriter(photo, "UTF-8")) {
+            out.println("// X Y Z R G B Class PIntensity");
+            for(int i = 0; i < photoPoints; i++) {
+                double[] p = surfacePoint(rnd, 0.05);
+                if(i < outliers) p[2] += 5 + 10 * rnd.nextDouble();
+                out.println(p[0] + " " + p[1] + " " + p[2] + " " + rnd.nextInt(256) + " " + rnd.nextInt(256) + " "
+                        + rnd.nextInt(256) + " " + classOf(p) + " " + rnd.nextDouble());
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(lidar, "UTF-8")) {
+            out.println("// X Y Z Class LIntensity dZVariance ScanAngleRank EchoRatio");
+            for(int i = 0; i < lidarPoints; i++) {
+                double[] p = surfacePoint(rnd, 0.02);
+                out.println(p[0] + " " + p[1] + " " + p[2] + " " + classOf(p) + " " + 255 * rnd.nextDouble() + " "
+                        + rnd.nextDouble() + " " + (rnd.nextInt(41) - 20) + " " + 100 * rnd.nextDouble());
+            }
+        }
+    }
+
+    JSONObject loadConfig(){
+        return Main.loadConfig(config);
+    }
+
+    PcFilter filter(float voxelSide){
+        return new PcFilter(photo, lidar, voxelSide, loadConfig());
+    }
+
+    // terrain rising along x, a 6 x 4 x 3 block in the middle
+    static double height(double x, double y){
+        boolean block = x > 12 && x < 18 && y > 8 && y < 12;
+        return 0.1 * x + (block ? 3 : 0);
+    }
+
+    private static double[] surfacePoint(Random rnd, double noise){
+        double x = SIZE_X * rnd.nextDouble(), y = SIZE_Y * rnd.nextDouble();
+        return new double[]{X0 + x, Y0 + y, Z0 + height(x, y) + noise * rnd.nextGaussian()};
+    }
+
+    // roof on the block, street elsewhere, facade on its border
+    private static int classOf(double[] p){
+        double x = p[0] - X0, y = p[1] - Y0;
+        if(x > 12.5 && x < 17.5 && y > 8.5 && y < 11.5) return 0;
+        if(x > 11.5 && x < 18.5 && y > 7.5 && y < 12.5) return 1;
+        return 2;
+    }
+
+    /**
+     * digest of the filter results: intersection, filtered and scored filtered voxels
+     * and the output lines of the scored filtered points
+     * @param pcf
+     * @return
+     */
+    static String digest(PcFilter pcf) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        Set<Integer> intersection = vc.getIntersection();
+        Set<Integer> filtered = vc.getFiltered(intersection);
+        Set<Integer> scoredFiltered = vc.getScoredFiltered(filtered);
+
+        for(Set<Integer> set : Arrays.asList(intersection, filtered, scoredFiltered))
+            md.update(set.toString().getBytes(StandardCharsets.UTF_8));
+
+        for(FileType ft : FileType.values())
+            for(int v : scoredFiltered)
+                for(Point p : pcf.getPoints(ft, v, true))
+                    md.update(p.toStringOutput(false, pcf.getCoordShift()).getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder sb = new StringBuilder();
+        for(byte b : md.digest()) sb.append(String.format("%02x", b));
+
+        return sb.toString() + " (" + intersection.size() + "/" + filtered.size() + "/" + scoredFiltered.size() + " voxels)";
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.PointClassification;
+import eu.fbk.threedom.structs.VoxelCounts;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * the scored filtered voxels of a threshold sweep and the points of the applied
+ * thresholds match a separate filter run with the thresholds in its config
+ */
+public class ThresholdSweepTest {
+
+    private static final float VOXEL_SIDE = 1f;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+    private static PcFilter pcf;
+    private static ThresholdSweep sweep;
+
+    @BeforeClass
+    public static void createSweep() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), 5000, 4000, 10, 29);
+        pcf = clouds.filter(VOXEL_SIDE);
+
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        sweep = new ThresholdSweep(pcf, vc, vc.getFiltered(vc.getIntersection()));
+    }
+
+    private static PcFilter singleRun(float[][] t){
+        JSONObject config = clouds.loadConfig();
+        JSONArray fileTypes = config.getJSONArray("fileTypes");
+        for(FileType ft : FileType.values()) {
+            JSONArray classTypes = ((JSONObject) fileTypes.get(ft.ordinal())).getJSONArray("classTypes");
+            for(PointClassification pc : PointClassification.values())
+                ((JSONObject) classTypes.get(pc.ordinal())).put("threshold", t[ft.ordinal()][pc.ordinal()]);
+        }
+
+        return new PcFilter(clouds.photo, clouds.lidar, VOXEL_SIDE, config);
+    }
+
+    private static Set<Integer> scoredFiltered(PcFilter pcf){
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        return vc.getScoredFiltered(vc.getFiltered(vc.getIntersection()));
+    }
+
+    @Test
+    public void sweepMatchesSingleRuns() throws Exception {
+        String configDigest = TestClouds.digest(singleRun(sweep.getThresholds()));
+        assertEquals(configDigest, TestClouds.digest(clouds.filter(VOXEL_SIDE)));
+
+        for(double q : new double[]{0.2, 0.5, 0.8}) {
+            float[][] t = sweep.getAutoThresholds(q);
+            PcFilter single = singleRun(t);
+
+            assertEquals("q " + q, scoredFiltered(single), sweep.getScoredFiltered(t));
+            assertNotEquals("q " + q, configDigest, TestClouds.digest(single));
+        }
+    }
+
+    @Test
+    public void configThresholdsMatchTheFilter(){
+        assertEquals(scoredFiltered(pcf), sweep.getScoredFiltered(sweep.getThresholds()));
+    }
+
+    @Test
+    public void appliedThresholdsMatchASingleRun() throws Exception {
+        PcFilter pcf = clouds.filter(VOXEL_SIDE);
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        ThresholdSweep sweep = new ThresholdSweep(pcf, vc, vc.getFiltered(vc.getIntersection()));
+
+        float[][] t = sweep.getAutoThresholds(0.3);
+        sweep.apply(t);
+        assertEquals(TestClouds.digest(singleRun(t)), TestClouds.digest(pcf));
+    }
+}
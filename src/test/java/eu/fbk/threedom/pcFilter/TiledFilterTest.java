@@ -0,0 +1,118 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.structs.VoxelCounts;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the out-of-core filter writes the points of the in-memory filter, whatever the
+ * number of tiles the cloud is split into
+ */
+public class TiledFilterTest {
+
+    private static final float SIDE = 1;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+    private static PcFilter pcf;
+    private static int filteredCount, scoredFilteredCount, intersectionCount;
+    private static File[] filtered, scored;
+
+    private static File[] outputFiles(File dir, String name){
+        File[] files = new File[FileType.values().length];
+        for(FileType ft : FileType.values())
+            files[ft.ordinal()] = new File(dir, name + "_" + ft.ordinal() + ".txt");
+
+        return files;
+    }
+
+    private static List<String> sortedLines(File file) throws Exception {
+        List<String> lines = new ArrayList<>(Files.readAllLines(file.toPath()));
+        Collections.sort(lines);
+
+        return lines;
+    }
+
+    @BeforeClass
+    public static void filterInMemory() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), 5000, 4000, 10, 31);
+        pcf = clouds.filter(SIDE);
+
+        VoxelCounts vc = VoxelCounts.fromGrid(pcf.getVGrid());
+        Set<Integer> intersection = vc.getIntersection();
+        Set<Integer> filteredSet = vc.getFiltered(intersection);
+        Set<Integer> scoredFilteredSet = vc.getScoredFiltered(filteredSet);
+        intersectionCount = intersection.size();
+        filteredCount = filteredSet.size();
+        scoredFilteredCount = scoredFilteredSet.size();
+
+        filtered = outputFiles(folder.getRoot(), "filtered");
+        scored = outputFiles(folder.getRoot(), "scored");
+        pcf.writeVoxels(filtered, filteredSet, false);
+        pcf.writeVoxels(scored, scoredFilteredSet, true);
+    }
+
+    @Test
+    public void tiledOutputMatchesInMemory() throws Exception {
+        // 30 x 20 voxels: tiles of a single voxel, tiles crossing the block, a single tile
+        for(int tileVoxels : new int[]{1, 7, 64}) {
+            File workDir = folder.newFolder("tiles" + tileVoxels);
+            File[] tiledFiltered = outputFiles(workDir, "filtered"), tiledScored = outputFiles(workDir, "scored");
+
+            TiledFilter tf = new TiledFilter(clouds.photo, clouds.lidar, SIDE, tileVoxels, workDir, clouds.loadConfig());
+            tf.run(tiledFiltered, tiledScored);
+
+            String msg = "tileVoxels " + tileVoxels;
+            assertEquals(msg, intersectionCount, tf.getIntersectionCount());
+            assertEquals(msg, filteredCount, tf.getFilteredCount());
+            assertEquals(msg, scoredFilteredCount, tf.getScoredFilteredCount());
+            if(tileVoxels < 30) assertTrue(msg, tf.getTiles().size() > 1);
+
+            for(FileType ft : FileType.values()) {
+                List<String> expected = sortedLines(scored[ft.ordinal()]);
+                assertTrue(expected.size() > 1);
+                assertEquals(msg, expected, sortedLines(tiledScored[ft.ordinal()]));
+                assertEquals(msg, sortedLines(filtered[ft.ordinal()]), sortedLines(tiledFiltered[ft.ordinal()]));
+            }
+        }
+    }
+}
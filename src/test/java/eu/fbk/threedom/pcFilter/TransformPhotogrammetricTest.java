@@ -0,0 +1,94 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the photogrammetric points moved by a registration transform are in the rebuilt
+ * voxel grid at their new position, the lidar points keep their input coordinates
+ */
+public class TransformPhotogrammetricTest {
+
+    private static final float VOXEL_SIDE = 1;
+    private static final double TOLERANCE = 1e-6;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    // input coordinates of the points
+    private static Map<Point, double[]> input(PcFilter pcf){
+        Map<Point, double[]> input = new IdentityHashMap<>();
+        Point shift = pcf.getCoordShift();
+        for(Point p : pcf.getPoints())
+            input.put(p, new double[]{p.x + shift.x, p.y + shift.y, p.z + shift.z});
+        return input;
+    }
+
+    @Test
+    public void movedPointsAreRegridded() throws Exception {
+        PcFilter pcf = new TestClouds(folder.getRoot(), 2000, 2000, 0, 10).filter(VOXEL_SIDE);
+        Map<Point, double[]> before = input(pcf);
+
+        // a translation moving the photogrammetric points below the lidar bounding box min
+        Matrix4d t = new Matrix4d();
+        t.setIdentity();
+        t.setTranslation(new Vector3d(-3.7, 2.2, -1.4));
+        pcf.transformPhotogrammetric(t);
+
+        Map<Point, double[]> after = input(pcf);
+        assertEquals(before.size(), after.size());
+        for(Map.Entry<Point, double[]> e : after.entrySet()) {
+            double[] b = before.get(e.getKey()), a = e.getValue();
+            boolean photo = e.getKey().getType() == FileType.PHOTOGRAMMETRIC;
+            assertEquals(b[0] + (photo ? -3.7 : 0), a[0], TOLERANCE);
+            assertEquals(b[1] + (photo ? 2.2 : 0), a[1], TOLERANCE);
+            assertEquals(b[2] + (photo ? -1.4 : 0), a[2], TOLERANCE);
+        }
+
+        // every point in the voxel of its shifted position, the bbox min next to the origin
+        Point min = pcf.getBbox().getMin();
+        assertTrue(min.x >= 0 && min.x < VOXEL_SIDE && min.y >= 0 && min.y < VOXEL_SIDE && min.z >= 0 && min.z < VOXEL_SIDE);
+        int inGrid = 0;
+        for(int v : pcf.getVGrid().getVoxelWithPoints())
+            for(FileType ft : FileType.values())
+                for(Point p : pcf.getPoints(ft, v, false)) {
+                    assertEquals(v, pcf.getVoxelId(p));
+                    inGrid++;
+                }
+        assertEquals(before.size(), inGrid);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * representatives of the voxels, compared with the centroid and the nearest point
+ * computed from the points of each voxel
+ */
+public class VoxelDownsamplerTest {
+
+    private static final float VOXEL_SIDE = 2;
+    private static final double TOLERANCE = 1e-9;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static PcFilter pcf;
+
+    @BeforeClass
+    public static void writeClouds() throws Exception {
+        pcf = new TestClouds(folder.getRoot(), 4000, 3000, 0, 7).filter(VOXEL_SIDE);
+    }
+
+    private static double[] centroid(List<Point> points){
+        double[] c = new double[3];
+        for(Point p : points) { c[0] += p.x; c[1] += p.y; c[2] += p.z; }
+        for(int i = 0; i < 3; i++) c[i] /= points.size();
+        return c;
+    }
+
+    private static double dist2(Point p, double[] c){
+        return (p.x - c[0]) * (p.x - c[0]) + (p.y - c[1]) * (p.y - c[1]) + (p.z - c[2]) * (p.z - c[2]);
+    }
+
+    @Test
+    public void centroidsOfTheVoxels(){
+        VoxelDownsampler ds = new VoxelDownsampler(VoxelDownsampler.Mode.CENTROID, 2);
+
+        for(FileType ft : FileType.values()) {
+            List<Integer> voxels = new ArrayList<>(pcf.getVGrid().getVoxels(ft));
+            Point[] rep = ds.representatives(pcf, ft, new LinkedHashSet<>(voxels), false);
+            assertEquals(voxels.size(), rep.length);
+
+            for(int i = 0; i < rep.length; i++) {
+                List<Point> points = pcf.getPoints(ft, voxels.get(i), false);
+                double[] c = centroid(points);
+                assertEquals(0, dist2(rep[i], c), TOLERANCE);
+                assertEquals((int) voxels.get(i), pcf.getVGrid().getVoxelId(rep[i]));
+                assertEquals(ft, rep[i].getType());
+
+                double score = 0;
+                int[] classes = new int[PointClassification.values().length];
+                for(Point p : points) {
+                    score += p.getScore();
+                    classes[p.getClassification().ordinal()]++;
+                }
+                assertEquals(score / points.size(), rep[i].getScore(), TOLERANCE);
+                for(int count : classes)
+                    assertTrue(count <= classes[rep[i].getClassification().ordinal()]);
+            }
+        }
+    }
+
+    @Test
+    public void nearestPointsToTheCentroids(){
+        VoxelDownsampler ds = new VoxelDownsampler(VoxelDownsampler.Mode.NEAREST, 2);
+
+        for(FileType ft : FileType.values()) {
+            List<Integer> voxels = new ArrayList<>(pcf.getVGrid().getVoxels(ft));
+            Point[] rep = ds.representatives(pcf, ft, new LinkedHashSet<>(voxels), false);
+
+            for(int i = 0; i < rep.length; i++) {
+                List<Point> points = pcf.getPoints(ft, voxels.get(i), false);
+                double[] c = centroid(points);
+
+                // one of the points of the voxel, none is nearer to the centroid
+                boolean member = false;
+                for(Point p : points) {
+                    member |= p == rep[i];
+                    assertTrue(dist2(rep[i], c) <= dist2(p, c));
+                }
+                assertTrue(member);
+            }
+        }
+    }
+
+    @Test
+    public void emptyVoxelsHaveNoRepresentative(){
+        VoxelDownsampler ds = new VoxelDownsampler(VoxelDownsampler.Mode.CENTROID, 2);
+
+        Set<Integer> lidar = pcf.getVGrid().getVoxels(FileType.LIDAR);
+        int empty = 0;
+        while(pcf.getVGrid().getVoxel(empty) != null) empty++;
+
+        Set<Integer> voxels = new LinkedHashSet<>(Arrays.asList(empty, lidar.iterator().next()));
+        Point[] rep = ds.representatives(pcf, FileType.LIDAR, voxels, false);
+        assertNull(rep[0]);
+        assertNotNull(rep[1]);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.pcFilter;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.structs.VoxelCounts;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * each cell of a voxelSide sweep, binned from the points or derived from a finer one,
+ * matches a separate filter run with that voxelSide
+ */
+public class VoxelSweepTest {
+
+    // 1, 1.5, 2 and 3 are derived from a finer side, 0.5 and 0.7 are binned
+    private static final float[] SIDES = {2, 0.5f, 1, 1.5f, 3, 0.7f};
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static TestClouds clouds;
+    private static PcFilter sweepPcf;
+    private static VoxelSweep sweep;
+
+    @BeforeClass
+    public static void runSweep() throws Exception {
+        clouds = new TestClouds(folder.getRoot(), 5000, 4000, 10, 23);
+        sweepPcf = clouds.filter(0);
+        sweep = new VoxelSweep(sweepPcf, SIDES);
+        sweep.run();
+    }
+
+    private static List<String> lines(List<Point> points, Point coordShift){
+        List<String> lines = new ArrayList<>();
+        for(Point p : points) lines.add(p.toStringOutput(false, coordShift));
+        Collections.sort(lines);
+
+        return lines;
+    }
+
+    private static List<Point> points(PcFilter pcf, Set<Integer> voxels, boolean scoreCheck){
+        List<Point> points = new ArrayList<>();
+        for(FileType ft : FileType.values())
+            for(int v : voxels)
+                points.addAll(pcf.getPoints(ft, v, scoreCheck));
+
+        return points;
+    }
+
+    @Test
+    public void derivedAndBinnedGrids(){
+        int derived = 0;
+        for(int d : sweep.getDerivedFrom()) if(d != -1) derived++;
+        assertEquals(4, derived);
+    }
+
+    @Test
+    public void sweepCellsMatchSingleRuns(){
+        for(int i = 0; i < sweep.getVoxelSides().length; i++) {
+            float side = sweep.getVoxelSides()[i];
+            PcFilter pcf = clouds.filter(side);
+            VoxelCounts single = VoxelCounts.fromGrid(pcf.getVGrid()), cell = sweep.getCounts()[i];
+
+            assertEquals("voxelSide " + side, single.size(), cell.size());
+            assertEquals("voxelSide " + side, pcf.getVGrid().getSize(), sweep.getGrids()[i].getSize());
+
+            Set<Integer> intersection = single.getIntersection();
+            Set<Integer> filtered = single.getFiltered(intersection);
+            Set<Integer> scoredFiltered = single.getScoredFiltered(filtered);
+            assertFalse(scoredFiltered.isEmpty());
+
+            assertEquals("voxelSide " + side, intersection, cell.getIntersection());
+            assertEquals("voxelSide " + side, filtered, cell.getFiltered(cell.getIntersection()));
+            assertEquals("voxelSide " + side, scoredFiltered, cell.getScoredFiltered(filtered));
+
+            for(int v : intersection)
+                for(FileType ft : FileType.values())
+                    assertEquals(single.getCount(v, ft), cell.getCount(v, ft));
+
+            // same output points, grouped by voxel in a different order
+            List<String> expected = lines(points(pcf, scoredFiltered, true), pcf.getCoordShift());
+            assertTrue(expected.size() > 0);
+            assertEquals("voxelSide " + side, expected,
+                    lines(sweep.getPoints(i, scoredFiltered, true), sweepPcf.getCoordShift()));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * kNN and radius queries of the KdTree, run in parallel batches by the photogrammetric
+ * points on all the points, compared with a brute force scan on a sample of the queries
+ */
+public class KdTreeTest {
+
+    private static final int K = 8, BRUTE_FORCE_QUERIES = 200, THREADS = 2;
+    private static final double RADIUS = 1;
+
+    private static List<Point> points, photo;
+    private static double[] queries;
+    private static KdTree tree;
+
+    @BeforeClass
+    public static void buildTree(){
+        // terrain rising along x, random fileType, class and score
+        Random rnd = new Random(4);
+        points = new ArrayList<>();
+        photo = new ArrayList<>();
+        for(int i = 0; i < 5000; i++) {
+            double x = 30 * rnd.nextDouble(), y = 20 * rnd.nextDouble(), z = 0.1 * x + 0.05 * rnd.nextGaussian();
+            FileType ft = (i % 5 < 3) ? FileType.PHOTOGRAMMETRIC : FileType.LIDAR;
+            Point p = new Point(ft, 0, x, y, z);
+            p.setClassification(PointClassification.values()[rnd.nextInt(PointClassification.values().length)]);
+            p.setScore(rnd.nextDouble());
+            p.setThreshold(0.5f);
+
+            points.add(p);
+            if(ft == FileType.PHOTOGRAMMETRIC) photo.add(p);
+        }
+        tree = KdTree.build(points, THREADS);
+
+        queries = new double[3 * photo.size()];
+        for(int i = 0; i < photo.size(); i++) {
+            queries[3 * i] = photo.get(i).x; queries[3 * i + 1] = photo.get(i).y; queries[3 * i + 2] = photo.get(i).z;
+        }
+    }
+
+    @AfterClass
+    public static void shutdown(){
+        tree.shutdown();
+    }
+
+    private static double dist2(Point a, Point b){
+        return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y) + (a.z - b.z) * (a.z - b.z);
+    }
+
+    @Test
+    public void lidarQueriesMatchBruteForce(){
+        check(new PointFilter(FileType.LIDAR, null, false));
+    }
+
+    @Test
+    public void classQueriesMatchBruteForce(){
+        check(new PointFilter(FileType.LIDAR, PointClassification.C1, false));
+    }
+
+    @Test
+    public void scoreQueriesMatchBruteForce(){
+        check(new PointFilter(null, null, true));
+    }
+
+    private void check(PointFilter filter){
+        int[] indices = new int[photo.size() * K];
+        double[] dist2 = new double[photo.size() * K];
+        int[] counts = new int[photo.size()];
+        tree.knn(queries, K, filter, indices, dist2);
+        tree.radius(queries, RADIUS, filter, counts);
+
+        Random rnd = new Random(7);
+        double[] all = new double[points.size()];
+        for(int s = 0; s < BRUTE_FORCE_QUERIES; s++) {
+            int q = rnd.nextInt(photo.size());
+            Point p = photo.get(q);
+
+            int n = 0, inside = 0;
+            for(Point o : points)
+                if(filter.accepts(o)) {
+                    double d2 = dist2(o, p);
+                    all[n++] = d2;
+                    if(d2 <= RADIUS * RADIUS) inside++;
+                }
+            Arrays.sort(all, 0, n);
+
+            for(int i = 0; i < K; i++) {
+                double expected = (i < n) ? all[i] : Double.POSITIVE_INFINITY;
+                assertEquals("query " + q + " neighbour " + i, expected, dist2[q * K + i], 0);
+
+                int index = indices[q * K + i];
+                if(index >= 0) {
+                    assertTrue(filter.accepts(points.get(index)));
+                    assertEquals(expected, dist2(points.get(index), p), 0);
+                }
+            }
+            assertEquals("query " + q + " radius count", inside, counts[q]);
+
+            int nearest = tree.nearest(p.x, p.y, p.z, filter);
+            assertEquals(all[0], dist2(points.get(nearest), p), 0);
+        }
+    }
+}
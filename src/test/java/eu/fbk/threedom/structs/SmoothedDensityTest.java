@@ -0,0 +1,119 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.BBox;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the box filter and the sparse stencil give the same smoothed density, which is the
+ * neighbourhood mean over the occupied voxels of each slot
+ */
+public class SmoothedDensityTest {
+
+    private static final double SIDE = 1;
+
+    // 13 x 9 x 6 voxels, points clustered in a few of them
+    private static VoxelGrid grid(int n, long seed){
+        BBox bbox = new BBox(new Point(0.5, 0.25, 0.75), new Point(12.5, 8.25, 5.75));
+        Random rnd = new Random(seed);
+
+        LinkedList points = new LinkedList();
+        for(int i = 0; i < n; i++) {
+            FileType ft = FileType.values()[rnd.nextInt(FileType.values().length)];
+            double x = 0.5 + 12 * Math.pow(rnd.nextDouble(), 2), y = 0.25 + 8 * rnd.nextDouble(), z = 0.75 + 5 * rnd.nextDouble();
+            Point p = new Point(ft, 0, x, y, z);
+            p.setClassification(PointClassification.values()[rnd.nextInt(PointClassification.values().length)]);
+            points.addAtEnd(p);
+        }
+        // the corners, with partial neighbourhoods
+        for(double[] c : new double[][]{{0.5, 0.25, 0.75}, {12.5, 8.25, 5.75}}) {
+            Point p = new Point(FileType.LIDAR, 0, c[0], c[1], c[2]);
+            p.setClassification(PointClassification.C0);
+            points.addAtEnd(p);
+        }
+
+        return new VoxelGrid(points, bbox, SIDE);
+    }
+
+    // neighbourhood mean over the voxels holding points of the slot
+    private static float bruteForce(VoxelGrid grid, int id, int slot){
+        int w = grid.getWidth(), h = grid.getHeight(), d = grid.getDepth();
+        int x = id % w, y = (id / w) % h, z = id / (w * h);
+
+        int sum = 0, occupied = 0;
+        for(int dz = -1; dz <= 1; dz++)
+            for(int dy = -1; dy <= 1; dy++)
+                for(int dx = -1; dx <= 1; dx++) {
+                    int n = grid.getVoxelId(x + dx, y + dy, z + dz);
+                    if(n < 0 || grid.getVoxel(n) == null) continue;
+
+                    int c = grid.getVoxel(n).getCounts()[slot];
+                    if(c > 0) { sum += c; occupied++; }
+                }
+
+        return (occupied > 0) ? (float)sum / occupied : 0;
+    }
+
+    private static void check(VoxelGrid grid){
+        SmoothedDensity dense = SmoothedDensity.compute(grid, 3, true);
+        SmoothedDensity sparse = SmoothedDensity.compute(grid, 3, false);
+
+        int nonZero = 0;
+        for(int id = 0; id < grid.getSize(); id++)
+            for(FileType ft : FileType.values())
+                for(PointClassification pc : PointClassification.values()) {
+                    float expected = (grid.getVoxel(id) == null) ? 0 : bruteForce(grid, id, Voxel.slot(ft, pc));
+                    String msg = "voxel " + id + " " + ft + " " + pc;
+                    assertEquals(msg, expected, dense.get(id, ft, pc), 1e-5);
+                    assertEquals(msg, expected, sparse.get(id, ft, pc), 1e-5);
+                    if(expected > 0) nonZero++;
+                }
+
+        assertTrue(nonZero > 0);
+    }
+
+    @Test
+    public void sparseGrid(){
+        VoxelGrid grid = grid(60, 5);
+        assertTrue(grid.getVoxelWithPoints().size() * 8 < grid.getSize());
+        check(grid);
+    }
+
+    @Test
+    public void denseGrid(){
+        VoxelGrid grid = grid(3000, 7);
+        assertTrue(grid.getVoxelWithPoints().size() * 8 >= grid.getSize());
+        check(grid);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.BBox;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the features computed in one pass over the voxel chains match a brute force
+ * computation on the points grouped by voxel
+ */
+public class VoxelFeaturesTest {
+
+    private static final double SIDE = 1;
+    private static final double TOLERANCE = 1e-4;
+
+    // points of both fileTypes on a 4x3x2 grid, a few voxels with less than 3 points
+    private static VoxelGrid grid(List<Point> points){
+        Random rnd = new Random(11);
+        BBox bbox = new BBox(new Point(0.5, 0.25, 0.75), new Point(3.5, 2.25, 1.75));
+
+        LinkedList list = new LinkedList();
+        for(int i = 0; i < 400; i++) {
+            FileType ft = (i % 3 == 0) ? FileType.LIDAR : FileType.PHOTOGRAMMETRIC;
+            // the lidar points lie on a tilted plane, the photogrammetric ones fill the box
+            double x = 0.5 + 3 * rnd.nextDouble(), y = 0.25 + 2 * rnd.nextDouble();
+            double z = (ft == FileType.LIDAR) ? 0.8 + 0.2 * x / 3.5 + 0.01 * rnd.nextGaussian() : 0.75 + rnd.nextDouble();
+            points.add(point(ft, x, y, z));
+        }
+        // sparse voxel
+        points.add(point(FileType.LIDAR, 3.4, 2.2, 1.7));
+        points.add(point(FileType.LIDAR, 3.3, 2.1, 1.6));
+
+        for(Point p : points) list.addAtEnd(p);
+        return new VoxelGrid(list, bbox, SIDE);
+    }
+
+    private static Point point(FileType ft, double x, double y, double z){
+        Point p = new Point(ft, 0, x, y, z);
+        p.setClassification(PointClassification.C0);
+        return p;
+    }
+
+    @Test
+    public void featuresMatchBruteForce(){
+        List<Point> points = new ArrayList<>();
+        VoxelGrid grid = grid(points);
+        VoxelFeatures features = grid.getFeatures(2);
+
+        // brute force grouping of the points by voxel and fileType
+        Map<FileType, Map<Integer, List<Point>>> byVoxel = new EnumMap<>(FileType.class);
+        for(Point p : points)
+            byVoxel.computeIfAbsent(p.getType(), k -> new TreeMap<>())
+                    .computeIfAbsent(grid.getVoxelId(p), k -> new ArrayList<>()).add(p);
+
+        int checked = 0;
+        for(int v = 0; v < grid.getSize(); v++)
+            for(FileType ft : FileType.values()) {
+                List<Point> in = byVoxel.get(ft).get(v);
+                if(in == null) {
+                    assertEquals(0, features.getCount(v, ft));
+                    if(features.slot(v) < 0) assertNull(features.getCentroid(v, ft));
+                    continue;
+                }
+                assertEquals(in.size(), features.getCount(v, ft));
+
+                double[] mean = new double[3];
+                double zMin = Double.MAX_VALUE, zMax = -Double.MAX_VALUE;
+                for(Point p : in) {
+                    mean[0] += p.x / in.size(); mean[1] += p.y / in.size(); mean[2] += p.z / in.size();
+                    zMin = Math.min(zMin, p.z); zMax = Math.max(zMax, p.z);
+                }
+                double[] centroid = features.getCentroid(v, ft);
+                for(int a = 0; a < 3; a++) assertEquals(mean[a], centroid[a], 1e-9);
+                assertEquals(zMax - zMin, features.getHeightRange(v, ft), TOLERANCE);
+
+                // population covariance xx xy xz yy yz zz, two passes
+                double[] cov = new double[6];
+                for(Point p : in) {
+                    double[] d = {p.x - mean[0], p.y - mean[1], p.z - mean[2]};
+                    int c = 0;
+                    for(int a = 0; a < 3; a++)
+                        for(int b = a; b < 3; b++, c++) cov[c] += d[a] * d[b] / in.size();
+                }
+                float[] covariance = features.getCovariance(v, ft);
+                for(int c = 0; c < 6; c++) assertEquals(cov[c], covariance[c], TOLERANCE);
+
+                float[] l = features.getEigenvalues(v, ft);
+                if(in.size() < 3) {
+                    assertTrue(Float.isNaN(l[0]));
+                    continue;
+                }
+                double[] expected = eigenvalues(cov);
+                for(int a = 0; a < 3; a++) assertEquals(expected[a], l[a], TOLERANCE);
+                checked++;
+            }
+
+        assertTrue(checked > 10);
+    }
+
+    /**
+     * closed form eigenvalues of a symmetric 3x3 matrix, descending
+     * @param c xx xy xz yy yz zz
+     */
+    private static double[] eigenvalues(double[] c){
+        double xx = c[0], xy = c[1], xz = c[2], yy = c[3], yz = c[4], zz = c[5];
+        double q = (xx + yy + zz) / 3;
+        double p1 = xy * xy + xz * xz + yz * yz;
+        double p2 = (xx - q) * (xx - q) + (yy - q) * (yy - q) + (zz - q) * (zz - q) + 2 * p1;
+        double p = Math.sqrt(p2 / 6);
+        if(p == 0) return new double[]{q, q, q};
+
+        // B = (A - qI) / p, r = det(B) / 2
+        double bxx = (xx - q) / p, byy = (yy - q) / p, bzz = (zz - q) / p;
+        double bxy = xy / p, bxz = xz / p, byz = yz / p;
+        double r = (bxx * (byy * bzz - byz * byz) - bxy * (bxy * bzz - byz * bxz) + bxz * (bxy * byz - byy * bxz)) / 2;
+        double phi = Math.acos(Math.max(-1, Math.min(1, r))) / 3;
+
+        double l1 = q + 2 * p * Math.cos(phi);
+        double l3 = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+        return new double[]{l1, 3 * q - l1 - l3, Math.max(l3, 0)};
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.structs;
+
+import eu.fbk.threedom.pc.BBox;
+import eu.fbk.threedom.pc.FileType;
+import eu.fbk.threedom.pc.Point;
+import eu.fbk.threedom.pc.PointClassification;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * voxel ids of a grid whose lattice starts below the bounding box min,
+ * pyramid traversal against a flat scan
+ */
+public class VoxelGridTest {
+
+    private static final double SIDE = 1;
+
+    // shifted bbox as the filter builds it, min in [0, SIDE)
+    private static BBox bbox(){
+        return new BBox(new Point(0.5, 0.25, 0.75), new Point(9.5, 4.25, 2.75));
+    }
+
+    @Test
+    public void boundingBoxCornersAreInside(){
+        VoxelGrid grid = new VoxelGrid(bbox(), SIDE);
+        Point min = bbox().getMin(), max = bbox().getMax();
+
+        assertEquals(0, grid.getVoxelId(min.x, min.y, min.z));
+        assertEquals(grid.getSize() - 1, grid.getVoxelId(max.x, max.y, max.z));
+    }
+
+    @Test
+    public void outsideCoordinatesHaveNoId(){
+        VoxelGrid grid = new VoxelGrid(bbox(), SIDE);
+        int w = grid.getWidth(), h = grid.getHeight(), d = grid.getDepth();
+
+        // past one axis, the plain id would alias a voxel of the next row or slice
+        assertEquals(-1, grid.getVoxelId(w, 0, 0));
+        assertEquals(-1, grid.getVoxelId(0, h, 0));
+        assertEquals(-1, grid.getVoxelId(0, 0, d));
+        assertEquals(-1, grid.getVoxelId(-1, 1, 0));
+        assertEquals(-1, grid.getVoxelId(0, -1, 1));
+
+        assertEquals(-1, grid.getVoxelId(w + 0.5, 0.5, 0.5));
+        assertEquals(-1, grid.getVoxelId(-0.5, 0.5, 0.5));
+        assertEquals(-1, grid.getVoxelId(0.5, -0.5, 0.5));
+        assertEquals(-1, grid.getVoxelId(0.5, 0.5, d + 0.5));
+    }
+
+    @Test
+    public void insideCoordinatesHaveDistinctIds(){
+        VoxelGrid grid = new VoxelGrid(bbox(), SIDE);
+
+        Set<Integer> ids = new HashSet<>();
+        for(int z = 0; z < grid.getDepth(); z++)
+            for(int y = 0; y < grid.getHeight(); y++)
+                for(int x = 0; x < grid.getWidth(); x++) {
+                    int id = grid.getVoxelId(x, y, z);
+                    assertTrue(id >= 0 && id < grid.getSize());
+                    assertEquals(id, grid.getVoxelId(x + 0.5, y + 0.5, z + 0.5));
+                    ids.add(id);
+                }
+
+        assertEquals(grid.getSize(), ids.size());
+    }
+
+    @Test
+    public void pointsOnTheBoundingBoxAreKept(){
+        BBox bbox = bbox();
+        Point min = bbox.getMin(), max = bbox.getMax();
+
+        LinkedList points = new LinkedList();
+        double[][] xyz = {{min.x, min.y, min.z}, {max.x, max.y, max.z}, {max.x, min.y, max.z}, {5, 2, 1}};
+        for(double[] c : xyz) {
+            Point p = new Point(FileType.LIDAR, 0, c[0], c[1], c[2]);
+            p.setClassification(PointClassification.C0);
+            points.addAtEnd(p);
+        }
+
+        VoxelGrid grid = new VoxelGrid(points, bbox, SIDE);
+        assertEquals(xyz.length, grid.getPoints(FileType.LIDAR).size());
+    }
+
+    @Test
+    public void pyramidTraversalMatchesFlatScan(){
+        // 11 x 7 x 5 voxels: the top level blocks on the far edges are partial
+        BBox bbox = new BBox(new Point(0.5, 0.25, 0.75), new Point(10.5, 6.25, 4.75));
+        Random rnd = new Random(3);
+
+        LinkedList points = new LinkedList();
+        for(int i = 0; i < 40; i++) {
+            FileType ft = FileType.values()[rnd.nextInt(FileType.values().length)];
+            Point p = new Point(ft, 0, 0.5 + 10 * rnd.nextDouble(), 0.25 + 6 * rnd.nextDouble(), 0.75 + 4 * rnd.nextDouble());
+            p.setClassification(PointClassification.values()[rnd.nextInt(PointClassification.values().length)]);
+            points.addAtEnd(p);
+        }
+        // the voxel of the bbox max, alone in its top level block
+        Point corner = new Point(FileType.LIDAR, 0, 10.5, 6.25, 4.75);
+        corner.setClassification(PointClassification.C1);
+        points.addAtEnd(corner);
+
+        VoxelGrid grid = new VoxelGrid(points, bbox, SIDE);
+        assertEquals(11 * 7 * 5, grid.getSize());
+
+        int lidar = Voxel.fileTypeMask(FileType.LIDAR), photo = Voxel.fileTypeMask(FileType.PHOTOGRAMMETRIC);
+        int c1 = 0;
+        for(FileType ft : FileType.values()) c1 |= 1 << Voxel.slot(ft, PointClassification.C1);
+        final int classMask = c1;
+
+        // monotone predicates: any point, one fileType, both fileTypes, one class of both fileTypes
+        IntPredicate[] tests = {
+                m -> m != 0,
+                m -> (m & lidar) != 0,
+                m -> (m & lidar) != 0 && (m & photo) != 0,
+                m -> (m & classMask) != 0 && (m & photo) != 0
+        };
+
+        List<Set<Integer>> flat = new ArrayList<>();
+        for(IntPredicate test : tests) flat.add(grid.getVoxels(test));
+        assertTrue(flat.get(1).contains(grid.getSize() - 1));
+
+        for(int levels = 1; levels <= 4; levels++) {
+            grid.buildPyramid(levels);
+            for(int t = 0; t < tests.length; t++)
+                assertEquals("levels " + levels + ", test " + t, flat.get(t), grid.getVoxels(tests[t]));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * lines written through the background thread, and its write errors thrown by close
+ */
+public class BlockWriterTest {
+
+    // fails once more than limit characters have been written
+    private static class FailingWriter extends Writer {
+        private final IOException error = new IOException("disk full");
+        private final int limit;
+        private int written;
+
+        FailingWriter(int limit){
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            written += len;
+            if(written > limit) throw error;
+        }
+
+        @Override
+        public void flush(){ }
+
+        @Override
+        public void close(){ }
+    }
+
+    @Test
+    public void linesAreWrittenInOrder() throws IOException {
+        StringWriter out = new StringWriter();
+        BlockWriter writer = new BlockWriter(out);
+
+        int lines = 2 * BlockWriter.BLOCK_LINES + 7;
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < lines; i++) {
+            writer.writeLine(String.valueOf(i));
+            expected.append(i).append(System.lineSeparator());
+        }
+        writer.close();
+
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public void writeErrorIsThrownByClose(){
+        FailingWriter out = new FailingWriter(10);
+        BlockWriter writer = new BlockWriter(out);
+
+        // more blocks than the queue holds: the producer must not block after the failure
+        for(int i = 0; i < 10 * BlockWriter.BLOCK_LINES; i++)
+            writer.writeLine("line " + i);
+
+        try {
+            writer.close();
+            fail("close did not throw the write error");
+        } catch (IOException e) {
+            assertSame(out.error, e);
+        }
+    }
+}
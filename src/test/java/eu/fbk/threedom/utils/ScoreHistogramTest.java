@@ -0,0 +1,78 @@
+/**
+ * Hybrid Registration (C) 2019 is a command line software designed to
+ * analyze, co-register and filter airborne point clouds acquired by LiDAR sensors
+ * and photogrammetric algorithm.
+ * Copyright (C) 2019  Michele Welponer, mwelponer@gmail.com (Fondazione Bruno Kessler)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.
+ * If not, see <https://www.gnu.org/licenses/> and file GPL3.txt
+ *
+ * -------------
+ * IntelliJ Program arguments:
+ * $ContentRoot$/resources/f1.txt $ContentRoot$/resources/f2.txt 1f -w -v
+ */
+package eu.fbk.threedom.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * pass fractions and quantiles of a histogram of evenly spread values
+ */
+public class ScoreHistogramTest {
+
+    private static final int VALUES = 1001, BINS = 100;
+    private static final double TOLERANCE = 1.0 / BINS;
+
+    // 0, 0.001, .., 1
+    private static ScoreHistogram even(){
+        double[] v = new double[VALUES];
+        for(int i = 0; i < VALUES; i++) v[i] = (double) i / (VALUES - 1);
+        return ScoreHistogram.create(v, v.length, BINS);
+    }
+
+    @Test
+    public void fractionsAndQuantilesOfEvenValues(){
+        ScoreHistogram h = even();
+        assertEquals(VALUES, h.getTotal());
+
+        for(double t = 0.05; t < 1; t += 0.1) {
+            assertEquals(t, h.fraction(t), TOLERANCE);
+            assertEquals(t, h.quantile(t), TOLERANCE);
+            assertEquals(t, h.fraction(h.quantile(t)), TOLERANCE);
+        }
+    }
+
+    @Test
+    public void valuesOutsideTheRange(){
+        ScoreHistogram h = even();
+
+        assertEquals(0, h.fraction(-0.5), 0);
+        assertEquals(1, h.fraction(1), 0);
+        assertEquals(1, h.fraction(2), 0);
+
+        h.add(5);
+        assertEquals(VALUES + 1, h.getTotal());
+        assertEquals(1, h.getBins()[BINS - 1] - even().getBins()[BINS - 1]);
+    }
+
+    @Test
+    public void emptyHistogram(){
+        ScoreHistogram h = ScoreHistogram.create(new double[0], 0, BINS);
+
+        assertEquals(0, h.fraction(0.5), 0);
+        assertEquals(0, h.quantile(0.5), 0);
+    }
+}